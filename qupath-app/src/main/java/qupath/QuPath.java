@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -66,6 +67,7 @@ import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.PersistentTileCache;
 import qupath.lib.projects.Project;
 import qupath.lib.projects.ProjectIO;
 import qupath.lib.scripting.QP;
@@ -311,6 +313,15 @@ class ScriptCommand implements Runnable {
 			+ "extract the third series within the file.", paramLabel = "server-arguments")
 	private String[] serverArgs;
 
+	@Option(names = {"--tile-cache"}, description = "Directory in which to store decoded image tiles, so they can be reused by later runs.", paramLabel = "directory")
+	private String tileCacheDir;
+	
+	@Option(names = {"--tile-cache-size"}, description = "Maximum size of the tile cache directory, in MB (default = ${DEFAULT-VALUE}).", paramLabel = "size")
+	private long tileCacheSizeMB = 4096;
+	
+	@Option(names = {"--tile-readahead"}, description = "Number of tiles to read ahead when tiles are requested row-by-row, or 0 to turn off readahead (default = ${DEFAULT-VALUE}).", paramLabel = "tiles")
+	private int tileReadahead = 2;
+	
 	@Option(names = {"-h", "--help"}, usageHelp = true, description = "Show this help message and exit.")
 	private boolean usageHelpRequested;
 		
@@ -436,6 +447,17 @@ class ScriptCommand implements Runnable {
 		
 		var imageRegionStore = ImageRegionStoreFactory.createImageRegionStore(tileCacheSize);
 		ImageServerProvider.setCache(imageRegionStore.getCache(), BufferedImage.class);
+		ImageServerProvider.setTileReadahead(Math.max(0, tileReadahead));
+		
+		if (tileCacheDir != null && !tileCacheDir.isBlank()) {
+			try {
+				var persistentCache = new PersistentTileCache(Paths.get(tileCacheDir), tileCacheSizeMB * 1024L * 1024L);
+				ImageServerProvider.setPersistentTileCache(persistentCache);
+				logger.info("Using persistent tile cache at {} (max {} MB)", persistentCache.getDirectory(), tileCacheSizeMB);
+			} catch (IOException e) {
+				logger.warn("Unable to create persistent tile cache: {}", e.getLocalizedMessage(), e);
+			}
+		}
 	}
 	
 	
@@ -0,0 +1,200 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.imagej.detect.cells;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Reusable pixel arrays for the scratch images needed during cell detection.
+ * <p>
+ * Cell detection creates several full-size intermediate images for every tile. 
+ * When many tiles are processed in parallel, allocating these afresh each time generates a lot of garbage; 
+ * instead, each thread keeps its own arrays and reuses them for the next tile of the same size.
+ * <p>
+ * The pixel values of images returned here are identical to those that would be obtained by 
+ * duplicating or creating a new ImageJ processor.
+ * However, an image is only valid until the same {@link Buffer} is requested again by the same thread, 
+ * and so must not be retained once detection is complete for a tile.
+ * 
+ * @author Pete Bankhead
+ */
+class CellDetectionBuffers {
+	
+	/**
+	 * Identifiers for the images that are needed at the same time.
+	 */
+	static enum Buffer {
+		/**
+		 * Image being filtered to find potential nuclei
+		 */
+		FILTERED,
+		/**
+		 * Background estimate
+		 */
+		BACKGROUND,
+		/**
+		 * Background-subtracted image, used to check nucleus intensities
+		 */
+		MEASURE,
+		/**
+		 * Filtered image for refining the nucleus boundaries
+		 */
+		BOUNDARY,
+		/**
+		 * Above-threshold pixels in the filtered image
+		 */
+		FILTERED_BINARY,
+		/**
+		 * Nucleus binary image
+		 */
+		NUCLEUS_BINARY,
+		/**
+		 * Above-threshold pixels when refining the nucleus boundaries
+		 */
+		BOUNDARY_BINARY,
+		/**
+		 * Labeled nuclei
+		 */
+		NUCLEUS_LABELS,
+		/**
+		 * Labeled cells
+		 */
+		CELL_LABELS
+	}
+	
+	private static final ThreadLocal<CellDetectionBuffers> localBuffers = ThreadLocal.withInitial(CellDetectionBuffers::new);
+	
+	private final Map<Buffer, float[]> floatArrays = new EnumMap<>(Buffer.class);
+	private final Map<Buffer, byte[]> byteArrays = new EnumMap<>(Buffer.class);
+	private final Map<Buffer, short[]> shortArrays = new EnumMap<>(Buffer.class);
+	
+	private CellDetectionBuffers() {}
+	
+	/**
+	 * Get the buffers for the current thread.
+	 * @return
+	 */
+	static CellDetectionBuffers getInstance() {
+		return localBuffers.get();
+	}
+	
+	/**
+	 * Equivalent to {@code fp.duplicate()}, but reusing a pixel array where possible.
+	 * @param buffer
+	 * @param fp
+	 * @return
+	 */
+	FloatProcessor duplicate(Buffer buffer, FloatProcessor fp) {
+		int width = fp.getWidth();
+		int height = fp.getHeight();
+		float[] pixels = floatArrays.get(buffer);
+		if (pixels == null || pixels.length != width * height) {
+			pixels = new float[width * height];
+			floatArrays.put(buffer, pixels);
+		}
+		System.arraycopy(fp.getPixels(), 0, pixels, 0, pixels.length);
+		var fp2 = new FloatProcessor(width, height, pixels, fp.getColorModel());
+		fp2.setMinAndMax(fp.getMin(), fp.getMax());
+		return fp2;
+	}
+	
+	/**
+	 * Equivalent to {@code ip.duplicate()}, but reusing a pixel array where possible.
+	 * @param buffer
+	 * @param ip
+	 * @return
+	 */
+	ShortProcessor duplicate(Buffer buffer, ShortProcessor ip) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		short[] pixels = getShortArray(buffer, width * height);
+		System.arraycopy(ip.getPixels(), 0, pixels, 0, pixels.length);
+		var ip2 = new ShortProcessor(width, height, pixels, ip.getColorModel());
+		ip2.setMinAndMax(ip.getMin(), ip.getMax());
+		return ip2;
+	}
+	
+	/**
+	 * Equivalent to {@code new ByteProcessor(width, height)}, but reusing a pixel array where possible.
+	 * @param buffer
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	ByteProcessor createByteProcessor(Buffer buffer, int width, int height) {
+		byte[] pixels = byteArrays.get(buffer);
+		if (pixels == null || pixels.length != width * height) {
+			pixels = new byte[width * height];
+			byteArrays.put(buffer, pixels);
+		} else
+			Arrays.fill(pixels, (byte)0);
+		return new ByteProcessor(width, height, pixels);
+	}
+	
+	/**
+	 * Equivalent to {@code new ShortProcessor(width, height)}, but reusing a pixel array where possible.
+	 * @param buffer
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	ShortProcessor createShortProcessor(Buffer buffer, int width, int height) {
+		short[] pixels = getShortArray(buffer, width * height);
+		Arrays.fill(pixels, (short)0);
+		return new ShortProcessor(width, height, pixels, null);
+	}
+	
+	/**
+	 * Equivalent to {@link qupath.imagej.processing.SimpleThresholding#thresholdAbove(ImageProcessor, float)}, 
+	 * but reusing a pixel array where possible.
+	 * @param buffer
+	 * @param ip
+	 * @param threshold
+	 * @return
+	 */
+	ByteProcessor thresholdAbove(Buffer buffer, ImageProcessor ip, float threshold) {
+		var bp = createByteProcessor(buffer, ip.getWidth(), ip.getHeight());
+		byte[] bpPixels = (byte[])bp.getPixels();
+		for (int i = 0; i < bpPixels.length; i++) {
+			if (ip.getf(i) > threshold)
+				bpPixels[i] = (byte)255;
+		}
+		return bp;
+	}
+	
+	private short[] getShortArray(Buffer buffer, int length) {
+		short[] pixels = shortArrays.get(buffer);
+		if (pixels == null || pixels.length != length) {
+			pixels = new short[length];
+			shortArrays.put(buffer, pixels);
+		}
+		return pixels;
+	}
+
+}
@@ -60,6 +60,7 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
+import qupath.imagej.detect.cells.CellDetectionBuffers.Buffer;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.RoiLabeling;
 import qupath.imagej.processing.SimpleThresholding;
@@ -706,6 +707,17 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 		
 		
 		private void doDetection(boolean regenerateROIs) {
+			try {
+				doDetection(CellDetectionBuffers.getInstance(), regenerateROIs);
+			} finally {
+				// Scratch images are reused for the next tile processed by this thread, 
+				// so can't be retained - this means that ROIs will always be regenerated if detection is run again
+				bpLoG = null;
+				ipToMeasure = null;
+			}
+		}
+		
+		private void doDetection(CellDetectionBuffers buffers, boolean regenerateROIs) {
 			
 			int width = fpDetection.getWidth();
 			int height = fpDetection.getHeight();
@@ -728,7 +740,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
 				// Result will be a dramatic over-segmentation...
-				FloatProcessor fpLoG = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpLoG = buffers.duplicate(Buffer.FILTERED, fpDetection);
 
 				// Start off with a median filter to reduce texture, if necessary
 				RankFilters rf = new RankFilters();
@@ -758,10 +770,10 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Subtract background first, if needed
 				if (backgroundRadius > 0) {
-					ImageProcessor ipBackground = fpLoG.duplicate();
+					ImageProcessor ipBackground = buffers.duplicate(Buffer.BACKGROUND, fpLoG);
 					bpBackgroundMask = estimateBackground(fpLoG, ipBackground, backgroundRadius, maxBackground, backgroundByReconstruction);
 					fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
-					ipToMeasure = fpLoG.duplicate();
+					ipToMeasure = buffers.duplicate(Buffer.MEASURE, fpLoG);
 					
 					if (debugMode) {
 						impDebug.getStack().addSlice("Background estimate", ipBackground.duplicate());
@@ -780,7 +792,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				}
 				
 				// Threshold the main LoG image
-				bpLoG = SimpleThresholding.thresholdAbove(fpLoG, 0f);
+				bpLoG = buffers.thresholdAbove(Buffer.FILTERED_BINARY, fpLoG, 0f);
 				// Need to set the threshold very slightly above zero for ImageJ
 				// TODO: DECIDE ON USING MY WATERSHED OR IMAGEJ'S....
 				fpLoG.setRoi(roi);
@@ -802,7 +814,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			} 
 			
 			if (bp == null)
-				bp = new ByteProcessor(width, height);	
+				bp = buffers.createByteProcessor(Buffer.NUCLEUS_BINARY, width, height);
 			
 //			// TODO: Consider application of an automated threshold
 //			if (threshold < 0) {
@@ -864,10 +876,10 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
 			// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
 			if (refineBoundary && sigma > 1.5) {
-				FloatProcessor fpBoundaryCleanup = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpBoundaryCleanup = buffers.duplicate(Buffer.BOUNDARY, fpDetection);
 				fpBoundaryCleanup.blurGaussian(1);
 				fpBoundaryCleanup.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
-				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
+				ByteProcessor bp2 = buffers.thresholdAbove(Buffer.BOUNDARY_BINARY, fpBoundaryCleanup, 0f);
 				bp2.copyBits(bp, 0, 0, Blitter.MIN); // Remove everything not detected in bp
 				bp.filter(ByteProcessor.MIN);
 				bp.copyBits(bp2, 0, 0, Blitter.MAX);
@@ -904,7 +916,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			
 			
 			// Label nuclei
-			ShortProcessor ipLabels = new ShortProcessor(width, height);
+			ShortProcessor ipLabels = buffers.createShortProcessor(Buffer.NUCLEUS_LABELS, width, height);
 			RoiLabeling.labelROIs(ipLabels, roisNuclei);
 			
 			if (debugMode) {
@@ -986,7 +998,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				double cellExpansionThreshold = -cellExpansion;
 				
 				// Create cell ROIs
-				ImageProcessor ipLabelsCells = ipLabels.duplicate();
+				ImageProcessor ipLabelsCells = buffers.duplicate(Buffer.CELL_LABELS, ipLabels);
 				Watershed.doWatershed(fpEDM, ipLabelsCells, cellExpansionThreshold, false);
 				PolygonRoi[] roisCells = RoiLabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
 				
@@ -30,11 +30,14 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -349,6 +352,11 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 //	private static List<FeatureComputerBuilder> builders = Arrays.asList(new BasicFeatureComputerBuilder(), new MedianFeatureComputerBuilder(), new HaralickFeatureComputerBuilder(), new CumulativeHistogramFeatureComputerBuilder());
 	private static List<FeatureComputerBuilder> builders = Arrays.asList(new BasicFeatureComputerBuilder(), new MedianFeatureComputerBuilder(), new HaralickFeatureComputerBuilder());
 	
+	/**
+	 * Size of the tiles used to group small objects, in pixels at the requested downsample.
+	 */
+	private static final int BATCH_TILE_SIZE = 512;
+	
 	
 	@Override
 	public boolean runPlugin(final PluginRunner<BufferedImage> pluginRunner, final String arg) {
@@ -406,34 +414,66 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	}
 	
 	
-//	@Override
-//	protected Collection<Runnable> getTasks(final PluginRunner<BufferedImage> runner) {
-//		Collection<Runnable> tasks = super.getTasks(runner);
-//		// If we have a region store, it can be preferable to shuffle the tasks for performance.
-//		// This is because regions larger than the requested tile size will be cached,
-//		// so threads waiting for adjacent tiles can both block waiting for the same image -
-//		// causing fetching regions to become a bottleneck.
-//		// By shuffling tiles, all the threads put in requests for different requests at the start
-//		// (which is slow), but as the image is processed then increasingly the required regions are
-//		// already in the cache when they are needed - causing a dramatic speedup during runtime.
-//		// Overall throughput should be improved, since the time spend blocked is minimized.
-//		// *However* this is only likely to work if the cache is sufficiently big... otherwise
-//		// a slowdown is possible, due to adjacent regions needing to be requested multiple times
-//		// because the cache has been emptied in the interim.
-////		if (regionStore != null & Runtime.getRuntime().totalMemory() >= 1024L*1024L*1024L*4L) {
-////			if (!(tasks instanceof List))
-////				tasks = new ArrayList<>(tasks);
-////			Collections.shuffle((List<?>)tasks);
-//			
-//		if (regionStore != null) {
-//			int n = tasks.size();
-//			Runnable[] tasks2 = new Runnable[n];
-//			if (rearrangeByStride(tasks, tasks2, Runtime.getRuntime().availableProcessors()))
-//				tasks = Arrays.asList(tasks2);
-//		}
-//		return tasks;
-//	}
+	/**
+	 * If requested, group small objects by image tile, so that each tile only needs to be read once for all the objects it contains.
+	 * Objects that are too large to batch, or for which features are computed in square or circular regions,
+	 * are processed individually.
+	 */
+	@Override
+	protected Collection<Runnable> getTasks(final PluginRunner<BufferedImage> runner) {
+		final ImageData<BufferedImage> imageData = runner.getImageData();
+		final ParameterList params = getParameterList(imageData);
+		RegionType regionType = (RegionType)params.getChoiceParameterValue("region");
+		if (!doBatchObjects(params) || (regionType != RegionType.ROI && regionType != RegionType.NUCLEUS))
+			return super.getTasks(runner);
+		
+		Collection<? extends PathObject> parentObjects = getParentObjects(runner);
+		if (parentObjects == null || parentObjects.isEmpty())
+			return Collections.emptyList();
+		
+		double downsample = calculateDownsample(imageData.getServer().getPixelCalibration(), params);
+		if (downsample <= 0) {
+			throw new IllegalArgumentException("Effective downsample must be > 0 (requested value " + GeneralTools.formatNumber(downsample, 1) + ")");
+		}
+		
+		// Group objects according to the tile containing the top left of their bounding box
+		double tileSize = BATCH_TILE_SIZE * downsample;
+		Map<List<Integer>, List<PathObject>> batches = new LinkedHashMap<>();
+		List<Runnable> tasks = new ArrayList<>();
+		for (PathObject pathObject : parentObjects) {
+			ROI roi = getMeasurementROI(pathObject, regionType);
+			if (roi == null || roi.getBoundsWidth() > tileSize || roi.getBoundsHeight() > tileSize) {
+				addRunnableTasks(imageData, pathObject, tasks);
+				continue;
+			}
+			var key = Arrays.asList(
+					(int)Math.floor(roi.getBoundsX() / tileSize),
+					(int)Math.floor(roi.getBoundsY() / tileSize),
+					roi.getZ(), roi.getT());
+			batches.computeIfAbsent(key, k -> new ArrayList<>()).add(pathObject);
+		}
+		for (List<PathObject> batch : batches.values()) {
+			if (batch.size() == 1)
+				addRunnableTasks(imageData, batch.get(0), tasks);
+			else
+				tasks.add(new IntensityFeatureBatchRunnable(imageData, batch, params));
+		}
+		logger.debug("Grouped {} objects into {} tasks for intensity measurements", parentObjects.size(), tasks.size());
+		return tasks;
+	}
+	
+	
 	
+	/**
+	 * Check whether small objects should be measured in batches.
+	 * This is optional, since batched objects share one pixel grid - which can give slightly different results 
+	 * if the image is downsampled.
+	 * @param params
+	 * @return
+	 */
+	static boolean doBatchObjects(final ParameterList params) {
+		return params.containsKey("batchObjects") && Boolean.TRUE.equals(params.getBooleanParameterValue("batchObjects"));
+	}
 	
 	
 	static class IntensityFeatureRunnable implements Runnable {
@@ -468,6 +508,49 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 		}
 		
 	}
+
+	
+	static class IntensityFeatureBatchRunnable implements Runnable {
+		
+		private ImageData<BufferedImage> imageData;
+		private ParameterList params;
+		private List<PathObject> pathObjects;
+		
+		public IntensityFeatureBatchRunnable(final ImageData<BufferedImage> imageData, final List<PathObject> pathObjects, final ParameterList params) {
+			this.imageData = imageData;
+			this.pathObjects = pathObjects;
+			this.params = params;
+		}
+
+		@Override
+		public void run() {
+			try {
+				processObjects(pathObjects, params, imageData);
+			} catch (Exception e) {
+				// If the batch fails as a whole, measure the objects individually so that one error doesn't affect them all
+				logger.warn("Unable to process {} objects together - will try them individually ({})", pathObjects.size(), e.getLocalizedMessage());
+				logger.debug(e.getLocalizedMessage(), e);
+				for (PathObject pathObject : pathObjects) {
+					if (Thread.currentThread().isInterrupted())
+						break;
+					processObjectOrLogError(pathObject, params, imageData);
+				}
+			} finally {
+				for (PathObject pathObject : pathObjects)
+					pathObject.getMeasurementList().close();
+				imageData = null;
+				params = null;
+				pathObjects = null;
+			}
+		}
+		
+		
+		@Override
+		public String toString() {
+			return "Intensity measurements";
+		}
+		
+	}
 	
 	
 	static double calculateDownsample(PixelCalibration cal, ParameterList params) {
@@ -497,36 +580,14 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			
 		// Try to get ROI
 		boolean useROI = regionType == RegionType.ROI || regionType == RegionType.NUCLEUS;
-		ROI roi = null;
-		if (regionType == RegionType.NUCLEUS) {
-			if (pathObject instanceof PathCellObject)
-				roi = ((PathCellObject)pathObject).getNucleusROI();
-		} else
-			roi = pathObject.getROI();
-//		if (pathObject instanceof PathCellObject && ((PathCellObject)pathObject).getNucleusROI() != null)
-//			pathROI = ((PathCellObject)pathObject).getNucleusROI();
+		ROI roi = getMeasurementROI(pathObject, regionType);
 		if (roi == null)
 			return false;
 		
 		// Create a map - this is useful for occasions when tiling is needed
 		Map<FeatureColorTransform, List<FeatureComputer>> map = new LinkedHashMap<>();
-		if (server.isRGB()) {
-			for (FeatureColorTransform transform : FeatureColorTransformEnum.values()) {
-				List<FeatureComputer> list = new ArrayList<>();
-				map.put(transform, list);
-				for (FeatureComputerBuilder builder : builders) {
-					list.add(builder.build());
-				}
-			}
-		} else {
-			for (FeatureColorTransform transform : getBasicChannelTransforms(server.nChannels())) {
-				List<FeatureComputer> list = new ArrayList<>();
-				map.put(transform, list);
-				for (FeatureComputerBuilder builder : builders) {
-					list.add(builder.build());
-				}
-			}
-		}
+		for (FeatureColorTransform transform : getTransforms(server))
+			map.put(transform, createFeatureComputers());
 		
 		String prefix = getDiameterString(server, params);
 
@@ -583,11 +644,7 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			}
 			
 			boolean isRGB = server.isRGB();
-			List<FeatureColorTransform> transforms;
-			if (isRGB)
-				transforms = Arrays.asList(FeatureColorTransformEnum.values());
-			else
-				transforms = getBasicChannelTransforms(server.nChannels());
+			List<FeatureColorTransform> transforms = getTransforms(server);
 			
 			int w = img.getWidth();
 	 		int h = img.getHeight();
@@ -595,7 +652,7 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			float[] pixels = null;
 			for (FeatureColorTransform transform : transforms) {
 				// Check if the color transform is requested
-				if (params.containsKey(transform.getKey()) && Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey()))) {
+				if (isRequested(transform, params)) {
 					
 					// Transform the pixels
 					pixels = transform.getTransformedPixels(img, rgbBuffer, stains, pixels);
@@ -637,6 +694,235 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			for (FeatureComputer computer : entry.getValue())
 				computer.addMeasurements(pathObject, name, params);
 		}
+		completeMeasurements(pathObject);
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Compute features for a batch of objects, reading the pixels for all of them as a single region.
+	 * <p>
+	 * The ROIs are rasterized into a shared label image, and each color transform is applied once to the whole region.
+	 * The features for each object are then computed from the pixels with its label, within its bounding box.
+	 * <p>
+	 * Objects that can't be labelled (because they overlap an object that has already been labelled, 
+	 * or they cover only a single pixel) are passed to {@link #processObject(PathObject, ParameterList, ImageData)} instead, 
+	 * so that they are measured in exactly the same way as if they had not been batched.
+	 * <p>
+	 * All objects share the pixel grid of the batch region, which is aligned to the downsample. 
+	 * At full resolution this is the same grid that is used for individual objects; otherwise, results may differ slightly.
+	 * <p>
+	 * Errors when measuring an individual object are logged, and don't stop the other objects being measured.
+	 * 
+	 * @param pathObjects the objects to measure; these should be small and close together
+	 * @param params
+	 * @param imageData
+	 * @return true if all objects were processed successfully, false otherwise
+	 * @throws IOException if the pixels for the batch could not be read
+	 */
+	static boolean processObjects(final Collection<? extends PathObject> pathObjects, final ParameterList params, final ImageData<BufferedImage> imageData) throws IOException {
+		
+		var server = imageData.getServer();
+		var stains = imageData.getColorDeconvolutionStains();
+		
+		PixelCalibration cal = server.getPixelCalibration();
+		double downsample = calculateDownsample(cal, params);
+		
+		RegionType regionType = (RegionType)params.getChoiceParameterValue("region");
+		if (regionType != RegionType.ROI && regionType != RegionType.NUCLEUS)
+			throw new IllegalArgumentException("Objects can only be measured in batches using ROI or nucleus regions, not " + regionType);
+		
+		Map<PathObject, ROI> roiMap = new LinkedHashMap<>();
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = getMeasurementROI(pathObject, regionType);
+			if (roi != null)
+				roiMap.put(pathObject, roi);
+		}
+		if (roiMap.isEmpty())
+			return false;
+		
+		// Read a single region containing all the ROIs
+		// The origin is aligned with the downsample, so that all objects share the same pixel grid
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (ROI roi : roiMap.values()) {
+			minX = Math.min(minX, roi.getBoundsX());
+			minY = Math.min(minY, roi.getBoundsY());
+			maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+			maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+		}
+		int xStart = Math.max(0, (int)(Math.floor(minX / downsample) * downsample));
+		int yStart = Math.max(0, (int)(Math.floor(minY / downsample) * downsample));
+		int xEnd = Math.min(server.getWidth(), (int)Math.ceil(maxX));
+		int yEnd = Math.min(server.getHeight(), (int)Math.ceil(maxY));
+		ROI firstROI = roiMap.values().iterator().next();
+		RegionRequest region = RegionRequest.createInstance(server.getPath(), downsample,
+				xStart, yStart, xEnd - xStart, yEnd - yStart, firstROI.getZ(), firstROI.getT());
+		
+		BufferedImage img = server.readRegion(region);
+		if (img == null) {
+			logger.error("Could not read image - unable to compute intensity features for {} objects", roiMap.size());
+			return false;
+		}
+		int w = img.getWidth();
+		int h = img.getHeight();
+		
+		// Rasterize the ROIs into a shared label image
+		int[] labels = new int[w * h];
+		List<PathObject> labelledObjects = new ArrayList<>();
+		List<LabelledImage> labelledImages = new ArrayList<>();
+		List<PathObject> remainingObjects = new ArrayList<>();
+		Set<PathObject> failedObjects = new HashSet<>();
+		for (Entry<PathObject, ROI> entry : roiMap.entrySet()) {
+			int label = labelledObjects.size() + 1;
+			LabelledImage labelledImage = createLabelledImage(entry.getValue(), region, labels, w, h, label);
+			if (labelledImage == null) {
+				remainingObjects.add(entry.getKey());
+			} else {
+				labelledObjects.add(entry.getKey());
+				labelledImages.add(labelledImage);
+			}
+		}
+		
+		// Apply each color transform once, then update the features for all objects
+		String prefix = getDiameterString(server, params);
+		int[] rgbBuffer = server.isRGB() ? img.getRGB(0, 0, w, h, null, 0, w) : null;
+		float[] pixels = null;
+		for (FeatureColorTransform transform : getTransforms(server)) {
+			if (!isRequested(transform, params))
+				continue;
+			
+			if (Thread.currentThread().isInterrupted()) {
+				logger.warn("Measurement skipped - thread interrupted!");
+				return false;
+			}
+			
+			pixels = transform.getTransformedPixels(img, rgbBuffer, stains, pixels);
+			String name = prefix + ": " + transform.getName(imageData, false) + ":";
+			for (int i = 0; i < labelledObjects.size(); i++) {
+				PathObject pathObject = labelledObjects.get(i);
+				if (failedObjects.contains(pathObject))
+					continue;
+				LabelledImage labelledImage = labelledImages.get(i);
+				labelledImage.setPixels(pixels);
+				try {
+					for (FeatureComputer computer : createFeatureComputers()) {
+						computer.updateFeatures(labelledImage, transform, params);
+						computer.addMeasurements(pathObject, name, params);
+					}
+				} catch (RuntimeException e) {
+					logger.error("Unable to process " + pathObject, e);
+					failedObjects.add(pathObject);
+				}
+			}
+		}
+		boolean success = failedObjects.isEmpty();
+		for (PathObject pathObject : labelledObjects) {
+			if (!failedObjects.contains(pathObject))
+				completeMeasurements(pathObject);
+		}
+		
+		// Handle any objects that couldn't be labelled
+		for (PathObject pathObject : remainingObjects)
+			success = processObjectOrLogError(pathObject, params, imageData) && success;
+		return success;
+	}
+	
+	
+	/**
+	 * Call {@link #processObject(PathObject, ParameterList, ImageData)}, logging any exception rather than throwing it.
+	 * @param pathObject
+	 * @param params
+	 * @param imageData
+	 * @return true if the object was processed successfully, false otherwise
+	 */
+	private static boolean processObjectOrLogError(final PathObject pathObject, final ParameterList params, final ImageData<BufferedImage> imageData) {
+		try {
+			return processObject(pathObject, params, imageData);
+		} catch (IOException | RuntimeException e) {
+			logger.error("Unable to process " + pathObject, e);
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Rasterize a ROI into a label image.
+	 * @param roi the ROI to rasterize
+	 * @param region the region corresponding to the label image
+	 * @param labels the label image
+	 * @param width width of the label image
+	 * @param height height of the label image
+	 * @param label the label to use for the ROI
+	 * @return an image containing only the pixels of the ROI, or null if the ROI could not be labelled 
+	 *         because it overlaps with pixels that already have a label, or because its bounding box is only a single pixel
+	 */
+	private static LabelledImage createLabelledImage(ROI roi, RegionRequest region, int[] labels, int width, int height, int label) {
+		double downsample = region.getDownsample();
+		int x0 = Math.max(0, (int)Math.floor((roi.getBoundsX() - region.getX()) / downsample));
+		int y0 = Math.max(0, (int)Math.floor((roi.getBoundsY() - region.getY()) / downsample));
+		int x1 = Math.min(width, (int)Math.ceil((roi.getBoundsX() + roi.getBoundsWidth() - region.getX()) / downsample));
+		int y1 = Math.min(height, (int)Math.ceil((roi.getBoundsY() + roi.getBoundsHeight() - region.getY()) / downsample));
+		int w = x1 - x0;
+		int h = y1 - y0;
+		if (w * h <= 1)
+			return null;
+		
+		BufferedImage imgMask = BufferedImageTools.createROIMask(w, h, roi,
+				region.getX() + x0 * downsample, region.getY() + y0 * downsample, downsample);
+		byte[] maskBytes = ((DataBufferByte)imgMask.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (maskBytes[y * w + x] != (byte)0 && labels[(y + y0) * width + x + x0] != 0)
+					return null;
+			}
+		}
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (maskBytes[y * w + x] != (byte)0)
+					labels[(y + y0) * width + x + x0] = label;
+			}
+		}
+		return new LabelledImage(labels, width, x0, y0, w, h, label);
+	}
+	
+	
+	/**
+	 * Get the ROI within which features should be measured for an object.
+	 * @param pathObject
+	 * @param regionType
+	 * @return the ROI, or null if the object doesn't have a suitable ROI
+	 */
+	private static ROI getMeasurementROI(final PathObject pathObject, final RegionType regionType) {
+		if (regionType == RegionType.NUCLEUS) {
+			if (pathObject instanceof PathCellObject)
+				return ((PathCellObject)pathObject).getNucleusROI();
+			return null;
+		}
+		return pathObject.getROI();
+	}
+	
+	private static List<FeatureColorTransform> getTransforms(final ImageServer<BufferedImage> server) {
+		if (server.isRGB())
+			return Arrays.asList(FeatureColorTransformEnum.values());
+		else
+			return getBasicChannelTransforms(server.nChannels());
+	}
+	
+	private static boolean isRequested(final FeatureColorTransform transform, final ParameterList params) {
+		return params.containsKey(transform.getKey()) && Boolean.TRUE.equals(params.getBooleanParameterValue(transform.getKey()));
+	}
+	
+	private static List<FeatureComputer> createFeatureComputers() {
+		List<FeatureComputer> list = new ArrayList<>();
+		for (FeatureComputerBuilder builder : builders) {
+			list.add(builder.build());
+		}
+		return list;
+	}
+	
+	private static void completeMeasurements(final PathObject pathObject) {
 		pathObject.getMeasurementList().close();
 		
 		// Lock any measurements that require it
@@ -644,8 +930,6 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			((PathAnnotationObject)pathObject).setLocked(true);
 		else if (pathObject instanceof TMACoreObject)
 			((TMACoreObject)pathObject).setLocked(true);
-		
-		return true;
 	}
 	
 	
@@ -667,6 +951,7 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 			params.addChoiceParameter("region", "Region", RegionType.ROI, Arrays.asList(RegionType.values()), "The region within which to calculate the features");
 			params.addDoubleParameter("tileSizeMicrons", "Tile diameter", 25, GeneralTools.micrometerSymbol(), "Diameter of tile around the object centroid used to calculate textures.\nOnly matters if tiles are being used (i.e. the region parameter isn't ROI).");
 			params.addDoubleParameter("tileSizePixels", "Tile diameter", 200, "px (full resolution image)", "Diameter of tile around the object centroid used to calculate textures.\nOnly matters if tiles are being used (i.e. the region parameter isn't ROI).");
+			params.addBooleanParameter("batchObjects", "Measure small objects together", false, "Read the pixels for nearby small objects as one region, which can be much faster when there are many objects.\nOnly used for ROI and nucleus regions.\nResults are the same at full resolution, but may differ slightly for downsampled images because the objects share one pixel grid.");
 			
 			boolean hasMicrons = imageData.getServer().getPixelCalibration().hasPixelSizeMicrons();
 			
@@ -1117,6 +1402,51 @@ public class IntensityFeaturesPlugin extends AbstractInteractivePlugin<BufferedI
 	}
 	
 	
+	/**
+	 * Image representing the pixels of a single object within a shared label image.
+	 * Pixels with a different label are returned as NaN, and so are ignored by the feature computers.
+	 */
+	static class LabelledImage implements SimpleImage {
+		
+		private final int[] labels;
+		private final int stride;
+		private final int x0, y0, width, height;
+		private final int label;
+		private float[] pixels;
+		
+		LabelledImage(int[] labels, int stride, int x0, int y0, int width, int height, int label) {
+			this.labels = labels;
+			this.stride = stride;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.width = width;
+			this.height = height;
+			this.label = label;
+		}
+		
+		void setPixels(float[] pixels) {
+			this.pixels = pixels;
+		}
+
+		@Override
+		public float getValue(int x, int y) {
+			int ind = (y + y0) * stride + x + x0;
+			return labels[ind] == label ? pixels[ind] : Float.NaN;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+		
+	}
+	
+	
 	/**
 	 * Calculate the mean Hue.
 	 * 
@@ -88,6 +88,26 @@ public class CoocurranceMatrices {
 			mat135.addToEntrySymmetric(i, j);
 	}
 	
+	/**
+	 * Get the matrix for a specified rotation.
+	 * @param degrees one of 0, 45, 90 or 135
+	 * @return
+	 */
+	CoocMatrix getMatrix(int degrees) {
+		switch (degrees) {
+		case 0:
+			return mat0;
+		case 45:
+			return mat45;
+		case 90:
+			return mat90;
+		case 135:
+			return mat135;
+		default:
+			throw new IllegalArgumentException("Unsupported rotation " + degrees);
+		}
+	}
+	
 	/**
 	 * Compute features.
 	 */
@@ -24,6 +24,7 @@
 package qupath.lib.analysis.features;
 
 import qupath.lib.analysis.images.SimpleImage;
+import qupath.lib.analysis.images.SimpleImages;
 import qupath.lib.analysis.stats.RunningStatistics;
 
 /**
@@ -104,49 +105,149 @@ public class HaralickFeatureComputer {
 		if (matrices == null)
 			matrices = new CoocurranceMatrices(nBins);
 		
-		// Dimensions
+		int[] bins = getBinValues(ip, bpMask, nBins, minValue, maxValue);
+		updateCooccurrenceMatrices(new CoocurranceMatrices[] {matrices}, bins, null, ip.getWidth(), ip.getHeight(), xx, yy, ww, hh, d);
+		return matrices;
+	}
+	
+	
+	/**
+	 * Compute mean Haralick features for multiple objects, defined by a labeled image.
+	 * <p>
+	 * This gives the same result as calling {@link #measureHaralick(SimpleImage, SimpleImage, int, double, double, int)} 
+	 * for each label in turn, using a mask containing only the pixels with that label - 
+	 * but requires only a single pass through the image.
+	 * Note that, if the minimum or maximum value is NaN, the range is determined from the entire image.
+	 * <p>
+	 * This requires 4 co-occurrence matrices for each label, and so memory use increases with nLabels * nBins * nBins.
+	 * 
+	 * @param ip input image
+	 * @param labels labeled image, where 0 is the background and objects have integer labels from 1 to nLabels
+	 * @param nLabels the maximum label
+	 * @param nBins number of bins in co-occurrence matrix
+	 * @param minValue minimum value for binning in the co-occurrence matrix
+	 * @param maxValue maximum value for binning in the co-occurrence matrix
+	 * @param d separation between pixels considered adjacent, usually 1
+	 * @return an array of length nLabels, where the features for label i are stored at index i-1
+	 * @since v0.4.3
+	 */
+	public static HaralickFeatures[] measureHaralickForLabels(final SimpleImage ip, final SimpleImage labels, final int nLabels, final int nBins, double minValue, double maxValue, final int d) {
+		if (labels.getWidth() != ip.getWidth() || labels.getHeight() != ip.getHeight())
+			throw new IllegalArgumentException("Image and labels must have the same size!");
+		
+		// If we have NaNs, compute data min & max
+		if (Double.isNaN(minValue) || Double.isNaN(maxValue)) {
+			RunningStatistics stats = getStatistics(ip);
+			minValue = stats.getMin();
+			maxValue = stats.getMax();
+		}
+		
 		int width = ip.getWidth();
 		int height = ip.getHeight();
+		float[] labelPixels = SimpleImages.getPixels(labels, true);
+		int[] labelValues = new int[labelPixels.length];
+		for (int i = 0; i < labelPixels.length; i++)
+			labelValues[i] = (int)labelPixels[i];
 		
-		double binDepth = (maxValue - minValue) / nBins;
+		CoocurranceMatrices[] matrices = new CoocurranceMatrices[nLabels];
+		for (int i = 0; i < nLabels; i++)
+			matrices[i] = new CoocurranceMatrices(nBins);
+		
+		int[] bins = getBinValues(ip, null, nBins, minValue, maxValue);
+		updateCooccurrenceMatrices(matrices, bins, labelValues, width, height, 0, 0, width, height, d);
 		
-		// Loop through pixels
-		boolean noMask = bpMask == null;
+		HaralickFeatures[] features = new HaralickFeatures[nLabels];
+		for (int i = 0; i < nLabels; i++)
+			features[i] = matrices[i].getMeanFeatures();
+		return features;
+	}
+	
+	
+	/**
+	 * Update co-occurrence matrices for all four directions in a single pass through binned pixel values.
+	 * 
+	 * @param matrices the matrices to update; if labels is null, only the first is used
+	 * @param bins binned pixel values, or -1 for pixels that should be ignored
+	 * @param labels labels identifying which matrices each pixel belongs to (starting from 1), or null if all pixels 
+	 *               belong to the first matrices. Only pairs of pixels with the same label are counted.
+	 * @param width image width
+	 * @param height image height
+	 * @param xx
+	 * @param yy
+	 * @param ww
+	 * @param hh
+	 * @param d separation between pixels considered adjacent
+	 */
+	private static void updateCooccurrenceMatrices(final CoocurranceMatrices[] matrices, final int[] bins, final int[] labels, final int width, final int height, final int xx, final int yy, final int ww, final int hh, final int d) {
+		// Offsets to the neighbors in each direction
+		final int offset0 = d;
+		final int offset90 = width * d;
+		final int offset45 = width * d + d;
+		final int offset135 = width * d - d;
 		for (int y = yy; y < yy + hh; y++) {
-			for (int x = xx; x < xx + ww; x++) {
-				if (!noMask && bpMask.getValue(x, y) == 0)
-					continue;
-				// Extract binned pixel value
-				int binValue = getBinValue(ip, x, y, minValue, binDepth, nBins);
-				if (binValue < 0) 
+			boolean hasNextRow = y < height-d;
+			int i = y * width + xx;
+			for (int x = xx; x < xx + ww; x++, i++) {
+				int binValue = bins[i];
+				if (binValue < 0)
 					continue;
-				// Test neighbors
-				if (x < width-d && (noMask || bpMask.getValue(x+d, y) != 0))
-					matrices.put0(binValue, getBinValue(ip, x+d, y, minValue, binDepth, nBins));
+				CoocurranceMatrices mat;
+				int label = 0;
+				if (labels == null)
+					mat = matrices[0];
+				else {
+					label = labels[i];
+					if (label <= 0 || label > matrices.length)
+						continue;
+					mat = matrices[label-1];
+				}
+				boolean hasNextColumn = x < width-d;
+				// Test neighbors (negative bins are ignored by the matrices)
+				if (hasNextColumn && (labels == null || labels[i+offset0] == label))
+					mat.put0(binValue, bins[i+offset0]);
 
-				if (y < height-d && (noMask || bpMask.getValue(x, y+d) != 0))
-					matrices.put90(binValue, getBinValue(ip, x, y+d, minValue, binDepth, nBins));
+				if (hasNextRow && (labels == null || labels[i+offset90] == label))
+					mat.put90(binValue, bins[i+offset90]);
 
 				// Note (Pete): The angles here may differ from the original paper
 				// Switching the order may help, but note that put45 and put135 are also called in another method (below)
 				// so this change has been reverted for consistency... we may want to consider modifying this (or just renaming the methods) at some point
 				// Here, it is assumed that the zero angle is -> (horizontal, left to right), and rotations are clockwise
-				if (x < width-d && y < height-d && (noMask || bpMask.getValue(x+d, y+d) != 0))
-					matrices.put45(binValue, getBinValue(ip, x+d, y+d, minValue, binDepth, nBins)); //J check with Haralick paper
+				if (hasNextColumn && hasNextRow && (labels == null || labels[i+offset45] == label))
+					mat.put45(binValue, bins[i+offset45]); //J check with Haralick paper
 
-				if (x >= d && y < height-d && (noMask || bpMask.getValue(x-d, y+d) != 0))
-					matrices.put135(binValue, getBinValue(ip, x-d, y+d, minValue, binDepth, nBins)); 
+				if (x >= d && hasNextRow && (labels == null || labels[i+offset135] == label))
+					mat.put135(binValue, bins[i+offset135]); 
 			}			
 		}
-		return matrices;
 	}
 	
 	
+	/**
+	 * Bin all the pixels of an image, so that each is only binned once.
+	 * @param ip
+	 * @param bpMask
+	 * @param nBins
+	 * @param minValue
+	 * @param maxValue
+	 * @return binned values, or -1 for NaN pixels and those outside the mask
+	 */
+	private static int[] getBinValues(SimpleImage ip, SimpleImage bpMask, int nBins, double minValue, double maxValue) {
+		double binDepth = (maxValue - minValue) / nBins;
+		float[] pixels = SimpleImages.getPixels(ip, true);
+		float[] mask = bpMask == null ? null : SimpleImages.getPixels(bpMask, true);
+		int[] bins = new int[pixels.length];
+		for (int i = 0; i < pixels.length; i++) {
+			if (mask != null && mask[i] == 0)
+				bins[i] = -1;
+			else
+				bins[i] = getBinValue(pixels[i], minValue, binDepth, nBins);
+		}
+		return bins;
+	}
 	
 	
-	
-	private static int getBinValue(SimpleImage ip, int x, int y, double minValue, double binDepth, int nBins) {
-		float val = ip.getValue(x, y);
+	private static int getBinValue(float val, double minValue, double binDepth, int nBins) {
 		// If we have NaN, return -1 to indicate a NaN value
 		if (Float.isNaN(val))
 			return -1;
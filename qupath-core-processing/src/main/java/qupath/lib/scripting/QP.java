@@ -91,6 +91,7 @@ import qupath.lib.images.servers.ColorTransforms;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.ImageServerMetrics;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.ImageServers;
 import qupath.lib.images.servers.LabeledImageServer;
@@ -919,6 +920,33 @@ public class QP {
 		return imageData.getHierarchy();
 	}
 	
+	/**
+	 * Get metrics summarizing tile requests for the {@code ImageServer} of the current {@code ImageData}.
+	 * This can help identify whether time is spent reading tiles, or whether tiles are found in the cache.
+	 * <p>
+	 * Metrics are only recorded after calling {@code ImageServerMetrics.setEnabled(true)}.
+	 * 
+	 * @return the metrics, or null if no tiles have been requested from the current server while metrics were enabled
+	 * @since v0.4.3
+	 * @see #getAllImageServerMetrics()
+	 */
+	public static ImageServerMetrics getImageServerMetrics() {
+		var server = getCurrentServer();
+		return server == null ? null : ImageServerMetrics.getMetrics(server);
+	}
+	
+	/**
+	 * Get metrics summarizing tile requests for all image servers that are currently in use.
+	 * This includes servers that are used internally, e.g. to apply a pixel classifier.
+	 * 
+	 * @return
+	 * @since v0.4.3
+	 * @see #getImageServerMetrics()
+	 */
+	public static List<ImageServerMetrics> getAllImageServerMetrics() {
+		return ImageServerMetrics.getAllMetrics();
+	}
+	
 	/**
 	 * Get the {@code ImageServer} of the current {@code ImageData}.
 	 * 
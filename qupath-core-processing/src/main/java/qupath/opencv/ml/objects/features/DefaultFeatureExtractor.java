@@ -28,6 +28,7 @@ import java.util.Collections;
 import java.util.List;
 
 import qupath.lib.images.ImageData;
+import qupath.lib.measurements.ColumnarMeasurementStore;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathObject;
 
@@ -48,8 +49,23 @@ class DefaultFeatureExtractor<T> implements FeatureExtractor<T> {
 	
 	@Override
 	public void extractFeatures(ImageData<T> imageData, Collection<? extends PathObject> pathObjects, FloatBuffer buffer) {
+		if (pathObjects.size() <= 1) {
+			for (var pathObject : pathObjects)
+				extractFeatures(pathObject, buffer);
+			return;
+		}
+		// Extract features one column at a time, which avoids per-object lookups for lists backed by a columnar store
+		var lists = new ArrayList<MeasurementList>(pathObjects.size());
 		for (var pathObject : pathObjects)
-			extractFeatures(pathObject, buffer);
+			lists.add(pathObject.getMeasurementList());
+		int start = buffer.position();
+		int nFeatures = measurements.size();
+		for (int j = 0; j < nFeatures; j++) {
+			double[] values = ColumnarMeasurementStore.getValues(lists, measurements.get(j));
+			for (int i = 0; i < values.length; i++)
+				buffer.put(start + i * nFeatures + j, (float)values[i]);
+		}
+		buffer.position(start + lists.size() * nFeatures);
 	}
 	
 	@Override
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.imagej.detect.cells;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import qupath.imagej.detect.cells.CellDetectionBuffers.Buffer;
+import qupath.imagej.processing.SimpleThresholding;
+
+@SuppressWarnings("javadoc")
+public class TestCellDetectionBuffers {
+	
+	private static FloatProcessor createRandomProcessor(int width, int height, long seed) {
+		var random = new Random(seed);
+		var fp = new FloatProcessor(width, height);
+		for (int i = 0; i < width * height; i++)
+			fp.setf(i, (float)random.nextGaussian());
+		fp.resetMinAndMax();
+		return fp;
+	}
+	
+	@Test
+	public void test_duplicateMatches() {
+		var buffers = CellDetectionBuffers.getInstance();
+		var fp = createRandomProcessor(64, 48, 1L);
+		var expected = (FloatProcessor)fp.duplicate();
+		var fp2 = buffers.duplicate(Buffer.FILTERED, fp);
+		assertArrayEquals((float[])expected.getPixels(), (float[])fp2.getPixels());
+		assertEquals(expected.getMin(), fp2.getMin());
+		assertEquals(expected.getMax(), fp2.getMax());
+		assertNotSame(fp.getPixels(), fp2.getPixels());
+		
+		// Arrays are reused for images of the same size, but not different sizes
+		var fp3 = buffers.duplicate(Buffer.FILTERED, createRandomProcessor(64, 48, 2L));
+		assertSame(fp2.getPixels(), fp3.getPixels());
+		var fp4 = buffers.duplicate(Buffer.FILTERED, createRandomProcessor(32, 48, 2L));
+		assertNotSame(fp2.getPixels(), fp4.getPixels());
+		assertEquals(32 * 48, ((float[])fp4.getPixels()).length);
+		
+		// Different buffers don't share arrays
+		assertNotSame(fp4.getPixels(), buffers.duplicate(Buffer.BOUNDARY, fp4).getPixels());
+	}
+	
+	@Test
+	public void test_thresholdMatches() {
+		var buffers = CellDetectionBuffers.getInstance();
+		var fp = createRandomProcessor(50, 40, 3L);
+		var expected = SimpleThresholding.thresholdAbove(fp, 0f);
+		assertArrayEquals((byte[])expected.getPixels(), (byte[])buffers.thresholdAbove(Buffer.FILTERED_BINARY, fp, 0f).getPixels());
+		
+		// Check previous values are cleared when the array is reused
+		var fp2 = createRandomProcessor(50, 40, 4L);
+		var expected2 = SimpleThresholding.thresholdAbove(fp2, 0.5f);
+		assertArrayEquals((byte[])expected2.getPixels(), (byte[])buffers.thresholdAbove(Buffer.FILTERED_BINARY, fp2, 0.5f).getPixels());
+	}
+	
+	@Test
+	public void test_labelsCleared() {
+		var buffers = CellDetectionBuffers.getInstance();
+		var ip = buffers.createShortProcessor(Buffer.NUCLEUS_LABELS, 20, 10);
+		ip.setValue(5);
+		ip.fill();
+		var ipDuplicate = buffers.duplicate(Buffer.CELL_LABELS, ip);
+		assertArrayEquals((short[])ip.getPixels(), (short[])ipDuplicate.getPixels());
+		
+		var ip2 = buffers.createShortProcessor(Buffer.NUCLEUS_LABELS, 20, 10);
+		assertSame(ip.getPixels(), ip2.getPixels());
+		assertArrayEquals((short[])new ShortProcessor(20, 10).getPixels(), (short[])ip2.getPixels());
+		
+		var bp = buffers.createByteProcessor(Buffer.NUCLEUS_BINARY, 20, 10);
+		bp.setValue(255);
+		bp.fill();
+		assertEquals(0, buffers.createByteProcessor(Buffer.NUCLEUS_BINARY, 20, 10).getStatistics().max);
+	}
+	
+	@Test
+	public void test_buffersPerThread() throws Exception {
+		var buffers = CellDetectionBuffers.getInstance();
+		assertSame(buffers, CellDetectionBuffers.getInstance());
+		var pool = Executors.newSingleThreadExecutor();
+		try {
+			assertNotSame(buffers, pool.submit(() -> CellDetectionBuffers.getInstance()).get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
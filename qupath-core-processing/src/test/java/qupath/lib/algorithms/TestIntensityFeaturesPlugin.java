@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.algorithms;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+@SuppressWarnings("javadoc")
+public class TestIntensityFeaturesPlugin {
+	
+	@Test
+	public void test_batchMatchesSingleObjects() throws IOException {
+		var imageData = new ImageData<>(new WrappedBufferedImageServer("test", createImage()));
+		
+		var plugin = new IntensityFeaturesPlugin();
+		ParameterList params = plugin.getDefaultParameterList(imageData);
+		ParameterList.updateParameterList(params, Map.of(
+				"downsample", "1",
+				"channel1", "true",
+				"doMean", "true",
+				"doStdDev", "true",
+				"doMinMax", "true",
+				"doMedian", "true",
+				"doHaralick", "true",
+				"haralickMin", "0",
+				"haralickMax", "255"
+				), Locale.US);
+		
+		// Create a grid of ellipses at non-integer coordinates, along with some that overlap
+		List<ROI> rois = new ArrayList<>();
+		for (int y = 0; y < 6; y++) {
+			for (int x = 0; x < 6; x++) {
+				rois.add(ROIs.createEllipseROI(10.3 + x * 35, 12.7 + y * 35, 20.5, 14.2, ImagePlane.getDefaultPlane()));
+			}
+		}
+		rois.add(ROIs.createEllipseROI(15.0, 15.0, 10, 10, ImagePlane.getDefaultPlane()));
+		rois.add(ROIs.createRectangleROI(200, 10, 40, 30, ImagePlane.getDefaultPlane()));
+		
+		List<PathObject> singleObjects = new ArrayList<>();
+		List<PathObject> batchObjects = new ArrayList<>();
+		for (ROI roi : rois) {
+			singleObjects.add(PathObjects.createDetectionObject(roi));
+			batchObjects.add(PathObjects.createDetectionObject(roi));
+		}
+		
+		for (PathObject pathObject : singleObjects)
+			assertTrue(IntensityFeaturesPlugin.processObject(pathObject, params, imageData));
+		assertTrue(IntensityFeaturesPlugin.processObjects(batchObjects, params, imageData));
+		
+		for (int i = 0; i < rois.size(); i++) {
+			var expected = singleObjects.get(i).getMeasurementList();
+			var actual = batchObjects.get(i).getMeasurementList();
+			// Mean, std.dev., min, max & median, plus 13 Haralick features
+			assertEquals(18, expected.size());
+			assertEquals(expected.getMeasurementNames(), actual.getMeasurementNames());
+			for (String name : expected.getMeasurementNames()) {
+				assertEquals(expected.get(name), actual.get(name), 1e-9, name);
+			}
+		}
+	}
+	
+	@Test
+	public void test_batchingIsOptional() {
+		var imageData = new ImageData<>(new WrappedBufferedImageServer("test", createImage()));
+		var plugin = new IntensityFeaturesPlugin();
+		ParameterList params = plugin.getDefaultParameterList(imageData);
+		assertFalse(IntensityFeaturesPlugin.doBatchObjects(params));
+		ParameterList.updateParameterList(params, Map.of("batchObjects", "true"), Locale.US);
+		assertTrue(IntensityFeaturesPlugin.doBatchObjects(params));
+		// Parameters from older scripts don't include the option
+		params.removeParameter("batchObjects");
+		assertFalse(IntensityFeaturesPlugin.doBatchObjects(params));
+	}
+	
+	@Test
+	public void test_batchErrorsArePerObject() throws IOException {
+		var img = createImage();
+		var imageData = new ImageData<>(new WrappedBufferedImageServer("test", img));
+		// Fail to read any region that contains the pixel at (100, 100)
+		var failingImageData = new ImageData<>(new WrappedBufferedImageServer("failing", img) {
+			@Override
+			public BufferedImage readRegion(RegionRequest request) throws IOException {
+				if (request.contains(100, 100, 0, 0))
+					throw new IllegalStateException("Unable to read " + request);
+				return super.readRegion(request);
+			}
+		});
+		
+		var plugin = new IntensityFeaturesPlugin();
+		ParameterList params = plugin.getDefaultParameterList(imageData);
+		ParameterList.updateParameterList(params, Map.of(
+				"downsample", "1",
+				"channel1", "true",
+				"doMean", "true"
+				), Locale.US);
+		
+		List<PathObject> singleObjects = new ArrayList<>();
+		List<PathObject> batchObjects = new ArrayList<>();
+		for (int x = 0; x < 5; x++) {
+			var roi = ROIs.createRectangleROI(x * 40 + 5, 90, 20, 20, ImagePlane.getDefaultPlane());
+			singleObjects.add(PathObjects.createDetectionObject(roi));
+			batchObjects.add(PathObjects.createDetectionObject(roi));
+		}
+		for (PathObject pathObject : singleObjects)
+			IntensityFeaturesPlugin.processObject(pathObject, params, imageData);
+		
+		// The batch can't be read, but only the object that contains the failing pixel should be missing measurements
+		new IntensityFeaturesPlugin.IntensityFeatureBatchRunnable(failingImageData, batchObjects, params).run();
+		for (int i = 0; i < batchObjects.size(); i++) {
+			var roi = batchObjects.get(i).getROI();
+			var measurements = batchObjects.get(i).getMeasurementList();
+			if (roi.contains(100, 100)) {
+				assertEquals(0, measurements.size());
+			} else {
+				var expected = singleObjects.get(i).getMeasurementList();
+				assertEquals(1, expected.size());
+				assertEquals(expected.getMeasurementNames(), measurements.getMeasurementNames());
+				for (String name : expected.getMeasurementNames())
+					assertEquals(expected.get(name), measurements.get(name), 1e-9, name);
+			}
+		}
+	}
+	
+	private static BufferedImage createImage() {
+		var img = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		var random = new Random(100L);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++) {
+				raster.setSample(x, y, 0, (x + y) / 2 + random.nextInt(64));
+			}
+		}
+		return img;
+	}
+	
+}
@@ -23,9 +23,17 @@
 
 package qupath.lib.analysis.features;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 import java.io.IOException;
+import java.util.Random;
+
 import org.junit.jupiter.api.Test;
 
+import qupath.lib.analysis.images.SimpleImage;
+import qupath.lib.analysis.images.SimpleImages;
+
 // TODO: Implement Haralick tests... this file is kept only to provide a starting point!
 @SuppressWarnings("javadoc")
 public class TestHaralick {
@@ -94,4 +102,120 @@ public class TestHaralick {
         
 	}
 	
+	@Test
+	public void test_paperMatrices() {
+		// Example from Haralick et al. (1973)
+		float[] pixels = new float[] {0, 0, 1, 1, 0, 0, 1, 1, 0, 2, 2, 2, 2, 2, 3, 3};
+		var img = SimpleImages.createFloatImage(pixels, 4, 4);
+		var matrices = HaralickFeatureComputer.updateCooccurrenceMatrices(null, img, null, 4, 0, 3, 1);
+		
+		assertMatrixEquals(new int[][] {{4, 2, 1, 0}, {2, 4, 0, 0}, {1, 0, 6, 1}, {0, 0, 1, 2}}, matrices.getMatrix(0));
+		assertMatrixEquals(new int[][] {{6, 0, 2, 0}, {0, 4, 2, 0}, {2, 2, 2, 2}, {0, 0, 2, 0}}, matrices.getMatrix(90));
+		// Here, 45 degrees pairs each pixel with its neighbor below and to the right
+		assertMatrixEquals(new int[][] {{2, 1, 3, 0}, {1, 2, 1, 0}, {3, 1, 0, 2}, {0, 0, 2, 0}}, matrices.getMatrix(45));
+		assertMatrixEquals(new int[][] {{4, 1, 0, 0}, {1, 2, 2, 0}, {0, 2, 4, 1}, {0, 0, 1, 0}}, matrices.getMatrix(135));
+	}
+	
+	@Test
+	public void test_matchesPixelwise() {
+		int w = 57;
+		int h = 43;
+		var random = new Random(100L);
+		float[] pixels = new float[w * h];
+		float[] mask = new float[w * h];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextFloat() < 0.05f ? Float.NaN : (float)(random.nextGaussian() + 1.0);
+			mask[i] = random.nextFloat() < 0.8f ? 1 : 0;
+		}
+		var img = SimpleImages.createFloatImage(pixels, w, h);
+		var imgMask = SimpleImages.createFloatImage(mask, w, h);
+		
+		for (int d : new int[] {1, 2}) {
+			for (var m : new SimpleImage[] {null, imgMask}) {
+				var expected = computePixelwise(img, m, 16, 0, 2.5, d).getMeanFeatures();
+				var actual = HaralickFeatureComputer.measureHaralick(img, m, 16, 0, 2.5, d);
+				assertArrayEquals(expected.features(), actual.features());
+			}
+		}
+	}
+	
+	@Test
+	public void test_labelsMatchMasks() {
+		int w = 64;
+		int h = 48;
+		int nLabels = 5;
+		var random = new Random(200L);
+		float[] pixels = new float[w * h];
+		float[] labels = new float[w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int i = y * w + x;
+				pixels[i] = random.nextFloat() * 255f;
+				// Vertical stripes, with some unlabeled pixels
+				labels[i] = random.nextFloat() < 0.1f ? 0 : 1 + (x / 13);
+			}
+		}
+		var img = SimpleImages.createFloatImage(pixels, w, h);
+		var imgLabels = SimpleImages.createFloatImage(labels, w, h);
+		
+		var features = HaralickFeatureComputer.measureHaralickForLabels(img, imgLabels, nLabels, 32, 0, 255, 1);
+		assertEquals(nLabels, features.length);
+		for (int label = 1; label <= nLabels; label++) {
+			float[] mask = new float[w * h];
+			for (int i = 0; i < mask.length; i++)
+				mask[i] = labels[i] == label ? 1 : 0;
+			var expected = HaralickFeatureComputer.measureHaralick(img, SimpleImages.createFloatImage(mask, w, h), 32, 0, 255, 1);
+			assertArrayEquals(expected.features(), features[label-1].features());
+		}
+	}
+	
+	private static void assertMatrixEquals(int[][] expected, CoocMatrix matrix) {
+		assertEquals(expected.length, matrix.getN());
+		for (int r = 0; r < expected.length; r++) {
+			for (int c = 0; c < expected.length; c++)
+				assertEquals(expected[r][c], matrix.getRawCounts(r, c), "Entry (" + r + ", " + c + ")");
+		}
+	}
+	
+	/**
+	 * Reference implementation, binning each pixel as it is needed.
+	 */
+	private static CoocurranceMatrices computePixelwise(SimpleImage ip, SimpleImage bpMask, int nBins, double minValue, double maxValue, int d) {
+		var matrices = new CoocurranceMatrices(nBins);
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		double binDepth = (maxValue - minValue) / nBins;
+		boolean noMask = bpMask == null;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (!noMask && bpMask.getValue(x, y) == 0)
+					continue;
+				int binValue = getBinValue(ip, x, y, minValue, binDepth, nBins);
+				if (binValue < 0) 
+					continue;
+				if (x < width-d && (noMask || bpMask.getValue(x+d, y) != 0))
+					matrices.put0(binValue, getBinValue(ip, x+d, y, minValue, binDepth, nBins));
+				if (y < height-d && (noMask || bpMask.getValue(x, y+d) != 0))
+					matrices.put90(binValue, getBinValue(ip, x, y+d, minValue, binDepth, nBins));
+				if (x < width-d && y < height-d && (noMask || bpMask.getValue(x+d, y+d) != 0))
+					matrices.put45(binValue, getBinValue(ip, x+d, y+d, minValue, binDepth, nBins));
+				if (x >= d && y < height-d && (noMask || bpMask.getValue(x-d, y+d) != 0))
+					matrices.put135(binValue, getBinValue(ip, x-d, y+d, minValue, binDepth, nBins)); 
+			}			
+		}
+		return matrices;
+	}
+	
+	private static int getBinValue(SimpleImage ip, int x, int y, double minValue, double binDepth, int nBins) {
+		float val = ip.getValue(x, y);
+		if (Float.isNaN(val))
+			return -1;
+		int ind = (int)((val - minValue) / binDepth);
+		if (ind < 0)
+			return 0;
+		else if (ind >= nBins)
+			return nBins-1;
+		return ind;
+	}
+	
 }
@@ -23,9 +23,17 @@
 
 package qupath.lib.common;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -92,6 +100,148 @@ public class ThreadTools {
 	
 	
 	
+	/**
+	 * Create a thread pool with a size that follows a changeable level of parallelism, 
+	 * such as {@link #getParallelism()}.
+	 * The size is checked whenever a task is submitted, and idle threads time out.
+	 * 
+	 * @param prefix prefix for thread names
+	 * @param daemon true if threads should be daemon threads
+	 * @param priority thread priority
+	 * @param poolSize supplier for the number of threads to use (values &lt; 1 are treated as 1)
+	 * @param maxQueued maximum number of tasks that may be queued, or &lt;= 0 if there is no limit
+	 * @return
+	 * @since v0.4.3
+	 */
+	public static ResizableThreadPool createResizableThreadPool(String prefix, boolean daemon, int priority, IntSupplier poolSize, int maxQueued) {
+		return new ResizableThreadPool(createThreadFactory(prefix, daemon, priority), poolSize, maxQueued);
+	}
+	
+	
+	/**
+	 * A task that is run for each index in a range, and may throw an {@link IOException}.
+	 * @since v0.4.3
+	 * @see ResizableThreadPool#runIndexed(int, int, IndexedIOTask)
+	 */
+	@FunctionalInterface
+	public static interface IndexedIOTask {
+		
+		/**
+		 * Run the task for the specified index.
+		 * @param index
+		 * @throws IOException
+		 */
+		void run(int index) throws IOException;
+		
+	}
+	
+	
+	/**
+	 * Thread pool that is resized according to a changeable level of parallelism.
+	 * This is intended to be stored in a static field, and shared by all instances of a class.
+	 * @since v0.4.3
+	 * @see ThreadTools#createResizableThreadPool(String, boolean, int, IntSupplier, int)
+	 */
+	public static class ResizableThreadPool {
+		
+		private final ThreadPoolExecutor pool;
+		private final IntSupplier poolSize;
+		private final int maxQueued;
+		
+		private ResizableThreadPool(ThreadFactory threadFactory, IntSupplier poolSize, int maxQueued) {
+			this.pool = new ThreadPoolExecutor(
+					1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+			this.pool.allowCoreThreadTimeOut(true);
+			this.poolSize = poolSize;
+			this.maxQueued = maxQueued;
+		}
+		
+		/**
+		 * Get the number of threads that the pool should currently use.
+		 * @return
+		 */
+		public int getPoolSize() {
+			return Math.max(1, poolSize.getAsInt());
+		}
+		
+		/**
+		 * Submit a task to the pool, resizing it first if necessary.
+		 * @param runnable
+		 * @return true if the task was submitted, false if it was rejected because the queue is full
+		 */
+		public synchronized boolean execute(Runnable runnable) {
+			if (maxQueued > 0 && pool.getQueue().size() >= maxQueued)
+				return false;
+			int n = getPoolSize();
+			if (pool.getMaximumPoolSize() != n) {
+				if (n > pool.getMaximumPoolSize()) {
+					pool.setMaximumPoolSize(n);
+					pool.setCorePoolSize(n);
+				} else {
+					pool.setCorePoolSize(n);
+					pool.setMaximumPoolSize(n);
+				}
+			}
+			pool.execute(runnable);
+			return true;
+		}
+		
+		/**
+		 * Run a task for every index from 0 (inclusive) to n (exclusive), in parallel where possible.
+		 * <p>
+		 * The calling thread also runs the task, and only waits for indices that another thread has already started. 
+		 * This means that the call never waits for helpers that are queued behind other tasks, so it is safe to call this 
+		 * from a thread that belongs to a pool (including this one).
+		 * <p>
+		 * If any index fails, the remaining indices are skipped and the first exception is thrown.
+		 * 
+		 * @param n the number of indices
+		 * @param maxThreads the maximum number of threads to use, including the calling thread; 
+		 *                   this can be less than n if some indices are expected to be very fast
+		 * @param task the task to run for each index
+		 * @throws IOException if the task throws an exception for any index, or if the calling thread is interrupted
+		 */
+		public void runIndexed(int n, int maxThreads, IndexedIOTask task) throws IOException {
+			int nHelpers = Math.min(maxThreads, getPoolSize()) - 1;
+			if (nHelpers <= 0) {
+				for (int i = 0; i < n; i++)
+					task.run(i);
+				return;
+			}
+			var nextIndex = new AtomicInteger();
+			var latch = new CountDownLatch(n);
+			var exception = new AtomicReference<IOException>();
+			Runnable runner = () -> {
+				int i;
+				while ((i = nextIndex.getAndIncrement()) < n) {
+					try {
+						if (exception.get() == null)
+							task.run(i);
+					} catch (IOException e) {
+						exception.compareAndSet(null, e);
+					} catch (RuntimeException e) {
+						exception.compareAndSet(null, new IOException(e));
+					} finally {
+						latch.countDown();
+					}
+				}
+			};
+			for (int i = 0; i < nHelpers; i++)
+				execute(runner);
+			runner.run();
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for parallel tasks");
+			}
+			if (exception.get() != null)
+				throw exception.get();
+		}
+		
+	}
+	
+	
 	static class SimpleThreadFactory implements ThreadFactory {
 		
 		private final ThreadGroup group;
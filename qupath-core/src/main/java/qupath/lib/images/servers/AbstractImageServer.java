@@ -97,6 +97,14 @@ public abstract class AbstractImageServer<T> implements ImageServer<T> {
 		return cache;
 	}
 	
+	/**
+	 * Set the cache to use for this server, instead of the shared cache.
+	 * @param cache the cache, or null if tiles should not be cached
+	 */
+	void setCache(Map<RegionRequest, T> cache) {
+		this.cache = cache;
+	}
+	
 	protected double getThumbnailDownsampleFactor(int maxWidth, int maxHeight) {
 		if (maxWidth <= 0) {
 			if (maxHeight <= 0) {
@@ -25,25 +25,38 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.common.ThreadTools.ResizableThreadPool;
 import qupath.lib.images.servers.ImageServerMetadata.ChannelType;
 import qupath.lib.regions.RegionRequest;
 
@@ -68,8 +81,26 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	
 	private static final Long ZERO = Long.valueOf(0L);
 	
+	/**
+	 * Maximum number of tiles read ahead to remember when calculating the readahead hit count.
+	 */
+	private static final int MAX_READAHEAD_TILES = 1024;
+	
 	// Maintain a record of tiles that could not be cached, so we warn for each only once
 	private transient Set<RegionRequest> failedCacheTiles = new HashSet<>();
+	
+	// Key used to identify this server within a persistent tile cache
+	private transient String persistentCacheKey;
+	
+	// Most recent tile that was read, used to detect row-by-row access for readahead
+	private transient volatile TileRequest lastTileRead;
+	
+	// Tiles requested by readahead that have not yet been requested directly
+	// This is bounded by MAX_READAHEAD_TILES, with the oldest tiles removed first
+	private transient Set<TileRequest> readaheadTiles = Collections.synchronizedSet(new LinkedHashSet<>());
+	
+	// Metrics summarizing tile requests, created when first needed
+	private transient volatile ImageServerMetrics metrics;
 		
 	protected AbstractTileableImageServer() {
 		super(BufferedImage.class);
@@ -160,6 +191,106 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	 */
 	protected abstract BufferedImage readTile(final TileRequest tileRequest) throws IOException;
 	
+	/**
+	 * Returns true if tiles read by this server may be stored in the persistent tile cache, if one is available.
+	 * <p>
+	 * This should only return true if the pixels are fully determined by {@link #getPath()} and the 
+	 * files referenced by {@link #getURIs()}, so that stored tiles remain valid across sessions.
+	 * The default implementation returns false; servers that are expensive to read (e.g. because they 
+	 * decode compressed files) may override this to return true.
+	 * @return
+	 * @since v0.4.3
+	 * @see ImageServerProvider#setPersistentTileCache(PersistentTileCache)
+	 */
+	protected boolean supportsPersistentTileCache() {
+		return false;
+	}
+	
+	/**
+	 * Read a tile, using the persistent tile cache if possible.
+	 */
+	private BufferedImage readTileOrPersistent(final TileRequest tileRequest) throws IOException {
+		var persistentCache = ImageServerProvider.getPersistentTileCache();
+		String key = persistentCache == null ? null : getPersistentCacheKey();
+		if (key == null)
+			return readTileWithMetrics(tileRequest);
+		
+		var colorModel = getDefaultColorModel();
+		var img = persistentCache.get(key, tileRequest, colorModel);
+		if (img != null) {
+			logger.trace("Returning tile from persistent cache: {}", tileRequest.getRegionRequest());
+			var metrics = getMetrics();
+			if (metrics != null)
+				metrics.recordPersistentCacheHit();
+			return img;
+		}
+		img = readTileWithMetrics(tileRequest);
+		if (img != null && !isEmptyTile(img))
+			persistentCache.put(key, tileRequest, img, colorModel);
+		return img;
+	}
+	
+	/**
+	 * Read a tile, recording the time taken (if metrics or the corresponding JFR event are enabled).
+	 */
+	private BufferedImage readTileWithMetrics(final TileRequest tileRequest) throws IOException {
+		var metrics = getMetrics();
+		var event = ImageServerMetrics.beginTileReadEvent();
+		if (metrics == null && event == null)
+			return readTile(tileRequest);
+		long startTime = metrics == null ? 0L : metrics.startTileRead();
+		BufferedImage img = null;
+		try {
+			img = readTile(tileRequest);
+			return img;
+		} finally {
+			if (metrics != null)
+				metrics.endTileRead(startTime, img);
+			if (event != null)
+				ImageServerMetrics.endTileReadEvent(event, this, tileRequest, img);
+		}
+	}
+	
+	/**
+	 * Get the metrics for this server.
+	 * @return the metrics, or null if metrics are disabled
+	 * @see ImageServerMetrics#setEnabled(boolean)
+	 */
+	private ImageServerMetrics getMetrics() {
+		if (!ImageServerMetrics.isEnabled())
+			return null;
+		var m = metrics;
+		if (m == null) {
+			m = ImageServerMetrics.getOrCreate(this);
+			metrics = m;
+		}
+		return m;
+	}
+	
+	/**
+	 * Get a key identifying this server in the persistent cache, including the size and modification time 
+	 * of any local files so that stored tiles are not used if a file changes.
+	 * @return the key, or null if the persistent cache should not be used
+	 */
+	private String getPersistentCacheKey() {
+		if (persistentCacheKey == null && supportsPersistentTileCache()) {
+			var sb = new StringBuilder(getPath());
+			for (var uri : getURIs()) {
+				sb.append("\n").append(uri);
+				var path = GeneralTools.toPath(uri);
+				try {
+					if (path != null && Files.isRegularFile(path))
+						sb.append(" ").append(Files.size(path)).append(" ").append(Files.getLastModifiedTime(path).toMillis());
+				} catch (IOException e) {
+					logger.debug("Unable to read file attributes for {} - persistent tile cache will not be used", path);
+					return null;
+				}
+			}
+			persistentCacheKey = sb.toString();
+		}
+		return persistentCacheKey;
+	}
+	
 	
 	/**
 	 * Map of tiles currently being requested, so avoid duplicate requests (wait instead for the first request to return).
@@ -175,15 +306,28 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	private static class TileTask extends FutureTask<BufferedImage> {
 		
 		private Thread thread;
+		
+		// Readahead tasks have no thread, and can be claimed by whichever thread needs them first
+		private AtomicBoolean claimed = new AtomicBoolean(false);
 
 		public TileTask(Thread thread, Callable<BufferedImage> callable) {
 			super(callable);
 			this.thread = thread;
 		}
 		
-		
+		private boolean isMine() {
+			if (thread == null)
+				return claimed.compareAndSet(false, true);
+			return thread == Thread.currentThread();
+		}
 		
 	}
+	
+	/**
+	 * Low priority threads used to read tiles ahead of time.
+	 */
+	private static final ResizableThreadPool readaheadPool = ThreadTools.createResizableThreadPool(
+			"tile-readahead-", true, Thread.MIN_PRIORITY, () -> ThreadTools.getParallelism() / 2, 256);
 		
 	/**
 	 * Get a tile for the request - ideally from the cache, but otherwise read it and 
@@ -196,22 +340,32 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	protected BufferedImage getTile(final TileRequest tileRequest) throws IOException {
 		// Try to get tile from one of the caches
 		var request = tileRequest.getRegionRequest();
-		if (emptyTiles.contains(tileRequest))
+		if (!readaheadTiles.isEmpty() && readaheadTiles.remove(tileRequest))
+			ImageServerProvider.recordTileReadaheadHit();
+		var metrics = getMetrics();
+		if (emptyTiles.contains(tileRequest)) {
+			if (metrics != null)
+				metrics.recordTileRequest(true);
 			return getEmptyTile(tileRequest.getTileWidth(), tileRequest.getTileHeight());
+		}
 		
 		var cache = getCache();
 		if (cache != null) {
 			var imgCached = cache.get(request);
 			if (imgCached != null) { 
 				logger.trace("Returning cached tile: {}", request);
+				if (metrics != null)
+					metrics.recordTileRequest(true);
 				return imgCached;
 			}
 		}
+		if (metrics != null)
+			metrics.recordTileRequest(false);
 		logger.trace("Reading tile: {}", request);
 		
 		BufferedImage imgCached;
-		var futureTask = pendingTiles.computeIfAbsent(tileRequest, t -> new TileTask(Thread.currentThread(), () -> readTile(t)));
-		var myTask = futureTask.thread == Thread.currentThread();
+		var futureTask = pendingTiles.computeIfAbsent(tileRequest, t -> new TileTask(Thread.currentThread(), () -> readTileOrPersistent(t)));
+		var myTask = futureTask.isMine();
 		try {
 			if (myTask)
 				futureTask.run();
@@ -230,22 +384,103 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 		
 		// Put the tile in the appropriate cache
 		if (myTask) {
-			if (imgCached != null) {
-				if (isEmptyTile(imgCached)) {
-					emptyTiles.add(tileRequest);
-				} else if (cache != null) {
-					cache.put(request, imgCached);
-					// Check if we were able to cache the tile; sometimes we can't if it is too big
-					if (!cache.containsKey(request) && failedCacheTiles.add(request))
-						logger.warn("Unable to add {} to cache.\nYou might need to give QuPath more memory, or to increase the 'Percentage memory for tile caching' preference.", request);
-				}
-			}
+			cacheTile(tileRequest, imgCached);
 			pendingTiles.remove(tileRequest);
+			readahead(tileRequest);
 		}
 		
 		return imgCached;
 	}
 	
+	/**
+	 * Put a tile that has just been read into the appropriate cache.
+	 */
+	private void cacheTile(final TileRequest tileRequest, final BufferedImage img) {
+		if (img == null)
+			return;
+		if (isEmptyTile(img)) {
+			emptyTiles.add(tileRequest);
+			return;
+		}
+		var cache = getCache();
+		if (cache != null) {
+			var request = tileRequest.getRegionRequest();
+			cache.put(request, img);
+			// Check if we were able to cache the tile; sometimes we can't if it is too big
+			if (!cache.containsKey(request) && failedCacheTiles.add(request))
+				logger.warn("Unable to add {} to cache.\nYou might need to give QuPath more memory, or to increase the 'Percentage memory for tile caching' preference.", request);
+		}
+	}
+	
+	/**
+	 * Start reading the next tiles in the same row in the background, if the tile that has just been read 
+	 * directly follows the previous one.
+	 * @see ImageServerProvider#setTileReadahead(int)
+	 */
+	private void readahead(final TileRequest tileRequest) {
+		var last = lastTileRead;
+		lastTileRead = tileRequest;
+		int nTiles = ImageServerProvider.getTileReadahead();
+		if (nTiles <= 0 || last == null || !isNextInRow(last, tileRequest))
+			return;
+		var cache = getCache();
+		var manager = getTileRequestManager();
+		var next = tileRequest;
+		for (int i = 0; i < nTiles; i++) {
+			next = manager.getTileRequest(next.getLevel(), next.getImageX() + next.getImageWidth(), next.getImageY(), next.getZ(), next.getT());
+			if (next == null)
+				break;
+			if (emptyTiles.contains(next) || (cache != null && cache.containsKey(next.getRegionRequest())))
+				continue;
+			var tile = next;
+			var task = new TileTask(null, () -> readTileOrPersistent(tile));
+			if (pendingTiles.putIfAbsent(tile, task) != null)
+				continue;
+			boolean submitted = readaheadPool.execute(() -> {
+				if (!task.isMine())
+					return;
+				try {
+					task.run();
+					cacheTile(tile, task.get());
+				} catch (Exception e) {
+					logger.debug("Unable to read ahead {}: {}", tile.getRegionRequest(), e.getLocalizedMessage());
+				} finally {
+					pendingTiles.remove(tile);
+				}
+			});
+			if (!submitted) {
+				// The task can still be claimed by a thread that needs the tile, but is unlikely to be needed
+				pendingTiles.remove(tile, task);
+				break;
+			}
+			addReadaheadTile(tile);
+			ImageServerProvider.recordTileReadahead();
+		}
+	}
+	
+	/**
+	 * Record that a tile has been read ahead, removing the oldest tiles if necessary 
+	 * to avoid the set growing indefinitely if tiles read ahead are never requested.
+	 */
+	private void addReadaheadTile(final TileRequest tile) {
+		synchronized (readaheadTiles) {
+			readaheadTiles.add(tile);
+			var iter = readaheadTiles.iterator();
+			while (readaheadTiles.size() > MAX_READAHEAD_TILES) {
+				iter.next();
+				iter.remove();
+			}
+		}
+	}
+	
+	private static boolean isNextInRow(TileRequest previous, TileRequest current) {
+		return previous.getLevel() == current.getLevel() &&
+				previous.getZ() == current.getZ() &&
+				previous.getT() == current.getT() &&
+				previous.getImageY() == current.getImageY() &&
+				previous.getImageX() + previous.getImageWidth() == current.getImageX();
+	}
+	
 	/**
 	 * Create the default (blank) RGB image for this server.
 	 * <p>
@@ -264,12 +499,28 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	
 	@Override
 	public BufferedImage readRegion(final RegionRequest request) throws IOException {
+		var metrics = getMetrics();
+		if (metrics == null)
+			return readRegionFromTiles(request);
+		long startTime = System.nanoTime();
+		try {
+			return readRegionFromTiles(request);
+		} finally {
+			metrics.recordRegionRequest(System.nanoTime() - startTime);
+		}
+	}
+	
+	private BufferedImage readRegionFromTiles(final RegionRequest request) throws IOException {
 		// Check if we already have a tile for precisely this occasion - with the right server path
 		// Make a defensive copy, since the cache is critical
 		var cache = getCache();
 		BufferedImage img = request.getPath().equals(getPath()) && cache != null ? cache.get(request) : null;
-		if (img != null)
+		if (img != null) {
+			var metrics = getMetrics();
+			if (metrics != null)
+				metrics.recordTileRequest(true);
 			return BufferedImageTools.duplicate(img);
+		}
 		
 		// Figure out which tiles we need
 		Collection<TileRequest> tiles = getTileRequestManager().getTileRequests(request);
@@ -291,117 +542,89 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 			}
 		}
 		
-		// Ensure all tiles are either cached or pending before we continue
-		prerequestTiles(tiles);
+		// Read all the tiles we need, in parallel if possible
+		List<TileRequest> tileList = new ArrayList<>(tiles);
+		BufferedImage[] tileImages = getTiles(tileList);
 		
 		long startTime = System.currentTimeMillis();
-		// Handle the general case for RGB
 		int width = (int)Math.max(1, Math.round(request.getWidth() / request.getDownsample()));
 		int height = (int)Math.max(1, Math.round(request.getHeight() / request.getDownsample()));
+		double tileDownsample = tileList.get(0).getDownsample();
+		
+		// Handle the general case for RGB
 		if (isRGB()) {
 			BufferedImage imgResult = createDefaultRGBImage(width, height);
-			Graphics2D g2d = imgResult.createGraphics();
-			g2d.scale(1.0/request.getDownsample(), 1.0/request.getDownsample());
-			g2d.translate(-request.getX(), -request.getY());
-			// Interpolate if downsampling
-			if (request.getDownsample() > 1)
-				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 			
-			// Requests could be parallelized, but should consider the number of threads created/what happens if one blocks
-//			Map<TileRequest, BufferedImage> map = tiles.stream()
-//					.collect(Collectors.toMap(tileRequest -> tileRequest,
-//							tileRequest -> {
-//					try {
-//						return getTile(tileRequest);
-//					} catch (Exception ex) {
-//						return null;
-//					}
-//					}));
-//			for (TileRequest tileRequest : tiles) {
-//				BufferedImage imgTile = map.get(tileRequest);
-//				if (imgTile != null)
-//					g2d.drawImage(imgTile, tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getImageWidth(), tileRequest.getImageHeight(), null);
-//			}
+			// If no rescaling is needed, we can copy pixels directly rather than drawing them
+			int xStart = (int)Math.round(request.getX() / tileDownsample);
+			int yStart = (int)Math.round(request.getY() / tileDownsample);
+			boolean noScaling = request.getDownsample() == tileDownsample &&
+					(int)Math.round((request.getX() + request.getWidth()) / tileDownsample) - xStart == width &&
+					(int)Math.round((request.getY() + request.getHeight()) / tileDownsample) - yStart == height;
 			
-			for (TileRequest tileRequest : tiles) {
-				BufferedImage imgTile = getTile(tileRequest);
-				g2d.drawImage(imgTile, tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getImageWidth(), tileRequest.getImageHeight(), null);
+			WritableRaster rasterResult = imgResult.getRaster();
+			Graphics2D g2d = null;
+			Object buffer = null;
+			for (int i = 0; i < tileImages.length; i++) {
+				var tileRequest = tileList.get(i);
+				var imgTile = tileImages[i];
+				if (imgTile == null)
+					continue;
+				if (noScaling && canCopyDataElements(imgTile.getRaster(), rasterResult)) {
+					buffer = copyDataElements(imgTile.getRaster(), tileRequest.getTileX() - xStart, tileRequest.getTileY() - yStart, rasterResult, buffer);
+				} else {
+					if (g2d == null) {
+						g2d = imgResult.createGraphics();
+						g2d.scale(1.0/request.getDownsample(), 1.0/request.getDownsample());
+						g2d.translate(-request.getX(), -request.getY());
+						// Interpolate if downsampling
+						if (request.getDownsample() > 1)
+							g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+					}
+					g2d.drawImage(imgTile, tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getImageWidth(), tileRequest.getImageHeight(), null);
+				}
 			}
-			g2d.dispose();
+			if (g2d != null)
+				g2d.dispose();
 			
 			long endTime = System.currentTimeMillis();
 			logger.trace("Requested " + tiles.size() + " tiles in " + (endTime - startTime) + " ms (RGB)");
 
 			return imgResult;
 		} else {
-			// Request all of the tiles we need & figure out image dimensions
-			// Do all this at the pyramid level of the tiles
-			WritableRaster raster = null;
-			ColorModel colorModel = null;
-			boolean alphaPremultiplied = false;
-			
 			// Get the dimensions, based on tile coordinates & at the tiled resolution
 			int tileMinX = Integer.MAX_VALUE;
 			int tileMinY = Integer.MAX_VALUE;
 			int tileMaxX = Integer.MIN_VALUE;
 			int tileMaxY = Integer.MIN_VALUE;
-			double tileDownsample = Double.NaN;
-			for (var tileRequest : tiles) {
-				if (Double.isNaN(tileDownsample)) {
-					tileDownsample = tileRequest.getRegionRequest().getDownsample();
-				}
+			for (var tileRequest : tileList) {
 				tileMinX = Math.min(tileRequest.getTileX(), tileMinX);
 				tileMinY = Math.min(tileRequest.getTileY(), tileMinY);
 				tileMaxX = Math.max(tileRequest.getTileX() + tileRequest.getTileWidth(), tileMaxX);
 				tileMaxY = Math.max(tileRequest.getTileY() + tileRequest.getTileHeight(), tileMaxY);
 			}
 			
+			// Find a tile to use as a template for the output
+			// (which can be an empty tile only if we have a single tile)
+			BufferedImage imgTemplate = null;
 			boolean isEmptyRegion = true;
-			if (singleTile) {
-				// Use the raster directly, if appropriate (because copying can be expensive)
-				BufferedImage imgTile = getTile(tiles.iterator().next());
-				if (imgTile != null) {
-					raster = imgTile.getRaster();
-					colorModel = imgTile.getColorModel();
-					alphaPremultiplied = imgTile.isAlphaPremultiplied();
-					isEmptyRegion = isEmptyTile(imgTile);
-				}
-			} else {
-				for (var tileRequest : tiles) {
-					BufferedImage imgTile = getTile(tileRequest);
-					if (imgTile != null && !isEmptyTile(imgTile)) {
-						isEmptyRegion = false;
-						// Figure out coordinates
-						int dx = tileRequest.getTileX() - tileMinX;
-						int dy = tileRequest.getTileY() - tileMinY;
-						int tileWidth = tileMaxX - tileMinX;
-						int tileHeight = tileMaxY - tileMinY;
-						// Preallocate a raster if we need to, and everything else the tile might give us
-						if (raster == null) {
-							raster = imgTile.getRaster().createCompatibleWritableRaster(tileWidth, tileHeight);
-							colorModel = imgTile.getColorModel();
-							alphaPremultiplied = imgTile.isAlphaPremultiplied();							
-						}
-						// Insert the tile into the raster
-						if (dx >= raster.getWidth() ||
-								dy >= raster.getHeight()
-								)
-							continue;
-						
-						copyPixels(imgTile.getRaster(), dx, dy, raster);
-
-//						raster.setRect(
-//								dx,
-//								dy,
-//								imgTile.getRaster());
-					}
+			for (var imgTile : tileImages) {
+				if (imgTile != null && !isEmptyTile(imgTile)) {
+					imgTemplate = imgTile;
+					isEmptyRegion = false;
+					break;
 				}
 			}
+			if (singleTile && imgTemplate == null)
+				imgTemplate = tileImages[0];
+			
 			// Maybe we don't have anything at all (which is not an error if the image is sparse!)
-			if (raster == null)
+			if (imgTemplate == null)
 				return null;
 			
 			// Calculate the requested region mapped to the pyramidal level, and relative to the tiled image
+			int tiledWidth = tileMaxX - tileMinX;
+			int tiledHeight = tileMaxY - tileMinY;
 			int xStart = (int)Math.round(request.getX() / tileDownsample) - tileMinX;
 			int yStart = (int)Math.round(request.getY() / tileDownsample) - tileMinY;
 			int xEnd = (int)Math.round((request.getX() + request.getWidth()) / tileDownsample) - tileMinX;
@@ -411,30 +634,43 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 				logger.warn("Region request is too large for {}x{} image: {}", getWidth(), getHeight(), request);
 			else if (xEnd - xStart <= 0 || yEnd - yStart <= 0)
 				return null;
-						
-			// Do cropping, if we need to
-			if (xStart > 0 || yStart > 0 || xEnd != raster.getWidth() || yEnd != raster.getHeight()) {
-				// Best avoid creating a child raster, for memory & convenience reasons
-				// (i.e. sometimes weird things happen when not expecting to have a child raster)
-				int x = Math.max(xStart, 0);
-				int y = Math.max(yStart, 0);
-				int w = xEnd - xStart;
-				int h = yEnd - yStart;
-				
-//				int w = Math.min(raster.getWidth() - xStart, xEnd - xStart);
-//				int h = Math.min(raster.getHeight() - yStart, yEnd - yStart);
-				var raster2 = raster.createCompatibleWritableRaster(w, h);
-				copyPixels(raster, -x, -y, raster2);
-				raster = raster2;
-			}
-
+			
+			// Determine if we need to crop
+			boolean doCrop = xStart > 0 || yStart > 0 || xEnd != tiledWidth || yEnd != tiledHeight;
+			int rasterWidth = doCrop ? xEnd - xStart : tiledWidth;
+			int rasterHeight = doCrop ? yEnd - yStart : tiledHeight;
+			int xOffset = doCrop ? Math.max(xStart, 0) : 0;
+			int yOffset = doCrop ? Math.max(yStart, 0) : 0;
+			
 			// If we have an empty region, try to use an empty tile
-			if (isEmptyRegion) {
-				return getEmptyTile(raster.getWidth(), raster.getHeight());
+			if (isEmptyRegion)
+				return getEmptyTile(rasterWidth, rasterHeight);
+			
+			WritableRaster raster;
+			if (singleTile && !doCrop) {
+				// Use the raster directly, if appropriate (because copying can be expensive)
+				raster = imgTemplate.getRaster();
+			} else {
+				// Copy the pixels we need from each tile directly into the output raster
+				// (avoiding creating an intermediate raster containing the full tiles)
+				raster = imgTemplate.getRaster().createCompatibleWritableRaster(rasterWidth, rasterHeight);
+				Object buffer = null;
+				for (int i = 0; i < tileImages.length; i++) {
+					var imgTile = tileImages[i];
+					if (imgTile == null || isEmptyTile(imgTile))
+						continue;
+					var tileRequest = tileList.get(i);
+					int dx = tileRequest.getTileX() - tileMinX - xOffset;
+					int dy = tileRequest.getTileY() - tileMinY - yOffset;
+					if (canCopyDataElements(imgTile.getRaster(), raster))
+						buffer = copyDataElements(imgTile.getRaster(), dx, dy, raster, buffer);
+					else
+						copyPixels(imgTile.getRaster(), dx, dy, raster);
+				}
 			}
 
 			// Return the image, resizing if necessary
-			BufferedImage imgResult = new BufferedImage(colorModel, raster, alphaPremultiplied, null);
+			BufferedImage imgResult = new BufferedImage(imgTemplate.getColorModel(), raster, imgTemplate.isAlphaPremultiplied(), null);
 			int currentWidth = imgResult.getWidth();
 			int currentHeight = imgResult.getHeight();
 			if (currentWidth != width || currentHeight != height) {
@@ -448,24 +684,82 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	}
 	
 	/**
-	 * Ensure all tiles in a list are either cached or requested.
-	 * If a tile is neither, then a blocking request is made so that the tile will be present later.
-	 * The purpose of this is to avoid sequentially requesting the same tiles from multiple threads,
-	 * which could cause all threads to block waiting on the same tile - rather than trying to 
-	 * get the next one.
+	 * Get the images for a list of tiles, reading them in parallel if more than one tile is not already cached.
+	 * <p>
+	 * The calling thread also reads tiles, and only waits for tiles that another thread has already started to read. 
+	 * This means that requests never wait for tasks that are queued behind others, so it is safe to call this 
+	 * from a thread that belongs to a pool.
+	 * Because {@link #getTile(TileRequest)} avoids duplicate requests for pending tiles, this also helps avoid 
+	 * several threads blocking on the same tile when requesting overlapping regions.
+	 * 
 	 * @param tiles
+	 * @return an array of tile images, in the same order as the tile requests
+	 * @throws IOException
 	 */
-	private void prerequestTiles(Collection<TileRequest> tiles) {
+	private BufferedImage[] getTiles(List<TileRequest> tiles) throws IOException {
+		int n = tiles.size();
+		var images = new BufferedImage[n];
 		var cache = getCache();
+		int nToRead = 0;
 		for (var tile : tiles) {
-			if (cache == null || !cache.containsKey(tile.getRegionRequest()) && !pendingTiles.containsKey(tile)) {
-				var futureTask = pendingTiles.computeIfAbsent(tile, t -> new TileTask(Thread.currentThread(), () -> readTile(t)));
-				if (futureTask.thread == Thread.currentThread())
-					futureTask.run();
-			}
+			if (cache == null || (!cache.containsKey(tile.getRegionRequest()) && !emptyTiles.contains(tile)))
+				nToRead++;
 		}
+		tileFetchPool.runIndexed(n, nToRead, i -> images[i] = getTile(tiles.get(i)));
+		return images;
 	}
 	
+	/**
+	 * Check whether data elements can be copied directly between two rasters.
+	 * This requires that they use the same kind of sample model, with the same transfer type and number of data elements 
+	 * (and the same bit masks, if pixels are packed).
+	 */
+	private static boolean canCopyDataElements(Raster source, WritableRaster dest) {
+		var sm1 = source.getSampleModel();
+		var sm2 = dest.getSampleModel();
+		if (sm1.getClass() != sm2.getClass() || sm1.getTransferType() != sm2.getTransferType() || sm1.getNumDataElements() != sm2.getNumDataElements())
+			return false;
+		if (sm1 instanceof SinglePixelPackedSampleModel)
+			return Arrays.equals(((SinglePixelPackedSampleModel)sm1).getBitMasks(), ((SinglePixelPackedSampleModel)sm2).getBitMasks());
+		return sm1 instanceof ComponentSampleModel;
+	}
+	
+	/**
+	 * Copy the data elements of a source raster into a destination raster row-by-row, clipping to the destination bounds.
+	 * This avoids converting pixels to & from samples, and the standard JDK rasters copy each row with a single array copy.
+	 * 
+	 * @param source raster containing source pixels
+	 * @param dx x-origin of the source pixels in the destination raster (may be negative)
+	 * @param dy y-origin of the source pixels in the destination raster (may be negative)
+	 * @param dest destination raster to update
+	 * @param buffer optional buffer to store a row of data elements; may be null
+	 * @return the buffer used, which may be passed to subsequent calls
+	 */
+	private static Object copyDataElements(Raster source, int dx, int dy, WritableRaster dest, Object buffer) {
+		int x0 = Math.max(dx, 0);
+		int y0 = Math.max(dy, 0);
+		int x1 = Math.min(dx + source.getWidth(), dest.getWidth());
+		int y1 = Math.min(dy + source.getHeight(), dest.getHeight());
+		if (x1 <= x0 || y1 <= y0)
+			return buffer;
+		int w = x1 - x0;
+		if (buffer != null && Array.getLength(buffer) < w * source.getNumDataElements())
+			buffer = null;
+		int sx = source.getMinX() + x0 - dx;
+		int sy = source.getMinY() + y0 - dy;
+		for (int y = y0; y < y1; y++) {
+			buffer = source.getDataElements(sx, sy + y - y0, w, 1, buffer);
+			dest.setDataElements(dest.getMinX() + x0, dest.getMinY() + y, w, 1, buffer);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Threads used to read tiles in parallel for large region requests.
+	 */
+	private static final ResizableThreadPool tileFetchPool = ThreadTools.createResizableThreadPool(
+			"tile-fetch-", true, Thread.NORM_PRIORITY, ThreadTools::getParallelism, 0);
+	
 	/**
 	 * This method essentially wraps a call to {@link WritableRaster#setRect(int, int, Raster)}, while working 
 	 * around an inconvenient JDK bug: https://bugs.openjdk.java.net/browse/JDK-4847156
@@ -31,6 +31,7 @@ import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -105,6 +106,14 @@ public class ChannelTransformFeatureServer extends TransformingImageServer<Buffe
 				.build();
 	}
 	
+	/**
+	 * Get the color transforms used to create each channel.
+	 * @return
+	 */
+	List<ColorTransforms.ColorTransform> getTransforms() {
+		return Collections.unmodifiableList(transforms);
+	}
+	
 	protected ColorModel getColorModel() {
 		if (colorModel == null) {
 			synchronized(this) {
@@ -0,0 +1,418 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ChunkedImageWriter.Compression;
+import qupath.lib.images.servers.ImageServerBuilder.DefaultImageServerBuilder;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.io.GsonTools;
+
+/**
+ * ImageServer to read images written by {@link ChunkedImageWriter}.
+ * <p>
+ * Images are stored in a directory, with one file per tile ('chunk') at each resolution level, z-slice and timepoint.
+ * Chunks contain the uncompressed (or deflate-compressed) samples for each channel in turn, in little-endian byte order.
+ * Uncompressed chunks are read directly into a reusable buffer, so reading a tile requires only a single bulk copy 
+ * per channel and no decoding.
+ * <p>
+ * This is intended for intermediate images that are written once and read many times,
+ * e.g. the output of a pixel classifier or a stack of features.
+ * Chunks that were not written (e.g. because the region was empty) are returned as empty tiles.
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ */
+public class ChunkedImageServer extends AbstractTileableImageServer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedImageServer.class);
+
+	/**
+	 * Name of the file within the image directory that describes the image.
+	 */
+	static final String FORMAT_FILE = "chunks.json";
+
+	/**
+	 * Preferred extension for the image directory.
+	 */
+	static final String EXTENSION = ".qpchunks";
+
+	static final int VERSION = 1;
+
+	/**
+	 * Maximum number of buffers to keep for reading chunks.
+	 */
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	// Heap buffers reused for reading chunks, to avoid allocating (or memory-mapping) a new buffer for every chunk
+	private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+	private final URI uri;
+	private final String[] args;
+	private final Path directory;
+	private final ImageServerMetadata originalMetadata;
+	private final Compression compression;
+
+	/**
+	 * Create a server to read a chunked image.
+	 * @param uri URI for the image directory, or the format file within it
+	 * @param args
+	 * @throws IOException
+	 */
+	ChunkedImageServer(URI uri, String...args) throws IOException {
+		super();
+		this.uri = uri;
+		this.args = args;
+		this.directory = getImageDirectory(Paths.get(uri));
+		if (directory == null)
+			throw new IOException("No chunked image found at " + uri);
+		var format = readFormat(directory);
+		if (format.version > VERSION)
+			throw new IOException("Unsupported chunked image version " + format.version);
+		if (!isSupported(format.metadata.getPixelType()))
+			throw new IOException("Unsupported pixel type " + format.metadata.getPixelType());
+		this.compression = format.compression == null ? Compression.NONE : format.compression;
+		this.originalMetadata = format.metadata;
+	}
+
+	/**
+	 * Get the directory containing a chunked image, given either the directory or the format file within it.
+	 * @param path
+	 * @return the directory, or null if the path does not refer to a chunked image
+	 */
+	static Path getImageDirectory(Path path) {
+		if (Files.isDirectory(path) && Files.isRegularFile(path.resolve(FORMAT_FILE)))
+			return path;
+		if (Files.isRegularFile(path) && FORMAT_FILE.equals(path.getFileName().toString()))
+			return path.getParent();
+		return null;
+	}
+
+	static boolean isSupported(PixelType pixelType) {
+		switch (pixelType) {
+		case UINT8:
+		case UINT16:
+		case INT16:
+		case INT32:
+		case FLOAT32:
+		case FLOAT64:
+			return true;
+		case INT8:
+		case UINT32:
+		default:
+			return false;
+		}
+	}
+
+	static Path getChunkPath(Path directory, int level, int z, int t, int tileIndexX, int tileIndexY) {
+		return directory.resolve(Integer.toString(level)).resolve(t + "." + z + "." + tileIndexY + "." + tileIndexX);
+	}
+
+	private static ChunkedImageFormat readFormat(Path directory) throws IOException {
+		try (Reader reader = Files.newBufferedReader(directory.resolve(FORMAT_FILE), StandardCharsets.UTF_8)) {
+			var format = GsonTools.getInstance().fromJson(reader, ChunkedImageFormat.class);
+			if (format == null || format.metadata == null)
+				throw new IOException("No image metadata found in " + directory.resolve(FORMAT_FILE));
+			return format;
+		}
+	}
+
+	@Override
+	public Collection<URI> getURIs() {
+		return Collections.singletonList(uri);
+	}
+
+	@Override
+	public String getServerType() {
+		return "Chunked image server";
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return originalMetadata;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		return DefaultImageServerBuilder.createInstance(ChunkedImageServerBuilder.class, getMetadata(), uri, args);
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + uri.toString();
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		int level = getOriginalLevel(tileRequest.getDownsample());
+		if (level < 0)
+			throw new IOException("No resolution level found for downsample " + tileRequest.getDownsample());
+
+		int chunkWidth = originalMetadata.getPreferredTileWidth();
+		int chunkHeight = originalMetadata.getPreferredTileHeight();
+		int x = tileRequest.getTileX();
+		int y = tileRequest.getTileY();
+		int width = tileRequest.getTileWidth();
+		int height = tileRequest.getTileHeight();
+		var levelInfo = originalMetadata.getLevel(level);
+
+		// Usually, the tile will correspond exactly to a single chunk
+		WritableRaster raster = null;
+		if (x % chunkWidth == 0 && y % chunkHeight == 0 &&
+				width == Math.min(chunkWidth, levelInfo.getWidth() - x) &&
+				height == Math.min(chunkHeight, levelInfo.getHeight() - y)) {
+			raster = readChunk(level, x / chunkWidth, y / chunkHeight, tileRequest.getZ(), tileRequest.getT(), width, height);
+		} else {
+			// If not (e.g. because the tile size has been changed in the metadata), combine the overlapping chunks
+			logger.trace("Combining chunks for {}", tileRequest);
+			for (int cy = y / chunkHeight; cy * chunkHeight < Math.min(y + height, levelInfo.getHeight()); cy++) {
+				for (int cx = x / chunkWidth; cx * chunkWidth < Math.min(x + width, levelInfo.getWidth()); cx++) {
+					int w = Math.min(chunkWidth, levelInfo.getWidth() - cx * chunkWidth);
+					int h = Math.min(chunkHeight, levelInfo.getHeight() - cy * chunkHeight);
+					var chunk = readChunk(level, cx, cy, tileRequest.getZ(), tileRequest.getT(), w, h);
+					if (chunk == null)
+						continue;
+					if (raster == null)
+						raster = chunk.createCompatibleWritableRaster(width, height);
+					raster.setRect(cx * chunkWidth - x, cy * chunkHeight - y, chunk);
+				}
+			}
+		}
+		if (raster == null)
+			return getEmptyTile(width, height);
+
+		if (isRGB())
+			return createRGB(raster);
+		return new BufferedImage(getDefaultColorModel(), raster, false, null);
+	}
+
+	private int getOriginalLevel(double downsample) {
+		for (int i = 0; i < originalMetadata.nLevels(); i++) {
+			double levelDownsample = originalMetadata.getDownsampleForLevel(i);
+			if (Math.abs(levelDownsample - downsample) <= Math.max(1e-6, levelDownsample * 1e-3))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a single chunk.
+	 * @return the raster, or null if the chunk was not written
+	 */
+	private WritableRaster readChunk(int level, int tileIndexX, int tileIndexY, int z, int t, int width, int height) throws IOException {
+		var path = getChunkPath(directory, level, z, t, tileIndexX, tileIndexY);
+		int nChannels = originalMetadata.getSizeC();
+		long nBytes = (long)width * height * nChannels * originalMetadata.getPixelType().getBytesPerPixel();
+		ByteBuffer buffer;
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (compression == Compression.NONE) {
+				if (size != nBytes)
+					throw new IOException("Chunk " + path + " has size " + size + ", but " + nBytes + " bytes expected");
+				buffer = borrowBuffer((int)nBytes);
+				readFully(channel, buffer, path);
+			} else {
+				var compressed = borrowBuffer((int)size);
+				try {
+					readFully(channel, compressed, path);
+					buffer = borrowBuffer((int)nBytes);
+					inflate(compressed, buffer);
+				} finally {
+					returnBuffer(compressed);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return decode(buffer, width, height, nChannels);
+		} finally {
+			returnBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Get a heap buffer from the pool (or a new one, if no suitable buffer is available), 
+	 * with its limit set to the requested capacity.
+	 */
+	private static ByteBuffer borrowBuffer(int capacity) {
+		var buffer = bufferPool.poll();
+		if (buffer == null || buffer.capacity() < capacity)
+			buffer = ByteBuffer.allocate(capacity);
+		buffer.clear().limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool, so that it can be used to read another chunk.
+	 */
+	private static void returnBuffer(ByteBuffer buffer) {
+		if (bufferPool.size() < MAX_POOLED_BUFFERS)
+			bufferPool.offer(buffer);
+	}
+
+	/**
+	 * Fill the remaining space in a buffer using positional reads from the start of a file, then flip the buffer.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, Path path) throws IOException {
+		long position = 0;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of chunk " + path);
+			position += n;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Inflate compressed bytes to fill the remaining space in a buffer, then flip the buffer.
+	 */
+	private static void inflate(ByteBuffer compressed, ByteBuffer buffer) throws IOException {
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			while (buffer.hasRemaining() && !inflater.finished()) {
+				int len = inflater.inflate(buffer);
+				if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Unexpected end of compressed chunk");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		if (buffer.hasRemaining())
+			throw new IOException("Compressed chunk is too short");
+		buffer.flip();
+	}
+
+	/**
+	 * Copy the samples for each channel directly into the banks of a new raster.
+	 */
+	private WritableRaster decode(ByteBuffer buffer, int width, int height, int nChannels) throws IOException {
+		WritableRaster raster;
+		if (isRGB())
+			raster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, width, height, nChannels, null);
+		else
+			raster = getDefaultColorModel().createCompatibleWritableRaster(width, height);
+		var dataBuffer = raster.getDataBuffer();
+		if (dataBuffer.getNumBanks() != nChannels)
+			throw new IOException("Unsupported raster for chunked image: " + raster);
+		int n = width * height;
+		for (int b = 0; b < nChannels; b++) {
+			switch (dataBuffer.getDataType()) {
+			case DataBuffer.TYPE_BYTE:
+				buffer.get(((DataBufferByte)dataBuffer).getData(b));
+				break;
+			case DataBuffer.TYPE_USHORT:
+				buffer.asShortBuffer().get(((DataBufferUShort)dataBuffer).getData(b));
+				buffer.position(buffer.position() + n * 2);
+				break;
+			case DataBuffer.TYPE_SHORT:
+				buffer.asShortBuffer().get(((DataBufferShort)dataBuffer).getData(b));
+				buffer.position(buffer.position() + n * 2);
+				break;
+			case DataBuffer.TYPE_INT:
+				buffer.asIntBuffer().get(((DataBufferInt)dataBuffer).getData(b));
+				buffer.position(buffer.position() + n * 4);
+				break;
+			case DataBuffer.TYPE_FLOAT:
+				buffer.asFloatBuffer().get(((DataBufferFloat)dataBuffer).getData(b));
+				buffer.position(buffer.position() + n * 4);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				buffer.asDoubleBuffer().get(((DataBufferDouble)dataBuffer).getData(b));
+				buffer.position(buffer.position() + n * 8);
+				break;
+			default:
+				throw new IOException("Unsupported data type " + dataBuffer.getDataType());
+			}
+		}
+		return raster;
+	}
+
+	/**
+	 * Pack the red, green and blue bands of a raster into a new RGB image.
+	 */
+	private static BufferedImage createRGB(WritableRaster raster) {
+		var dataBuffer = (DataBufferByte)raster.getDataBuffer();
+		byte[] red = dataBuffer.getData(0);
+		byte[] green = dataBuffer.getData(1);
+		byte[] blue = dataBuffer.getData(2);
+		var img = new BufferedImage(raster.getWidth(), raster.getHeight(), BufferedImage.TYPE_INT_RGB);
+		int[] rgb = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = ((red[i] & 0xFF) << 16) | ((green[i] & 0xFF) << 8) | (blue[i] & 0xFF);
+		return img;
+	}
+
+
+	/**
+	 * Contents of the format file.
+	 */
+	static class ChunkedImageFormat {
+
+		private int version = VERSION;
+		private Compression compression;
+		private ImageServerMetadata metadata;
+
+		ChunkedImageFormat(Compression compression, ImageServerMetadata metadata) {
+			this.compression = compression;
+			this.metadata = metadata;
+		}
+
+	}
+
+}
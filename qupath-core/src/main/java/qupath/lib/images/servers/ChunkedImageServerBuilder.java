@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.nio.file.Paths;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ImageServerBuilder to read images written by {@link ChunkedImageWriter}.
+ * 
+ * @author Pete Bankhead
+ * @since v0.4.3
+ */
+public class ChunkedImageServerBuilder implements ImageServerBuilder<BufferedImage> {
+	
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedImageServerBuilder.class);
+
+	@Override
+	public UriImageSupport<BufferedImage> checkImageSupport(URI uri, String...args) {
+		float supportLevel = supportLevel(uri);
+		return UriImageSupport.createInstance(this.getClass(), supportLevel, DefaultImageServerBuilder.createInstance(this.getClass(), uri, args));
+	}
+	
+	private static float supportLevel(URI uri) {
+		if (!"file".equals(uri.getScheme()))
+			return 0;
+		try {
+			// The format file is specific to this kind of image, so we should be the best choice
+			return ChunkedImageServer.getImageDirectory(Paths.get(uri)) == null ? 0 : 5;
+		} catch (Exception e) {
+			logger.trace("Unable to check for chunked image", e);
+			return 0;
+		}
+	}
+
+	@Override
+	public ImageServer<BufferedImage> buildServer(URI uri, String...args) throws Exception {
+		return new ChunkedImageServer(uri, args);
+	}
+
+	@Override
+	public String getName() {
+		return "Chunked image builder";
+	}
+
+	@Override
+	public String getDescription() {
+		return "Reads uncompressed or lightly-compressed chunked images written by QuPath";
+	}
+	
+	@Override
+	public Class<BufferedImage> getImageType() {
+		return BufferedImage.class;
+	}
+	
+	@Override
+	public boolean matchClassName(String... classNames) {
+		for (var className : classNames) {
+			if (this.getClass().getName().equals(className) ||
+					this.getClass().getSimpleName().equals(className) ||
+					ChunkedImageServer.class.getName().equals(className) ||
+					ChunkedImageServer.class.getSimpleName().equals(className) ||
+					"chunked".equalsIgnoreCase(className))
+				return true;			
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,390 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.awt.common.BufferedImageTools;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.servers.ChunkedImageServer.ChunkedImageFormat;
+import qupath.lib.io.GsonTools;
+
+/**
+ * Write an image as a directory of uncompressed (or lightly compressed) chunks, which can be read
+ * very quickly by a {@link ChunkedImageServer}.
+ * <p>
+ * This is intended for caching intermediate images that are expensive to compute but need to be read many times,
+ * such as the output of a pixel classifier, density maps or stacks of features.
+ * Compared to OME-TIFF, no encoding or decoding is required and float32 multichannel pyramids are supported directly.
+ * <p>
+ * Example:
+ * <pre>
+ * new ChunkedImageWriter.Builder(server)
+ *     .tileSize(512)
+ *     .downsamples(1, 4, 16)
+ *     .build()
+ *     .writeImage(path);
+ * </pre>
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ */
+public class ChunkedImageWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedImageWriter.class);
+
+	/**
+	 * Compression used for each chunk.
+	 */
+	public static enum Compression {
+		/**
+		 * No compression; chunks can be read without any decoding.
+		 */
+		NONE,
+		/**
+		 * Fast deflate compression; this can greatly reduce the size of sparse or label images.
+		 */
+		DEFLATE
+	}
+
+	private final ImageServer<BufferedImage> server;
+	private final int tileWidth, tileHeight;
+	private final double[] downsamples;
+	private final Compression compression;
+	private final int nThreads;
+
+	private ChunkedImageWriter(Builder builder) {
+		this.server = builder.server;
+		this.tileWidth = builder.tileWidth;
+		this.tileHeight = builder.tileHeight;
+		this.downsamples = builder.downsamples == null ? server.getPreferredDownsamples() : builder.downsamples.clone();
+		this.compression = builder.compression;
+		this.nThreads = builder.nThreads;
+	}
+
+	/**
+	 * Write a chunked image using the default settings.
+	 * @param server the server to write
+	 * @param path path to the output directory; by convention this should end with {@code .qpchunks}
+	 * @throws IOException
+	 */
+	public static void writeImage(ImageServer<BufferedImage> server, String path) throws IOException {
+		new Builder(server).build().writeImage(path);
+	}
+
+	/**
+	 * Write the image to the specified directory.
+	 * @param path
+	 * @throws IOException
+	 * @see #writeImage(Path)
+	 */
+	public void writeImage(String path) throws IOException {
+		writeImage(Paths.get(path));
+	}
+
+	/**
+	 * Write the image to the specified directory.
+	 * <p>
+	 * If the directory already contains a chunked image, it will be replaced.
+	 * Otherwise the directory must be empty or not exist.
+	 * @param directory
+	 * @throws IOException
+	 */
+	public void writeImage(Path directory) throws IOException {
+		if (!ChunkedImageServer.isSupported(server.getPixelType()))
+			throw new IllegalArgumentException("Unsupported pixel type " + server.getPixelType());
+
+		prepareDirectory(directory);
+
+		// Use a pyramid with the requested tile size, so that each chunk corresponds to one tile
+		var pyramid = ImageServers.pyramidalizeTiled(server, tileWidth, tileHeight, downsamples);
+		var metadata = pyramid.getMetadata();
+		var tiles = new ArrayList<>(pyramid.getTileRequestManager().getAllTileRequests());
+		// Write higher resolutions first, since these may be needed to generate lower resolutions
+		tiles.sort(Comparator.comparingInt(TileRequest::getLevel));
+
+		long startTime = System.currentTimeMillis();
+		var bytesWritten = new AtomicLong();
+		var pool = Executors.newFixedThreadPool(Math.max(1, nThreads), ThreadTools.createThreadFactory("chunked-writer-", true));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (var tile : tiles) {
+				futures.add(pool.submit(() -> {
+					bytesWritten.addAndGet(writeTile(pyramid, tile, directory));
+					return null;
+				}));
+			}
+			for (var future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing " + directory);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// Write the format file last, so that incomplete images can't be read
+		var format = new ChunkedImageFormat(compression, new ImageServerMetadata.Builder(metadata).build());
+		Files.writeString(directory.resolve(ChunkedImageServer.FORMAT_FILE), GsonTools.getInstance(true).toJson(format), StandardCharsets.UTF_8);
+
+		long duration = System.currentTimeMillis() - startTime;
+		logger.info("Written {} tiles ({} MB) to {} in {} s", tiles.size(),
+				GeneralTools.formatNumber(bytesWritten.get() / (1024.0 * 1024.0), 1), directory,
+				GeneralTools.formatNumber(duration / 1000.0, 1));
+	}
+
+	/**
+	 * Ensure the output directory exists, and does not contain anything other than a previous chunked image.
+	 */
+	private static void prepareDirectory(Path directory) throws IOException {
+		if (Files.isDirectory(directory)) {
+			if (Files.isRegularFile(directory.resolve(ChunkedImageServer.FORMAT_FILE))) {
+				logger.debug("Replacing existing chunked image {}", directory);
+				try (var stream = Files.walk(directory)) {
+					for (var path : (Iterable<Path>)stream.sorted(Comparator.reverseOrder())::iterator) {
+						if (!path.equals(directory))
+							Files.delete(path);
+					}
+				}
+			} else {
+				try (var stream = Files.list(directory)) {
+					if (stream.findAny().isPresent())
+						throw new IOException("Cannot write chunked image - " + directory + " is not empty");
+				}
+			}
+		}
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Write a single tile.
+	 * @return the number of bytes written
+	 */
+	private long writeTile(ImageServer<BufferedImage> pyramid, TileRequest tile, Path directory) throws IOException {
+		var request = tile.getRegionRequest();
+		if (pyramid.isEmptyRegion(request))
+			return 0L;
+		var img = pyramid.readRegion(request);
+		if (img == null)
+			return 0L;
+		if (img.getWidth() != tile.getTileWidth() || img.getHeight() != tile.getTileHeight())
+			img = BufferedImageTools.resize(img, tile.getTileWidth(), tile.getTileHeight(), false);
+
+		var buffer = encode(img.getRaster(), pyramid.nChannels(), pyramid.getPixelType());
+		if (compression == Compression.DEFLATE)
+			buffer = deflate(buffer);
+
+		var path = ChunkedImageServer.getChunkPath(directory, tile.getLevel(), tile.getZ(), tile.getT(),
+				tile.getTileX() / tileWidth, tile.getTileY() / tileHeight);
+		Files.createDirectories(path.getParent());
+		long nBytes = buffer.remaining();
+		try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		return nBytes;
+	}
+
+	/**
+	 * Write the samples of each channel in turn, in little-endian order.
+	 */
+	static ByteBuffer encode(Raster raster, int nChannels, PixelType pixelType) {
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int n = width * height;
+		var buffer = ByteBuffer.allocate(n * nChannels * pixelType.getBytesPerPixel()).order(ByteOrder.LITTLE_ENDIAN);
+		int[] intSamples = null;
+		float[] floatSamples = null;
+		double[] doubleSamples = null;
+		for (int b = 0; b < nChannels; b++) {
+			switch (pixelType) {
+			case UINT8:
+				intSamples = raster.getSamples(0, 0, width, height, b, intSamples);
+				for (int v : intSamples)
+					buffer.put((byte)v);
+				break;
+			case UINT16:
+			case INT16:
+				intSamples = raster.getSamples(0, 0, width, height, b, intSamples);
+				var shorts = buffer.asShortBuffer();
+				for (int v : intSamples)
+					shorts.put((short)v);
+				buffer.position(buffer.position() + n * 2);
+				break;
+			case INT32:
+				intSamples = raster.getSamples(0, 0, width, height, b, intSamples);
+				buffer.asIntBuffer().put(intSamples);
+				buffer.position(buffer.position() + n * 4);
+				break;
+			case FLOAT32:
+				floatSamples = raster.getSamples(0, 0, width, height, b, floatSamples);
+				buffer.asFloatBuffer().put(floatSamples);
+				buffer.position(buffer.position() + n * 4);
+				break;
+			case FLOAT64:
+				doubleSamples = raster.getSamples(0, 0, width, height, b, doubleSamples);
+				buffer.asDoubleBuffer().put(doubleSamples);
+				buffer.position(buffer.position() + n * 8);
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported pixel type " + pixelType);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static ByteBuffer deflate(ByteBuffer buffer) {
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(buffer);
+			deflater.finish();
+			var output = ByteBuffer.allocate(Math.max(64, buffer.remaining() / 4));
+			while (!deflater.finished()) {
+				if (!output.hasRemaining()) {
+					var temp = ByteBuffer.allocate(output.capacity() * 2);
+					output.flip();
+					temp.put(output);
+					output = temp;
+				}
+				deflater.deflate(output);
+			}
+			output.flip();
+			return output;
+		} finally {
+			deflater.end();
+		}
+	}
+
+
+	/**
+	 * Builder to create a {@link ChunkedImageWriter}.
+	 */
+	public static class Builder {
+
+		private final ImageServer<BufferedImage> server;
+		private int tileWidth = 512, tileHeight = 512;
+		private double[] downsamples;
+		private Compression compression = Compression.NONE;
+		private int nThreads = ThreadTools.getParallelism();
+
+		/**
+		 * Create a builder to write the specified server.
+		 * @param server
+		 */
+		public Builder(ImageServer<BufferedImage> server) {
+			this.server = server;
+		}
+
+		/**
+		 * Define the tile (chunk) width and height.
+		 * @param tileSize
+		 * @return this builder
+		 */
+		public Builder tileSize(int tileSize) {
+			return tileSize(tileSize, tileSize);
+		}
+
+		/**
+		 * Define the tile (chunk) width and height.
+		 * @param tileWidth
+		 * @param tileHeight
+		 * @return this builder
+		 */
+		public Builder tileSize(int tileWidth, int tileHeight) {
+			if (tileWidth <= 0 || tileHeight <= 0)
+				throw new IllegalArgumentException("Tile width and height must be > 0");
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			return this;
+		}
+
+		/**
+		 * Specify the downsample factors for each resolution level.
+		 * If not specified, the downsamples of the server will be used.
+		 * @param downsamples
+		 * @return this builder
+		 */
+		public Builder downsamples(double... downsamples) {
+			this.downsamples = downsamples.clone();
+			return this;
+		}
+
+		/**
+		 * Specify the compression for each chunk. The default is {@link Compression#NONE}.
+		 * @param compression
+		 * @return this builder
+		 */
+		public Builder compression(Compression compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * Specify the number of threads used to request &amp; write tiles.
+		 * The default is {@link ThreadTools#getParallelism()}.
+		 * @param nThreads
+		 * @return this builder
+		 */
+		public Builder parallelize(int nThreads) {
+			this.nThreads = nThreads;
+			return this;
+		}
+
+		/**
+		 * Create the writer.
+		 * @return
+		 */
+		public ChunkedImageWriter build() {
+			return new ChunkedImageWriter(this);
+		}
+
+	}
+
+}
@@ -145,6 +145,15 @@ class ColorDeconvolutionImageServer extends TransformingImageServer<BufferedImag
 		return stains;
 	}
 	
+	/**
+	 * Get the stain numbers requested when creating the server.
+	 * Note that this may include invalid stain numbers, which are ignored.
+	 * @return
+	 */
+	int[] getStainNumbers() {
+		return stainNumbers.clone();
+	}
+	
 	/**
 	 * Get the StainVectors actually used (possibly a subset of the StainVectors included in {@link #getStains()}).
 	 * @return
@@ -172,13 +181,11 @@ class ColorDeconvolutionImageServer extends TransformingImageServer<BufferedImag
 		SampleModel model = new BandedSampleModel(DataBuffer.TYPE_FLOAT, w, h, nChannels);
 		float[][] bytes = new float[nChannels][w*h];
 		DataBufferFloat buffer = new DataBufferFloat(bytes, w*h);
-		WritableRaster raster = Raster.createWritableRaster(model, buffer, null);
 		
+		// Write the stains directly into the banks of the output raster
 		int[] rgb = img.getRGB(0, 0, w, h, null, 0, img.getWidth());
-		float[] pixels = new float[w * h];
 		for (int b = 0; b < methods.size(); b++) {
-			ColorTransformer.getTransformedPixels(rgb, methods.get(b), pixels, stains);			
-			raster.setSamples(0, 0, img.getWidth(), img.getHeight(), b, pixels);
+			ColorTransformer.getTransformedPixels(rgb, methods.get(b), bytes[b], stains);
 		}
 		return new BufferedImage(getColorModel(), Raster.createWritableRaster(model, buffer, null), false, null);
 		
@@ -0,0 +1,460 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Metrics summarizing how tiles have been requested and read for a single {@link ImageServer}.
+ * <p>
+ * Metrics are not recorded by default, but can be turned on with {@link #setEnabled(boolean)}.
+ * They are then recorded for all servers that extend {@link AbstractTileableImageServer}, which includes
+ * servers that read pixels from files (e.g. using Bio-Formats or OpenSlide), and those that calculate
+ * pixels on demand (e.g. pixel classifiers and servers that apply an ImageOp).
+ * Servers that transform another server (e.g. {@link TransformingImageServer}) request their pixels
+ * from the server they wrap, and so the time spent reading pixels is recorded there.
+ * <p>
+ * Independently of this, each tile that is read is recorded as a Java Flight Recorder event with the name 
+ * {@code qupath.TileRead} whenever this event is enabled in a JFR recording, so that tile reading can be profiled using JFR.
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ */
+public class ImageServerMetrics {
+
+	private static volatile boolean enabled = false;
+
+	private static final EventType tileReadEventType = EventType.getEventType(TileReadEvent.class);
+
+	private static final Map<ImageServer<?>, ImageServerMetrics> metricsMap = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Number of buckets in the latency histogram; bucket i contains reads taking between 2^(i-1) and 2^i microseconds.
+	 */
+	private static final int N_BUCKETS = 32;
+
+	private final WeakReference<ImageServer<?>> serverRef;
+	private String serverType;
+	private String path;
+
+	private final LongAdder tileRequests = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder persistentCacheHits = new LongAdder();
+	private final LongAdder tileReads = new LongAdder();
+	private final LongAdder tileReadNanos = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder regionRequests = new LongAdder();
+	private final LongAdder regionNanos = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAccumulator maxInFlight = new LongAccumulator(Math::max, 0L);
+	private final AtomicLongArray histogram = new AtomicLongArray(N_BUCKETS);
+
+	private ImageServerMetrics(ImageServer<?> server) {
+		// Don't request the path yet, since the server might not be fully initialized
+		this.serverRef = new WeakReference<>(server);
+	}
+
+	/**
+	 * Request whether metrics should be recorded.
+	 * The default is false, so that tile requests have no additional overhead unless metrics are needed.
+	 * @param enabled
+	 */
+	public static void setEnabled(boolean enabled) {
+		ImageServerMetrics.enabled = enabled;
+	}
+
+	/**
+	 * Query whether metrics are being recorded.
+	 * @return
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Get the metrics for a specific server.
+	 * @param server
+	 * @return the metrics, or null if no metrics have been recorded for the server
+	 */
+	public static ImageServerMetrics getMetrics(ImageServer<?> server) {
+		return metricsMap.get(server);
+	}
+
+	/**
+	 * Get the metrics for all servers that are still in use.
+	 * @return
+	 */
+	public static List<ImageServerMetrics> getAllMetrics() {
+		synchronized (metricsMap) {
+			return new ArrayList<>(metricsMap.values());
+		}
+	}
+
+	/**
+	 * Reset the metrics for all servers.
+	 */
+	public static void resetAll() {
+		for (var metrics : getAllMetrics())
+			metrics.reset();
+	}
+
+	/**
+	 * Get the metrics for a server, creating them if necessary.
+	 * @param server
+	 * @return the metrics, or null if metrics are not enabled
+	 */
+	static ImageServerMetrics getOrCreate(ImageServer<?> server) {
+		if (!enabled)
+			return null;
+		return metricsMap.computeIfAbsent(server, ImageServerMetrics::new);
+	}
+
+	/**
+	 * Reset all the metrics for this server.
+	 */
+	public void reset() {
+		tileRequests.reset();
+		cacheHits.reset();
+		persistentCacheHits.reset();
+		tileReads.reset();
+		tileReadNanos.reset();
+		bytesRead.reset();
+		regionRequests.reset();
+		regionNanos.reset();
+		maxInFlight.reset();
+		for (int i = 0; i < N_BUCKETS; i++)
+			histogram.set(i, 0L);
+	}
+
+	void recordTileRequest(boolean cacheHit) {
+		tileRequests.increment();
+		if (cacheHit)
+			cacheHits.increment();
+	}
+
+	void recordPersistentCacheHit() {
+		persistentCacheHits.increment();
+	}
+
+	/**
+	 * Record that a tile read is starting.
+	 * @return the start time, to pass to {@link #endTileRead(long, BufferedImage)}
+	 */
+	long startTileRead() {
+		maxInFlight.accumulate(inFlight.incrementAndGet());
+		return System.nanoTime();
+	}
+
+	void endTileRead(long startTime, BufferedImage img) {
+		long nanos = System.nanoTime() - startTime;
+		inFlight.decrementAndGet();
+		tileReads.increment();
+		tileReadNanos.add(nanos);
+		bytesRead.add(estimateBytes(img));
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		int bucket = Math.min(N_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		histogram.incrementAndGet(bucket);
+	}
+
+	/**
+	 * Begin a Java Flight Recorder event for a tile read.
+	 * @return the event, or null if the event is not enabled in any recording
+	 */
+	static TileReadEvent beginTileReadEvent() {
+		if (!tileReadEventType.isEnabled())
+			return null;
+		var event = new TileReadEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * End a Java Flight Recorder event for a tile read, and commit it if required.
+	 * @param event the event returned by {@link #beginTileReadEvent()}
+	 * @param server the server that read the tile
+	 * @param tile the tile that was read
+	 * @param img the tile image (may be null if the read failed)
+	 */
+	static void endTileReadEvent(TileReadEvent event, ImageServer<?> server, TileRequest tile, BufferedImage img) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.serverType = server.getServerType();
+			event.path = server.getPath();
+			event.level = tile.getLevel();
+			event.x = tile.getImageX();
+			event.y = tile.getImageY();
+			event.width = tile.getImageWidth();
+			event.height = tile.getImageHeight();
+			event.z = tile.getZ();
+			event.t = tile.getT();
+			event.bytes = estimateBytes(img);
+			event.commit();
+		}
+	}
+
+	void recordRegionRequest(long nanos) {
+		regionRequests.increment();
+		regionNanos.add(nanos);
+	}
+
+	private static long estimateBytes(BufferedImage img) {
+		if (img == null)
+			return 0L;
+		var raster = img.getRaster();
+		var buffer = raster.getDataBuffer();
+		return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	/**
+	 * Get the server type, as returned by {@link ImageServer#getServerType()}.
+	 * @return
+	 */
+	public String getServerType() {
+		if (serverType == null) {
+			var server = serverRef.get();
+			serverType = server == null ? null : server.getServerType();
+		}
+		return serverType;
+	}
+
+	/**
+	 * Get the server path, as returned by {@link ImageServer#getPath()}.
+	 * @return
+	 */
+	public String getPath() {
+		if (path == null) {
+			var server = serverRef.get();
+			path = server == null ? null : server.getPath();
+		}
+		return path;
+	}
+
+	/**
+	 * Get the number of tiles requested, including those returned from the cache.
+	 * @return
+	 */
+	public long getTileRequestCount() {
+		return tileRequests.sum();
+	}
+
+	/**
+	 * Get the number of tile requests that were found in the in-memory tile cache.
+	 * @return
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Get the proportion of tile requests that were found in the in-memory tile cache.
+	 * @return the ratio, or NaN if no tiles have been requested
+	 */
+	public double getCacheHitRatio() {
+		long n = getTileRequestCount();
+		return n == 0 ? Double.NaN : getCacheHitCount() / (double)n;
+	}
+
+	/**
+	 * Get the number of tiles read from the persistent tile cache, rather than by the server.
+	 * @return
+	 * @see ImageServerProvider#setPersistentTileCache(PersistentTileCache)
+	 */
+	public long getPersistentCacheHitCount() {
+		return persistentCacheHits.sum();
+	}
+
+	/**
+	 * Get the number of tiles read (i.e. not found in the in-memory cache).
+	 * @return
+	 */
+	public long getTileReadCount() {
+		return tileReads.sum();
+	}
+
+	/**
+	 * Get the total time spent reading tiles, summed across all threads.
+	 * @return
+	 */
+	public long getTileReadMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(tileReadNanos.sum());
+	}
+
+	/**
+	 * Get the mean time required to read a tile, in milliseconds.
+	 * @return the mean time, or NaN if no tiles have been read
+	 */
+	public double getMeanTileReadMillis() {
+		long n = getTileReadCount();
+		return n == 0 ? Double.NaN : tileReadNanos.sum() / 1e6 / n;
+	}
+
+	/**
+	 * Get an approximate percentile for the time required to read a tile, in milliseconds.
+	 * This is based upon a histogram with bins that double in width, so is only accurate to within a factor of 2.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the upper bound of the histogram bin containing the percentile, or NaN if no tiles have been read
+	 */
+	public double getTileReadPercentileMillis(double percentile) {
+		long[] counts = getTileReadHistogram();
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return Double.NaN;
+		long target = (long)Math.ceil(total * Math.max(0, Math.min(percentile, 100)) / 100.0);
+		long sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			sum += counts[i];
+			if (sum >= target && sum > 0)
+				return (1L << i) / 1000.0;
+		}
+		return (1L << (counts.length - 1)) / 1000.0;
+	}
+
+	/**
+	 * Get a histogram of tile read times, where bin i contains the number of reads that took
+	 * less than 2^i microseconds (and at least 2^(i-1) microseconds).
+	 * @return
+	 */
+	public long[] getTileReadHistogram() {
+		long[] counts = new long[N_BUCKETS];
+		for (int i = 0; i < N_BUCKETS; i++)
+			counts[i] = histogram.get(i);
+		return counts;
+	}
+
+	/**
+	 * Get the total number of bytes for all tiles that have been read (i.e. decoded or calculated).
+	 * @return
+	 */
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	/**
+	 * Get the number of tiles currently being read.
+	 * @return
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Get the maximum number of tiles that have been read concurrently.
+	 * @return
+	 */
+	public long getMaxInFlightCount() {
+		return maxInFlight.get();
+	}
+
+	/**
+	 * Get the number of calls to {@link ImageServer#readRegion(qupath.lib.regions.RegionRequest)}.
+	 * @return
+	 */
+	public long getRegionRequestCount() {
+		return regionRequests.sum();
+	}
+
+	/**
+	 * Get the total time spent within {@link ImageServer#readRegion(qupath.lib.regions.RegionRequest)}, summed across all threads.
+	 * @return
+	 */
+	public long getRegionRequestMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(regionNanos.sum());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s (%s): %d tile requests (%.1f%% cached), %d tiles read (mean %.2f ms, p95 %.2f ms, %.1f MB), %d regions (%d ms), %d in flight (max %d)",
+				getServerType(), getPath(),
+				getTileRequestCount(), getCacheHitRatio() * 100,
+				getTileReadCount(), getMeanTileReadMillis(), getTileReadPercentileMillis(95), getBytesRead() / (1024.0 * 1024.0),
+				getRegionRequestCount(), getRegionRequestMillis(),
+				getInFlightCount(), getMaxInFlightCount());
+	}
+
+
+	/**
+	 * Java Flight Recorder event for a single tile read.
+	 */
+	@Name("qupath.TileRead")
+	@Label("Tile Read")
+	@Description("A tile read by an ImageServer (i.e. not found in the tile cache)")
+	@Category({"QuPath", "Image servers"})
+	@StackTrace(false)
+	static class TileReadEvent extends Event {
+
+		@Label("Server type")
+		String serverType;
+
+		@Label("Path")
+		String path;
+
+		@Label("Level")
+		int level;
+
+		@Label("X")
+		int x;
+
+		@Label("Y")
+		int y;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Z")
+		int z;
+
+		@Label("T")
+		int t;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+	}
+
+}
@@ -39,6 +39,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.atomic.LongAdder;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,6 +62,15 @@ public class ImageServerProvider {
 	
 	private static Map<Class<?>, Map<RegionRequest, ?>> cacheMap = new HashMap<>();
 	
+	private static PersistentTileCache persistentTileCache;
+	
+	private static boolean writePyramidSidecars = false;
+	
+	private static int tileReadahead = 0;
+	
+	private static LongAdder tileReadaheadCount = new LongAdder();
+	private static LongAdder tileReadaheadHitCount = new LongAdder();
+	
 	@SuppressWarnings("rawtypes")
 	private static ServiceLoader<ImageServerBuilder> serviceLoader = ServiceLoader.load(ImageServerBuilder.class);
 	
@@ -84,6 +95,103 @@ public class ImageServerProvider {
 		return (Map<RegionRequest, T>)cacheMap.get(cls);
 	}
 	
+	/**
+	 * Set a persistent cache, used to store tiles on disk so they can be reused across sessions.
+	 * This is used as a second-level cache by servers that support it, when tiles are not found in the 
+	 * cache set with {@link #setCache(Map, Class)}.
+	 * @param cache the cache to use, or null if no persistent cache should be used
+	 * @since v0.4.3
+	 * @see AbstractTileableImageServer#supportsPersistentTileCache()
+	 */
+	public static void setPersistentTileCache(PersistentTileCache cache) {
+		persistentTileCache = cache;
+	}
+	
+	/**
+	 * Get the persistent cache used to store tiles on disk, if available.
+	 * @return the persistent cache, or null if no persistent cache is in use
+	 * @since v0.4.3
+	 */
+	public static PersistentTileCache getPersistentTileCache() {
+		return persistentTileCache;
+	}
+	
+	/**
+	 * Request that sidecar files are written for images that generate their own pyramid when they are opened 
+	 * from a project, so that the generated resolution levels can be reused by later sessions.
+	 * Existing sidecar files are used whether or not this is set.
+	 * @param doWrite true if sidecar files should be written, false otherwise
+	 * @since v0.4.3
+	 * @see ImageServers#usePyramidSidecar(ImageServer, java.nio.file.Path, boolean)
+	 */
+	public static void setWritePyramidSidecars(boolean doWrite) {
+		writePyramidSidecars = doWrite;
+	}
+	
+	/**
+	 * Query whether sidecar files should be written for images that generate their own pyramid.
+	 * @return
+	 * @since v0.4.3
+	 * @see #setWritePyramidSidecars(boolean)
+	 */
+	public static boolean getWritePyramidSidecars() {
+		return writePyramidSidecars;
+	}
+	
+	/**
+	 * Set the number of tiles to read ahead when tiles are requested row-by-row, as often happens 
+	 * when exporting tiles or running plugins.
+	 * <p>
+	 * When a server that supports tiling receives requests for neighboring tiles along the same row, 
+	 * it will start reading up to this number of subsequent tiles in the background, so that they are 
+	 * more likely to be available when requested.
+	 * @param nTiles the number of tiles to read ahead, or 0 to turn off readahead
+	 * @since v0.4.3
+	 */
+	public static void setTileReadahead(int nTiles) {
+		if (nTiles < 0)
+			throw new IllegalArgumentException("Number of tiles to read ahead must be >= 0, but requested number is " + nTiles);
+		tileReadahead = nTiles;
+	}
+	
+	/**
+	 * Get the number of tiles to read ahead when tiles are requested row-by-row.
+	 * @return the number of tiles, or 0 if readahead is turned off
+	 * @since v0.4.3
+	 * @see #setTileReadahead(int)
+	 */
+	public static int getTileReadahead() {
+		return tileReadahead;
+	}
+	
+	/**
+	 * Get the total number of tiles requested because of readahead.
+	 * @return
+	 * @since v0.4.3
+	 * @see #getTileReadaheadHitCount()
+	 */
+	public static long getTileReadaheadCount() {
+		return tileReadaheadCount.sum();
+	}
+	
+	/**
+	 * Get the number of tiles requested because of readahead that were subsequently requested directly.
+	 * The ratio of this to {@link #getTileReadaheadCount()} gives the readahead hit rate.
+	 * @return
+	 * @since v0.4.3
+	 */
+	public static long getTileReadaheadHitCount() {
+		return tileReadaheadHitCount.sum();
+	}
+	
+	static void recordTileReadahead() {
+		tileReadaheadCount.increment();
+	}
+	
+	static void recordTileReadaheadHit() {
+		tileReadaheadHitCount.increment();
+	}
+	
 	/**
 	 * Replace the default service loader with another.
 	 * <p>
@@ -25,16 +25,23 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -55,6 +62,8 @@ import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Unmatched;
 import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ColorTransforms.ColorTransform;
 import qupath.lib.images.servers.ImageServerBuilder.AbstractServerBuilder;
 import qupath.lib.images.servers.ImageServerBuilder.DefaultImageServerBuilder;
@@ -68,6 +77,7 @@ import qupath.lib.io.GsonTools;
 import qupath.lib.io.GsonTools.SubTypeAdapterFactory;
 import qupath.lib.projects.Project;
 import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * Helper class for working with {@link ImageServer} objects.
@@ -83,6 +93,10 @@ public class ImageServers {
 	
 	private static Set<String> loggedWarnings = new HashSet<>();
 	
+	// Single thread used to write pyramid sidecars in the background
+	private static final ExecutorService pyramidSidecarPool = Executors.newSingleThreadExecutor(
+			ThreadTools.createThreadFactory("pyramid-sidecar-", true, Thread.MIN_PRIORITY));
+	
 	private static SubTypeAdapterFactory<ServerBuilder> serverBuilderFactory = 
 			GsonTools.createSubTypeAdapterFactory(ServerBuilder.class, "builderType")
 			.registerSubtype(DefaultImageServerBuilder.class, "uri")
@@ -252,6 +266,116 @@ public class ImageServers {
 		return new PyramidGeneratingImageServer(server, tileWidth, tileHeight, downsamples);
 	}
 	
+	/**
+	 * Use a sidecar file to store the generated resolution levels of a server created by 
+	 * {@link #pyramidalize(ImageServer, double...)} or {@link #pyramidalizeTiled(ImageServer, int, int, double...)}.
+	 * <p>
+	 * Generating low-resolution tiles can be very slow for large images, because they must be computed from 
+	 * the full-resolution pixels. Writing the generated levels to a file means that this only needs to happen once, 
+	 * and later sessions can read the tiles directly.
+	 * <p>
+	 * An existing sidecar is only used if it was written for the same server, and any local image files are unchanged.
+	 * 
+	 * @param server the server; this has no effect unless it is a server that generates a pyramid
+	 * @param path the path to the sidecar file
+	 * @param create if true, write the sidecar if it does not exist or is out of date; otherwise, only use an existing sidecar.
+	 *               Note that writing requires reading every generated tile, and may take a long time.
+	 * @return true if the server uses the sidecar, false otherwise
+	 * @throws IOException if the sidecar could not be read or written
+	 * @since v0.4.3
+	 */
+	public static boolean usePyramidSidecar(ImageServer<BufferedImage> server, Path path, boolean create) throws IOException {
+		if (!(server instanceof PyramidGeneratingImageServer))
+			return false;
+		var pyramidServer = (PyramidGeneratingImageServer)server;
+		var sidecar = pyramidServer.getPyramidSidecar();
+		if (sidecar != null && sidecar.getPath().equals(path))
+			return true;
+		sidecar = PyramidSidecar.open(pyramidServer, path);
+		if (sidecar == null && create) {
+			PyramidSidecar.write(pyramidServer, path);
+			sidecar = PyramidSidecar.open(pyramidServer, path);
+		}
+		if (sidecar == null)
+			return false;
+		pyramidServer.setPyramidSidecar(sidecar);
+		return true;
+	}
+	
+	/**
+	 * Write a sidecar file for a server in the background, and use it for the server once it is complete.
+	 * <p>
+	 * The tiles are generated using a separate instance of the server, created from its builder and with its own 
+	 * small tile cache. This means that writing doesn't compete with other requests for tiles from the server, 
+	 * or fill the shared tile cache.
+	 * Writing is cancelled if the server is closed before it is complete.
+	 * 
+	 * @param server the server; this has no effect unless it is a server that generates a pyramid
+	 * @param path the path to the sidecar file
+	 * @return a future that returns true if the server uses the sidecar after writing is complete; 
+	 *         this can be cancelled to stop writing
+	 * @since v0.4.3
+	 * @see #usePyramidSidecar(ImageServer, Path, boolean)
+	 */
+	public static Future<Boolean> writePyramidSidecarAsync(ImageServer<BufferedImage> server, Path path) {
+		var builder = server.getBuilder();
+		if (!(server instanceof PyramidGeneratingImageServer) || builder == null)
+			return CompletableFuture.completedFuture(Boolean.FALSE);
+		var pyramidServer = (PyramidGeneratingImageServer)server;
+		var task = new FutureTask<>(() -> writePyramidSidecar(pyramidServer, builder, path));
+		pyramidServer.setPyramidSidecarTask(task);
+		pyramidSidecarPool.execute(task);
+		return task;
+	}
+	
+	private static boolean writePyramidSidecar(PyramidGeneratingImageServer server, ServerBuilder<BufferedImage> builder, Path path) {
+		try {
+			try (var writeServer = builder.build()) {
+				if (!(writeServer instanceof PyramidGeneratingImageServer)) {
+					logger.warn("Unable to write pyramid sidecar {} - server does not generate its own pyramid", path);
+					return false;
+				}
+				var pyramidWriteServer = (PyramidGeneratingImageServer)writeServer;
+				pyramidWriteServer.setTileCache(createSidecarTileCache(writeServer));
+				PyramidSidecar.write(pyramidWriteServer, path);
+			}
+			if (Thread.currentThread().isInterrupted())
+				return false;
+			boolean success = usePyramidSidecar(server, path, false);
+			if (success)
+				logger.info("Using pyramid sidecar {}", path);
+			return success;
+		} catch (Exception e) {
+			if (Thread.currentThread().isInterrupted())
+				logger.debug("Writing pyramid sidecar {} cancelled", path);
+			else {
+				logger.warn("Unable to write pyramid sidecar {}: {}", path, e.getLocalizedMessage());
+				logger.debug(e.getLocalizedMessage(), e);
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Create a small tile cache, used when writing a sidecar.
+	 * This only needs to hold the tiles required to generate the next few tiles.
+	 */
+	private static Map<RegionRequest, BufferedImage> createSidecarTileCache(ImageServer<BufferedImage> server) {
+		long tileBytes = (long)server.getMetadata().getPreferredTileWidth() * server.getMetadata().getPreferredTileHeight() 
+				* server.nChannels() * server.getPixelType().getBytesPerPixel();
+		int maxTiles = (int)GeneralTools.clipValue(Runtime.getRuntime().maxMemory() / 64.0 / Math.max(1L, tileBytes), 16, 256);
+		return Collections.synchronizedMap(new LinkedHashMap<>(maxTiles * 2, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<RegionRequest, BufferedImage> eldest) {
+				return size() > maxTiles;
+			}
+			
+		});
+	}
+	
 	
 	/**
 	 * Build a {@link ImageServer} for the specified URI path and optional args.
@@ -0,0 +1,573 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded cache that stores image tiles as compressed files on disk, so that they can be reused
+ * across QuPath sessions and by different processes (e.g. repeated runs of the same batch script).
+ * <p>
+ * This is intended as a second-level cache for {@link AbstractTileableImageServer}, used when a tile is not
+ * available from the in-memory cache. Each tile is stored in a file named using a hash of its key, which should
+ * identify both the server and the tile. Files are written to a temporary location and then moved into place,
+ * so that other processes never see partially-written tiles.
+ * <p>
+ * When the total size exceeds the limit, the least recently used files are deleted.
+ * The size and access order of each file are tracked in memory, so that eviction does not require the directory
+ * to be scanned. Because several processes may share the directory, the size tracked by each instance is only 
+ * approximate and is only recalculated when the cache is created or cleared.
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ * @see ImageServerProvider#setPersistentTileCache(PersistentTileCache)
+ */
+public class PersistentTileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(PersistentTileCache.class);
+
+	private static final int MAGIC = 0x51505443; // QPTC
+	private static final int VERSION = 1;
+
+	private static final String EXTENSION = ".tile";
+
+	// Fraction of the maximum size to retain after evicting tiles
+	private static final double EVICTION_TARGET = 0.9;
+
+	// Temporary files older than this are assumed to have been left behind by a process that failed
+	private static final long STALE_TEMP_FILE_MILLIS = 60L * 60L * 1000L;
+
+	private final Path directory;
+	private final long maxBytes;
+
+	private final AtomicLong currentBytes = new AtomicLong();
+
+	// Size of each known tile file, in access order (least recently used first); guarded by 'this'
+	private final Map<Path, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Create a cache using the specified directory.
+	 * The directory will be created if necessary, and any tiles already stored there will be used.
+	 *
+	 * @param directory the directory in which to store tiles
+	 * @param maxBytes the approximate maximum number of bytes to store
+	 * @throws IOException if the directory could not be created or read
+	 */
+	public PersistentTileCache(Path directory, long maxBytes) throws IOException {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Maximum cache size must be > 0, but requested size is " + maxBytes);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory);
+		initializeEntries();
+		logger.debug("Persistent tile cache at {} contains {} MB", directory, currentBytes.get() / 1024 / 1024);
+	}
+
+	/**
+	 * Get the directory used to store tiles.
+	 * @return
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get the approximate maximum number of bytes to store.
+	 * @return
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Get the approximate number of bytes currently stored.
+	 * @return
+	 */
+	public long getCurrentBytes() {
+		return currentBytes.get();
+	}
+
+	/**
+	 * Request a tile from the cache.
+	 * <p>
+	 * Images with a custom type are created with the specified color model;
+	 * other images are created with the same type as the image that was stored.
+	 *
+	 * @param serverKey key identifying the server (and the version of its pixels)
+	 * @param tile the tile request
+	 * @param colorModel color model to use for images that have a custom type
+	 * @return the tile, or null if the tile is not in the cache (or could not be read)
+	 */
+	public BufferedImage get(String serverKey, TileRequest tile, ColorModel colorModel) {
+		String key = createKey(serverKey, tile);
+		var path = getPath(key);
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			var buffer = ByteBuffer.allocate((int)size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+				continue;
+			buffer.flip();
+			var img = decode(buffer, key, colorModel);
+			if (img != null) {
+				touch(path);
+				recordAccess(path, size);
+			}
+			return img;
+		} catch (NoSuchFileException e) {
+			// Tile may have been evicted by another process
+			recordRemoval(path);
+			return null;
+		} catch (IOException | DataFormatException | RuntimeException e) {
+			logger.debug("Unable to read cached tile {}: {}", path, e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Add a tile to the cache, if its type is supported.
+	 * Images with a custom type can only be stored if their raster is compatible with the specified color model,
+	 * since this will be used to recreate the image.
+	 *
+	 * @param serverKey key identifying the server (and the version of its pixels)
+	 * @param tile the tile request
+	 * @param img the image to store
+	 * @param colorModel color model that will be used for images that have a custom type
+	 * @return true if the tile was stored, false otherwise
+	 */
+	public boolean put(String serverKey, TileRequest tile, BufferedImage img, ColorModel colorModel) {
+		if (!canStore(img, colorModel))
+			return false;
+		String key = createKey(serverKey, tile);
+		var path = getPath(key);
+		Path temp = null;
+		try {
+			var bytes = encode(img, key);
+			Files.createDirectories(path.getParent());
+			temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+			Files.write(temp, bytes);
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+			recordAccess(path, bytes.length);
+			if (currentBytes.get() > maxBytes)
+				evict();
+			return true;
+		} catch (IOException e) {
+			logger.debug("Unable to write cached tile {}: {}", path, e.getLocalizedMessage());
+			return false;
+		} finally {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e) {
+					logger.debug("Unable to delete {}", temp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete all the tiles in the cache.
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		List<FileEntry> files = new ArrayList<>();
+		scanFiles(files);
+		for (var file : files)
+			Files.deleteIfExists(file.path);
+		initializeEntries();
+	}
+
+	/**
+	 * Check whether an image can be stored in the cache.
+	 * @param img
+	 * @param colorModel
+	 * @return
+	 */
+	static boolean canStore(BufferedImage img, ColorModel colorModel) {
+		switch (img.getType()) {
+		case BufferedImage.TYPE_BYTE_BINARY:
+		case BufferedImage.TYPE_BYTE_INDEXED:
+			// Would also need to store the palette
+			return false;
+		case BufferedImage.TYPE_CUSTOM:
+			return colorModel != null && colorModel.isCompatibleRaster(img.getRaster());
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Scan the directory to initialize the tracked files, ordered by their last modified time.
+	 */
+	private void initializeEntries() throws IOException {
+		List<FileEntry> files = new ArrayList<>();
+		scanFiles(files);
+		files.sort(Comparator.comparingLong(e -> e.lastModified));
+		synchronized (this) {
+			entries.clear();
+			long total = 0L;
+			for (var file : files) {
+				entries.put(file.path, file.size);
+				total += file.size;
+			}
+			currentBytes.set(total);
+		}
+	}
+
+	/**
+	 * Record that a tile file has been written or read, updating its size and making it the most recently used.
+	 */
+	private synchronized void recordAccess(Path path, long size) {
+		Long previous = entries.put(path, size);
+		currentBytes.addAndGet(previous == null ? size : size - previous);
+	}
+
+	/**
+	 * Record that a tile file no longer exists.
+	 */
+	private synchronized void recordRemoval(Path path) {
+		Long previous = entries.remove(path);
+		if (previous != null)
+			currentBytes.addAndGet(-previous);
+	}
+
+	/**
+	 * Remove the least recently used tiles from the tracked files until the cache is within its target size.
+	 * @return the files that should be deleted
+	 */
+	private synchronized List<Path> removeLeastRecentlyUsed() {
+		long target = (long)(maxBytes * EVICTION_TARGET);
+		List<Path> files = new ArrayList<>();
+		var iter = entries.entrySet().iterator();
+		while (currentBytes.get() > target && iter.hasNext()) {
+			var entry = iter.next();
+			files.add(entry.getKey());
+			currentBytes.addAndGet(-entry.getValue());
+			iter.remove();
+		}
+		return files;
+	}
+
+	/**
+	 * Delete the least recently used tiles until the cache is within its size limit.
+	 * Files are deleted without holding the lock, so that other threads can continue to use the cache.
+	 */
+	private void evict() {
+		var files = removeLeastRecentlyUsed();
+		int nDeleted = 0;
+		for (var file : files) {
+			try {
+				if (Files.deleteIfExists(file))
+					nDeleted++;
+			} catch (IOException e) {
+				logger.debug("Unable to delete cached tile {}: {}", file, e.getLocalizedMessage());
+			}
+		}
+		if (nDeleted > 0)
+			logger.debug("Evicted {} tiles from persistent cache", nDeleted);
+	}
+
+	/**
+	 * Find all the tiles in the cache, adding them to a list.
+	 * Stale temporary files are deleted.
+	 */
+	private void scanFiles(List<FileEntry> files) throws IOException {
+		long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+		Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				var name = file.getFileName().toString();
+				if (name.endsWith(EXTENSION)) {
+					files.add(new FileEntry(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+				} else if (name.endsWith(".tmp") && attrs.lastModifiedTime().toMillis() < staleTime) {
+					Files.deleteIfExists(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				// Files may be deleted by another process during the scan
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static void touch(Path path) {
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			logger.trace("Unable to update last modified time for {}", path);
+		}
+	}
+
+	private Path getPath(String key) {
+		String hash = hash(key);
+		return directory.resolve(hash.substring(0, 2)).resolve(hash + EXTENSION);
+	}
+
+	static String createKey(String serverKey, TileRequest tile) {
+		return serverKey + "\n" + tile.getLevel() + ":" + tile.getDownsample() + ":" +
+				tile.getImageX() + "," + tile.getImageY() + "," + tile.getImageWidth() + "," + tile.getImageHeight() + ":" +
+				tile.getZ() + "," + tile.getT();
+	}
+
+	private static String hash(String key) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			var sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required to be supported by all Java implementations
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	static byte[] encode(BufferedImage img, String key) {
+		var raster = img.getRaster();
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		int nBands = raster.getNumBands();
+		int dataType = raster.getDataBuffer().getDataType();
+		int bytesPerSample = getBytesPerSample(raster, dataType);
+
+		// Write samples band-by-band, which tends to compress better than interleaved pixels
+		int n = width * height;
+		var samples = ByteBuffer.allocate(n * nBands * bytesPerSample);
+		int[] intSamples = null;
+		float[] floatSamples = null;
+		double[] doubleSamples = null;
+		for (int b = 0; b < nBands; b++) {
+			switch (dataType) {
+			case DataBuffer.TYPE_FLOAT:
+				floatSamples = raster.getSamples(0, 0, width, height, b, floatSamples);
+				samples.asFloatBuffer().put(floatSamples);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				doubleSamples = raster.getSamples(0, 0, width, height, b, doubleSamples);
+				samples.asDoubleBuffer().put(doubleSamples);
+				break;
+			default:
+				intSamples = raster.getSamples(0, 0, width, height, b, intSamples);
+				if (bytesPerSample == 1) {
+					for (int v : intSamples)
+						samples.put((byte)v);
+				} else if (bytesPerSample == 2) {
+					samples.asShortBuffer().put(toShorts(intSamples));
+				} else
+					samples.asIntBuffer().put(intSamples);
+			}
+			if (bytesPerSample > 1)
+				samples.position(samples.position() + n * bytesPerSample);
+		}
+
+		var deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(samples.array());
+		deflater.finish();
+		var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		var output = ByteBuffer.allocate(4 * 10 + keyBytes.length + samples.capacity() / 2 + 64);
+		output.putInt(MAGIC);
+		output.putInt(VERSION);
+		output.putInt(keyBytes.length);
+		output.put(keyBytes);
+		output.putInt(img.getType());
+		output.putInt(width);
+		output.putInt(height);
+		output.putInt(nBands);
+		output.putInt(dataType);
+		output.putInt(bytesPerSample);
+		output.putInt(samples.capacity());
+		while (!deflater.finished()) {
+			if (!output.hasRemaining())
+				output = grow(output);
+			int len = deflater.deflate(output.array(), output.position(), output.remaining());
+			output.position(output.position() + len);
+		}
+		deflater.end();
+		var bytes = new byte[output.position()];
+		System.arraycopy(output.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	static BufferedImage decode(ByteBuffer buffer, String key, ColorModel colorModel) throws DataFormatException {
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			return null;
+		var keyBytes = new byte[buffer.getInt()];
+		buffer.get(keyBytes);
+		if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+			logger.warn("Cached tile key does not match the request - tile will be ignored");
+			return null;
+		}
+		int type = buffer.getInt();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		int nBands = buffer.getInt();
+		int dataType = buffer.getInt();
+		int bytesPerSample = buffer.getInt();
+		int nBytes = buffer.getInt();
+
+		var samples = ByteBuffer.allocate(nBytes);
+		var inflater = new Inflater();
+		try {
+			inflater.setInput(buffer);
+			while (samples.hasRemaining() && !inflater.finished()) {
+				int len = inflater.inflate(samples);
+				if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("Unexpected end of compressed data");
+			}
+		} finally {
+			inflater.end();
+		}
+		samples.flip();
+
+		BufferedImage img;
+		WritableRaster raster;
+		if (type == BufferedImage.TYPE_CUSTOM) {
+			if (colorModel == null)
+				return null;
+			raster = colorModel.createCompatibleWritableRaster(width, height);
+			img = null;
+		} else {
+			img = new BufferedImage(width, height, type);
+			raster = img.getRaster();
+		}
+		if (raster.getNumBands() != nBands || raster.getDataBuffer().getDataType() != dataType)
+			return null;
+
+		int n = width * height;
+		int[] intSamples = dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE ? null : new int[n];
+		for (int b = 0; b < nBands; b++) {
+			switch (dataType) {
+			case DataBuffer.TYPE_FLOAT:
+				var floatSamples = new float[n];
+				samples.asFloatBuffer().get(floatSamples);
+				raster.setSamples(0, 0, width, height, b, floatSamples);
+				break;
+			case DataBuffer.TYPE_DOUBLE:
+				var doubleSamples = new double[n];
+				samples.asDoubleBuffer().get(doubleSamples);
+				raster.setSamples(0, 0, width, height, b, doubleSamples);
+				break;
+			default:
+				if (bytesPerSample == 1) {
+					for (int i = 0; i < n; i++)
+						intSamples[i] = samples.get() & 0xFF;
+				} else if (bytesPerSample == 2) {
+					var shorts = samples.asShortBuffer();
+					boolean signed = dataType == DataBuffer.TYPE_SHORT;
+					for (int i = 0; i < n; i++)
+						intSamples[i] = signed ? shorts.get(i) : shorts.get(i) & 0xFFFF;
+				} else
+					samples.asIntBuffer().get(intSamples);
+				raster.setSamples(0, 0, width, height, b, intSamples);
+			}
+			if (bytesPerSample > 1)
+				samples.position(samples.position() + n * bytesPerSample);
+		}
+		if (img == null)
+			img = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+		return img;
+	}
+
+	/**
+	 * Get the number of bytes needed to store each sample.
+	 * This can be less than the size of the data type for packed images (e.g. 8-bit RGB stored as ints).
+	 */
+	private static int getBytesPerSample(WritableRaster raster, int dataType) {
+		if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE)
+			return DataBuffer.getDataTypeSize(dataType) / 8;
+		int bits = 0;
+		for (int size : raster.getSampleModel().getSampleSize())
+			bits = Math.max(bits, size);
+		if (bits <= 8)
+			return 1;
+		else if (bits <= 16)
+			return 2;
+		return 4;
+	}
+
+	private static short[] toShorts(int[] values) {
+		var shorts = new short[values.length];
+		for (int i = 0; i < values.length; i++)
+			shorts[i] = (short)values[i];
+		return shorts;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer) {
+		var newBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+		buffer.flip();
+		newBuffer.put(buffer);
+		return newBuffer;
+	}
+
+	private static class FileEntry {
+
+		private final Path path;
+		private final long size;
+		private final long lastModified;
+
+		private FileEntry(Path path, long size, long lastModified) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+	}
+
+}
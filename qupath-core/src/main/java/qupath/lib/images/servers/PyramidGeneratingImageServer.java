@@ -26,6 +26,11 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
@@ -42,9 +47,16 @@ import qupath.lib.regions.RegionRequest;
  */
 class PyramidGeneratingImageServer extends AbstractTileableImageServer implements PathObjectReader {
 	
+	private static final Logger logger = LoggerFactory.getLogger(PyramidGeneratingImageServer.class);
+	
 	private ImageServer<BufferedImage> server;
 	private ImageServerMetadata metadata;
 	
+	// Optional file containing the generated levels, written in a previous session
+	private transient volatile PyramidSidecar sidecar;
+	// Optional task writing the sidecar in the background
+	private transient volatile Future<?> sidecarTask;
+	
 	PyramidGeneratingImageServer(ImageServer<BufferedImage> server, int tileWidth, int tileHeight, double... downsamples) {
 		this(server, createDefaultMetadata(server, tileWidth, tileHeight, downsamples));
 	}
@@ -76,6 +88,80 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 		return metadata;
 	}
 	
+	/**
+	 * Set a sidecar file containing the generated levels, which will be used in preference to generating tiles.
+	 * Any previous sidecar is closed.
+	 * @param sidecar the sidecar, or null if tiles should always be generated
+	 */
+	void setPyramidSidecar(PyramidSidecar sidecar) {
+		var previous = this.sidecar;
+		this.sidecar = sidecar;
+		if (previous != null && previous != sidecar) {
+			try {
+				previous.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close pyramid sidecar {}: {}", previous.getPath(), e.getLocalizedMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Set a task that is writing the sidecar in the background. 
+	 * Any previous task is cancelled, and the task will be cancelled if the server is closed.
+	 * @param task
+	 */
+	void setPyramidSidecarTask(Future<?> task) {
+		var previous = this.sidecarTask;
+		this.sidecarTask = task;
+		if (previous != null && previous != task)
+			previous.cancel(true);
+	}
+	
+	/**
+	 * Use a separate tile cache for this server and the wrapped server, rather than the shared cache.
+	 * @param cache
+	 */
+	@SuppressWarnings("unchecked")
+	void setTileCache(Map<RegionRequest, BufferedImage> cache) {
+		setCache(cache);
+		if (server instanceof AbstractImageServer)
+			((AbstractImageServer<BufferedImage>)server).setCache(cache);
+	}
+	
+	/**
+	 * Close the server, including any sidecar file.
+	 * Any sidecar being written in the background is cancelled.
+	 * The wrapped server is not closed.
+	 */
+	@Override
+	public void close() throws Exception {
+		setPyramidSidecarTask(null);
+		setPyramidSidecar(null);
+		super.close();
+	}
+	
+	/**
+	 * Get the sidecar file containing the generated levels, if available.
+	 * @return the sidecar, or null if no sidecar is used
+	 */
+	PyramidSidecar getPyramidSidecar() {
+		return sidecar;
+	}
+	
+	/**
+	 * Returns true if tiles for the specified level are generated by resizing tiles from the previous level, 
+	 * or false if they are requested directly from the wrapped server.
+	 * @param level
+	 * @return
+	 */
+	boolean isGeneratedLevel(int level) {
+		if (level == 0)
+			return false;
+		double downsample = getDownsampleForResolution(level);
+		double closestOriginalDownsample = ServerTools.getPreferredDownsampleFactor(server, downsample);
+		return closestOriginalDownsample < getDownsampleForResolution(level - 1);
+	}
+	
 	@Override
 	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
 		// Request directly from the original server if that's most efficient
@@ -86,6 +172,14 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 		if (level == 0 || closestOriginalDownsample >= getDownsampleForResolution(level - 1))
 			return server.readRegion(request.updatePath(server.getPath()));
 		
+		// Read from the sidecar, if we have one
+		var currentSidecar = sidecar;
+		if (currentSidecar != null) {
+			var img = currentSidecar.readTile(this, tileRequest, getDefaultColorModel());
+			if (img != null)
+				return img;
+		}
+		
 		// Read image from the 'previous' resolution
 		RegionRequest request2 = request.updateDownsample(getDownsampleForResolution(level - 1));
 		
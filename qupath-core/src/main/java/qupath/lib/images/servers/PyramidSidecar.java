@@ -0,0 +1,429 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+
+/**
+ * A single file containing the generated resolution levels of a {@link PyramidGeneratingImageServer},
+ * so that low-resolution tiles do not need to be recomputed from the full-resolution image in every session.
+ * <p>
+ * The file contains a header identifying the server, the compressed tiles, and an index giving the location
+ * of each tile. The index is read when the file is opened, and each tile can then be read with a single 
+ * positional read. The file is only open while a tile is being read, so that an interrupted reading thread 
+ * cannot affect any other thread reading from the same sidecar.
+ * <p>
+ * The header includes the server path and metadata, along with a checksum of any local files used by the server.
+ * If any of these change, the sidecar is ignored and should be written again.
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ * @see ImageServers#usePyramidSidecar(ImageServer, Path, boolean)
+ */
+class PyramidSidecar implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(PyramidSidecar.class);
+
+	private static final int MAGIC = 0x51505053; // QPPS
+	private static final int VERSION = 1;
+
+	// Number of bytes to include in the checksum from the start & end of each file
+	private static final int CHECKSUM_BYTES = 1024 * 1024;
+
+	private final Path path;
+	private final String key;
+	private final Map<TileKey, TileEntry> index;
+
+	private volatile boolean closed = false;
+
+	private PyramidSidecar(Path path, String key, Map<TileKey, TileEntry> index) {
+		this.path = path;
+		this.key = key;
+		this.index = index;
+	}
+
+	/**
+	 * Get the path of the sidecar file.
+	 * @return
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns true if the sidecar contains the specified tile.
+	 * @param tile
+	 * @return
+	 */
+	boolean containsTile(TileRequest tile) {
+		return index.containsKey(new TileKey(tile));
+	}
+
+	/**
+	 * Read a tile from the sidecar.
+	 * @param server the server that requested the tile (used to create empty tiles)
+	 * @param tile the tile to read
+	 * @param colorModel the color model to use for images with a custom type
+	 * @return the tile, or null if the tile is not stored in the sidecar (or could not be read)
+	 * @throws IOException
+	 */
+	BufferedImage readTile(AbstractTileableImageServer server, TileRequest tile, ColorModel colorModel) throws IOException {
+		var entry = index.get(new TileKey(tile));
+		if (entry == null)
+			return null;
+		if (closed)
+			throw new IOException("Pyramid sidecar " + path + " has been closed");
+		if (entry.length == 0)
+			return server.getEmptyTile(tile.getTileWidth(), tile.getTileHeight());
+		var buffer = ByteBuffer.allocate(entry.length);
+		// Use a separate channel for each read, since a channel is closed if the reading thread is interrupted
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			readFully(channel, buffer, entry.offset);
+		} catch (ClosedByInterruptException e) {
+			var e2 = new InterruptedIOException("Interrupted while reading pyramid sidecar " + path);
+			e2.initCause(e);
+			throw e2;
+		}
+		try {
+			return PersistentTileCache.decode(buffer, PersistentTileCache.createKey(key, tile), colorModel);
+		} catch (DataFormatException e) {
+			logger.warn("Unable to read {} from pyramid sidecar {}: {}", tile.getRegionRequest(), path, e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Close the sidecar. Any subsequent attempt to read a tile will fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+	}
+
+	/**
+	 * Open an existing sidecar file for a server.
+	 * @param server the server
+	 * @param path the path to the sidecar file
+	 * @return the sidecar, or null if the file does not exist or does not match the server
+	 * @throws IOException if the file exists but could not be read
+	 */
+	static PyramidSidecar open(PyramidGeneratingImageServer server, Path path) throws IOException {
+		if (!Files.isRegularFile(path))
+			return null;
+		String key = createKey(server);
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			var header = ByteBuffer.allocate(12);
+			if (size < header.capacity() || channel.read(header, 0) < header.capacity())
+				return null;
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				logger.debug("Unsupported pyramid sidecar {}", path);
+				return null;
+			}
+			int keyLength = header.getInt();
+			long dataStart = 12L + keyLength + 12L;
+			if (keyLength < 0 || dataStart > size)
+				return null;
+			var keyBuffer = ByteBuffer.allocate(keyLength + 12);
+			readFully(channel, keyBuffer, 12);
+			var keyBytes = new byte[keyLength];
+			keyBuffer.get(keyBytes);
+			if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+				logger.info("Pyramid sidecar {} does not match {} - it will be ignored", path, server.getPath());
+				return null;
+			}
+			int nEntries = keyBuffer.getInt();
+			long indexOffset = keyBuffer.getLong();
+			if (nEntries < 0 || indexOffset < dataStart || indexOffset + (long)nEntries * TileEntry.BYTES > size)
+				return null;
+
+			// Read the index
+			var indexBuffer = ByteBuffer.allocate(nEntries * TileEntry.BYTES);
+			readFully(channel, indexBuffer, indexOffset);
+			Map<TileKey, TileEntry> index = new HashMap<>(nEntries * 2);
+			for (int i = 0; i < nEntries; i++) {
+				var tileKey = new TileKey(indexBuffer.getInt(), indexBuffer.getInt(), indexBuffer.getInt(), indexBuffer.getInt(), indexBuffer.getInt());
+				var entry = new TileEntry(indexBuffer.getLong(), indexBuffer.getInt());
+				if (entry.offset < dataStart || entry.offset + entry.length > indexOffset || entry.length < 0)
+					return null;
+				index.put(tileKey, entry);
+			}
+			logger.debug("Opened pyramid sidecar {} containing {} tiles", path, nEntries);
+			return new PyramidSidecar(path, key, index);
+		}
+	}
+
+	/**
+	 * Write the generated levels of a server to a sidecar file.
+	 * <p>
+	 * Levels are written from the highest to the lowest resolution. Unless the server already has a sidecar, 
+	 * the tiles written so far are used by the server while writing, so that each level can be generated 
+	 * from the previous level without relying on the tile cache.
+	 * The file is written to a temporary location and then moved, so that an incomplete file is never used
+	 * after writing.
+	 *
+	 * @param server the server
+	 * @param path the path to the sidecar file
+	 * @throws IOException
+	 */
+	static void write(PyramidGeneratingImageServer server, Path path) throws IOException {
+		String key = createKey(server);
+		var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		var manager = server.getTileRequestManager();
+		var colorModel = server.getDefaultColorModel();
+
+		long startTime = System.currentTimeMillis();
+		var pathTemp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(pathTemp);
+		boolean success = false;
+		PyramidSidecar partial = null;
+		try (var channel = FileChannel.open(pathTemp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			var header = ByteBuffer.allocate(12 + keyBytes.length + 12);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(keyBytes.length);
+			header.put(keyBytes);
+			// Placeholders for the number of entries & index offset
+			header.putInt(0);
+			header.putLong(0L);
+			header.flip();
+			writeFully(channel, header);
+
+			List<TileKey> tileKeys = new ArrayList<>();
+			List<TileEntry> tileEntries = new ArrayList<>();
+			Map<TileKey, TileEntry> partialIndex = new ConcurrentHashMap<>();
+			if (server.getPyramidSidecar() == null) {
+				partial = new PyramidSidecar(pathTemp, key, partialIndex);
+				server.setPyramidSidecar(partial);
+			}
+			long offset = header.capacity();
+			for (int level = 1; level < server.nResolutions(); level++) {
+				if (!server.isGeneratedLevel(level))
+					continue;
+				for (var tile : manager.getTileRequestsForLevel(level)) {
+					if (Thread.currentThread().isInterrupted())
+						throw new IOException("Writing pyramid sidecar interrupted");
+					var img = server.getTile(tile);
+					int length = 0;
+					if (img != null && !AbstractTileableImageServer.isEmptyTile(img)) {
+						if (!PersistentTileCache.canStore(img, colorModel))
+							throw new IOException("Unable to store tiles of type " + img.getType() + " in a pyramid sidecar");
+						var bytes = PersistentTileCache.encode(img, PersistentTileCache.createKey(key, tile));
+						writeFully(channel, ByteBuffer.wrap(bytes));
+						length = bytes.length;
+					}
+					var tileKey = new TileKey(tile);
+					var tileEntry = new TileEntry(offset, length);
+					tileKeys.add(tileKey);
+					tileEntries.add(tileEntry);
+					partialIndex.put(tileKey, tileEntry);
+					offset += length;
+				}
+			}
+			removePartialSidecar(server, partial);
+
+			// Write the index
+			var indexBuffer = ByteBuffer.allocate(tileKeys.size() * TileEntry.BYTES);
+			for (int i = 0; i < tileKeys.size(); i++) {
+				var tileKey = tileKeys.get(i);
+				var entry = tileEntries.get(i);
+				indexBuffer.putInt(tileKey.level);
+				indexBuffer.putInt(tileKey.x);
+				indexBuffer.putInt(tileKey.y);
+				indexBuffer.putInt(tileKey.z);
+				indexBuffer.putInt(tileKey.t);
+				indexBuffer.putLong(entry.offset);
+				indexBuffer.putInt(entry.length);
+			}
+			indexBuffer.flip();
+			writeFully(channel, indexBuffer);
+
+			// Update the header
+			var indexHeader = ByteBuffer.allocate(12);
+			indexHeader.putInt(tileKeys.size());
+			indexHeader.putLong(offset);
+			indexHeader.flip();
+			channel.position(12L + keyBytes.length);
+			writeFully(channel, indexHeader);
+			channel.force(false);
+			success = true;
+		} finally {
+			removePartialSidecar(server, partial);
+			if (!success)
+				Files.deleteIfExists(pathTemp);
+		}
+		try {
+			Files.move(pathTemp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(pathTemp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		long endTime = System.currentTimeMillis();
+		logger.info("Pyramid sidecar written to {} in {} ms ({} MB)", path, endTime - startTime,
+				GeneralTools.formatNumber(Files.size(path) / (1024.0 * 1024.0), 1));
+	}
+
+	private static void removePartialSidecar(PyramidGeneratingImageServer server, PyramidSidecar partial) {
+		if (partial != null && server.getPyramidSidecar() == partial)
+			server.setPyramidSidecar(null);
+	}
+
+	/**
+	 * Create a key that identifies a server and the version of its pixels.
+	 * This includes the metadata that determines the tiles, and a checksum of any local files.
+	 */
+	static String createKey(PyramidGeneratingImageServer server) throws IOException {
+		var metadata = server.getMetadata();
+		var sb = new StringBuilder(server.getPath());
+		sb.append("\n").append(metadata.getWidth()).append("x").append(metadata.getHeight())
+			.append(" ").append(metadata.getPixelType())
+			.append(" ").append(metadata.getSizeC()).append(",").append(metadata.getSizeZ()).append(",").append(metadata.getSizeT())
+			.append(" ").append(metadata.getPreferredTileWidth()).append("x").append(metadata.getPreferredTileHeight());
+		for (double downsample : metadata.getPreferredDownsamplesArray())
+			sb.append(" ").append(downsample);
+		for (var uri : server.getURIs()) {
+			sb.append("\n").append(uri);
+			var path = GeneralTools.toPath(uri);
+			if (path != null && Files.isRegularFile(path))
+				sb.append(" ").append(Files.size(path)).append(" ").append(Long.toHexString(checksum(path)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Calculate a checksum using the size of a file, and bytes from its start and end.
+	 * This is much faster than reading the entire file, and should detect any file that is replaced or modified.
+	 */
+	private static long checksum(Path path) throws IOException {
+		var crc = new CRC32();
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			var buffer = ByteBuffer.allocate((int)Math.min(size, CHECKSUM_BYTES));
+			readFully(channel, buffer, 0);
+			crc.update(buffer);
+			if (size > CHECKSUM_BYTES) {
+				buffer.clear();
+				long start = Math.max(CHECKSUM_BYTES, size - CHECKSUM_BYTES);
+				buffer.limit((int)(size - start));
+				readFully(channel, buffer, start);
+				crc.update(buffer);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Read bytes to fill the buffer from the specified position, then flip the buffer.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("Unexpected end of file");
+			position += n;
+		}
+		buffer.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+
+	private static class TileKey {
+
+		private final int level, x, y, z, t;
+
+		private TileKey(TileRequest tile) {
+			this(tile.getLevel(), tile.getTileX(), tile.getTileY(), tile.getZ(), tile.getT());
+		}
+
+		private TileKey(int level, int x, int y, int z, int t) {
+			this.level = level;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.t = t;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = level;
+			result = 31 * result + x;
+			result = 31 * result + y;
+			result = 31 * result + z;
+			result = 31 * result + t;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileKey))
+				return false;
+			var other = (TileKey)obj;
+			return level == other.level && x == other.x && y == other.y && z == other.z && t == other.t;
+		}
+
+	}
+
+	private static class TileEntry {
+
+		private static final int BYTES = 5 * 4 + 8 + 4;
+
+		private final long offset;
+		private final int length;
+
+		private TileEntry(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+}
@@ -25,11 +25,13 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -38,12 +40,24 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonParseException;
+
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.io.GsonTools;
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.GeometryTools;
@@ -121,18 +135,14 @@ public class SparseImageServer extends AbstractTileableImageServer {
 			if (region.getT() > maxT)
 				maxT = region.getT();
 
-			ImageServer<BufferedImage> server = null;
-			
-			// Read the first server if we need it
-			if (metadata == null || path == null) {
-				server = manager.getServer(region, 1);
-				if (metadata == null) {
-					metadata = server.getMetadata();
-					colorModel = server.getDefaultThumbnail(0, 0).getColorModel();
-				}
-				if (path == null)
-					paths.add(region.toString() + " (" + server.getPath() + ")");
+			// Read the first server for the metadata - other servers are only opened when their pixels are needed
+			if (metadata == null) {
+				var server = manager.getServer(region, 1);
+				metadata = server.getMetadata();
+				colorModel = server.getDefaultThumbnail(0, 0).getColorModel();
 			}
+			if (path == null)
+				paths.add(region.toString() + " (" + manager.getServerPath(region) + ")");
 		}
 		if (path == null)
 			path = getClass().getName() + ": " + String.join(", ", paths);
@@ -171,8 +181,10 @@ public class SparseImageServer extends AbstractTileableImageServer {
 	@Override
 	public Collection<URI> getURIs() {
 		Set<URI> uris = new LinkedHashSet<>();
-		for (var builder : manager.serverMap.keySet())
-			uris.addAll(builder.getURIs());
+		for (var builder : manager.getServerBuilders()) {
+			if (builder != null)
+				uris.addAll(builder.getURIs());
+		}
 		return uris;
 	}
 	
@@ -220,65 +232,72 @@ public class SparseImageServer extends AbstractTileableImageServer {
 	@Override
 	protected BufferedImage readTile(final TileRequest tileRequest) throws IOException {
 		
-		WritableRaster raster = null;
+		// Find the regions that overlap the tile (in the order they were added, since later regions are drawn on top)
+		List<ImageRegion> subRegions = manager.getRegions(
+				tileRequest.getImageX() + originX, tileRequest.getImageY() + originY,
+				tileRequest.getImageWidth(), tileRequest.getImageHeight(),
+				tileRequest.getZ() + originZ, tileRequest.getT() + originT);
+		
+		// Read the overlapping portions, in parallel if there are several of them
+		int n = subRegions.size();
+		BufferedImage[] images = new BufferedImage[n];
+		int nHelpers = Math.min(n, RegionReadPool.getParallelism()) - 1;
+		if (nHelpers <= 0) {
+			for (int i = 0; i < n; i++)
+				images[i] = readSubRegion(tileRequest, subRegions.get(i));
+		} else {
+			var nextIndex = new AtomicInteger();
+			var latch = new CountDownLatch(n);
+			var exception = new AtomicReference<IOException>();
+			Runnable reader = () -> {
+				int i;
+				while ((i = nextIndex.getAndIncrement()) < n) {
+					try {
+						if (exception.get() == null)
+							images[i] = readSubRegion(tileRequest, subRegions.get(i));
+					} catch (IOException e) {
+						exception.compareAndSet(null, e);
+					} catch (RuntimeException e) {
+						exception.compareAndSet(null, new IOException(e));
+					} finally {
+						latch.countDown();
+					}
+				}
+			};
+			// The calling thread reads too, so the tile is completed even if the pool is busy
+			for (int i = 0; i < nHelpers; i++)
+				RegionReadPool.execute(reader);
+			reader.run();
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading sparse image regions");
+			}
+			if (exception.get() != null)
+				throw exception.get();
+		}
 		
-		for (ImageRegion subRegion : manager.getRegions()) {
-			
-			if (subRegion.getZ() != tileRequest.getZ() + originZ ||
-					subRegion.getT() != tileRequest.getT() + originT)
+		WritableRaster raster = null;
+		double downsample = tileRequest.getRegionRequest().getDownsample();
+		for (int i = 0; i < n; i++) {
+			BufferedImage imgTemp = images[i];
+			if (imgTemp == null)
 				continue;
 			
-			double downsample = tileRequest.getRegionRequest().getDownsample();
-			if (subRegion.intersects(tileRequest.getImageX() + originX, tileRequest.getImageY() + originY, tileRequest.getImageWidth(), tileRequest.getImageHeight())) {
-				// If we overlap, request the overlapping portion
-				ImageServer<BufferedImage> serverTemp = manager.getServer(subRegion, downsample);
-				
-				// Get image coordinates for bounding box of valid region
-				int x1 = Math.max(tileRequest.getImageX() + originX, subRegion.getX());
-				int y1 = Math.max(tileRequest.getImageY() + originY, subRegion.getY());
-				int x2 = Math.min(tileRequest.getImageX() + originX + tileRequest.getImageWidth(), subRegion.getX() + subRegion.getWidth());
-				int y2 = Math.min(tileRequest.getImageY() + originY + tileRequest.getImageHeight(), subRegion.getY() + subRegion.getHeight());
-				
-				// Determine request coordinates
-				// TODO: Test whether sparse images with pyramidal regions work, or images stored as single planes at pre-specified downsamples
-				int xr = x1 - subRegion.getX();
-				int yr = y1 - subRegion.getY();
-				int xr2 = x2 - subRegion.getX();
-				int yr2 = y2 - subRegion.getY();
-				double requestDownsample = downsample;
-//				if (requestDownsample > 1 && serverTemp.nResolutions() == 1) {
-//					requestDownsample = serverTemp.getDownsampleForResolution(0);
-//					double scale = requestDownsample / downsample;
-//					xr = (int)Math.round(xr * scale);					
-//					yr = (int)Math.round(yr * scale);					
-//					xr2 = (int)Math.round(xr2 * scale);					
-//					yr2 = (int)Math.round(yr2 * scale);	
-//					System.err.println(downsample + ", " + scale + ": " + serverTemp.getPath());
-//				}
-				
-				RegionRequest requestTemp = RegionRequest.createInstance(
-						serverTemp.getPath(), requestDownsample,
-						xr, yr, xr2-xr, yr2-yr, tileRequest.getZ() + originZ, tileRequest.getT() + originT);
-				
-				BufferedImage imgTemp = null;
-				synchronized (serverTemp) {
-					imgTemp = serverTemp.readRegion(requestTemp);					
-				}
-				
-				if (imgTemp == null)
-					continue;
-				
-				// If we don't have an output image yet, create a compatible one
-				if (raster == null) {
-					raster = imgTemp.getRaster().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());					
-				}
-				
-				int x = (int)Math.round((x1 - tileRequest.getImageX() - originX) / downsample);
-				int y = (int)Math.round((y1 - tileRequest.getImageY() - originY) / downsample);
-				int w = Math.min(imgTemp.getWidth(), raster.getWidth()-x);
-				int h = Math.min(imgTemp.getHeight(), raster.getHeight()-y);
-				raster.setDataElements(x, y, w, h, imgTemp.getRaster().getDataElements(0, 0, w, h, null));
+			// If we don't have an output image yet, create a compatible one
+			if (raster == null) {
+				raster = imgTemp.getRaster().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());					
 			}
+			
+			var subRegion = subRegions.get(i);
+			int x1 = Math.max(tileRequest.getImageX() + originX, subRegion.getX());
+			int y1 = Math.max(tileRequest.getImageY() + originY, subRegion.getY());
+			int x = (int)Math.round((x1 - tileRequest.getImageX() - originX) / downsample);
+			int y = (int)Math.round((y1 - tileRequest.getImageY() - originY) / downsample);
+			int w = Math.min(imgTemp.getWidth(), raster.getWidth()-x);
+			int h = Math.min(imgTemp.getHeight(), raster.getHeight()-y);
+			raster.setDataElements(x, y, w, h, imgTemp.getRaster().getDataElements(0, 0, w, h, null));
 		}
 		
 		// To avoid problems with returning nulls, create an empty compatible raster where needed - 
@@ -290,6 +309,77 @@ public class SparseImageServer extends AbstractTileableImageServer {
 		return new BufferedImage(colorModel, raster, false, null);
 	}
 	
+	/**
+	 * Read the portion of a tile that overlaps a single region.
+	 * @param tileRequest
+	 * @param subRegion
+	 * @return
+	 * @throws IOException
+	 */
+	private BufferedImage readSubRegion(TileRequest tileRequest, ImageRegion subRegion) throws IOException {
+		double downsample = tileRequest.getRegionRequest().getDownsample();
+		
+		// Get image coordinates for bounding box of valid region
+		int x1 = Math.max(tileRequest.getImageX() + originX, subRegion.getX());
+		int y1 = Math.max(tileRequest.getImageY() + originY, subRegion.getY());
+		int x2 = Math.min(tileRequest.getImageX() + originX + tileRequest.getImageWidth(), subRegion.getX() + subRegion.getWidth());
+		int y2 = Math.min(tileRequest.getImageY() + originY + tileRequest.getImageHeight(), subRegion.getY() + subRegion.getHeight());
+		
+		// Determine request coordinates
+		// TODO: Test whether sparse images with pyramidal regions work, or images stored as single planes at pre-specified downsamples
+		int xr = x1 - subRegion.getX();
+		int yr = y1 - subRegion.getY();
+		int xr2 = x2 - subRegion.getX();
+		int yr2 = y2 - subRegion.getY();
+		
+		// Hold the server while reading, so that it can't be closed if too many servers are open
+		ImageServer<BufferedImage> serverTemp = manager.acquireServer(subRegion, downsample);
+		if (serverTemp == null)
+			return null;
+		try {
+			RegionRequest requestTemp = RegionRequest.createInstance(
+					serverTemp.getPath(), downsample,
+					xr, yr, xr2-xr, yr2-yr, tileRequest.getZ() + originZ, tileRequest.getT() + originT);
+			return serverTemp.readRegion(requestTemp);
+		} finally {
+			manager.releaseServer(serverTemp);
+		}
+	}
+	
+	
+	/**
+	 * Thread pool used to read the regions overlapping a tile in parallel.
+	 */
+	private static class RegionReadPool {
+		
+		private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				ThreadTools.createThreadFactory("sparse-region-", true));
+		
+		static {
+			pool.allowCoreThreadTimeOut(true);
+		}
+		
+		private static int getParallelism() {
+			return Math.max(1, ThreadTools.getParallelism());
+		}
+		
+		private static synchronized void execute(Runnable runnable) {
+			int n = getParallelism();
+			if (pool.getMaximumPoolSize() != n) {
+				if (n > pool.getMaximumPoolSize()) {
+					pool.setMaximumPoolSize(n);
+					pool.setCorePoolSize(n);
+				} else {
+					pool.setCorePoolSize(n);
+					pool.setMaximumPoolSize(n);
+				}
+			}
+			pool.execute(runnable);
+		}
+		
+	}
+	
 	
 	/**
 	 * Builder to create a new {@link SparseImageServer}.
@@ -423,15 +513,34 @@ public class SparseImageServer extends AbstractTileableImageServer {
 	 * Helper class for SparseImageServers, capable of returning the appropriate ImageServer for 
 	 * different ImageRegions and different resolutions.
 	 * <p>
+	 * Servers are only opened when they are first needed. To avoid holding open many thousands of servers 
+	 * (e.g. when regions come from exported tiles), the least recently used servers are closed once 
+	 * more than {@link #getMaxOpenServers()} are open; they will be opened again if required.
+	 * Servers that were provided directly (rather than as a {@link ServerBuilder}) are never closed in this way.
+	 * <p>
 	 * This also allows serialization/deserialization with JSON.
 	 */
 	public static class SparseImageServerManager implements AutoCloseable {
 		
+		/**
+		 * Default maximum number of servers that may be kept open.
+		 */
+		private static final int DEFAULT_MAX_OPEN_SERVERS = 256;
+		
 		private Map<ImageRegion, List<SparseImageServerManagerResolution>> regionMap = new LinkedHashMap<>();
 		private Set<Double> downsamples = new TreeSet<>();
 		
 		private transient List<ImageRegion> regionList;
-		private transient Map<ServerBuilder<BufferedImage>, ImageServer<BufferedImage>> serverMap = new HashMap<>();
+		private transient STRtree regionIndex;
+		
+		// Open servers, in access order so that the least recently used can be closed first
+		private transient Map<ServerBuilder<BufferedImage>, ImageServer<BufferedImage>> serverMap = new LinkedHashMap<>(16, 0.75f, true);
+		// Servers provided directly, which can't be reopened
+		private transient Set<ServerBuilder<BufferedImage>> providedServers = new HashSet<>();
+		// Count of current readers for each server, and servers that should be closed once they are no longer being read
+		private transient Map<ImageServer<BufferedImage>, Integer> serversInUse = new HashMap<>();
+		private transient Set<ImageServer<BufferedImage>> serversToClose = new HashSet<>();
+		private transient int maxOpenServers = DEFAULT_MAX_OPEN_SERVERS;
 		
 		/**
 		 * Add the path to a new ImageServer for a specified region & downsample.
@@ -467,13 +576,16 @@ public class SparseImageServer extends AbstractTileableImageServer {
 		 */
 		private synchronized void addRegionServer(ImageRegion region, double downsample, ImageServer<BufferedImage> server) {
 			ServerBuilder<BufferedImage> builder = server.getBuilder();
-			 if (!serverMap.containsKey(builder))
+			 if (!serverMap.containsKey(builder)) {
 				serverMap.put(builder, server);
+				providedServers.add(builder);
+			 }
 			 addRegionServer(region, downsample, builder);
 		 }
 		
 		private void resetCaches() {
 			regionList = null;
+			regionIndex = null;
 		}
 		
 
@@ -491,11 +603,136 @@ public class SparseImageServer extends AbstractTileableImageServer {
 			return regionList;
 		}
 		
+		/**
+		 * Get all regions that intersect a specified bounding box, using a spatial index.
+		 * <p>
+		 * Regions are returned in the same order as {@link #getRegions()}.
+		 * 
+		 * @param x
+		 * @param y
+		 * @param width
+		 * @param height
+		 * @param z
+		 * @param t
+		 * @return
+		 * @since v0.4.3
+		 */
+		public List<ImageRegion> getRegions(int x, int y, int width, int height, int z, int t) {
+			List<ImageRegion> regions;
+			STRtree index;
+			synchronized (this) {
+				regions = (List<ImageRegion>)getRegions();
+				index = getRegionIndex();
+			}
+			// Once built, the index is only read & so doesn't need to be synchronized
+			@SuppressWarnings("unchecked")
+			List<Integer> inds = index.query(new Envelope(x, x + width, y, y + height));
+			if (inds.isEmpty())
+				return Collections.emptyList();
+			Collections.sort(inds);
+			List<ImageRegion> overlapping = new ArrayList<>();
+			for (int ind : inds) {
+				var region = regions.get(ind);
+				if (region.getZ() == z && region.getT() == t && region.intersects(x, y, width, height))
+					overlapping.add(region);
+			}
+			return overlapping;
+		}
+		
+		private STRtree getRegionIndex() {
+			if (regionIndex == null) {
+				var regions = getRegions();
+				var index = new STRtree();
+				int ind = 0;
+				for (var region : regions) {
+					index.insert(new Envelope(region.getX(), region.getMaxX(), region.getY(), region.getMaxY()), ind++);
+				}
+				// Build now, so that the index is immutable when queried
+				index.build();
+				regionIndex = index;
+			}
+			return regionIndex;
+		}
+		
+		/**
+		 * Get all the builders for the servers supplying pixels for any region, without opening the servers.
+		 * @return
+		 */
+		synchronized Collection<ServerBuilder<BufferedImage>> getServerBuilders() {
+			Set<ServerBuilder<BufferedImage>> builders = new LinkedHashSet<>();
+			for (var resolutions : regionMap.values()) {
+				for (var resolution : resolutions)
+					builders.add(resolution.getServerBuilder());
+			}
+			return builders;
+		}
+		
+		/**
+		 * Get a path to identify the full-resolution server for a region.
+		 * This is derived from the JSON representation of the server builder, which includes its URIs and arguments, 
+		 * so that the server doesn't need to be opened and the path doesn't depend upon whether it is open.
+		 * Servers that were provided directly without a builder are identified by their own path.
+		 * @param region
+		 * @return
+		 * @throws IOException if the server needs to be opened, but this fails
+		 */
+		synchronized String getServerPath(ImageRegion region) throws IOException {
+			List<SparseImageServerManagerResolution> resolutions = regionMap.get(region);
+			if (resolutions == null || resolutions.isEmpty())
+				return null;
+			var builder = resolutions.get(0).getServerBuilder();
+			if (builder == null)
+				return getServer(region, 1).getPath();
+			try {
+				var gson = GsonTools.getInstance().newBuilder()
+						.registerTypeAdapterFactory(ImageServers.getServerBuilderFactory())
+						.create();
+				return gson.toJson(builder, ServerBuilder.class);
+			} catch (JsonParseException e) {
+				// Builders that can't be serialized can't be stored in a project either, so toString() is the best we can do
+				logger.debug("Unable to create JSON for {}: {}", builder, e.getLocalizedMessage());
+				return String.valueOf(builder);
+			}
+		}
+		
+		/**
+		 * Get the maximum number of servers that may be kept open at any time.
+		 * More servers may be open temporarily if they are all being read.
+		 * @return
+		 * @since v0.4.3
+		 */
+		public synchronized int getMaxOpenServers() {
+			return maxOpenServers;
+		}
+		
+		/**
+		 * Set the maximum number of servers that may be kept open at any time.
+		 * @param maxOpenServers
+		 * @since v0.4.3
+		 */
+		public synchronized void setMaxOpenServers(int maxOpenServers) {
+			if (maxOpenServers < 1)
+				throw new IllegalArgumentException("Maximum number of open servers must be at least 1");
+			this.maxOpenServers = maxOpenServers;
+			closeLeastRecentlyUsed();
+		}
+		
+		/**
+		 * Get the number of servers that are currently open.
+		 * @return
+		 * @since v0.4.3
+		 */
+		public synchronized int getOpenServerCount() {
+			return serverMap.size();
+		}
+		
 		/**
 		 * Request the server for a specific downsample.
 		 * <p>
 		 * Note that this does not aim to return a server for any arbitrary region; rather, 
 		 * a server <i>must</i> exist for the specified region and downsample, otherwise this will return {@code null}. 
+		 * <p>
+		 * Note that the server may be closed later if too many servers are opened.
 		 * 
 		 * @param region specified region to which the server should correspond (must be found within {@code getRegions()})
 		 * @param downsample specified downsample for the server (must be found within {@code getDownsamples()})
@@ -525,14 +762,79 @@ public class SparseImageServer extends AbstractTileableImageServer {
 					throw new IOException(e);
 				}
 				serverMap.put(builder, server);
+				closeLeastRecentlyUsed();
 			}
 			return server;
 		}
+		
+		/**
+		 * Request the server for a specific downsample, and prevent it being closed until 
+		 * {@link #releaseServer(ImageServer)} is called.
+		 * @param region
+		 * @param downsample
+		 * @return
+		 * @throws IOException
+		 * @see #getServer(ImageRegion, double)
+		 */
+		synchronized ImageServer<BufferedImage> acquireServer(ImageRegion region, double downsample) throws IOException {
+			var server = getServer(region, downsample);
+			if (server != null)
+				serversInUse.merge(server, 1, Integer::sum);
+			return server;
+		}
+		
+		/**
+		 * Release a server previously returned by {@link #acquireServer(ImageRegion, double)}.
+		 * @param server
+		 */
+		synchronized void releaseServer(ImageServer<BufferedImage> server) {
+			var count = serversInUse.merge(server, -1, Integer::sum);
+			if (count != null && count > 0)
+				return;
+			serversInUse.remove(server);
+			if (serversToClose.remove(server))
+				closeServer(server);
+		}
+		
+		/**
+		 * Close the least recently used servers, until no more than the maximum number are open.
+		 * Servers that are being read are closed once they are released.
+		 */
+		private void closeLeastRecentlyUsed() {
+			var iter = serverMap.entrySet().iterator();
+			int nOpen = serverMap.size();
+			while (nOpen > maxOpenServers && iter.hasNext()) {
+				var entry = iter.next();
+				if (providedServers.contains(entry.getKey()))
+					continue;
+				iter.remove();
+				nOpen--;
+				var server = entry.getValue();
+				if (serversInUse.containsKey(server))
+					serversToClose.add(server);
+				else
+					closeServer(server);
+			}
+		}
+		
+		private static void closeServer(ImageServer<BufferedImage> server) {
+			logger.trace("Closing sparse image region server {}", server);
+			try {
+				server.close();
+			} catch (Exception e) {
+				logger.warn("Error closing server: {}", e.getLocalizedMessage());
+				logger.debug(e.getLocalizedMessage(), e);
+			}
+		}
 
 		@Override
-		public void close() throws Exception {
+		public synchronized void close() throws Exception {
 			for (ImageServer<BufferedImage> server : serverMap.values())
 				server.close();
+			for (ImageServer<BufferedImage> server : serversToClose)
+				server.close();
+			serverMap.clear();
+			serversToClose.clear();
 		}
 		
 		double[] getAvailableDownsamples() {
@@ -121,7 +121,7 @@ public class TransformedServerBuilder {
 		for (int c : channels) {
 			transforms.add(ColorTransforms.createChannelExtractor(c));
 		}
-		server = new ChannelTransformFeatureServer(server, transforms);
+		server = createChannelTransformServer(server, transforms);
 		return this;
 	}
 	
@@ -135,10 +135,79 @@ public class TransformedServerBuilder {
 		for (String n : names) {
 			transforms.add(ColorTransforms.createChannelExtractor(n));
 		}
-		server = new ChannelTransformFeatureServer(server, transforms);
+		server = createChannelTransformServer(server, transforms);
 		return this;
 	}
 	
+	/**
+	 * Create a server to apply channel transforms to another server.
+	 * <p>
+	 * Where the transforms only extract channels, and the server already computes its channels 
+	 * independently (i.e. it is a {@link ChannelTransformFeatureServer} or a {@link ColorDeconvolutionImageServer}), 
+	 * the extraction is fused with the existing server. This avoids computing channels that will be discarded, 
+	 * and allocating an intermediate image for every request.
+	 * 
+	 * @param server
+	 * @param transforms
+	 * @return
+	 */
+	static ImageServer<BufferedImage> createChannelTransformServer(ImageServer<BufferedImage> server, List<ColorTransform> transforms) {
+		int[] inds = getExtractedChannels(server, transforms);
+		if (inds != null) {
+			if (server instanceof ChannelTransformFeatureServer) {
+				var inner = (ChannelTransformFeatureServer)server;
+				var innerTransforms = inner.getTransforms();
+				var selected = new ArrayList<ColorTransform>();
+				for (int ind : inds)
+					selected.add(innerTransforms.get(ind));
+				return new ChannelTransformFeatureServer(inner.getWrappedServer(), selected);
+			} else if (server instanceof ColorDeconvolutionImageServer) {
+				var inner = (ColorDeconvolutionImageServer)server;
+				int[] stainNumbers = inner.getStainNumbers();
+				// Stain numbers only map to channels if they are all valid
+				if (stainNumbers.length == inner.nChannels() && Arrays.stream(stainNumbers).allMatch(s -> s >= 1 && s <= 3)) {
+					int[] selected = new int[inds.length];
+					for (int i = 0; i < inds.length; i++)
+						selected[i] = stainNumbers[inds[i]];
+					return new ColorDeconvolutionImageServer(inner.getWrappedServer(), inner.getStains(), selected);
+				}
+			}
+		}
+		return new ChannelTransformFeatureServer(server, transforms);
+	}
+	
+	/**
+	 * Get the indices of the channels extracted by a list of transforms.
+	 * @param server
+	 * @param transforms
+	 * @return the channel indices, or null if any transform does something other than extract a channel of the server
+	 */
+	private static int[] getExtractedChannels(ImageServer<BufferedImage> server, List<ColorTransform> transforms) {
+		if (transforms.isEmpty())
+			return null;
+		var channels = server.getMetadata().getChannels();
+		int[] inds = new int[transforms.size()];
+		for (int i = 0; i < transforms.size(); i++) {
+			var t = transforms.get(i);
+			int ind = -1;
+			if (t instanceof ColorTransforms.ExtractChannel) {
+				ind = ((ColorTransforms.ExtractChannel)t).getChannelNumber();
+			} else if (t instanceof ColorTransforms.ExtractChannelByName) {
+				String name = ((ColorTransforms.ExtractChannelByName)t).getChannelName();
+				for (int c = 0; c < channels.size(); c++) {
+					if (name.equals(channels.get(c).getName())) {
+						ind = c;
+						break;
+					}
+				}
+			}
+			if (ind < 0 || ind >= channels.size())
+				return null;
+			inds[i] = ind;
+		}
+		return inds;
+	}
+	
 	/**
 	 * Perform a maximum projection of the channels.
 	 * @return
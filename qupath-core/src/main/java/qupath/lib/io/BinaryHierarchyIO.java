@@ -0,0 +1,1468 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.measurements.ColumnarMeasurementStore;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementList.MeasurementListType;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.MetadataStore;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.objects.PathTileObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.DefaultTMAGrid;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.LineROI;
+import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.PolylineROI;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Compact binary representation of a {@link PathObjectHierarchy}, used within .qpdata files as an alternative
+ * to Java serialization.
+ * <p>
+ * Objects are split into two groups.
+ * The <i>skeleton</i> contains the root object, annotations, TMA cores and any detections that cannot be separated 
+ * from these (e.g. because they have annotation descendants); these are written in depth-first order.
+ * All other detections are written along with their descendants in <i>detection chunks</i>, which are grouped 
+ * spatially: they are sorted by plane, and then along a Z-order curve.
+ * Each detection chunk is preceded by its plane and bounding box, so that a reader can skip chunks that are not
+ * required (see {@link LazyHierarchy}).
+ * <p>
+ * Each chunk is self-contained: it has its own string and classification tables, and stores the object structure,
+ * ROI coordinates and measurement values as three separate blocks of primitives (which compress well).
+ * Chunks are compressed independently, so that they can be encoded and decoded in parallel.
+ * When read, the float measurements of all detections within a chunk are stored in a single 
+ * {@link ColumnarMeasurementStore}, rather than in a separate list for each object.
+ * <p>
+ * The layout is
+ * <pre>
+ *   int magic, int version
+ *   int nSkeletonObjects, int nDetectionObjects, int nSkeletonChunks, int nDetectionChunks
+ *   int tmaGridWidth (or -1), int nCores, int[nCores] coreIndices
+ *   nSkeletonChunks * (int nObjects, int rawLength, int compressedLength, byte[compressedLength])
+ *   nDetectionChunks * (int nObjects, int z, int t, double minX, double minY, double maxX, double maxY,
+ *                       int rawLength, int compressedLength, byte[compressedLength])
+ * </pre>
+ * Every object stores its parent and its index within the parent's child list, so that the original order of 
+ * child objects can be restored.
+ * A parent &ge; 0 is an index into the skeleton, -1 indicates no parent (only for the root), and -(i+2) refers to 
+ * the object at index i within the same detection chunk.
+ * <p>
+ * Only the standard object types are supported; {@link #canWrite(PathObjectHierarchy)} should be checked first.
+ * ROIs other than rectangles, ellipses, lines, polygons, polylines and points are stored using Java serialization
+ * within the chunk.
+ *
+ * @author Pete Bankhead
+ */
+class BinaryHierarchyIO {
+
+	private static final Logger logger = LoggerFactory.getLogger(BinaryHierarchyIO.class);
+
+	/**
+	 * Object written to an {@link ObjectOutputStream} before the binary hierarchy.
+	 */
+	static final String MARKER = "PathObjectHierarchy (binary)";
+
+	private static final int MAGIC = 0x51504842; // 'QPHB'
+	private static final int VERSION = 2;
+
+	/**
+	 * Target number of objects per chunk.
+	 */
+	static final int CHUNK_SIZE = 8192;
+
+	private static final byte TYPE_ROOT = 0;
+	private static final byte TYPE_ANNOTATION = 1;
+	private static final byte TYPE_DETECTION = 2;
+	private static final byte TYPE_TILE = 3;
+	private static final byte TYPE_CELL = 4;
+	private static final byte TYPE_TMA_CORE = 5;
+
+	private static final byte ROI_NONE = 0;
+	private static final byte ROI_RECTANGLE = 1;
+	private static final byte ROI_ELLIPSE = 2;
+	private static final byte ROI_LINE = 3;
+	private static final byte ROI_POLYGON = 4;
+	private static final byte ROI_POLYLINE = 5;
+	private static final byte ROI_POINTS = 6;
+	private static final byte ROI_SERIALIZED = 7;
+
+	private static final int FLAG_NAME = 1;
+	private static final int FLAG_COLOR = 1 << 1;
+	private static final int FLAG_LOCKED = 1 << 2;
+	private static final int FLAG_PROBABILITY = 1 << 3;
+	private static final int FLAG_DOUBLE_MEASUREMENTS = 1 << 4;
+	private static final int FLAG_MISSING = 1 << 5;
+	private static final int FLAG_METADATA = 1 << 6;
+
+	private static final Map<Class<? extends PathObject>, Byte> TYPES = Map.of(
+			PathRootObject.class, TYPE_ROOT,
+			PathAnnotationObject.class, TYPE_ANNOTATION,
+			PathDetectionObject.class, TYPE_DETECTION,
+			PathTileObject.class, TYPE_TILE,
+			PathCellObject.class, TYPE_CELL,
+			TMACoreObject.class, TYPE_TMA_CORE
+			);
+
+	private BinaryHierarchyIO() {
+		throw new AssertionError("Cannot instantiate this class");
+	}
+
+	/**
+	 * Check whether all objects in a hierarchy can be represented in the binary format.
+	 * This is false if the hierarchy contains objects that are not one of the standard types,
+	 * or a TMA grid that does not correspond to cores in the hierarchy.
+	 * @param hierarchy
+	 * @return
+	 */
+	static boolean canWrite(PathObjectHierarchy hierarchy) {
+		var objects = new Layout(hierarchy.getRootObject()).objects;
+		for (var pathObject : objects) {
+			if (!TYPES.containsKey(pathObject.getClass())) {
+				logger.debug("Binary hierarchy does not support {}", pathObject.getClass());
+				return false;
+			}
+		}
+		var grid = hierarchy.getTMAGrid();
+		if (grid != null) {
+			var set = Collections.newSetFromMap(new IdentityHashMap<PathObject, Boolean>());
+			set.addAll(objects);
+			return set.containsAll(grid.getTMACoreList());
+		}
+		return true;
+	}
+
+	/**
+	 * Write a hierarchy in binary form.
+	 * @param hierarchy
+	 * @param out
+	 * @throws IOException
+	 */
+	static void writeHierarchy(PathObjectHierarchy hierarchy, DataOutput out) throws IOException {
+		Layout layout;
+		int[] tmaIndices = null;
+		int tmaWidth = -1;
+		var lock = hierarchy.getLock().readLock();
+		lock.lock();
+		try {
+			layout = new Layout(hierarchy.getRootObject());
+			var grid = hierarchy.getTMAGrid();
+			if (grid != null) {
+				tmaWidth = grid.getGridWidth();
+				Map<PathObject, Integer> indices = new IdentityHashMap<>();
+				for (int i = 0; i < layout.skeleton.length; i++)
+					indices.put(layout.objects.get(layout.skeleton[i]), i);
+				tmaIndices = grid.getTMACoreList().stream().mapToInt(c -> indices.get(c)).toArray();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		List<ChunkLayout> chunks = new ArrayList<>();
+		for (int start = 0; start < layout.skeleton.length; start += CHUNK_SIZE) {
+			int end = Math.min(layout.skeleton.length, start + CHUNK_SIZE);
+			chunks.add(new ChunkLayout(Arrays.copyOfRange(layout.skeleton, start, end)));
+		}
+		int nSkeletonChunks = chunks.size();
+		chunks.addAll(layout.createDetectionChunks());
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(layout.skeleton.length);
+		out.writeInt(layout.objects.size() - layout.skeleton.length);
+		out.writeInt(nSkeletonChunks);
+		out.writeInt(chunks.size() - nSkeletonChunks);
+		out.writeInt(tmaWidth);
+		if (tmaIndices == null)
+			out.writeInt(0);
+		else {
+			out.writeInt(tmaIndices.length);
+			for (int ind : tmaIndices)
+				out.writeInt(ind);
+		}
+
+		// Encode in batches, to limit the number of compressed chunks held in memory at any time
+		int batchSize = getBatchSize();
+		for (int start = 0; start < chunks.size(); start += batchSize) {
+			var batch = chunks.subList(start, Math.min(chunks.size(), start + batchSize));
+			List<EncodedChunk> encoded;
+			try {
+				encoded = batch.parallelStream()
+						.map(c -> encodeChunk(layout, c.members))
+						.collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				var chunk = batch.get(i);
+				out.writeInt(chunk.members.length);
+				if (chunk.spatial) {
+					out.writeInt(chunk.z);
+					out.writeInt(chunk.t);
+					out.writeDouble(chunk.minX);
+					out.writeDouble(chunk.minY);
+					out.writeDouble(chunk.maxX);
+					out.writeDouble(chunk.maxY);
+				}
+				var bytes = encoded.get(i);
+				out.writeInt(bytes.rawLength);
+				out.writeInt(bytes.bytes.length);
+				out.write(bytes.bytes);
+			}
+		}
+	}
+
+	/**
+	 * Read a hierarchy in binary form.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static PathObjectHierarchy readHierarchy(DataInput in) throws IOException {
+		var header = readHeader(in);
+		var skeleton = readSkeleton(in, header);
+		var detections = readChunks(in, header.nDetectionChunks, true, c -> true);
+		return createHierarchy(header, skeleton, detections);
+	}
+
+	private static int getBatchSize() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+
+	/**
+	 * Read the header information, up to the start of the first chunk.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static Header readHeader(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Input does not contain a binary object hierarchy");
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary hierarchy version " + version + " (supported version is " + VERSION + ")");
+		int nSkeletonObjects = in.readInt();
+		int nDetectionObjects = in.readInt();
+		int nSkeletonChunks = in.readInt();
+		int nDetectionChunks = in.readInt();
+		int tmaWidth = in.readInt();
+		int[] tmaIndices = new int[in.readInt()];
+		for (int i = 0; i < tmaIndices.length; i++)
+			tmaIndices[i] = in.readInt();
+		return new Header(nSkeletonObjects, nDetectionObjects, nSkeletonChunks, nDetectionChunks, tmaWidth, tmaIndices);
+	}
+
+	/**
+	 * Read all skeleton chunks. This should be called immediately after {@link #readHeader(DataInput)}.
+	 * @param in
+	 * @param header
+	 * @return
+	 * @throws IOException
+	 */
+	static Skeleton readSkeleton(DataInput in, Header header) throws IOException {
+		var chunks = readChunks(in, header.nSkeletonChunks, false, c -> true);
+		int n = header.nSkeletonObjects;
+		var skeleton = new Skeleton(n);
+		int ind = 0;
+		for (var chunk : chunks) {
+			int len = chunk.objects.length;
+			if (ind + len > n)
+				throw new IOException("Binary hierarchy is corrupt - too many skeleton objects");
+			System.arraycopy(chunk.objects, 0, skeleton.objects, ind, len);
+			System.arraycopy(chunk.parents, 0, skeleton.parents, ind, len);
+			System.arraycopy(chunk.ordinals, 0, skeleton.ordinals, ind, len);
+			ind += len;
+		}
+		if (ind != n)
+			throw new IOException("Binary hierarchy is corrupt - expected " + n + " skeleton objects, but found " + ind);
+		return skeleton;
+	}
+
+	/**
+	 * Read the next chunks from the input, decoding those accepted by a filter and skipping the rest.
+	 * Chunks are decoded in parallel.
+	 * @param in
+	 * @param count number of chunks to read
+	 * @param spatial true if the chunks are detection chunks (with bounding boxes), false if they are skeleton chunks
+	 * @param filter filter to select which chunks should be decoded
+	 * @return the decoded chunks, in the order they were read
+	 * @throws IOException
+	 */
+	static List<DecodedChunk> readChunks(DataInput in, int count, boolean spatial, Predicate<ChunkInfo> filter) throws IOException {
+		List<DecodedChunk> decoded = new ArrayList<>();
+		List<ChunkInfo> infos = new ArrayList<>();
+		List<byte[]> compressed = new ArrayList<>();
+		int batchSize = getBatchSize();
+		for (int c = 0; c < count; c++) {
+			var info = readChunkInfo(in, spatial);
+			if (filter.test(info)) {
+				byte[] bytes = new byte[info.compressedLength];
+				in.readFully(bytes);
+				infos.add(info);
+				compressed.add(bytes);
+			} else
+				skipFully(in, info.compressedLength);
+			if (infos.size() == batchSize || (c == count-1 && !infos.isEmpty())) {
+				decoded.addAll(decodeChunks(infos, compressed));
+				infos.clear();
+				compressed.clear();
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Decode chunks in parallel.
+	 * @param infos frame information for each chunk
+	 * @param compressed compressed bytes for each chunk
+	 * @return the decoded chunks, in the same order as the input
+	 * @throws IOException
+	 */
+	static List<DecodedChunk> decodeChunks(List<ChunkInfo> infos, List<byte[]> compressed) throws IOException {
+		try {
+			return IntStream.range(0, infos.size())
+					.parallel()
+					.mapToObj(i -> decodeChunk(compressed.get(i), infos.get(i)))
+					.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static ChunkInfo readChunkInfo(DataInput in, boolean spatial) throws IOException {
+		int nObjects = in.readInt();
+		if (spatial) {
+			int z = in.readInt();
+			int t = in.readInt();
+			double minX = in.readDouble();
+			double minY = in.readDouble();
+			double maxX = in.readDouble();
+			double maxY = in.readDouble();
+			return new ChunkInfo(nObjects, z, t, minX, minY, maxX, maxY, in.readInt(), in.readInt());
+		} else
+			return new ChunkInfo(nObjects, -1, -1, Double.NaN, Double.NaN, Double.NaN, Double.NaN, in.readInt(), in.readInt());
+	}
+
+	private static void skipFully(DataInput in, int n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes(n);
+			if (skipped <= 0) {
+				// Will throw an EOFException if the end has been reached
+				in.readByte();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * Create a hierarchy from the skeleton and detection chunks.
+	 * <p>
+	 * Note that the root object of the skeleton is replaced by the root object of the new hierarchy.
+	 * @param header
+	 * @param skeleton
+	 * @param detectionChunks
+	 * @return
+	 * @throws IOException
+	 */
+	static PathObjectHierarchy createHierarchy(Header header, Skeleton skeleton, List<DecodedChunk> detectionChunks) throws IOException {
+		var hierarchy = new PathObjectHierarchy();
+		var objects = skeleton.objects;
+		int n = objects.length;
+		if (n == 0)
+			return hierarchy;
+		if (!(objects[0] instanceof PathRootObject))
+			throw new IOException("Binary hierarchy does not start with a root object");
+		var root = hierarchy.getRootObject();
+		copyCommonFields(objects[0], root);
+		objects[0] = root;
+
+		// Parents always precede their children
+		Map<PathObject, Children> childMap = new IdentityHashMap<>();
+		for (int i = 1; i < n; i++) {
+			int parent = skeleton.parents[i];
+			if (parent < 0 || parent >= i)
+				throw new IOException("Binary hierarchy is corrupt - invalid parent index " + parent);
+			childMap.computeIfAbsent(objects[parent], p -> new Children()).add(objects[i], skeleton.ordinals[i]);
+		}
+		for (var chunk : detectionChunks) {
+			for (int i = 0; i < chunk.objects.length; i++) {
+				var parent = chunk.getParent(i, objects);
+				childMap.computeIfAbsent(parent, p -> new Children()).add(chunk.objects[i], chunk.ordinals[i]);
+			}
+		}
+		for (var entry : childMap.entrySet())
+			entry.getKey().addChildObjects(entry.getValue().toList());
+
+		if (header.tmaWidth > 0 && header.tmaIndices.length > 0) {
+			List<TMACoreObject> cores = new ArrayList<>();
+			for (int ind : header.tmaIndices)
+				cores.add((TMACoreObject)objects[ind]);
+			hierarchy.setTMAGrid(DefaultTMAGrid.create(cores, header.tmaWidth));
+		}
+		return hierarchy;
+	}
+
+
+	private static void copyCommonFields(PathObject source, PathObject target) {
+		target.setName(source.getName());
+		target.setColor(source.getColor());
+		if (source.hasMeasurements()) {
+			var ml = target.getMeasurementList();
+			ml.putAll(source.getMeasurementList());
+			ml.close();
+		}
+	}
+
+
+	/**
+	 * Encode and compress a single chunk.
+	 */
+	private static EncodedChunk encodeChunk(Layout layout, int[] members) {
+		try {
+			var encoder = new ChunkEncoder();
+			for (int i = 0; i < members.length; i++) {
+				int ind = members[i];
+				int parent = layout.parents[ind];
+				int code;
+				if (parent < 0)
+					code = -1;
+				else if (layout.skeletonIndex[parent] >= 0)
+					code = layout.skeletonIndex[parent];
+				else {
+					// Detection descendants are stored contiguously with their ancestors, 
+					// so the offset from the parent is the same as in the depth-first order
+					code = -2 - (i - (ind - parent));
+				}
+				encoder.writeObject(layout.objects.get(ind), code, layout.ordinals[ind]);
+			}
+			byte[] raw = encoder.toBytes();
+			var deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(raw);
+				deflater.finish();
+				var bytes = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+				byte[] buffer = new byte[65536];
+				while (!deflater.finished()) {
+					int len = deflater.deflate(buffer);
+					bytes.write(buffer, 0, len);
+				}
+				return new EncodedChunk(raw.length, bytes.toByteArray());
+			} finally {
+				deflater.end();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	private static DecodedChunk decodeChunk(byte[] compressed, ChunkInfo info) {
+		var inflater = new Inflater();
+		try {
+			int rawLength = info.rawLength;
+			byte[] raw = new byte[rawLength];
+			inflater.setInput(compressed);
+			int pos = 0;
+			while (pos < rawLength) {
+				int len = inflater.inflate(raw, pos, rawLength - pos);
+				if (len == 0 && (inflater.finished() || inflater.needsInput()))
+					throw new IOException("Binary hierarchy chunk is truncated");
+				pos += len;
+			}
+			var chunk = new DecodedChunk(info);
+			new ChunkDecoder(raw).readObjects(chunk);
+			return chunk;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (DataFormatException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new UncheckedIOException(new IOException("Binary hierarchy chunk is corrupt", e));
+		} finally {
+			inflater.end();
+		}
+	}
+
+
+	/**
+	 * Summary information read from the start of a binary hierarchy.
+	 */
+	static class Header {
+
+		final int nSkeletonObjects;
+		final int nDetectionObjects;
+		final int nSkeletonChunks;
+		final int nDetectionChunks;
+		final int tmaWidth;
+		final int[] tmaIndices;
+
+		private Header(int nSkeletonObjects, int nDetectionObjects, int nSkeletonChunks, int nDetectionChunks, int tmaWidth, int[] tmaIndices) {
+			this.nSkeletonObjects = nSkeletonObjects;
+			this.nDetectionObjects = nDetectionObjects;
+			this.nSkeletonChunks = nSkeletonChunks;
+			this.nDetectionChunks = nDetectionChunks;
+			this.tmaWidth = tmaWidth;
+			this.tmaIndices = tmaIndices;
+		}
+
+	}
+
+
+	/**
+	 * Objects in the skeleton, along with the indices of their parents and their positions within the parents' 
+	 * child lists.
+	 */
+	static class Skeleton {
+
+		final PathObject[] objects;
+		final int[] parents;
+		final int[] ordinals;
+
+		private Skeleton(int n) {
+			this.objects = new PathObject[n];
+			this.parents = new int[n];
+			this.ordinals = new int[n];
+		}
+
+	}
+
+
+	/**
+	 * Frame information for a single chunk, read before the compressed bytes.
+	 * For detection chunks, this includes the plane and bounding box of all objects in the chunk.
+	 */
+	static class ChunkInfo {
+
+		final int nObjects;
+		final int z;
+		final int t;
+		final double minX;
+		final double minY;
+		final double maxX;
+		final double maxY;
+		final int rawLength;
+		final int compressedLength;
+
+		private ChunkInfo(int nObjects, int z, int t, double minX, double minY, double maxX, double maxY, int rawLength, int compressedLength) {
+			this.nObjects = nObjects;
+			this.z = z;
+			this.t = t;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.rawLength = rawLength;
+			this.compressedLength = compressedLength;
+		}
+
+		/**
+		 * Check whether any object in the chunk might intersect a region.
+		 * @param region
+		 * @return
+		 */
+		boolean intersects(ImageRegion region) {
+			if (region.getZ() != z || region.getT() != t)
+				return false;
+			return minX <= region.getMaxX() && maxX >= region.getMinX() &&
+					minY <= region.getMaxY() && maxY >= region.getMinY();
+		}
+
+	}
+
+
+	/**
+	 * Objects decoded from a single chunk.
+	 */
+	static class DecodedChunk {
+
+		final ChunkInfo info;
+		final PathObject[] objects;
+		final int[] parents;
+		final int[] ordinals;
+
+		private DecodedChunk(ChunkInfo info) {
+			this.info = info;
+			this.objects = new PathObject[info.nObjects];
+			this.parents = new int[info.nObjects];
+			this.ordinals = new int[info.nObjects];
+		}
+
+		/**
+		 * Get the parent of an object in this chunk.
+		 * @param ind index of the object within this chunk
+		 * @param skeleton skeleton objects, used to resolve parents outside this chunk
+		 * @return
+		 * @throws IOException if the parent index is invalid
+		 */
+		PathObject getParent(int ind, PathObject[] skeleton) throws IOException {
+			int parent = parents[ind];
+			if (parent >= 0 && parent < skeleton.length)
+				return skeleton[parent];
+			int local = -parent - 2;
+			if (local >= 0 && local < ind)
+				return objects[local];
+			throw new IOException("Binary hierarchy is corrupt - invalid parent index " + parent);
+		}
+
+		/**
+		 * Check whether the parent of an object is within the skeleton (rather than this chunk).
+		 * @param ind
+		 * @return
+		 */
+		boolean hasSkeletonParent(int ind) {
+			return parents[ind] >= 0;
+		}
+
+	}
+
+
+	/**
+	 * Helper class to collect child objects that may be read out of order.
+	 */
+	static class Children {
+
+		private PathObject[] objects = new PathObject[4];
+		private int[] ordinals = new int[4];
+		private int n = 0;
+		private boolean sorted = true;
+
+		void add(PathObject pathObject, int ordinal) {
+			if (n == objects.length) {
+				objects = Arrays.copyOf(objects, n * 2);
+				ordinals = Arrays.copyOf(ordinals, n * 2);
+			}
+			if (n > 0 && ordinal < ordinals[n-1])
+				sorted = false;
+			objects[n] = pathObject;
+			ordinals[n] = ordinal;
+			n++;
+		}
+
+		List<PathObject> toList() {
+			if (sorted)
+				return Arrays.asList(objects).subList(0, n);
+			// Sort by ordinal, keeping track of the original index
+			long[] keys = new long[n];
+			for (int i = 0; i < n; i++)
+				keys[i] = ((long)ordinals[i] << 32) | i;
+			Arrays.sort(keys);
+			List<PathObject> list = new ArrayList<>(n);
+			for (long key : keys)
+				list.add(objects[(int)key]);
+			return list;
+		}
+
+	}
+
+
+	/**
+	 * Layout of the objects in a hierarchy for writing, i.e. the objects in depth-first order, along with the 
+	 * assignment of objects to the skeleton.
+	 */
+	private static class Layout {
+
+		private final List<PathObject> objects = new ArrayList<>();
+		private final int[] parents;
+		private final int[] ordinals;
+		private final int[] skeletonIndex;
+		private final int[] skeleton;
+
+		private final List<int[]> units = new ArrayList<>();
+
+		Layout(PathObject root) {
+			// Flatten in depth-first order, recording parents and positions within the parent's child list
+			List<PathObject> stack = new ArrayList<>();
+			List<int[]> stackInfo = new ArrayList<>();
+			stack.add(root);
+			stackInfo.add(new int[] {-1, 0});
+			var parentList = new ArrayList<int[]>();
+			while (!stack.isEmpty()) {
+				var pathObject = stack.remove(stack.size() - 1);
+				var info = stackInfo.remove(stackInfo.size() - 1);
+				int ind = objects.size();
+				objects.add(pathObject);
+				parentList.add(info);
+				if (pathObject.hasChildObjects()) {
+					var children = new ArrayList<>(pathObject.getChildObjects());
+					for (int i = children.size() - 1; i >= 0; i--) {
+						stack.add(children.get(i));
+						stackInfo.add(new int[] {ind, i});
+					}
+				}
+			}
+			int n = objects.size();
+			parents = new int[n];
+			ordinals = new int[n];
+			for (int i = 0; i < n; i++) {
+				var info = parentList.get(i);
+				parents[i] = info[0];
+				ordinals[i] = info[1];
+			}
+
+			// Objects that aren't detections, or have non-detection descendants, must be in the skeleton.
+			// Also compute subtree sizes - children always follow their parents.
+			boolean[] pinned = new boolean[n];
+			int[] sizes = new int[n];
+			for (int i = n-1; i >= 0; i--) {
+				sizes[i]++;
+				if (!objects.get(i).isDetection())
+					pinned[i] = true;
+				int parent = parents[i];
+				if (parent >= 0) {
+					sizes[parent] += sizes[i];
+					if (pinned[i])
+						pinned[parent] = true;
+				}
+			}
+
+			// Assign remaining detections (along with their descendants) to units that are stored spatially
+			skeletonIndex = new int[n];
+			Arrays.fill(skeletonIndex, -1);
+			var skeletonList = new ArrayList<Integer>();
+			int i = 0;
+			while (i < n) {
+				if (pinned[i]) {
+					skeletonIndex[i] = skeletonList.size();
+					skeletonList.add(i);
+					i++;
+				} else {
+					units.add(new int[] {i, i + sizes[i]});
+					i += sizes[i];
+				}
+			}
+			skeleton = skeletonList.stream().mapToInt(Integer::intValue).toArray();
+		}
+
+		/**
+		 * Group detection units into chunks, sorted by plane and then spatially.
+		 */
+		List<ChunkLayout> createDetectionChunks() {
+			if (units.isEmpty())
+				return Collections.emptyList();
+			int nUnits = units.size();
+			double[] bounds = new double[nUnits * 4];
+			int[] z = new int[nUnits];
+			int[] t = new int[nUnits];
+			double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int u = 0; u < nUnits; u++) {
+				var unit = units.get(u);
+				double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+				double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+				for (int i = unit[0]; i < unit[1]; i++) {
+					var roi = objects.get(i).getROI();
+					if (roi == null)
+						continue;
+					if (i == unit[0]) {
+						z[u] = roi.getZ();
+						t[u] = roi.getT();
+					}
+					x1 = Math.min(x1, roi.getBoundsX());
+					y1 = Math.min(y1, roi.getBoundsY());
+					x2 = Math.max(x2, roi.getBoundsX() + roi.getBoundsWidth());
+					y2 = Math.max(y2, roi.getBoundsY() + roi.getBoundsHeight());
+				}
+				if (x1 > x2) {
+					x1 = x2 = y1 = y2 = 0;
+				}
+				bounds[u*4] = x1;
+				bounds[u*4+1] = y1;
+				bounds[u*4+2] = x2;
+				bounds[u*4+3] = y2;
+				minX = Math.min(minX, (x1 + x2) / 2);
+				minY = Math.min(minY, (y1 + y2) / 2);
+				maxX = Math.max(maxX, (x1 + x2) / 2);
+				maxY = Math.max(maxY, (y1 + y2) / 2);
+			}
+
+			// Sort by plane, then by position along a Z-order curve
+			long[] keys = new long[nUnits];
+			double scaleX = maxX > minX ? 65535.0 / (maxX - minX) : 0;
+			double scaleY = maxY > minY ? 65535.0 / (maxY - minY) : 0;
+			for (int u = 0; u < nUnits; u++) {
+				int x = (int)(((bounds[u*4] + bounds[u*4+2]) / 2 - minX) * scaleX);
+				int y = (int)(((bounds[u*4+1] + bounds[u*4+3]) / 2 - minY) * scaleY);
+				keys[u] = interleaveBits(x, y);
+			}
+			Integer[] order = new Integer[nUnits];
+			for (int u = 0; u < nUnits; u++)
+				order[u] = u;
+			Arrays.sort(order, Comparator.<Integer>comparingInt(u -> t[u])
+					.thenComparingInt(u -> z[u])
+					.thenComparingLong(u -> keys[u]));
+
+			// Create chunks, without splitting units or mixing planes
+			List<ChunkLayout> chunks = new ArrayList<>();
+			List<Integer> current = new ArrayList<>();
+			int count = 0;
+			for (int u : order) {
+				var unit = units.get(u);
+				int size = unit[1] - unit[0];
+				if (!current.isEmpty()) {
+					int first = current.get(0);
+					if (count + size > CHUNK_SIZE || z[first] != z[u] || t[first] != t[u]) {
+						chunks.add(createChunk(current, count, bounds, z, t));
+						current.clear();
+						count = 0;
+					}
+				}
+				current.add(u);
+				count += size;
+			}
+			chunks.add(createChunk(current, count, bounds, z, t));
+			return chunks;
+		}
+
+		private ChunkLayout createChunk(List<Integer> unitIndices, int count, double[] bounds, int[] z, int[] t) {
+			int[] members = new int[count];
+			int ind = 0;
+			double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+			double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+			for (int u : unitIndices) {
+				var unit = units.get(u);
+				for (int i = unit[0]; i < unit[1]; i++)
+					members[ind++] = i;
+				x1 = Math.min(x1, bounds[u*4]);
+				y1 = Math.min(y1, bounds[u*4+1]);
+				x2 = Math.max(x2, bounds[u*4+2]);
+				y2 = Math.max(y2, bounds[u*4+3]);
+			}
+			int first = unitIndices.get(0);
+			return new ChunkLayout(members, z[first], t[first], x1, y1, x2, y2);
+		}
+
+		/**
+		 * Interleave the lower 16 bits of x and y, to give a position along a Z-order (Morton) curve.
+		 */
+		private static long interleaveBits(int x, int y) {
+			long result = 0;
+			for (int b = 0; b < 16; b++) {
+				result |= (long)((x >> b) & 1) << (2*b);
+				result |= (long)((y >> b) & 1) << (2*b + 1);
+			}
+			return result;
+		}
+
+	}
+
+
+	/**
+	 * Objects to be written to a single chunk, identified by their depth-first indices.
+	 */
+	private static class ChunkLayout {
+
+		private final int[] members;
+		private final boolean spatial;
+		private final int z;
+		private final int t;
+		private final double minX;
+		private final double minY;
+		private final double maxX;
+		private final double maxY;
+
+		ChunkLayout(int[] members) {
+			this.members = members;
+			this.spatial = false;
+			this.z = -1;
+			this.t = -1;
+			this.minX = minY = maxX = maxY = Double.NaN;
+		}
+
+		ChunkLayout(int[] members, int z, int t, double minX, double minY, double maxX, double maxY) {
+			this.members = members;
+			this.spatial = true;
+			this.z = z;
+			this.t = t;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+	}
+
+
+	/**
+	 * Compressed bytes for a chunk, along with the uncompressed length.
+	 */
+	private static class EncodedChunk {
+
+		private final int rawLength;
+		private final byte[] bytes;
+
+		EncodedChunk(int rawLength, byte[] bytes) {
+			this.rawLength = rawLength;
+			this.bytes = bytes;
+		}
+
+	}
+
+
+	/**
+	 * Encode objects for a single chunk.
+	 * Strings, classifications and lists of measurement names are written to tables at the start of the chunk,
+	 * so that each is written only once.
+	 */
+	private static class ChunkEncoder {
+
+		private final Map<String, Integer> strings = new LinkedHashMap<>();
+		private final Map<PathClass, Integer> pathClasses = new LinkedHashMap<>();
+		private final Map<List<String>, Integer> schemas = new HashMap<>();
+		private final List<int[]> schemaList = new ArrayList<>();
+
+		private final ByteBlock structure = new ByteBlock(CHUNK_SIZE * 64);
+		private final ByteBlock coordinates = new ByteBlock(CHUNK_SIZE * 256);
+		private final ByteBlock measurements = new ByteBlock(CHUNK_SIZE * 64);
+
+		private int nObjects = 0;
+
+		void writeObject(PathObject pathObject, int parent, int ordinal) throws IOException {
+			nObjects++;
+			structure.writeInt(parent);
+			structure.writeInt(ordinal);
+			structure.writeByte(TYPES.get(pathObject.getClass()));
+			var id = pathObject.getID();
+			structure.writeLong(id.getMostSignificantBits());
+			structure.writeLong(id.getLeastSignificantBits());
+
+			String name = pathObject.getName();
+			Integer color = pathObject.getColor();
+			double probability = pathObject.getClassProbability();
+			Map<String, String> metadata = getMetadata(pathObject);
+			MeasurementList ml = pathObject.hasMeasurements() ? pathObject.getMeasurementList() : null;
+			double[] values = null;
+			boolean doubleMeasurements = false;
+			if (ml != null && !ml.isEmpty()) {
+				var names = ml.getMeasurementNames();
+				values = ml.values();
+				if (values.length != names.size()) {
+					values = new double[names.size()];
+					for (int i = 0; i < values.length; i++)
+						values[i] = ml.get(names.get(i));
+				}
+				for (double v : values) {
+					if (!Double.isNaN(v) && (double)(float)v != v) {
+						doubleMeasurements = true;
+						break;
+					}
+				}
+				measurements.writeInt(schemaIndex(names));
+			} else
+				measurements.writeInt(-1);
+
+			int flags = 0;
+			if (name != null)
+				flags |= FLAG_NAME;
+			if (color != null)
+				flags |= FLAG_COLOR;
+			if (pathObject.isLocked())
+				flags |= FLAG_LOCKED;
+			if (!Double.isNaN(probability))
+				flags |= FLAG_PROBABILITY;
+			if (doubleMeasurements)
+				flags |= FLAG_DOUBLE_MEASUREMENTS;
+			if (pathObject instanceof TMACoreObject && ((TMACoreObject)pathObject).isMissing())
+				flags |= FLAG_MISSING;
+			if (!metadata.isEmpty())
+				flags |= FLAG_METADATA;
+			structure.writeByte(flags);
+
+			if (name != null)
+				structure.writeInt(stringIndex(name));
+			if (color != null)
+				structure.writeInt(color);
+			var pathClass = pathObject.getPathClass();
+			structure.writeInt(pathClass == null || pathClass == PathClass.NULL_CLASS ? -1 : pathClassIndex(pathClass));
+			if (!Double.isNaN(probability))
+				structure.writeDouble(probability);
+			if (!metadata.isEmpty()) {
+				structure.writeInt(metadata.size());
+				for (var entry : metadata.entrySet()) {
+					structure.writeInt(stringIndex(entry.getKey()));
+					structure.writeInt(stringIndex(entry.getValue()));
+				}
+			}
+
+			writeROI(pathObject.getROI());
+			if (pathObject instanceof PathCellObject)
+				writeROI(((PathCellObject)pathObject).getNucleusROI());
+
+			if (values != null) {
+				if (doubleMeasurements) {
+					for (double v : values)
+						measurements.writeDouble(v);
+				} else {
+					for (double v : values)
+						measurements.writeFloat((float)v);
+				}
+			}
+		}
+
+		private static Map<String, String> getMetadata(PathObject pathObject) {
+			if (pathObject instanceof MetadataStore)
+				return ((MetadataStore)pathObject).getMetadataMap();
+			if (pathObject instanceof PathAnnotationObject) {
+				String description = ((PathAnnotationObject)pathObject).getDescription();
+				if (description != null)
+					return Map.of(PathAnnotationObject.class.getName(), description);
+			}
+			return Map.of();
+		}
+
+		private void writeROI(ROI roi) throws IOException {
+			if (roi == null) {
+				structure.writeByte(ROI_NONE);
+				return;
+			}
+			var cls = roi.getClass();
+			if (cls == RectangleROI.class || cls == EllipseROI.class) {
+				structure.writeByte(cls == RectangleROI.class ? ROI_RECTANGLE : ROI_ELLIPSE);
+				writePlane(roi);
+				coordinates.writeDouble(roi.getBoundsX());
+				coordinates.writeDouble(roi.getBoundsY());
+				coordinates.writeDouble(roi.getBoundsWidth());
+				coordinates.writeDouble(roi.getBoundsHeight());
+			} else if (cls == LineROI.class) {
+				var line = (LineROI)roi;
+				structure.writeByte(ROI_LINE);
+				writePlane(roi);
+				coordinates.writeDouble(line.getX1());
+				coordinates.writeDouble(line.getY1());
+				coordinates.writeDouble(line.getX2());
+				coordinates.writeDouble(line.getY2());
+			} else if (cls == PolygonROI.class || cls == PolylineROI.class || cls == PointsROI.class) {
+				// Vertices are stored as floats internally, so we don't lose precision here.
+				// We write the difference between the bits of consecutive values: this is exactly reversible, 
+				// but nearby coordinates share their high bits - which makes the output much more compressible.
+				structure.writeByte(cls == PolygonROI.class ? ROI_POLYGON : cls == PolylineROI.class ? ROI_POLYLINE : ROI_POINTS);
+				writePlane(roi);
+				var points = roi.getAllPoints();
+				structure.writeInt(points.size());
+				int lastX = 0, lastY = 0;
+				for (var p : points) {
+					int x = Float.floatToRawIntBits((float)p.getX());
+					int y = Float.floatToRawIntBits((float)p.getY());
+					coordinates.writeInt(x - lastX);
+					coordinates.writeInt(y - lastY);
+					lastX = x;
+					lastY = y;
+				}
+			} else {
+				structure.writeByte(ROI_SERIALIZED);
+				var bytes = new ByteArrayOutputStream();
+				try (var stream = new ObjectOutputStream(bytes)) {
+					stream.writeObject(roi);
+				}
+				structure.writeInt(bytes.size());
+				structure.write(bytes.toByteArray());
+			}
+		}
+
+		private void writePlane(ROI roi) throws IOException {
+			structure.writeInt(roi.getC());
+			structure.writeInt(roi.getZ());
+			structure.writeInt(roi.getT());
+		}
+
+		private int stringIndex(String s) {
+			return strings.computeIfAbsent(s, k -> strings.size());
+		}
+
+		private int pathClassIndex(PathClass pathClass) {
+			var ind = pathClasses.get(pathClass);
+			if (ind != null)
+				return ind;
+			// Ensure the parent is added first
+			if (pathClass.getParentClass() != null)
+				pathClassIndex(pathClass.getParentClass());
+			stringIndex(pathClass.getName());
+			ind = pathClasses.size();
+			pathClasses.put(pathClass, ind);
+			return ind;
+		}
+
+		private int schemaIndex(List<String> names) {
+			var ind = schemas.get(names);
+			if (ind != null)
+				return ind;
+			int[] nameIndices = names.stream().mapToInt(n -> stringIndex(n)).toArray();
+			ind = schemaList.size();
+			schemaList.add(nameIndices);
+			schemas.put(List.copyOf(names), ind);
+			return ind;
+		}
+
+		byte[] toBytes() {
+			var out = new ByteBlock(structure.size() + coordinates.size() + measurements.size() + 4096);
+			out.writeInt(strings.size());
+			for (var s : strings.keySet()) {
+				byte[] b = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			out.writeInt(pathClasses.size());
+			for (var pathClass : pathClasses.keySet()) {
+				var parent = pathClass.getParentClass();
+				out.writeInt(parent == null ? -1 : pathClasses.get(parent));
+				out.writeInt(strings.get(pathClass.getName()));
+				out.writeInt(pathClass.getColor() == null ? 0 : pathClass.getColor());
+			}
+			out.writeInt(schemaList.size());
+			for (var schema : schemaList) {
+				out.writeInt(schema.length);
+				for (int s : schema)
+					out.writeInt(s);
+			}
+			out.writeInt(nObjects);
+			out.writeInt(structure.size());
+			out.writeInt(coordinates.size());
+			out.writeInt(measurements.size());
+			out.write(structure);
+			out.write(coordinates);
+			out.write(measurements);
+			return out.toByteArray();
+		}
+
+	}
+
+
+	/**
+	 * Growable buffer for writing primitives.
+	 * This avoids the overhead of writing individual bytes through a stream.
+	 */
+	private static class ByteBlock {
+
+		private ByteBuffer buffer;
+
+		ByteBlock(int capacity) {
+			buffer = ByteBuffer.allocate(capacity);
+		}
+
+		private ByteBuffer ensureRemaining(int n) {
+			if (buffer.remaining() < n) {
+				int capacity = Math.max(buffer.capacity() * 2, buffer.position() + n);
+				var temp = ByteBuffer.allocate(capacity);
+				buffer.flip();
+				temp.put(buffer);
+				buffer = temp;
+			}
+			return buffer;
+		}
+
+		void writeByte(int value) {
+			ensureRemaining(1).put((byte)value);
+		}
+
+		void writeInt(int value) {
+			ensureRemaining(Integer.BYTES).putInt(value);
+		}
+
+		void writeLong(long value) {
+			ensureRemaining(Long.BYTES).putLong(value);
+		}
+
+		void writeFloat(float value) {
+			ensureRemaining(Float.BYTES).putFloat(value);
+		}
+
+		void writeDouble(double value) {
+			ensureRemaining(Double.BYTES).putDouble(value);
+		}
+
+		void write(byte[] bytes) {
+			ensureRemaining(bytes.length).put(bytes);
+		}
+
+		void write(ByteBlock block) {
+			ensureRemaining(block.size()).put(block.buffer.array(), 0, block.size());
+		}
+
+		int size() {
+			return buffer.position();
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer.array(), buffer.position());
+		}
+
+	}
+
+
+	/**
+	 * Decode objects from a single (decompressed) chunk.
+	 */
+	private static class ChunkDecoder {
+
+		private final ByteBuffer header;
+		private ByteBuffer structure;
+		private ByteBuffer coordinates;
+		private ByteBuffer measurements;
+
+		private String[] strings;
+		private PathClass[] pathClasses;
+		private String[][] schemas;
+
+		private int nObjects;
+		private ColumnarMeasurementStore measurementStore;
+
+		ChunkDecoder(byte[] raw) {
+			this.header = ByteBuffer.wrap(raw);
+		}
+
+		void readObjects(DecodedChunk chunk) throws IOException {
+			strings = new String[header.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] b = new byte[header.getInt()];
+				header.get(b);
+				strings[i] = new String(b, StandardCharsets.UTF_8);
+			}
+			pathClasses = new PathClass[header.getInt()];
+			for (int i = 0; i < pathClasses.length; i++) {
+				int parent = header.getInt();
+				String name = strings[header.getInt()];
+				int color = header.getInt();
+				pathClasses[i] = PathClass.getInstance(parent < 0 ? null : pathClasses[parent], name, color);
+			}
+			schemas = new String[header.getInt()][];
+			for (int i = 0; i < schemas.length; i++) {
+				var names = new String[header.getInt()];
+				for (int j = 0; j < names.length; j++)
+					names[j] = strings[header.getInt()];
+				schemas[i] = names;
+			}
+			int n = header.getInt();
+			int structureLength = header.getInt();
+			int coordinateLength = header.getInt();
+			int measurementLength = header.getInt();
+			structure = slice(structureLength);
+			coordinates = slice(coordinateLength);
+			measurements = slice(measurementLength);
+
+			if (n != chunk.objects.length)
+				throw new IOException("Binary hierarchy chunk is corrupt - expected " + chunk.objects.length + " objects, but found " + n);
+			nObjects = n;
+			for (int i = 0; i < n; i++) {
+				chunk.parents[i] = structure.getInt();
+				chunk.ordinals[i] = structure.getInt();
+				chunk.objects[i] = readObject();
+			}
+		}
+
+		private ColumnarMeasurementStore getMeasurementStore() {
+			if (measurementStore == null)
+				measurementStore = new ColumnarMeasurementStore(nObjects);
+			return measurementStore;
+		}
+
+		private ByteBuffer slice(int length) {
+			var slice = header.slice().limit(length);
+			header.position(header.position() + length);
+			return slice;
+		}
+
+		/**
+		 * Read the next object, after its parent and ordinal.
+		 */
+		private PathObject readObject() throws IOException {
+			byte type = structure.get();
+			var id = new UUID(structure.getLong(), structure.getLong());
+			int flags = structure.get() & 0xFF;
+			String name = (flags & FLAG_NAME) != 0 ? strings[structure.getInt()] : null;
+			Integer color = (flags & FLAG_COLOR) != 0 ? structure.getInt() : null;
+			int pathClassIndex = structure.getInt();
+			var pathClass = pathClassIndex < 0 ? null : pathClasses[pathClassIndex];
+			double probability = (flags & FLAG_PROBABILITY) != 0 ? structure.getDouble() : Double.NaN;
+			Map<String, String> metadata = Map.of();
+			if ((flags & FLAG_METADATA) != 0) {
+				int nMetadata = structure.getInt();
+				metadata = new LinkedHashMap<>();
+				for (int i = 0; i < nMetadata; i++)
+					metadata.put(strings[structure.getInt()], strings[structure.getInt()]);
+			}
+			var roi = readROI();
+
+			MeasurementList ml = null;
+			int schema = measurements.getInt();
+			if (schema >= 0) {
+				var names = schemas[schema];
+				boolean isDouble = (flags & FLAG_DOUBLE_MEASUREMENTS) != 0;
+				// Detections are usually numerous, so store their (float) measurements in columns shared by the chunk
+				if (!isDouble && (type == TYPE_DETECTION || type == TYPE_TILE || type == TYPE_CELL))
+					ml = getMeasurementStore().createMeasurementList();
+				else
+					ml = MeasurementListFactory.createMeasurementList(names.length, isDouble ? MeasurementListType.DOUBLE : MeasurementListType.FLOAT);
+				for (var measurementName : names)
+					ml.put(measurementName, isDouble ? measurements.getDouble() : measurements.getFloat());
+				ml.close();
+			}
+
+			PathObject pathObject;
+			switch (type) {
+			case TYPE_ROOT:
+				pathObject = new PathRootObject();
+				if (ml != null) {
+					pathObject.getMeasurementList().putAll(ml);
+					pathObject.getMeasurementList().close();
+				}
+				break;
+			case TYPE_ANNOTATION:
+				pathObject = PathObjects.createAnnotationObject(roi, pathClass, ml);
+				var description = metadata.get(PathAnnotationObject.class.getName());
+				if (description != null)
+					((PathAnnotationObject)pathObject).setDescription(description);
+				break;
+			case TYPE_DETECTION:
+				pathObject = PathObjects.createDetectionObject(roi, pathClass, ml);
+				break;
+			case TYPE_TILE:
+				pathObject = PathObjects.createTileObject(roi, pathClass, ml);
+				break;
+			case TYPE_CELL:
+				var nucleus = readROI();
+				pathObject = PathObjects.createCellObject(roi, nucleus, pathClass, ml);
+				break;
+			case TYPE_TMA_CORE:
+				var core = PathObjects.createTMACoreObject(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight(),
+						(flags & FLAG_MISSING) != 0, roi.getImagePlane());
+				core.setROI(roi);
+				for (var entry : metadata.entrySet())
+					core.putMetadataValue(entry.getKey(), entry.getValue());
+				if (ml != null) {
+					core.getMeasurementList().putAll(ml);
+					core.getMeasurementList().close();
+				}
+				pathObject = core;
+				break;
+			default:
+				throw new IOException("Unknown object type " + type);
+			}
+			if (!pathObject.isRootObject()) {
+				pathObject.setID(id);
+				if (pathClass != null || !Double.isNaN(probability))
+					pathObject.setPathClass(pathClass, probability);
+				if ((flags & FLAG_LOCKED) != 0)
+					pathObject.setLocked(true);
+			}
+			pathObject.setName(name);
+			pathObject.setColor(color);
+			return pathObject;
+		}
+
+		private ROI readROI() throws IOException {
+			byte type = structure.get();
+			switch (type) {
+			case ROI_NONE:
+				return null;
+			case ROI_RECTANGLE:
+			case ROI_ELLIPSE:
+				var plane = readPlane();
+				double x = coordinates.getDouble();
+				double y = coordinates.getDouble();
+				double w = coordinates.getDouble();
+				double h = coordinates.getDouble();
+				return type == ROI_RECTANGLE ? ROIs.createRectangleROI(x, y, w, h, plane) : ROIs.createEllipseROI(x, y, w, h, plane);
+			case ROI_LINE:
+				plane = readPlane();
+				return ROIs.createLineROI(coordinates.getDouble(), coordinates.getDouble(), coordinates.getDouble(), coordinates.getDouble(), plane);
+			case ROI_POLYGON:
+			case ROI_POLYLINE:
+			case ROI_POINTS:
+				plane = readPlane();
+				int n = structure.getInt();
+				double[] xx = new double[n];
+				double[] yy = new double[n];
+				int lastX = 0, lastY = 0;
+				for (int i = 0; i < n; i++) {
+					lastX += coordinates.getInt();
+					lastY += coordinates.getInt();
+					xx[i] = Float.intBitsToFloat(lastX);
+					yy[i] = Float.intBitsToFloat(lastY);
+				}
+				if (type == ROI_POLYGON)
+					return ROIs.createPolygonROI(xx, yy, plane);
+				else if (type == ROI_POLYLINE)
+					return ROIs.createPolylineROI(xx, yy, plane);
+				else
+					return ROIs.createPointsROI(xx, yy, plane);
+			case ROI_SERIALIZED:
+				byte[] bytes = new byte[structure.getInt()];
+				structure.get(bytes);
+				try (var stream = PathIO.createObjectInputStream(new ByteArrayInputStream(bytes))) {
+					return (ROI)stream.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Unable to read ROI", e);
+				}
+			default:
+				throw new IOException("Unknown ROI type " + type + " - data may be corrupt");
+			}
+		}
+
+		private ImagePlane readPlane() throws IOException {
+			return ImagePlane.getPlaneWithChannel(structure.getInt(), structure.getInt(), structure.getInt());
+		}
+
+	}
+
+}
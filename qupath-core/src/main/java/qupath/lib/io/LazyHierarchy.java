@@ -0,0 +1,490 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingInputStream;
+
+import qupath.lib.io.BinaryHierarchyIO.ChunkInfo;
+import qupath.lib.io.BinaryHierarchyIO.Children;
+import qupath.lib.io.BinaryHierarchyIO.DecodedChunk;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * A read-only view of an object hierarchy stored in a .qpdata file, where detections are loaded on demand.
+ * <p>
+ * Data files written using the binary hierarchy format store most detections in spatially-grouped chunks.
+ * All other objects (including annotations and TMA cores) are read immediately into the {@link PathObjectHierarchy}
+ * returned by {@link #getHierarchy()}, but these detections are only read whenever they are requested for a region
+ * using {@link #getObjectsForRegion(Class, ImageRegion, Collection)}.
+ * The file position of each chunk is recorded when the hierarchy is first read, so that chunks can be read directly
+ * without scanning the file again.
+ * Chunks that have been read are cached using soft references, so that they can be discarded under memory pressure
+ * and read again if required.
+ * <p>
+ * Detections read on demand are not added to the hierarchy, and detections that would be direct children of objects
+ * in the hierarchy are returned without a parent (use {@link #getParent(PathObject)} to find it).
+ * Any changes made to these objects cannot be saved; {@link #readFullHierarchy()} should be used whenever the full
+ * hierarchy is needed.
+ * <p>
+ * Data files written using Java serialization cannot be read lazily, and so the full hierarchy is read immediately.
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ * @see PathIO#readLazyHierarchy(Path)
+ */
+public class LazyHierarchy {
+
+	private static final Logger logger = LoggerFactory.getLogger(LazyHierarchy.class);
+
+	private final Path path;
+	private final FileTime lastModified;
+	private final PathObjectHierarchy hierarchy;
+	private final PathObject[] skeleton;
+	private final List<ChunkInfo> chunks;
+	private final List<BlockPosition> chunkPositions;
+	private final int nDeferredObjects;
+
+	private final Map<Integer, SoftReference<LoadedChunk>> cache = new HashMap<>();
+
+	private LazyHierarchy(Path path, FileTime lastModified, PathObjectHierarchy hierarchy, PathObject[] skeleton, 
+			List<ChunkInfo> chunks, List<BlockPosition> chunkPositions, int nDeferredObjects) {
+		this.path = path;
+		this.lastModified = lastModified;
+		this.hierarchy = hierarchy;
+		this.skeleton = skeleton;
+		this.chunks = chunks;
+		this.chunkPositions = chunkPositions;
+		this.nDeferredObjects = nDeferredObjects;
+	}
+
+	/**
+	 * Create a lazy hierarchy that wraps a hierarchy that has already been read in full.
+	 * This can be used whenever lazy loading is not possible, to provide the same API.
+	 * @param hierarchy
+	 * @return
+	 */
+	public static LazyHierarchy create(PathObjectHierarchy hierarchy) {
+		Objects.requireNonNull(hierarchy);
+		return new LazyHierarchy(null, null, hierarchy, null, Collections.emptyList(), Collections.emptyList(), 0);
+	}
+
+	/**
+	 * Read a lazy hierarchy from a .qpdata file.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	static LazyHierarchy read(Path path) throws IOException {
+		var lastModified = Files.getLastModifiedTime(path);
+		long start;
+		try (var counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)));
+				var inStream = PathIO.createObjectInputStream(counter)) {
+			var input = PathIO.seekHierarchy(inStream);
+			if (input instanceof PathObjectHierarchy) {
+				logger.debug("Hierarchy in {} is serialized - cannot read lazily", path);
+				return new LazyHierarchy(path, lastModified, (PathObjectHierarchy)input, null, 
+						Collections.emptyList(), Collections.emptyList(), 0);
+			}
+			if (!BinaryHierarchyIO.MARKER.equals(input))
+				throw new IOException("Unable to find object hierarchy in " + path);
+			// The object input stream doesn't read beyond the marker, so this is where the binary hierarchy starts
+			start = counter.getCount();
+		}
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var blockStream = new BlockDataInputStream(channel);
+			blockStream.seek(new BlockPosition(start, 0));
+			var in = new DataInputStream(blockStream);
+			var header = BinaryHierarchyIO.readHeader(in);
+			var skeleton = BinaryHierarchyIO.readSkeleton(in, header);
+			var hierarchy = BinaryHierarchyIO.createHierarchy(header, skeleton, Collections.emptyList());
+			// Record the information & position for each detection chunk, skipping the contents
+			List<ChunkInfo> chunks = new ArrayList<>();
+			List<BlockPosition> positions = new ArrayList<>();
+			BinaryHierarchyIO.readChunks(in, header.nDetectionChunks, true, c -> {
+				chunks.add(c);
+				positions.add(blockStream.getPosition());
+				return false;
+			});
+			logger.debug("Deferred reading {} detections in {} chunks", header.nDetectionObjects, chunks.size());
+			return new LazyHierarchy(path, lastModified, hierarchy, skeleton.objects,
+					Collections.unmodifiableList(chunks), Collections.unmodifiableList(positions), header.nDetectionObjects);
+		}
+	}
+
+	/**
+	 * Get the hierarchy containing all objects that were read immediately.
+	 * This includes all annotations and TMA cores, but might not include all detections.
+	 * @return
+	 * @see #hasDeferredObjects()
+	 */
+	public PathObjectHierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * Get the number of objects that are not included in {@link #getHierarchy()}, but which can be read on demand.
+	 * @return
+	 */
+	public int nDeferredObjects() {
+		return nDeferredObjects;
+	}
+
+	/**
+	 * Query whether any objects are not included in {@link #getHierarchy()}.
+	 * If this returns false, then the hierarchy is complete.
+	 * @return
+	 */
+	public boolean hasDeferredObjects() {
+		return nDeferredObjects > 0;
+	}
+
+	/**
+	 * Get the objects overlapping or close to a specified region, reading detections on demand.
+	 * This includes objects from {@link #getHierarchy()} as well as deferred objects.
+	 * <p>
+	 * As with {@link PathObjectHierarchy#getObjectsForRegion(Class, ImageRegion, Collection)}, this performs a
+	 * quick check using the ROI bounds; the results typically should be filtered if a more strict test for
+	 * overlapping is applied.
+	 *
+	 * @param cls class of object to return (subclasses are included), or null if all objects should be returned
+	 * @param region requested region overlapping the objects ROI; this must not be null (use {@link #readFullHierarchy()} 
+	 *               to get all objects)
+	 * @param pathObjects optionally collection to which objects will be added
+	 * @return collection containing identified objects (same as the input collection, if provided)
+	 * @throws IOException if deferred objects could not be read
+	 */
+	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects) throws IOException {
+		Objects.requireNonNull(region, "Region must not be null - use readFullHierarchy() to get all objects");
+		if (pathObjects == null)
+			pathObjects = new ArrayList<>();
+		hierarchy.getObjectsForRegion(cls, region, pathObjects);
+		for (var chunk : getChunks(region)) {
+			for (var pathObject : chunk.objects) {
+				if (cls != null && !cls.isInstance(pathObject))
+					continue;
+				var roi = pathObject.getROI();
+				if (roi == null || roi.getZ() != region.getZ() || roi.getT() != region.getT())
+					continue;
+				if (roi.getBoundsX() <= region.getMaxX() && roi.getBoundsX() + roi.getBoundsWidth() >= region.getMinX() &&
+						roi.getBoundsY() <= region.getMaxY() && roi.getBoundsY() + roi.getBoundsHeight() >= region.getMinY())
+					pathObjects.add(pathObject);
+			}
+		}
+		return pathObjects;
+	}
+
+	/**
+	 * Get the parent of an object.
+	 * This is equivalent to {@link PathObject#getParent()}, except that it can also return the parent for
+	 * detections that were read on demand.
+	 * @param pathObject
+	 * @return the parent object, or null if no parent could be found
+	 */
+	public PathObject getParent(PathObject pathObject) {
+		var parent = pathObject.getParent();
+		if (parent != null)
+			return parent;
+		synchronized (this) {
+			for (var ref : cache.values()) {
+				var chunk = ref.get();
+				if (chunk != null) {
+					parent = chunk.parents.get(pathObject);
+					if (parent != null)
+						return parent;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the full hierarchy, containing all objects.
+	 * If there are no deferred objects, this returns the same hierarchy as {@link #getHierarchy()};
+	 * otherwise, a new hierarchy is read from the data file.
+	 * @return
+	 * @throws IOException
+	 */
+	public PathObjectHierarchy readFullHierarchy() throws IOException {
+		if (!hasDeferredObjects())
+			return hierarchy;
+		checkUnchanged();
+		return PathIO.readHierarchy(path);
+	}
+
+	/**
+	 * Get the number of chunks containing deferred objects.
+	 * @return
+	 */
+	int nChunks() {
+		return chunks.size();
+	}
+
+	/**
+	 * Get the number of chunks that are currently cached.
+	 * @return
+	 */
+	synchronized int nCachedChunks() {
+		return (int)cache.values().stream().filter(r -> r.get() != null).count();
+	}
+
+	private synchronized List<LoadedChunk> getChunks(ImageRegion region) throws IOException {
+		List<LoadedChunk> list = new ArrayList<>();
+		var missing = new BitSet();
+		for (int i = 0; i < chunks.size(); i++) {
+			if (!chunks.get(i).intersects(region))
+				continue;
+			var ref = cache.get(i);
+			var chunk = ref == null ? null : ref.get();
+			if (chunk == null)
+				missing.set(i);
+			else
+				list.add(chunk);
+		}
+		if (!missing.isEmpty())
+			list.addAll(readChunks(missing));
+		return list;
+	}
+
+	private List<LoadedChunk> readChunks(BitSet indices) throws IOException {
+		checkUnchanged();
+		logger.debug("Reading {} chunks from {}", indices.cardinality(), path);
+		List<ChunkInfo> infos = new ArrayList<>();
+		List<byte[]> compressed = new ArrayList<>();
+		try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// Read each chunk from its recorded position
+			var blockStream = new BlockDataInputStream(channel);
+			var in = new DataInputStream(blockStream);
+			for (int ind = indices.nextSetBit(0); ind >= 0; ind = indices.nextSetBit(ind+1)) {
+				var info = chunks.get(ind);
+				blockStream.seek(chunkPositions.get(ind));
+				byte[] bytes = new byte[info.compressedLength];
+				in.readFully(bytes);
+				infos.add(info);
+				compressed.add(bytes);
+			}
+		}
+		var decoded = BinaryHierarchyIO.decodeChunks(infos, compressed);
+		List<LoadedChunk> list = new ArrayList<>();
+		int i = 0;
+		for (int ind = indices.nextSetBit(0); ind >= 0; ind = indices.nextSetBit(ind+1)) {
+			var chunk = new LoadedChunk(decoded.get(i++), skeleton);
+			cache.put(ind, new SoftReference<>(chunk));
+			list.add(chunk);
+		}
+		return list;
+	}
+
+	private void checkUnchanged() throws IOException {
+		if (!Files.getLastModifiedTime(path).equals(lastModified))
+			throw new IOException(path + " has been modified since the hierarchy was read");
+	}
+
+
+	/**
+	 * Position within the block data written by an {@link java.io.ObjectOutputStream}.
+	 */
+	private static class BlockPosition {
+
+		// Position within the file
+		private final long offset;
+		// Number of bytes remaining in the current block, or 0 if the next block header is at the offset
+		private final int blockRemaining;
+
+		private BlockPosition(long offset, int blockRemaining) {
+			this.offset = offset;
+			this.blockRemaining = blockRemaining;
+		}
+
+	}
+
+
+	/**
+	 * Input stream to read the primitive data written by an {@link java.io.ObjectOutputStream} directly from a file.
+	 * This data is stored in blocks, each preceded by a short header; the position within the file and the current 
+	 * block is tracked, so that reading can later restart from a recorded position.
+	 * The stream ends when something other than block data is found.
+	 */
+	private static class BlockDataInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		// Position of the start of the buffer within the file
+		private long bufferOffset;
+		private int blockRemaining;
+
+		private BlockDataInputStream(FileChannel channel) {
+			this.channel = channel;
+			buffer.limit(0);
+		}
+
+		BlockPosition getPosition() {
+			return new BlockPosition(bufferOffset + buffer.position(), blockRemaining);
+		}
+
+		void seek(BlockPosition position) {
+			long offset = position.offset;
+			if (offset >= bufferOffset && offset <= bufferOffset + buffer.limit())
+				buffer.position((int)(offset - bufferOffset));
+			else {
+				bufferOffset = offset;
+				buffer.limit(0);
+			}
+			blockRemaining = position.blockRemaining;
+		}
+
+		private boolean fill() throws IOException {
+			if (buffer.hasRemaining())
+				return true;
+			bufferOffset += buffer.limit();
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, bufferOffset + buffer.position()) < 0)
+					break;
+			}
+			buffer.flip();
+			return buffer.hasRemaining();
+		}
+
+		private int readRaw() throws IOException {
+			if (!fill())
+				throw new EOFException("Unexpected end of file");
+			return buffer.get() & 0xff;
+		}
+
+		/**
+		 * Ensure there are bytes remaining in the current block, reading the next block header if needed.
+		 * @return true if there are bytes remaining, false if the block data has ended
+		 */
+		private boolean nextBlock() throws IOException {
+			while (blockRemaining == 0) {
+				if (!fill())
+					return false;
+				int tc = buffer.get(buffer.position());
+				if (tc == ObjectStreamConstants.TC_BLOCKDATA) {
+					buffer.get();
+					blockRemaining = readRaw();
+				} else if (tc == ObjectStreamConstants.TC_BLOCKDATALONG) {
+					buffer.get();
+					blockRemaining = (readRaw() << 24) | (readRaw() << 16) | (readRaw() << 8) | readRaw();
+				} else
+					return false;
+			}
+			if (!fill())
+				throw new EOFException("Unexpected end of file");
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextBlock())
+				return -1;
+			blockRemaining--;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextBlock())
+				return -1;
+			int n = Math.min(len, Math.min(blockRemaining, buffer.remaining()));
+			buffer.get(b, off, n);
+			blockRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0 || !nextBlock())
+				return 0;
+			int skip = (int)Math.min(n, blockRemaining);
+			if (skip <= buffer.remaining())
+				buffer.position(buffer.position() + skip);
+			else {
+				// Jump past the end of the buffer
+				bufferOffset += buffer.position() + skip;
+				buffer.limit(0);
+			}
+			blockRemaining -= skip;
+			return skip;
+		}
+
+	}
+
+
+	/**
+	 * Objects read from a single detection chunk.
+	 */
+	private static class LoadedChunk {
+
+		private final List<PathObject> objects;
+		private final Map<PathObject, PathObject> parents = new IdentityHashMap<>();
+
+		private LoadedChunk(DecodedChunk chunk, PathObject[] skeleton) throws IOException {
+			// Link objects within the chunk, but not to objects within the skeleton
+			Map<PathObject, Children> childMap = new IdentityHashMap<>();
+			for (int i = 0; i < chunk.objects.length; i++) {
+				var pathObject = chunk.objects[i];
+				var parent = chunk.getParent(i, skeleton);
+				if (chunk.hasSkeletonParent(i))
+					parents.put(pathObject, parent);
+				else
+					childMap.computeIfAbsent(parent, p -> new Children()).add(pathObject, chunk.ordinals[i]);
+			}
+			for (var entry : childMap.entrySet())
+				entry.getKey().addChildObjects(entry.getValue().toList());
+			objects = Collections.unmodifiableList(Arrays.asList(chunk.objects));
+		}
+
+	}
+
+}
@@ -128,6 +128,35 @@ public class PathIO {
 	
 	private static int requestedDataFileVersion = DATA_FILE_VERSION - 1;
 	
+	private static boolean useBinaryHierarchy = false;
+	
+	/**
+	 * Request whether the object hierarchy should be written to .qpdata files using a compact binary format, 
+	 * rather than Java serialization.
+	 * <p>
+	 * The binary format is much faster to read and write for hierarchies containing large numbers of objects, 
+	 * but cannot be read by QuPath versions before v0.4.3.
+	 * For this reason, it is turned off by default.
+	 * Java serialization is always used if the hierarchy contains objects that the binary format does not support.
+	 * Files written in either format can be read.
+	 * 
+	 * @param useBinary
+	 * @since v0.4.3
+	 */
+	public static void setUseBinaryHierarchy(boolean useBinary) {
+		useBinaryHierarchy = useBinary;
+	}
+	
+	/**
+	 * Query whether the object hierarchy is written to .qpdata files using a compact binary format.
+	 * @return
+	 * @see #setUseBinaryHierarchy(boolean)
+	 * @since v0.4.3
+	 */
+	public static boolean getUseBinaryHierarchy() {
+		return useBinaryHierarchy;
+	}
+	
 	/**
 	 * Get the requested version for .qpdata files.
 	 * 
@@ -361,6 +390,8 @@ public class PathIO {
 						}
 					} else if (input instanceof PathObjectHierarchy)
 						hierarchy = (PathObjectHierarchy)input;
+					else if (BinaryHierarchyIO.MARKER.equals(input))
+						hierarchy = BinaryHierarchyIO.readHierarchy(inStream);
 					else if (input instanceof ImageData.ImageType)
 						imageType = (ImageData.ImageType)input;
 					else if (input instanceof String && "EOF".equals(input))  {
@@ -623,7 +654,11 @@ public class PathIO {
 			// Write the rest of the main image metadata
 			PathObjectHierarchy hierarchy = imageData.getHierarchy();
 			logger.info(String.format("Writing object hierarchy with %d object(s)...", hierarchy.nObjects()));
-			outStream.writeObject(hierarchy);
+			if (useBinaryHierarchy && BinaryHierarchyIO.canWrite(hierarchy)) {
+				outStream.writeObject(BinaryHierarchyIO.MARKER);
+				BinaryHierarchyIO.writeHierarchy(hierarchy, outStream);
+			} else
+				outStream.writeObject(hierarchy);
 			
 			// Write any remaining (serializable) properties
 			Map<String, Object> map = new HashMap<>();
@@ -682,17 +717,48 @@ public class PathIO {
 	 * @throws IOException 
 	 */
 	public static PathObjectHierarchy readHierarchy(final InputStream fileIn) throws IOException {
+		try (ObjectInputStream inStream = createObjectInputStream(new BufferedInputStream(fileIn))) {
+			Object input = seekHierarchy(inStream);
+			if (BinaryHierarchyIO.MARKER.equals(input))
+				return BinaryHierarchyIO.readHierarchy(inStream);
+			return (PathObjectHierarchy)input;
+		}
+	}
+	
+	/**
+	 * Read a hierarchy from a .qpdata file, deferring the loading of detections until they are needed whenever possible.
+	 * This can greatly reduce the time and memory required whenever only annotations, TMA cores or detections within 
+	 * specific regions are needed.
+	 * 
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 * @see LazyHierarchy
+	 * @since v0.4.3
+	 */
+	public static LazyHierarchy readLazyHierarchy(final Path path) throws IOException {
+		logger.info("Reading hierarchy lazily from {}...", path.getFileName().toString());
+		return LazyHierarchy.read(path);
+	}
+	
+	/**
+	 * Read objects from a .qpdata stream until the hierarchy is found.
+	 * 
+	 * @param inStream
+	 * @return a {@link PathObjectHierarchy} if the hierarchy was serialized, {@link BinaryHierarchyIO#MARKER} if the
+	 *         stream is positioned at the start of a binary hierarchy, or null if no hierarchy could be found
+	 * @throws IOException
+	 */
+	static Object seekHierarchy(final ObjectInputStream inStream) throws IOException {
 
 		Locale locale = Locale.getDefault(Category.FORMAT);
 		boolean localeChanged = false;
 
-		try (ObjectInputStream inStream = createObjectInputStream(new BufferedInputStream(fileIn))) {
-			
+		try {
 			if (!inStream.readUTF().startsWith("Data file version")) {
 				logger.error("Input stream is not from a valid QuPath data file!");
 			}
 			while (true) {
-				//					logger.debug("Starting read: " + inStream.available());
 				try {
 					// Try to read a relevant object from the stream
 					Object input = inStream.readObject();
@@ -711,12 +777,15 @@ public class PathIO {
 						PathObjectHierarchy hierarchy = new PathObjectHierarchy();
 						hierarchy.setHierarchy((PathObjectHierarchy)input);
 						return hierarchy;
+					} else if (BinaryHierarchyIO.MARKER.equals(input)) {
+						return input;
 					}
 
 				} catch (ClassNotFoundException e) {
 					logger.error("Unable to find class", e);
 				} catch (EOFException e) {
 					logger.error("Reached end of file unexpectedly...");
+					return null;
 				}
 			}
 		} finally {
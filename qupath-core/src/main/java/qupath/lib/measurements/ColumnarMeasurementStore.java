@@ -0,0 +1,528 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A store for numeric measurements that keeps one primitive column per measurement name,
+ * rather than one array per object.
+ * <p>
+ * Each call to {@link #createMeasurementList()} allocates a new row, and returns a {@link MeasurementList}
+ * that acts as a view onto that row.
+ * Values are stored with float precision in large chunks, so that millions of objects with dozens of
+ * measurements do not require millions of small arrays.
+ * Writing values does not require synchronization, provided each row is only written by one thread at a time.
+ * <p>
+ * Because values for the same measurement are stored contiguously, whole columns can be extracted efficiently
+ * using {@link #getValues(String)} or {@link #getValues(Collection, String)}, without looking up the name
+ * separately for each object.
+ * <p>
+ * Measurement names are returned in the order in which they were added to each list. 
+ * Lists that contain the same measurements in the same order share a single copy of that order once they are closed.
+ * <p>
+ * A store is intended for measurements that are written once, and then rarely modified.
+ * If a list is modified after it has been closed, it stops using the store and copies its values to a regular 
+ * {@link MeasurementList} that is used from then on.
+ * Rows are never reclaimed, so a store is best suited to objects created together (e.g. by a single detection command, 
+ * or when reading a chunk of a binary object hierarchy).
+ * When serialized, the measurement lists are written as regular float lists, so that they do not depend upon the store.
+ *
+ * @author Pete Bankhead
+ * @since v0.4.3
+ */
+public class ColumnarMeasurementStore {
+
+	/**
+	 * Default number of rows per chunk, as a power of 2.
+	 */
+	private static final int DEFAULT_CHUNK_SHIFT = 14;
+	private static final int MIN_CHUNK_SHIFT = 6;
+
+	private final int chunkShift;
+	private final int chunkSize;
+	private final int chunkMask;
+
+	/**
+	 * Bits used to indicate that no value is present.
+	 * This is a NaN, but not the canonical NaN returned by {@link Float#floatToIntBits(float)} -
+	 * so it can be distinguished from a measurement that was explicitly set to NaN.
+	 */
+	private static final int MISSING = 0xFFFFFFFF;
+
+	private final AtomicInteger nRows = new AtomicInteger();
+
+	private final List<Column> columns = new CopyOnWriteArrayList<>();
+	private final Map<String, Column> columnMap = new ConcurrentHashMap<>();
+
+	// Column orders shared by closed lists
+	private final Map<List<Column>, Column[]> orders = new ConcurrentHashMap<>();
+
+	// Lists that have been modified after closing, and so no longer use the store
+	private final Map<Integer, ColumnarMeasurementList> detachedRows = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a new, empty store.
+	 */
+	public ColumnarMeasurementStore() {
+		this(1 << DEFAULT_CHUNK_SHIFT);
+	}
+
+	/**
+	 * Create a new, empty store that is expected to contain a known number of rows.
+	 * This is used to avoid allocating more memory than necessary for each column, since columns are 
+	 * allocated in chunks large enough to hold the expected number of rows (up to a maximum chunk size).
+	 * More rows can still be added if required.
+	 * @param expectedRows
+	 */
+	public ColumnarMeasurementStore(int expectedRows) {
+		int shift = MIN_CHUNK_SHIFT;
+		while (shift < DEFAULT_CHUNK_SHIFT && (1 << shift) < expectedRows)
+			shift++;
+		this.chunkShift = shift;
+		this.chunkSize = 1 << shift;
+		this.chunkMask = chunkSize - 1;
+	}
+
+	/**
+	 * Create a new measurement list, backed by a new row of this store.
+	 * @return
+	 */
+	public MeasurementList createMeasurementList() {
+		return new ColumnarMeasurementList(this, nRows.getAndIncrement());
+	}
+
+	/**
+	 * Get the number of rows (i.e. measurement lists) created by this store.
+	 * @return
+	 */
+	public int nRows() {
+		return nRows.get();
+	}
+
+	/**
+	 * Get the names of all measurements that have been stored for at least one row.
+	 * @return
+	 */
+	public List<String> getColumnNames() {
+		List<String> names = new ArrayList<>();
+		for (var column : columns)
+			names.add(column.name);
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Check whether a measurement list is a view onto a row of this store.
+	 * @param list
+	 * @return
+	 */
+	public boolean contains(MeasurementList list) {
+		return list instanceof ColumnarMeasurementList && ((ColumnarMeasurementList)list).store == this;
+	}
+
+	/**
+	 * Get all values for the specified measurement, in the order the rows were created.
+	 * @param name the measurement name
+	 * @return an array with length {@link #nRows()}, containing NaN wherever a value is missing
+	 */
+	public double[] getValues(String name) {
+		int n = nRows();
+		double[] values = new double[n];
+		var column = columnMap.get(name);
+		if (column == null) {
+			Arrays.fill(values, Double.NaN);
+			return values;
+		}
+		for (int c = 0; c * chunkSize < n; c++) {
+			int start = c * chunkSize;
+			int end = Math.min(n, start + chunkSize);
+			var chunk = column.getChunk(c);
+			if (chunk == null) {
+				Arrays.fill(values, start, end, Double.NaN);
+				continue;
+			}
+			for (int i = start; i < end; i++)
+				values[i] = toValue(chunk[i & chunkMask]);
+		}
+		for (var detached : detachedRows.values())
+			values[detached.row] = detached.get(name);
+		return values;
+	}
+
+	/**
+	 * Get the values of a named measurement from a collection of measurement lists.
+	 * <p>
+	 * This is equivalent to calling {@code list.get(name)} for each list, but avoids a separate name lookup
+	 * for lists that are backed by a {@link ColumnarMeasurementStore}.
+	 *
+	 * @param lists the measurement lists
+	 * @param name the measurement name
+	 * @return an array containing the values of each list, in iteration order
+	 */
+	public static double[] getValues(Collection<? extends MeasurementList> lists, String name) {
+		double[] values = new double[lists.size()];
+		ColumnarMeasurementStore lastStore = null;
+		Column lastColumn = null;
+		int i = 0;
+		for (var list : lists) {
+			if (list instanceof ColumnarMeasurementList && ((ColumnarMeasurementList)list).delegate == null) {
+				var view = (ColumnarMeasurementList)list;
+				if (view.store != lastStore) {
+					lastStore = view.store;
+					lastColumn = lastStore.columnMap.get(name);
+				}
+				values[i] = lastColumn == null ? Double.NaN : toValue(lastColumn.getBits(view.row));
+			} else
+				values[i] = list == null ? Double.NaN : list.get(name);
+			i++;
+		}
+		return values;
+	}
+
+	private Column getOrCreateColumn(String name) {
+		var column = columnMap.get(name);
+		if (column != null)
+			return column;
+		synchronized (columnMap) {
+			column = columnMap.get(name);
+			if (column == null) {
+				column = new Column(name);
+				columns.add(column);
+				columnMap.put(name, column);
+			}
+			return column;
+		}
+	}
+
+	private Column[] getSharedOrder(List<Column> order) {
+		return orders.computeIfAbsent(order, o -> o.toArray(Column[]::new));
+	}
+
+	private static double toValue(int bits) {
+		return bits == MISSING ? Double.NaN : Float.intBitsToFloat(bits);
+	}
+
+
+	/**
+	 * A single measurement column, stored in chunks that are allocated as required.
+	 */
+	private class Column {
+
+		private final String name;
+		private volatile int[][] chunks = new int[0][];
+
+		private Column(String name) {
+			this.name = name;
+		}
+
+		int[] getChunk(int c) {
+			var temp = chunks;
+			return c < temp.length ? temp[c] : null;
+		}
+
+		private synchronized int[] ensureChunk(int c) {
+			var temp = chunks;
+			if (c < temp.length && temp[c] != null)
+				return temp[c];
+			if (c >= temp.length)
+				temp = Arrays.copyOf(temp, c + 1);
+			var chunk = new int[chunkSize];
+			Arrays.fill(chunk, MISSING);
+			temp[c] = chunk;
+			chunks = temp;
+			return chunk;
+		}
+
+		int getBits(int row) {
+			var chunk = getChunk(row >>> chunkShift);
+			return chunk == null ? MISSING : chunk[row & chunkMask];
+		}
+
+		boolean contains(int row) {
+			return getBits(row) != MISSING;
+		}
+
+		void set(int row, double value) {
+			var chunk = getChunk(row >>> chunkShift);
+			if (chunk == null)
+				chunk = ensureChunk(row >>> chunkShift);
+			// floatToIntBits returns the canonical NaN, which can't be confused with MISSING
+			chunk[row & chunkMask] = Float.floatToIntBits((float)value);
+		}
+
+		void remove(int row) {
+			var chunk = getChunk(row >>> chunkShift);
+			if (chunk != null)
+				chunk[row & chunkMask] = MISSING;
+		}
+
+	}
+
+
+	/**
+	 * A {@link MeasurementList} that is a view onto a single row of a {@link ColumnarMeasurementStore}.
+	 * <p>
+	 * Until the list is closed, the order of its measurements is stored in a list that is updated whenever a 
+	 * measurement is added or removed. Closing replaces this with an order shared with other lists.
+	 * Any modification after the list is closed causes the values to be copied to a separate delegate list.
+	 */
+	private static class ColumnarMeasurementList implements MeasurementList {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient ColumnarMeasurementStore store;
+		private final int row;
+
+		// Columns containing a value for this row, until the list is closed
+		private transient List<Column> pendingOrder = new ArrayList<>();
+		// Shared columns containing a value for this row, after the list is closed
+		private transient volatile Column[] order;
+		// Regular list used after the list has been modified following closing
+		private transient volatile MeasurementList delegate;
+
+		private transient Map<String, Double> mapView;
+
+		private ColumnarMeasurementList(ColumnarMeasurementStore store, int row) {
+			this.store = store;
+			this.row = row;
+		}
+
+		private Column[] getOrder() {
+			var temp = order;
+			return temp == null ? pendingOrder.toArray(Column[]::new) : temp;
+		}
+
+		/**
+		 * Get the list that should be modified, or null if the store can still be modified directly.
+		 */
+		private MeasurementList getWritableDelegate(boolean dynamic) {
+			var temp = delegate;
+			if (temp == null && order == null)
+				return null;
+			if (temp == null || (dynamic && !temp.supportsDynamicMeasurements())) {
+				synchronized (this) {
+					temp = delegate;
+					if (temp == null || (dynamic && !temp.supportsDynamicMeasurements())) {
+						var type = dynamic ? MeasurementList.MeasurementListType.GENERAL : MeasurementList.MeasurementListType.FLOAT;
+						var names = getMeasurementNames();
+						var list = MeasurementListFactory.createMeasurementList(names.size(), type);
+						for (var name : names)
+							list.put(name, get(name));
+						delegate = list;
+						store.detachedRows.put(row, this);
+						temp = list;
+					}
+				}
+			}
+			return temp;
+		}
+
+		@Override
+		public void put(String name, double value) {
+			var writable = getWritableDelegate(false);
+			if (writable != null) {
+				writable.put(name, value);
+				return;
+			}
+			var column = store.getOrCreateColumn(name);
+			if (!column.contains(row))
+				pendingOrder.add(column);
+			column.set(row, value);
+		}
+
+		@Override
+		public double get(String name) {
+			var temp = delegate;
+			if (temp != null)
+				return temp.get(name);
+			var column = store.columnMap.get(name);
+			return column == null ? Double.NaN : toValue(column.getBits(row));
+		}
+
+		@Override
+		public boolean containsKey(String name) {
+			var temp = delegate;
+			if (temp != null)
+				return temp.containsKey(name);
+			var column = store.columnMap.get(name);
+			return column != null && column.contains(row);
+		}
+
+		@Override
+		public List<String> getMeasurementNames() {
+			var temp = delegate;
+			if (temp != null)
+				return temp.getMeasurementNames();
+			List<String> names = new ArrayList<>();
+			for (var column : getOrder())
+				names.add(column.name);
+			return Collections.unmodifiableList(names);
+		}
+
+		@Override
+		public String getMeasurementName(int ind) {
+			return getMeasurementNames().get(ind);
+		}
+
+		@Override
+		public double getMeasurementValue(int ind) {
+			var names = getMeasurementNames();
+			if (ind >= 0 && ind < names.size())
+				return get(names.get(ind));
+			return Double.NaN;
+		}
+
+		@Override
+		public double[] values() {
+			var temp = delegate;
+			if (temp != null)
+				return temp.values();
+			var columns = getOrder();
+			double[] values = new double[columns.length];
+			for (int i = 0; i < columns.length; i++)
+				values[i] = toValue(columns[i].getBits(row));
+			return values;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override
+		public int size() {
+			var temp = delegate;
+			if (temp != null)
+				return temp.size();
+			var tempOrder = order;
+			return tempOrder == null ? pendingOrder.size() : tempOrder.length;
+		}
+
+		@Override
+		public boolean supportsDynamicMeasurements() {
+			// Dynamic measurements are supported by switching to a different list
+			return true;
+		}
+
+		@Override
+		public Measurement putMeasurement(Measurement measurement) {
+			if (measurement.isDynamic())
+				return getWritableDelegate(true).putMeasurement(measurement);
+			put(measurement.getName(), measurement.getValue());
+			return null;
+		}
+
+		@Override
+		public void close() {
+			var temp = delegate;
+			if (temp != null)
+				temp.close();
+			else if (order == null) {
+				order = store.getSharedOrder(pendingOrder);
+				pendingOrder = null;
+			}
+		}
+
+		@Override
+		public void removeMeasurements(String... measurementNames) {
+			var writable = getWritableDelegate(false);
+			if (writable != null) {
+				writable.removeMeasurements(measurementNames);
+				return;
+			}
+			for (String name : measurementNames) {
+				var column = store.columnMap.get(name);
+				if (column != null && column.contains(row)) {
+					column.remove(row);
+					pendingOrder.remove(column);
+				}
+			}
+		}
+
+		@Override
+		public void clear() {
+			var writable = getWritableDelegate(false);
+			if (writable != null) {
+				writable.clear();
+				return;
+			}
+			for (var column : pendingOrder)
+				column.remove(row);
+			pendingOrder.clear();
+		}
+
+		@Override
+		public Map<String, Double> asMap() {
+			if (mapView == null) {
+				synchronized(this) {
+					if (mapView == null)
+						mapView = new MeasurementsMap(this);
+				}
+			}
+			return mapView;
+		}
+
+		/**
+		 * Serialize as a regular list, so that the store itself isn't required.
+		 * @return
+		 * @throws ObjectStreamException
+		 */
+		private Object writeReplace() throws ObjectStreamException {
+			var temp = delegate;
+			if (temp != null)
+				return temp;
+			var names = getMeasurementNames();
+			var list = new NumericMeasurementList.FloatList(names.size());
+			for (var name : names)
+				list.put(name, get(name));
+			list.close();
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			var names = getMeasurementNames();
+			int n = names.size();
+			sb.append("[");
+			for (int i = 0; i < n; i++) {
+				String name = names.get(i);
+				sb.append(name).append(": ").append(get(name));
+				if (i < n - 1)
+					sb.append(", ");
+			}
+			sb.append("]");
+			return sb.toString();
+		}
+
+	}
+
+}
@@ -106,10 +106,13 @@ class NumericMeasurementList {
 		private Map<String, Integer> map; // Optional map for fast measurement lookup
 		
 		private transient Map<String, Double> mapView;
+		
+		transient int capacity; // Requested capacity, used when the list is first opened
 
 		AbstractNumericMeasurementList(int capacity) {
 			names = new ArrayList<>(capacity);
 			namesUnmodifiable = null;
+			this.capacity = capacity;
 		}
 		
 		/**
@@ -224,7 +227,10 @@ class NumericMeasurementList {
 			if (isClosed()) {
 				isClosed = false;
 				map = null;
-				names = new ArrayList<>(names);	
+				// Retain the requested capacity, so that populating a new list doesn't require repeated resizing
+				var list = new ArrayList<String>(Math.max(names.size(), capacity));
+				list.addAll(names);
+				names = list;
 				namesUnmodifiable = null;
 			}
 		}
@@ -317,7 +323,7 @@ class NumericMeasurementList {
 
 		private void ensureArraySize(int length) {
 			if (values.length < length)
-				values = Arrays.copyOf(values, Math.max(values.length + EXPAND, length));
+				values = Arrays.copyOf(values, Math.max(Math.max(values.length + EXPAND, length), capacity));
 		}
 
 		@Override
@@ -371,7 +377,7 @@ class NumericMeasurementList {
 
 		private void ensureArraySize(int length) {
 			if (values.length < length)
-				values = Arrays.copyOf(values, Math.max(values.length + EXPAND, length));
+				values = Arrays.copyOf(values, Math.max(Math.max(values.length + EXPAND, length), capacity));
 		}
 
 		@Override
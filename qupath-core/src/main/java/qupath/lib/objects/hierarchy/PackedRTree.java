@@ -0,0 +1,392 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A static, bulk-loaded R-tree storing bounding boxes in flat primitive arrays.
+ * <p>
+ * Items are sorted along a Hilbert curve (based on the centers of their bounding boxes)
+ * and then packed into nodes of a fixed size, from the leaves upwards.
+ * This makes construction very fast, and avoids creating any objects per entry
+ * (e.g. an {@code Envelope}) - which matters when there are millions of detections.
+ * <p>
+ * The tree cannot be modified after it has been built; see {@link PathObjectSpatialIndex}
+ * for a wrapper that supports insertions and removals, merging them in batches.
+ *
+ * @author Pete Bankhead
+ * @param <T> the type of item stored in the tree
+ */
+class PackedRTree<T> {
+
+	/**
+	 * Default maximum number of children per node.
+	 */
+	static final int DEFAULT_NODE_SIZE = 16;
+
+	/**
+	 * Resolution of the Hilbert curve (in each dimension) used for sorting.
+	 */
+	private static final int HILBERT_MAX = (1 << 16) - 1;
+
+	private final int nodeSize;
+	private final int numItems;
+
+	/**
+	 * Bounding boxes, stored as minX, minY, maxX, maxY for each node.
+	 * The first numItems entries are the leaves.
+	 */
+	private final double[] boxes;
+
+	/**
+	 * For leaves, the index of the item; for all other nodes, the index (into boxes) of the first child.
+	 */
+	private final int[] indices;
+
+	/**
+	 * Index into boxes at which each level ends.
+	 */
+	private final int[] levelBounds;
+
+	/**
+	 * Items, in the order of the leaves.
+	 */
+	private final Object[] items;
+
+	private PackedRTree(Object[] items, double[] itemBoxes, int numItems, int nodeSize) {
+		this.nodeSize = Math.max(2, nodeSize);
+		this.numItems = numItems;
+
+		// Determine the number of nodes per level
+		int n = numItems;
+		int numNodes = n;
+		int[] bounds = new int[32];
+		int nLevels = 0;
+		bounds[nLevels++] = n * 4;
+		while (n > 1) {
+			n = (n + this.nodeSize - 1) / this.nodeSize;
+			numNodes += n;
+			if (nLevels == bounds.length)
+				bounds = Arrays.copyOf(bounds, nLevels * 2);
+			bounds[nLevels++] = numNodes * 4;
+		}
+		this.levelBounds = Arrays.copyOf(bounds, nLevels);
+		this.boxes = new double[numNodes * 4];
+		this.indices = new int[numNodes];
+		this.items = new Object[numItems];
+
+		if (numItems == 0)
+			return;
+
+		// Sort the items along a Hilbert curve
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numItems; i++) {
+			int pos = i * 4;
+			minX = Math.min(minX, itemBoxes[pos]);
+			minY = Math.min(minY, itemBoxes[pos+1]);
+			maxX = Math.max(maxX, itemBoxes[pos+2]);
+			maxY = Math.max(maxY, itemBoxes[pos+3]);
+		}
+		double width = maxX - minX;
+		double height = maxY - minY;
+		long[] keys = new long[numItems];
+		for (int i = 0; i < numItems; i++) {
+			int pos = i * 4;
+			int hx = width <= 0 ? 0 : (int)Math.floor(HILBERT_MAX * ((itemBoxes[pos] + itemBoxes[pos+2]) / 2.0 - minX) / width);
+			int hy = height <= 0 ? 0 : (int)Math.floor(HILBERT_MAX * ((itemBoxes[pos+1] + itemBoxes[pos+3]) / 2.0 - minY) / height);
+			// Pack the (unsigned) Hilbert value & the original index together, so that we can sort primitives
+			keys[i] = ((hilbert(hx, hy) & 0xFFFFFFFFL) << 31) | i;
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < numItems; i++) {
+			int ind = (int)(keys[i] & 0x7FFFFFFFL);
+			System.arraycopy(itemBoxes, ind * 4, boxes, i * 4, 4);
+			indices[i] = i;
+			this.items[i] = items[ind];
+		}
+
+		// Generate the upper levels of the tree
+		int pos = 0;
+		int outPos = levelBounds[0];
+		for (int level = 0; level < levelBounds.length - 1; level++) {
+			int end = levelBounds[level];
+			while (pos < end) {
+				int firstChild = pos;
+				double nodeMinX = Double.POSITIVE_INFINITY;
+				double nodeMinY = Double.POSITIVE_INFINITY;
+				double nodeMaxX = Double.NEGATIVE_INFINITY;
+				double nodeMaxY = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < this.nodeSize && pos < end; i++) {
+					nodeMinX = Math.min(nodeMinX, boxes[pos++]);
+					nodeMinY = Math.min(nodeMinY, boxes[pos++]);
+					nodeMaxX = Math.max(nodeMaxX, boxes[pos++]);
+					nodeMaxY = Math.max(nodeMaxY, boxes[pos++]);
+				}
+				indices[outPos >> 2] = firstChild;
+				boxes[outPos++] = nodeMinX;
+				boxes[outPos++] = nodeMinY;
+				boxes[outPos++] = nodeMaxX;
+				boxes[outPos++] = nodeMaxY;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of items stored in the tree.
+	 * @return
+	 */
+	public int size() {
+		return numItems;
+	}
+
+	/**
+	 * Get the item at the specified index (in the order of the leaves).
+	 * @param ind
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	T getItem(int ind) {
+		return (T)items[ind];
+	}
+
+	/**
+	 * Copy the bounding box of the item at the specified index (in the order of the leaves) to an array.
+	 * @param ind
+	 * @param dest destination array, which will have minX, minY, maxX and maxY written from destPos
+	 * @param destPos
+	 */
+	void getBounds(int ind, double[] dest, int destPos) {
+		System.arraycopy(boxes, ind * 4, dest, destPos, 4);
+	}
+
+	/**
+	 * Pass all items with bounding boxes intersecting the specified bounds to a consumer.
+	 * Bounds are inclusive, i.e. touching boxes are considered to intersect.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param consumer
+	 */
+	public void query(double minX, double minY, double maxX, double maxY, Consumer<? super T> consumer) {
+		search(minX, minY, maxX, maxY, p -> {
+			consumer.accept(p);
+			return false;
+		});
+	}
+
+	/**
+	 * Check whether any item with a bounding box intersecting the specified bounds satisfies a predicate.
+	 * The search stops as soon as a matching item is found.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param predicate
+	 * @return true if a matching item was found, false otherwise
+	 */
+	public boolean anyMatch(double minX, double minY, double maxX, double maxY, Predicate<? super T> predicate) {
+		return search(minX, minY, maxX, maxY, predicate);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean search(double minX, double minY, double maxX, double maxY, Predicate<? super T> predicate) {
+		if (numItems == 0)
+			return false;
+
+		int[] stack = new int[16];
+		int stackSize = 0;
+		int nodeIndex = boxes.length - 4;
+		int leafBound = numItems * 4;
+
+		while (true) {
+			int end = Math.min(nodeIndex + nodeSize * 4, upperBound(nodeIndex));
+			for (int pos = nodeIndex; pos < end; pos += 4) {
+				if (maxX < boxes[pos] || maxY < boxes[pos+1] || minX > boxes[pos+2] || minY > boxes[pos+3])
+					continue;
+				int ind = indices[pos >> 2];
+				if (nodeIndex < leafBound) {
+					if (predicate.test((T)items[ind]))
+						return true;
+				} else {
+					if (stackSize == stack.length)
+						stack = Arrays.copyOf(stack, stackSize * 2);
+					stack[stackSize++] = ind;
+				}
+			}
+			if (stackSize == 0)
+				return false;
+			nodeIndex = stack[--stackSize];
+		}
+	}
+
+	/**
+	 * Get the index (into boxes) at which the level containing the specified node ends.
+	 */
+	private int upperBound(int nodeIndex) {
+		int lo = 0;
+		int hi = levelBounds.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (levelBounds[mid] > nodeIndex)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return levelBounds[lo];
+	}
+
+	/**
+	 * Compute the index of a point along a Hilbert curve, with 16 bits per coordinate.
+	 * Adapted from the public domain implementation at https://github.com/rawrunprotected/hilbert_curves
+	 */
+	private static int hilbert(int x, int y) {
+		int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+
+		int A = a | (b >>> 1);
+		int B = (a >>> 1) ^ a;
+		int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+		int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+		B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+		C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+		D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+		B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+		C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+		D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+		a = A; b = B; c = C; d = D;
+		C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+		D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+		a = C ^ (C >>> 1);
+		b = D ^ (D >>> 1);
+
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+
+		i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+		i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+		i0 = (i0 | (i0 << 2)) & 0x33333333;
+		i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+		i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+		i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+		i1 = (i1 | (i1 << 2)) & 0x33333333;
+		i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+		return (i1 << 1) | i0;
+	}
+
+
+	/**
+	 * Builder to accumulate items and bounding boxes in flat arrays before constructing a {@link PackedRTree}.
+	 * @param <T>
+	 */
+	static class Builder<T> {
+
+		private int nodeSize = DEFAULT_NODE_SIZE;
+		private Object[] items;
+		private double[] boxes;
+		private int n = 0;
+
+		Builder() {
+			this(64);
+		}
+
+		Builder(int capacity) {
+			capacity = Math.max(capacity, 1);
+			items = new Object[capacity];
+			boxes = new double[capacity * 4];
+		}
+
+		/**
+		 * Set the maximum number of children per node.
+		 * @param nodeSize
+		 * @return this builder
+		 */
+		Builder<T> nodeSize(int nodeSize) {
+			this.nodeSize = nodeSize;
+			return this;
+		}
+
+		/**
+		 * Add an item with the specified bounding box.
+		 * @param item
+		 * @param minX
+		 * @param minY
+		 * @param maxX
+		 * @param maxY
+		 * @return this builder
+		 */
+		Builder<T> add(T item, double minX, double minY, double maxX, double maxY) {
+			if (n == items.length) {
+				int newCapacity = n * 2;
+				items = Arrays.copyOf(items, newCapacity);
+				boxes = Arrays.copyOf(boxes, newCapacity * 4);
+			}
+			int pos = n * 4;
+			boxes[pos] = minX;
+			boxes[pos+1] = minY;
+			boxes[pos+2] = maxX;
+			boxes[pos+3] = maxY;
+			items[n] = item;
+			n++;
+			return this;
+		}
+
+		/**
+		 * Get the number of items added so far.
+		 * @return
+		 */
+		int size() {
+			return n;
+		}
+
+		/**
+		 * Build the tree. The builder should not be used afterwards.
+		 * @return
+		 */
+		PackedRTree<T> build() {
+			var tree = new PackedRTree<T>(items, boxes, n, nodeSize);
+			items = null;
+			boxes = null;
+			return tree;
+		}
+
+	}
+
+}
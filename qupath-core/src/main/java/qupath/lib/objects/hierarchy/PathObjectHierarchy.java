@@ -23,19 +23,26 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -68,6 +75,9 @@ import qupath.lib.roi.interfaces.ROI;
  * Note: Be cautious when deserializing - it may not result in a hierarchy in a valid state.
  * As a workaround, you can construct a new PathObjectHierarchy and call setHierarchy(deserializedHierarchy) to
  * ensure that you have a properly-constructed hierarchy with the same data within it.
+ * <p>
+ * Access to the hierarchy is controlled by a read/write lock, so that queries can run concurrently 
+ * while changes to the structure require exclusive access. See {@link #getLock()} for details.
  * 
  * @author Pete Bankhead
  *
@@ -107,12 +117,54 @@ public final class PathObjectHierarchy implements Serializable {
 	// Cache enabling faster access of objects according to location
 	private transient PathObjectTileCache tileCache = new PathObjectTileCache(this);
 
+	// Lock used in preference to synchronizing on the hierarchy, so that readers don't block one another
+	private transient ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+	private transient Lock r = rwl.readLock();
+	private transient Lock w = rwl.writeLock();
+
+	// Events fired while a batch is in progress are held here (per thread) until they are flushed
+	private transient ThreadLocal<EventBatch> currentBatch = new ThreadLocal<>();
+	// Events fired while this thread is changing the hierarchy, which are held until the write lock is released
+	private transient ThreadLocal<PendingEvents> pendingEvents = new ThreadLocal<>();
+	private transient long batchFlushInterval = 0L;
+
 	/**
 	 * Default constructor, creates an empty hierarchy.
 	 */
 	public PathObjectHierarchy() {
 		super();
 	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		rwl = new ReentrantReadWriteLock();
+		r = rwl.readLock();
+		w = rwl.writeLock();
+		currentBatch = new ThreadLocal<>();
+		pendingEvents = new ThreadLocal<>();
+	}
+	
+	/**
+	 * Get the lock used to control access to the hierarchy.
+	 * <p>
+	 * Methods that only query the hierarchy acquire the read lock, and so can run concurrently.
+	 * Methods that change the hierarchy structure acquire the write lock. 
+	 * Listeners are notified of the changes after the hierarchy methods have released the write lock 
+	 * (but not if the calling thread still holds the lock itself).
+	 * <p>
+	 * The write lock should be held by any code that needs to make several changes atomically, 
+	 * or that modifies the child objects within the hierarchy directly (rather than through the hierarchy methods).
+	 * This replaces synchronizing on the hierarchy object itself, which no longer prevents concurrent access.
+	 * <p>
+	 * Note that a thread holding the read lock cannot acquire the write lock, and must release it first 
+	 * before making any changes.
+	 * 
+	 * @return
+	 * @since v0.4.3
+	 */
+	public ReadWriteLock getLock() {
+		return rwl;
+	}
 
 	
 	/**
@@ -120,8 +172,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * 
 	 * @return
 	 */
-	public synchronized boolean isEmpty() {
-		return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildObjects();// && featureMaps.isEmpty();
+	public boolean isEmpty() {
+		r.lock();
+		try {
+			return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildObjects();// && featureMaps.isEmpty();
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	/**
@@ -180,8 +237,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * Get the TMAGrid, or null if there is no TMA grid associated with this hierarchy.
 	 * @return
 	 */
-	public synchronized TMAGrid getTMAGrid() {
-		return tmaGrid;
+	public TMAGrid getTMAGrid() {
+		r.lock();
+		try {
+			return tmaGrid;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	/**
@@ -212,16 +274,25 @@ public final class PathObjectHierarchy implements Serializable {
 	 * Otherwise, if null then any existing TMA grid will be removed.
 	 * @param tmaGrid
 	 */
-	public synchronized void setTMAGrid(TMAGrid tmaGrid) {
-		if (this.tmaGrid == tmaGrid)
-			return;
-		if (this.tmaGrid != null) {
-			removeObjects(new ArrayList<>(this.tmaGrid.getTMACoreList()), false);
+	public void setTMAGrid(TMAGrid tmaGrid) {
+		lockForWrite();
+		try {
+			if (this.tmaGrid == tmaGrid)
+				return;
+			List<PathObject> changed = new ArrayList<>();
+			if (this.tmaGrid != null) {
+				changed.addAll(this.tmaGrid.getTMACoreList());
+				removeObjects(new ArrayList<>(this.tmaGrid.getTMACoreList()), false);
+			}
+			this.tmaGrid = tmaGrid;
+			if (tmaGrid != null) {
+				changed.addAll(tmaGrid.getTMACoreList());
+				addObjects(tmaGrid.getTMACoreList());
+			}
+			fireHierarchyChangedEvent(getRootObject(), getRootObject(), changed);
+		} finally {
+			unlockForWrite();
 		}
-		this.tmaGrid = tmaGrid;
-		if (tmaGrid != null)
-			addObjects(tmaGrid.getTMACoreList());
-		fireHierarchyChangedEvent(getRootObject());
 	}
 	
 
@@ -253,8 +324,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param fireChangeEvents if true, an event will be added after adding the object. Choose false if a single event should be added after making multiple changes.
 	 * @return true if the hierarchy changed as a result of this call, false otherwise
 	 */
-	public synchronized boolean insertPathObject(PathObject pathObject, boolean fireChangeEvents) {
-		return insertPathObject(getRootObject(), pathObject, fireChangeEvents, !fireChangeEvents);
+	public boolean insertPathObject(PathObject pathObject, boolean fireChangeEvents) {
+		lockForWrite();
+		try {
+			return insertPathObject(getRootObject(), pathObject, fireChangeEvents, !fireChangeEvents);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	/**
@@ -264,56 +340,66 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObjects the objects to add
 	 * @return true if the hierarchy changed as a result of this call, false otherwise
 	 */
-	public synchronized boolean insertPathObjects(Collection<? extends PathObject> pathObjects) {
-		var selectedObjects =  new ArrayList<>(pathObjects);
-		int nObjects = selectedObjects.size();
-		selectedObjects.removeIf(p -> p.isTMACore());
-		if (selectedObjects.size() < nObjects)
-			logger.warn("TMA core objects cannot be inserted - use resolveHierarchy() instead");
+	public boolean insertPathObjects(Collection<? extends PathObject> pathObjects) {
+		lockForWrite();
+		try {
+			var selectedObjects =  new ArrayList<>(pathObjects);
+			int nObjects = selectedObjects.size();
+			selectedObjects.removeIf(p -> p.isTMACore());
+			if (selectedObjects.size() < nObjects)
+				logger.warn("TMA core objects cannot be inserted - use resolveHierarchy() instead");
 		
-		if (selectedObjects.isEmpty())
-			return false;
-		removeObjects(selectedObjects, true);
-		selectedObjects.sort(PathObjectHierarchy.HIERARCHY_COMPARATOR.reversed());
-		boolean singleObject = selectedObjects.size() == 1;
-		// We don't want to reset caches for every object if we have only detections, since previously-inserted objects don't impact the potential parent
-		boolean allDetections = selectedObjects.stream().allMatch(p -> p.isDetection());
-		for (var pathObject : selectedObjects) {
+			if (selectedObjects.isEmpty())
+				return false;
+			removeObjects(selectedObjects, true);
+			selectedObjects.sort(PathObjectHierarchy.HIERARCHY_COMPARATOR.reversed());
+			boolean singleObject = selectedObjects.size() == 1;
+			// We don't want to reset caches for every object if we have only detections, since previously-inserted objects don't impact the potential parent
+			boolean allDetections = selectedObjects.stream().allMatch(p -> p.isDetection());
+			for (var pathObject : selectedObjects) {
 //			hierarchy.insertPathObject(pathObject, true);
-			insertPathObject(getRootObject(), pathObject, singleObject, !singleObject && !allDetections);
+				insertPathObject(getRootObject(), pathObject, singleObject, !singleObject && !allDetections);
 //			insertPathObject(pathObject, selectedObjects.size() == 1);
+			}
+			if (!singleObject)
+				fireHierarchyChangedEvent(this);
+			return true;
+		} finally {
+			unlockForWrite();
 		}
-		if (!singleObject)
-			fireHierarchyChangedEvent(this);
-		return true;
 	}
 	
 	/**
 	 * Attempt to resolve the parent-child relationships between all objects within the hierarchy.
 	 */
-	public synchronized void resolveHierarchy() {
-		List<? extends PathObject> tmaCores = tmaGrid == null ? Collections.emptyList() : tmaGrid.getTMACoreList();
-		var annotations = getAnnotationObjects();
-		if (annotations.isEmpty() && tmaCores.isEmpty()) {
-			logger.debug("resolveHierarchy() called with no annotations or TMA cores!");
-			return;
-		}
-		var detections = getDetectionObjects();
-		if (annotations.size() > 1 && detections.size() > 1000) {
-			logger.warn("Resolving hierarchy that contains {} annotations and {} detections - this may be slow!",
-					annotations.size(), detections.size());
-		} else if (annotations.size() > 100) {
-			logger.warn("Resolving hierarchy with {} annotations - this may be slow!", annotations.size());
-		}
-		if (!tmaCores.isEmpty()) {
-			// Need to remove annotations first (they will be re-inserted later) so we can resolve detections if needed
-			if (!annotations.isEmpty())
-				removeObjects(annotations, true);
-			var remainingDetections = detections.stream().filter(p -> p.getParent() == rootObject).collect(Collectors.toList());
-			if (!remainingDetections.isEmpty())
-				insertPathObjects(remainingDetections);
+	public void resolveHierarchy() {
+		lockForWrite();
+		try {
+			List<? extends PathObject> tmaCores = tmaGrid == null ? Collections.emptyList() : tmaGrid.getTMACoreList();
+			var annotations = getAnnotationObjects();
+			if (annotations.isEmpty() && tmaCores.isEmpty()) {
+				logger.debug("resolveHierarchy() called with no annotations or TMA cores!");
+				return;
+			}
+			var detections = getDetectionObjects();
+			if (annotations.size() > 1 && detections.size() > 1000) {
+				logger.warn("Resolving hierarchy that contains {} annotations and {} detections - this may be slow!",
+						annotations.size(), detections.size());
+			} else if (annotations.size() > 100) {
+				logger.warn("Resolving hierarchy with {} annotations - this may be slow!", annotations.size());
+			}
+			if (!tmaCores.isEmpty()) {
+				// Need to remove annotations first (they will be re-inserted later) so we can resolve detections if needed
+				if (!annotations.isEmpty())
+					removeObjects(annotations, true);
+				var remainingDetections = detections.stream().filter(p -> p.getParent() == rootObject).collect(Collectors.toList());
+				if (!remainingDetections.isEmpty())
+					insertPathObjects(remainingDetections);
+			}
+			insertPathObjects(annotations);
+		} finally {
+			unlockForWrite();
 		}
-		insertPathObjects(annotations);
 	}
 	
 	/**
@@ -324,7 +410,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param resetCache if true, reset the tile cache after adding the object; this is only used if fireChangeEvents is false
 	 * @return
 	 */
-	private synchronized boolean insertPathObject(PathObject pathObjectParent, PathObject pathObject, boolean fireChangeEvents, boolean resetCache) {
+	private boolean insertPathObject(PathObject pathObjectParent, PathObject pathObject, boolean fireChangeEvents, boolean resetCache) {
 		
 		if (pathObject.isTMACore()) {
 			logger.warn("TMA core objects cannot be inserted - use resolveHierarchy() instead");
@@ -398,8 +484,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param keepChildren if true, retain all children and descendants of the object being removed; if false, remove these also
 	 * @return
 	 */
-	public synchronized boolean removeObject(PathObject pathObject, boolean keepChildren) {
-		return removeObject(pathObject, keepChildren, true);
+	public boolean removeObject(PathObject pathObject, boolean keepChildren) {
+		lockForWrite();
+		try {
+			return removeObject(pathObject, keepChildren, true);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	/**
@@ -408,8 +499,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param keepChildren if true, retain all children and descendants of the object being removed; if false, remove these also
 	 * @return
 	 */
-	public synchronized boolean removeObjectWithoutUpdate(PathObject pathObject, boolean keepChildren) {
-		return removeObject(pathObject, keepChildren, false);
+	public boolean removeObjectWithoutUpdate(PathObject pathObject, boolean keepChildren) {
+		lockForWrite();
+		try {
+			return removeObject(pathObject, keepChildren, false);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	/**
@@ -419,7 +515,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param fireEvent if true, fire a hierarchy event. May be false if one wishes to complete several changes before updating listeners later.
 	 * @return
 	 */
-	private synchronized boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
+	private boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
 		// Check the object is within the hierarchy & has a valid parent (from which it can be removed)
 		PathObject pathObjectParent = pathObject.getParent();
 		if (!inHierarchy(pathObject) || pathObjectParent == null) {
@@ -455,52 +551,56 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObjects the objects to remove
 	 * @param keepChildren if true, retain children and descendants of the objects being removed
 	 */
-	public synchronized void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+	public void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+		lockForWrite();
+		try {
 		
-		if (pathObjects.isEmpty())
-			return;
+			if (pathObjects.isEmpty())
+				return;
 		
-		List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
-		pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
+			List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
+			pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
 		
-		// Determine the parents for each object
-		Map<PathObject, List<PathObject>> map = new HashMap<>();
-		for (PathObject pathObject : pathObjectSet) {
-			PathObject parent = pathObject.getParent();
-			if (parent == null)
-				continue;
-			List<PathObject> list = map.get(parent);
-			if (list == null) {
-				list = new ArrayList<>();
-				map.put(parent, list);
+			// Determine the parents for each object
+			Map<PathObject, List<PathObject>> map = new HashMap<>();
+			for (PathObject pathObject : pathObjectSet) {
+				PathObject parent = pathObject.getParent();
+				if (parent == null)
+					continue;
+				List<PathObject> list = map.get(parent);
+				if (list == null) {
+					list = new ArrayList<>();
+					map.put(parent, list);
+				}
+				list.add(pathObject);
 			}
-			list.add(pathObject);
-		}
 		
-		if (map.isEmpty())
-			return;
+			if (map.isEmpty())
+				return;
 		
-		// Loop through and remove objects, keeping children if necessary
-		Set<PathObject> childrenToKeep = new LinkedHashSet<>();
-		for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
-			PathObject parent = entry.getKey();
-			List<PathObject> children = entry.getValue();
-			parent.removeChildObjects(children);
-			if (keepChildren) {
-				for (PathObject child : children)
-					childrenToKeep.addAll(child.getChildObjects());
+			// Loop through and remove objects, keeping children if necessary
+			Set<PathObject> childrenToKeep = new LinkedHashSet<>();
+			for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
+				PathObject parent = entry.getKey();
+				List<PathObject> children = entry.getValue();
+				parent.removeChildObjects(children);
+				if (keepChildren) {
+					for (PathObject child : children)
+						childrenToKeep.addAll(child.getChildObjects());
+				}
 			}
-		}
-		childrenToKeep.removeAll(pathObjects);
-		// Add children back if required (note: this can be quite slow!)
-		tileCache.resetCache();
-		for (PathObject pathObject : childrenToKeep) {
-			addPathObjectImpl(pathObject, false);
-		}
-		fireHierarchyChangedEvent(this);
+			childrenToKeep.removeAll(pathObjects);
+			// Add children back if required (note: this can be quite slow!)
+			tileCache.resetCache();
+			for (PathObject pathObject : childrenToKeep) {
+				addPathObjectImpl(pathObject, false);
+			}
+			List<PathObject> changed = new ArrayList<>(pathObjectSet);
+			changed.addAll(childrenToKeep);
+			fireHierarchyChangedEvent(this, getRootObject(), changed);
 		
-		// This previously could result in child objects being deleted even if keepChildren was 
-		// true, depending upon the order in which objects were removed.
+			// This previously could result in child objects being deleted even if keepChildren was 
+			// true, depending upon the order in which objects were removed.
 //		// Loop through and remove objects
 //		for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
 //			PathObject parent = entry.getKey();
@@ -517,6 +617,9 @@ public final class PathObjectHierarchy implements Serializable {
 //			}
 //		}
 //		fireHierarchyChangedEvent(this);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	
@@ -527,7 +630,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObject
 	 * @return
 	 */
-	private synchronized boolean inHierarchy(PathObject pathObject) { // made private as only called here
+	private boolean inHierarchy(PathObject pathObject) { // made private as only called here
 		if (pathObject == null)
 			return false;
 		while (pathObject.getParent() != null)
@@ -536,8 +639,8 @@ public final class PathObjectHierarchy implements Serializable {
 	}
 	
 	
-	// TODO: Be very cautious about this!!!!  Use of tileCache inside a synchronized method might lead to deadlocks?
-	private synchronized boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean fireChangeEvents) {
+	// TODO: Be very cautious about this!!!!  Use of tileCache while holding the write lock might lead to deadlocks?
+	private boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean fireChangeEvents) {
 		pathObjectParent.addChildObject(pathObject);
 		// Notify listeners of changes, if required
 		if (fireChangeEvents)
@@ -615,13 +718,78 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 * @since v0.4.0 (replaces {@link #addPathObjectBelowParent(PathObject, PathObject, boolean)}
 	 */
-	public synchronized boolean addObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean fireUpdate) {
-		if (pathObjectParent == pathObject)
-			throw new IllegalArgumentException("Cannot add a PathObject as a descendent of itself!");
+	public boolean addObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean fireUpdate) {
+		lockForWrite();
+		try {
+			if (pathObjectParent == pathObject)
+				throw new IllegalArgumentException("Cannot add a PathObject as a descendent of itself!");
+			if (pathObjectParent == null)
+				return addPathObjectImpl(pathObject, fireUpdate);
+			else
+				return addPathObjectToList(pathObjectParent, pathObject, fireUpdate);
+		} finally {
+			unlockForWrite();
+		}
+	}
+	
+	
+	/**
+	 * Add multiple objects as children of the requested parent.
+	 * <p>
+	 * This is intended for adding batches of objects from parallel tasks (e.g. the results of processing image tiles).
+	 * If none of the objects already have a parent, only the parent object is changed. In this case the objects 
+	 * are added while holding the read lock (which prevents any other structural changes) and the lock of the parent 
+	 * object itself, so that tasks adding objects below different parents don't block one another.
+	 * Objects that already have a parent are moved while holding the write lock, since this changes their previous 
+	 * parents as well.
+	 * <p>
+	 * The spatial cache used for region queries is updated directly (under its own lock, which is held only briefly) 
+	 * - so the objects can be found by later queries even if {@code fireUpdate} is false.
+	 * <p>
+	 * Because the write lock may be required, this should not be called by a thread that holds the read lock.
+	 * 
+	 * @param pathObjectParent the parent object; if null, the root object will be used
+	 * @param pathObjects the objects to add
+	 * @param fireUpdate if true, fire a hierarchy changed event for the parent after the objects are added
+	 * @return true if any objects were added, false otherwise
+	 * @since v0.4.3
+	 */
+	public boolean addObjectsBelowParent(PathObject pathObjectParent, Collection<? extends PathObject> pathObjects, boolean fireUpdate) {
+		if (pathObjects.isEmpty())
+			return false;
 		if (pathObjectParent == null)
-			return addPathObjectImpl(pathObject, fireUpdate);
-		else
-			return addPathObjectToList(pathObjectParent, pathObject, fireUpdate);
+			pathObjectParent = getRootObject();
+		boolean allNew = true;
+		for (var pathObject : pathObjects) {
+			if (pathObject == pathObjectParent)
+				throw new IllegalArgumentException("Cannot add a PathObject as a descendent of itself!");
+			if (pathObject.getParent() != null)
+				allNew = false;
+		}
+		if (allNew) {
+			// The parent is locked while its children are updated, and the tile cache has its own lock
+			r.lock();
+			try {
+				pathObjectParent.addChildObjects(pathObjects);
+				if (tileCache != null)
+					tileCache.addObjects(pathObjects, false);
+			} finally {
+				r.unlock();
+			}
+		} else {
+			lockForWrite();
+			try {
+				pathObjectParent.addChildObjects(pathObjects);
+				// Objects that were previously in the hierarchy might already be in the cache
+				if (tileCache != null)
+					tileCache.addObjects(pathObjects, true);
+			} finally {
+				unlockForWrite();
+			}
+		}
+		if (fireUpdate)
+			fireHierarchyChangedEvent(this, pathObjectParent, pathObjects);
+		return true;
 	}
 	
 	
@@ -631,10 +799,15 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param fireUpdate if true, fire an update event after the object is added
 	 * @return
 	 */
-	private synchronized boolean addPathObjectImpl(PathObject pathObject, boolean fireUpdate) {
-		if (pathObject == getRootObject() || !pathObject.hasROI())
-			return false;
-		return addPathObjectToList(getRootObject(), pathObject, fireUpdate);
+	private boolean addPathObjectImpl(PathObject pathObject, boolean fireUpdate) {
+		lockForWrite();
+		try {
+			if (pathObject == getRootObject() || !pathObject.hasROI())
+				return false;
+			return addPathObjectToList(getRootObject(), pathObject, fireUpdate);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	/**
@@ -643,23 +816,28 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 * @since v0.4.0; replaces {@link #addPathObjects(Collection)}
 	 */
-	public synchronized boolean addObjects(Collection<? extends PathObject> pathObjects) {
-		boolean changes = false;
-		int n = pathObjects.size();
-		int counter = 0;
-		for (PathObject pathObject : pathObjects) {
-			if (n > 10000) {
-				if (counter % 1000 == 0)
+	public boolean addObjects(Collection<? extends PathObject> pathObjects) {
+		lockForWrite();
+		try {
+			boolean changes = false;
+			int n = pathObjects.size();
+			int counter = 0;
+			for (PathObject pathObject : pathObjects) {
+				if (n > 10000) {
+					if (counter % 1000 == 0)
+						logger.debug("Adding {} of {}", counter, n);
+				} else if (n > 1000 && counter % 100 == 0)
 					logger.debug("Adding {} of {}", counter, n);
-			} else if (n > 1000 && counter % 100 == 0)
-				logger.debug("Adding {} of {}", counter, n);
-			changes = addPathObjectToList(getRootObject(), pathObject, false) || changes;
-			counter++;
-		}
-		if (changes)
-			fireHierarchyChangedEvent(getRootObject());
+				changes = addPathObjectToList(getRootObject(), pathObject, false) || changes;
+				counter++;
+			}
+			if (changes)
+				fireHierarchyChangedEvent(getRootObject(), getRootObject(), pathObjects);
 //			fireChangeEvent(getRootObject());
-		return changes;
+			return changes;
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	/**
@@ -678,10 +856,16 @@ public final class PathObjectHierarchy implements Serializable {
 	/**
 	 * Remove all objects from the hierarchy.
 	 */
-	public synchronized void clearAll() {
-		getRootObject().clearChildObjects();
-		tmaGrid = null;
-		fireHierarchyChangedEvent(getRootObject());
+	public void clearAll() {
+		lockForWrite();
+		try {
+			var previousChildren = getRootObject().getChildObjectsAsArray();
+			getRootObject().clearChildObjects();
+			tmaGrid = null;
+			fireHierarchyChangedEvent(getRootObject(), getRootObject(), Arrays.asList(previousChildren));
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 
@@ -690,17 +874,22 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param cls
 	 * @return
 	 */
-	public synchronized Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
-		Collection<PathObject> pathObjects = getObjects(null, cls);
-		if (!pathObjects.isEmpty()) {
-			Iterator<PathObject> iter = pathObjects.iterator();
-			while (iter.hasNext()) {
-				if (!PathObjectTools.hasPointROI(iter.next())) {
-					iter.remove();
+	public Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
+		r.lock();
+		try {
+			Collection<PathObject> pathObjects = getObjects(null, cls);
+			if (!pathObjects.isEmpty()) {
+				Iterator<PathObject> iter = pathObjects.iterator();
+				while (iter.hasNext()) {
+					if (!PathObjectTools.hasPointROI(iter.next())) {
+						iter.remove();
+					}
 				}
 			}
+			return pathObjects;
+		} finally {
+			r.unlock();
 		}
-		return pathObjects;
 	}
 	
 	/**
@@ -743,18 +932,23 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 */
 	public Collection<PathObject> getObjects(Collection<PathObject> pathObjects, Class<? extends PathObject> cls) {
-		if (pathObjects == null)
-			pathObjects = new ArrayList<>();
+		r.lock();
+		try {
+			if (pathObjects == null)
+				pathObjects = new ArrayList<>();
 		
-		// If we want annotations, it can be much faster to get them from the tile cache than to sift through a potentially large number of detections
-		if (PathAnnotationObject.class == cls && tileCache != null && tileCache.isActive()) {
-			pathObjects.addAll(tileCache.getObjectsForRegion(cls, null, null, true));
-			return pathObjects;
-		}
-		if (cls == null || cls.isAssignableFrom(PathRootObject.class))
-			pathObjects.add(getRootObject());
+			// If we want annotations, it can be much faster to get them from the tile cache than to sift through a potentially large number of detections
+			if (PathAnnotationObject.class == cls && tileCache != null && tileCache.isActive()) {
+				pathObjects.addAll(tileCache.getObjectsForRegion(cls, null, null, true));
+				return pathObjects;
+			}
+			if (cls == null || cls.isAssignableFrom(PathRootObject.class))
+				pathObjects.add(getRootObject());
 		
-		return PathObjectTools.getDescendantObjects(getRootObject(), pathObjects, cls);
+			return PathObjectTools.getDescendantObjects(getRootObject(), pathObjects, cls);
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	/**
@@ -765,11 +959,16 @@ public final class PathObjectHierarchy implements Serializable {
 	 *                   Some listeners may delay processing in expectation of an update event where isChanging is false.
 	 */
 	public void updateObject(PathObject pathObject, boolean isChanging) {
-		if (inHierarchy(pathObject))
-			removeObject(pathObject, true, false);
-		addPathObjectImpl(pathObject, false);
-		fireObjectsChangedEvent(this, Collections.singletonList(pathObject), isChanging);
+		lockForWrite();
+		try {
+			if (inHierarchy(pathObject))
+				removeObject(pathObject, true, false);
+			addPathObjectImpl(pathObject, false);
+			fireObjectsChangedEvent(this, Collections.singletonList(pathObject), isChanging);
 //		fireHierarchyChangedEvent(this, pathObject);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 
@@ -784,11 +983,16 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 * @since {@link #getAllObjects(boolean)}
 	 */
-	public synchronized List<PathObject> getFlattenedObjectList(List<PathObject> list) {
-		if (list == null)
-			list = new ArrayList<>(nObjects()+ 1);
-		getObjects(list, PathObject.class);
-		return list;
+	public List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+		r.lock();
+		try {
+			if (list == null)
+				list = new ArrayList<>(nObjects()+ 1);
+			getObjects(list, PathObject.class);
+			return list;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	/**
@@ -797,18 +1001,23 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 * @since v0.4.0
 	 */
-	public synchronized Collection<PathObject> getAllObjects(boolean includeRoot) {
-		var set = new LinkedHashSet<PathObject>(nObjects() + 1, 1f);
-		getObjects(set, PathObject.class);
-		if (includeRoot) {
-			// Root already be included
-			if (set.add(getRootObject())) {
-				logger.warn("Root object was added!");
+	public Collection<PathObject> getAllObjects(boolean includeRoot) {
+		r.lock();
+		try {
+			var set = new LinkedHashSet<PathObject>(nObjects() + 1, 1f);
+			getObjects(set, PathObject.class);
+			if (includeRoot) {
+				// Root already be included
+				if (set.add(getRootObject())) {
+					logger.warn("Root object was added!");
+				}
+			} else {
+				set.remove(getRootObject());
 			}
-		} else {
-			set.remove(getRootObject());
+			return set;
+		} finally {
+			r.unlock();
 		}
-		return set;
 	}
 	
 	
@@ -816,9 +1025,14 @@ public final class PathObjectHierarchy implements Serializable {
 	 * Number of objects in the hierarchy, excluding the root.
 	 * @return
 	 */
-	public synchronized int nObjects() {
-		int count = PathObjectTools.countDescendants(getRootObject());
-		return count;
+	public int nObjects() {
+		r.lock();
+		try {
+			int count = PathObjectTools.countDescendants(getRootObject());
+			return count;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	/**
@@ -826,12 +1040,17 @@ public final class PathObjectHierarchy implements Serializable {
 	 * In practice, this means copying the root and TMA grid of the second hierarchy.
 	 * @param hierarchy
 	 */
-	public synchronized void setHierarchy(PathObjectHierarchy hierarchy) {
-		if (this == hierarchy)
-			return;
-		rootObject = hierarchy.getRootObject();
-		tmaGrid = hierarchy.tmaGrid;
-		fireHierarchyChangedEvent(rootObject);
+	public void setHierarchy(PathObjectHierarchy hierarchy) {
+		lockForWrite();
+		try {
+			if (this == hierarchy)
+				return;
+			rootObject = hierarchy.getRootObject();
+			tmaGrid = hierarchy.tmaGrid;
+			fireHierarchyChangedEvent(rootObject);
+		} finally {
+			unlockForWrite();
+		}
 	}
 	
 	/**
@@ -991,6 +1210,18 @@ public final class PathObjectHierarchy implements Serializable {
 		fireEvent(event);
 	}
 
+	/**
+	 * Fire a hierarchy update indicating the hierarchy structure has changed below a specified object, 
+	 * where the objects that were added, removed or moved are known.
+	 * @param source
+	 * @param pathObject
+	 * @param changedObjects
+	 */
+	private void fireHierarchyChangedEvent(Object source, PathObject pathObject, Collection<? extends PathObject> changedObjects) {
+		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createStructureChangeEvent(source, this, pathObject, changedObjects);
+		fireEvent(event);
+	}
+
 	/**
 	 * Fire a hierarchy update indicating the hierarchy structure has changed.
 	 * This is often a good choice of event if multiple changes may have occurred, of if one is unsure what exactly 
@@ -1002,11 +1233,232 @@ public final class PathObjectHierarchy implements Serializable {
 	}
 	
 	
-	synchronized void fireEvent(PathObjectHierarchyEvent event) {
+	/**
+	 * Run a task that may make many changes to the hierarchy, merging the events that it fires.
+	 * <p>
+	 * Events fired on the current thread while the task is running are held back, and then passed to listeners 
+	 * as a single event when the task completes (even if it completes with an exception).
+	 * If all the events relate to objects changing, the merged event contains all the changed objects; 
+	 * if any changed the hierarchy structure, the merged event is a structure change event below the 
+	 * deepest object that contains all the changes.
+	 * <p>
+	 * This can greatly reduce the work done by listeners (e.g. to repaint viewers or update tables) 
+	 * when changing objects one at a time within a loop.
+	 * The spatial cache used to query objects by region is still updated immediately, so that queries 
+	 * within the task return the correct objects.
+	 * <p>
+	 * Calls to this method may be nested, in which case events are only passed on when the outermost task completes.
+	 * Events fired by other threads are not affected.
+	 * 
+	 * @param task the task to run
+	 * @see #setBatchFlushInterval(long)
+	 * @since v0.4.3
+	 */
+	public void batch(Runnable task) {
+		var batch = currentBatch.get();
+		if (batch == null) {
+			batch = new EventBatch();
+			currentBatch.set(batch);
+		}
+		batch.depth++;
+		try {
+			task.run();
+		} finally {
+			if (--batch.depth == 0) {
+				currentBatch.remove();
+				flushBatch(batch);
+			}
+		}
+	}
+	
+	/**
+	 * Set the maximum time that events may be held back during a call to {@link #batch(Runnable)}.
+	 * If this is greater than zero, a merged event will be passed to listeners whenever an event is fired 
+	 * and this interval has elapsed since the last flush, so that listeners can continue to show progress 
+	 * during a long-running task.
+	 * Otherwise, events are only passed to listeners when the task completes.
+	 * @param millis the maximum time in milliseconds, or 0 to hold events until the task completes
+	 * @since v0.4.3
+	 */
+	public void setBatchFlushInterval(long millis) {
+		this.batchFlushInterval = Math.max(0L, millis);
+	}
+	
+	/**
+	 * Get the maximum time that events may be held back during a call to {@link #batch(Runnable)}.
+	 * @return the maximum time in milliseconds, or 0 if events are held until the task completes
+	 * @see #setBatchFlushInterval(long)
+	 * @since v0.4.3
+	 */
+	public long getBatchFlushInterval() {
+		return batchFlushInterval;
+	}
+	
+	
+	void fireEvent(PathObjectHierarchyEvent event) {
+		// Keep the spatial cache up-to-date immediately, since this may be queried before listeners are notified
+		w.lock();
+		try {
+			if (tileCache != null)
+				tileCache.hierarchyChanged(event);
+		} finally {
+			w.unlock();
+		}
+		// Hold the event if the hierarchy is being changed, so that listeners aren't notified while the write lock is held
+		var pending = pendingEvents.get();
+		if (pending != null)
+			pending.events.add(event);
+		else
+			notifyListeners(event);
+	}
+	
+	private void notifyListeners(PathObjectHierarchyEvent event) {
+		var batch = currentBatch.get();
+		if (batch == null) {
+			dispatchEvent(event);
+			return;
+		}
+		batch.events.add(event);
+		if (batchFlushInterval > 0 && System.currentTimeMillis() - batch.lastFlush >= batchFlushInterval)
+			flushBatch(batch);
+	}
+	
+	/**
+	 * Pass an event to all listeners except the tile cache, which is updated when the event is fired.
+	 * @param event
+	 */
+	private void dispatchEvent(PathObjectHierarchyEvent event) {
 		synchronized(listeners) {
-			for (PathObjectHierarchyListener listener : listeners)
-				listener.hierarchyChanged(event);
+			for (PathObjectHierarchyListener listener : listeners) {
+				if (listener != tileCache)
+					listener.hierarchyChanged(event);
+			}
+		}
+	}
+	
+	/**
+	 * Acquire the write lock to change the hierarchy. 
+	 * Any events fired before the matching call to {@link #unlockForWrite()} are held back until the lock is released.
+	 */
+	private void lockForWrite() {
+		w.lock();
+		var pending = pendingEvents.get();
+		if (pending == null) {
+			pending = new PendingEvents();
+			pendingEvents.set(pending);
+		}
+		pending.depth++;
+	}
+	
+	/**
+	 * Release the write lock acquired with {@link #lockForWrite()}, then pass any events that were fired 
+	 * while it was held on to listeners.
+	 */
+	private void unlockForWrite() {
+		var pending = pendingEvents.get();
+		List<PathObjectHierarchyEvent> events = Collections.emptyList();
+		if (--pending.depth == 0) {
+			pendingEvents.remove();
+			events = pending.events;
+		}
+		w.unlock();
+		for (var event : events)
+			notifyListeners(event);
+	}
+	
+	private void flushBatch(EventBatch batch) {
+		batch.lastFlush = System.currentTimeMillis();
+		if (batch.events.isEmpty())
+			return;
+		var event = batch.events.size() == 1 ? batch.events.get(0) : createMergedEvent(batch.events);
+		batch.events.clear();
+		// The tile cache has already seen the original events
+		dispatchEvent(event);
+	}
+	
+	/**
+	 * Create a single event to represent all the changes described by a list of events.
+	 * @param events
+	 * @return
+	 */
+	private PathObjectHierarchyEvent createMergedEvent(List<PathObjectHierarchyEvent> events) {
+		// Use the original source only if it is shared by all events
+		Object source = events.get(0).getSource();
+		boolean structureChange = false;
+		boolean isChanging = true;
+		HierarchyEventType type = events.get(0).getEventType();
+		for (var event : events) {
+			if (event.getSource() != source)
+				source = this;
+			if (event.isStructureChangeEvent())
+				structureChange = true;
+			if (!event.isChanging())
+				isChanging = false;
+			if (event.getEventType() != type)
+				type = HierarchyEventType.CHANGE_OTHER;
+		}
+		if (structureChange) {
+			// Find the deepest object in the hierarchy that contains all the changes, 
+			// and the changed objects - if these are known for every structure change
+			PathObject base = null;
+			Set<PathObject> changedObjects = new LinkedHashSet<>();
+			for (var event : events) {
+				if (event.isStructureChangeEvent())
+					base = findCommonAncestor(base, event.getStructureChangeBase());
+				else {
+					for (var pathObject : event.getChangedObjects())
+						base = findCommonAncestor(base, pathObject);
+				}
+				if (changedObjects != null) {
+					if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE && event.getChangedObjects().isEmpty())
+						changedObjects = null;
+					else
+						changedObjects.addAll(event.getChangedObjects());
+				}
+			}
+			if (changedObjects == null)
+				return PathObjectHierarchyEvent.createStructureChangeEvent(source, this, base);
+			return PathObjectHierarchyEvent.createStructureChangeEvent(source, this, base, changedObjects);
+		}
+		Set<PathObject> changedObjects = new LinkedHashSet<>();
+		for (var event : events)
+			changedObjects.addAll(event.getChangedObjects());
+		return PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, type, changedObjects, isChanging);
+	}
+	
+	/**
+	 * Find the deepest object that is an ancestor of (or equal to) both objects, 
+	 * returning the root object if either is null or not within this hierarchy.
+	 * If the first object is null, the second is returned if it is within the hierarchy.
+	 */
+	private PathObject findCommonAncestor(PathObject first, PathObject second) {
+		if (second == null || !inHierarchy(second))
+			return rootObject;
+		if (first == null)
+			return second;
+		Set<PathObject> ancestors = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (var temp = first; temp != null; temp = temp.getParent())
+			ancestors.add(temp);
+		for (var temp = second; temp != null; temp = temp.getParent()) {
+			if (ancestors.contains(temp))
+				return temp;
 		}
+		return rootObject;
+	}
+	
+	private static class EventBatch {
+		
+		private int depth = 0;
+		private long lastFlush = System.currentTimeMillis();
+		private final List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		
+	}
+	
+	private static class PendingEvents {
+		
+		private int depth = 0;
+		private final List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		
 	}
 	
 	
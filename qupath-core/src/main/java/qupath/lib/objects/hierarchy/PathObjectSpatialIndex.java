@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+
+/**
+ * Spatial index that combines a bulk-loaded {@link PackedRTree} with a small dynamic index for recent changes.
+ * <p>
+ * Insertions are added to a {@link Quadtree}, while removals are recorded by marking entries in the packed tree as stale.
+ * Once the number of pending changes becomes large relative to the size of the packed tree, everything is merged
+ * into a new packed tree in a single batch. This keeps individual edits cheap, while ensuring that the bulk of
+ * the objects are stored compactly.
+ * <p>
+ * This class is not thread-safe; synchronization is handled by {@link PathObjectTileCache}.
+ *
+ * @author Pete Bankhead
+ * @param <T>
+ */
+class PathObjectSpatialIndex<T> {
+
+	/**
+	 * Minimum number of pending changes before a merge is triggered.
+	 */
+	private static final int MIN_PENDING_FOR_MERGE = 1024;
+
+	/**
+	 * Maximum number of pending changes, as a proportion of the packed tree size, before a merge is triggered.
+	 */
+	private static final double MAX_PENDING_PROPORTION = 0.125;
+
+	private PackedRTree<T> tree;
+
+	/**
+	 * Items that are in the packed tree (including stale items).
+	 */
+	private Set<T> packed;
+
+	/**
+	 * Items that are in the packed tree, but should be ignored (because they have been removed or reinserted).
+	 */
+	private Set<T> stale = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	/**
+	 * Items that have been inserted since the packed tree was built.
+	 */
+	private Map<T, Envelope> pending = new IdentityHashMap<>();
+	private Quadtree pendingIndex = new Quadtree();
+
+	PathObjectSpatialIndex(PackedRTree<T> tree) {
+		setTree(tree);
+	}
+
+	private void setTree(PackedRTree<T> tree) {
+		this.tree = tree;
+		int n = tree.size();
+		packed = Collections.newSetFromMap(new IdentityHashMap<>(n));
+		for (int i = 0; i < n; i++)
+			packed.add(tree.getItem(i));
+	}
+
+	/**
+	 * Insert an item with the specified bounds.
+	 * If the item is already present, its bounds are replaced.
+	 * @param item
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	void insert(T item, double minX, double minY, double maxX, double maxY) {
+		remove(item);
+		var envelope = new Envelope(minX, maxX, minY, maxY);
+		pending.put(item, envelope);
+		pendingIndex.insert(envelope, item);
+		mergeIfNeeded();
+	}
+
+	/**
+	 * Remove an item.
+	 * @param item
+	 */
+	void remove(T item) {
+		var envelope = pending.remove(item);
+		if (envelope != null)
+			pendingIndex.remove(envelope, item);
+		if (packed.contains(item) && stale.add(item))
+			mergeIfNeeded();
+	}
+
+	/**
+	 * Pass all items with bounding boxes intersecting the specified bounds to a consumer.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param consumer
+	 */
+	@SuppressWarnings("unchecked")
+	void query(double minX, double minY, double maxX, double maxY, Consumer<? super T> consumer) {
+		if (stale.isEmpty())
+			tree.query(minX, minY, maxX, maxY, consumer);
+		else {
+			tree.query(minX, minY, maxX, maxY, p -> {
+				if (!stale.contains(p))
+					consumer.accept(p);
+			});
+		}
+		if (!pending.isEmpty()) {
+			for (var item : (Iterable<T>)pendingIndex.query(new Envelope(minX, maxX, minY, maxY))) {
+				var envelope = pending.get(item);
+				if (intersects(envelope, minX, minY, maxX, maxY))
+					consumer.accept(item);
+			}
+		}
+	}
+
+	/**
+	 * Check whether any item with a bounding box intersecting the specified bounds satisfies a predicate.
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param predicate
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	boolean anyMatch(double minX, double minY, double maxX, double maxY, Predicate<? super T> predicate) {
+		boolean found;
+		if (stale.isEmpty())
+			found = tree.anyMatch(minX, minY, maxX, maxY, predicate);
+		else
+			found = tree.anyMatch(minX, minY, maxX, maxY, p -> !stale.contains(p) && predicate.test(p));
+		if (found)
+			return true;
+		if (!pending.isEmpty()) {
+			for (var item : (Iterable<T>)pendingIndex.query(new Envelope(minX, maxX, minY, maxY))) {
+				var envelope = pending.get(item);
+				if (intersects(envelope, minX, minY, maxX, maxY) && predicate.test(item))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean intersects(Envelope envelope, double minX, double minY, double maxX, double maxY) {
+		return envelope != null && !(maxX < envelope.getMinX() || maxY < envelope.getMinY() || minX > envelope.getMaxX() || minY > envelope.getMaxY());
+	}
+
+	/**
+	 * Get the number of pending changes that have not yet been merged into the packed tree.
+	 * @return
+	 */
+	int nPendingChanges() {
+		return stale.size() + pending.size();
+	}
+
+	private void mergeIfNeeded() {
+		int nPending = nPendingChanges();
+		if (nPending >= MIN_PENDING_FOR_MERGE && nPending >= tree.size() * MAX_PENDING_PROPORTION)
+			merge();
+	}
+
+	/**
+	 * Merge all pending changes into a new packed tree.
+	 */
+	@SuppressWarnings("unchecked")
+	void merge() {
+		if (stale.isEmpty() && pending.isEmpty())
+			return;
+		int n = tree.size();
+		var builder = new PackedRTree.Builder<T>(n + pending.size());
+		double[] bounds = new double[4];
+		for (int i = 0; i < n; i++) {
+			var item = tree.getItem(i);
+			if (stale.contains(item))
+				continue;
+			tree.getBounds(i, bounds, 0);
+			builder.add(item, bounds[0], bounds[1], bounds[2], bounds[3]);
+		}
+		for (var item : (Iterable<T>)pendingIndex.queryAll()) {
+			var envelope = pending.get(item);
+			if (envelope != null)
+				builder.add(item, envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+		}
+		setTree(builder.build());
+		stale.clear();
+		pending.clear();
+		pendingIndex = new Quadtree();
+	}
+
+	/**
+	 * Get the total number of items in the index.
+	 * @return
+	 */
+	int size() {
+		// Only items in the packed tree are marked as stale
+		return tree.size() - stale.size() + pending.size();
+	}
+
+}
@@ -27,7 +27,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
@@ -38,15 +37,12 @@ import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
 import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
 import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
 import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Polygonal;
 import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
-import org.locationtech.jts.index.SpatialIndex;
-import org.locationtech.jts.index.quadtree.Quadtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,6 +63,9 @@ import qupath.lib.roi.interfaces.ROI;
  * In practice, the cache itself is constructed lazily whenever a request is made 
  * through getObjectsForRegion, so as to avoid rebuilding it too often when the hierarchy
  * is changing a lot.
+ * <p>
+ * Objects are stored in a bulk-loaded {@link PackedRTree} per PathObject class, with 
+ * smaller changes accumulated and merged in batches (see {@link PathObjectSpatialIndex}).
  * 
  * @author Pete Bankhead
  *
@@ -77,25 +76,10 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	
 	private static final Logger logger = LoggerFactory.getLogger(PathObjectTileCache.class);
 	
-	/**
-	 * Largest positive envelope, used when all objects are requested.
-	 */
-	private static final Envelope MAX_ENVELOPE = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE);
-	
-	/**
-	 * Keep a map of envelopes per ROI; ROIs should be immutable.
-	 */
-	private Map<ROI, Envelope> envelopeMap = new WeakHashMap<>();
-	
-	/**
-	 * Keep a map of envelopes per object, because potentially an object might have its ROI replaced behind our back...
-	 */
-	private Map<PathObject, Envelope> lastEnvelopeMap = new WeakHashMap<>();
-	
 	/**
 	 * Store a spatial index according to the class of PathObject.
 	 */
-	private Map<Class<? extends PathObject>, SpatialIndex> map = new HashMap<>();
+	private Map<Class<? extends PathObject>, PathObjectSpatialIndex<PathObject>> map = new HashMap<>();
 	
 	/**
 	 * Map to cache Geometries, specifically for annotations.
@@ -135,7 +119,11 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 				map.clear();
 			else
 				map.remove(limitToClass);
-			addToCache(hierarchy.getRootObject(), true, limitToClass);
+			// Bulk-load the spatial index for each class
+			Map<Class<? extends PathObject>, PackedRTree.Builder<PathObject>> builders = new HashMap<>();
+			collectForCache(hierarchy.getRootObject(), builders, limitToClass);
+			for (var entry : builders.entrySet())
+				map.put(entry.getKey(), new PathObjectSpatialIndex<>(entry.getValue().build()));
 			long endTime = System.currentTimeMillis();
 			logger.debug("Cache reconstructed in " + (endTime - startTime)/1000.);
 		} finally {
@@ -155,6 +143,29 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		return isActive;
 	}
 	
+	/**
+	 * Recursively collect a PathObject and its descendants, to be bulk-loaded into the cache.
+	 * 
+	 * @param pathObject
+	 * @param builders
+	 * @param limitToClass
+	 */
+	private void collectForCache(PathObject pathObject, Map<Class<? extends PathObject>, PackedRTree.Builder<PathObject>> builders, Class<? extends PathObject> limitToClass) {
+		var roi = pathObject.getROI();
+		if (roi != null) {
+			Class<? extends PathObject> cls = pathObject.getClass();
+			if (limitToClass == null || cls == limitToClass) {
+				var builder = builders.computeIfAbsent(cls, c -> new PackedRTree.Builder<>());
+				builder.add(pathObject, roi.getBoundsX(), roi.getBoundsY(), 
+						roi.getBoundsX() + roi.getBoundsWidth(), roi.getBoundsY() + roi.getBoundsHeight());
+			}
+		}
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildObjects()) {
+			for (PathObject child : pathObject.getChildObjectsAsArray())
+				collectForCache(child, builders, limitToClass);
+		}
+	}
+	
 	/**
 	 * Add a PathObject to the cache, optionally including children.
 	 * 
@@ -166,16 +177,17 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		if (!isActive())
 			return;
 
-		if (pathObject.hasROI()) {
+		var roi = pathObject.getROI();
+		if (roi != null) {
 			Class<? extends PathObject> cls = pathObject.getClass();
 			if (limitToClass == null || cls == limitToClass) {
-				SpatialIndex mapObjects = map.get(cls);
+				var mapObjects = map.get(cls);
 				if (mapObjects == null) {
-					mapObjects = createSpatialIndex();
+					mapObjects = new PathObjectSpatialIndex<>(new PackedRTree.Builder<PathObject>().build());
 					map.put(cls, mapObjects);
 				}
-				Envelope envelope = getEnvelope(pathObject);
-				mapObjects.insert(envelope, pathObject);
+				mapObjects.insert(pathObject, roi.getBoundsX(), roi.getBoundsY(), 
+						roi.getBoundsX() + roi.getBoundsWidth(), roi.getBoundsY() + roi.getBoundsHeight());
 			}
 		}
 		
@@ -186,6 +198,25 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		}
 	}
 
+	/**
+	 * Add objects and their descendants to the cache directly, rather than waiting for a hierarchy event.
+	 * 
+	 * @param pathObjects the objects to add
+	 * @param removeFirst if true, remove the objects from the cache first (because they may already be present)
+	 */
+	void addObjects(Collection<? extends PathObject> pathObjects, boolean removeFirst) {
+		w.lock();
+		try {
+			for (var pathObject : pathObjects) {
+				if (removeFirst)
+					removeFromCache(pathObject, true);
+				addToCache(pathObject, true, null);
+			}
+		} finally {
+			w.unlock();
+		}
+	}
+
 	Geometry getGeometry(ROI roi) {
 		var geometry = geometryMap.get(roi);
 		if (geometry == null)
@@ -320,34 +351,17 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	}
 	
 	
-	private SpatialIndex createSpatialIndex() {
-		return new Quadtree();
-//		return new STRtree();
-	}
-	
-	private Envelope getEnvelope(PathObject pathObject) {
-		var envelope = getEnvelope(pathObject.getROI());
-		lastEnvelopeMap.put(pathObject, envelope);
-		return envelope;
-	}
-	
-	private Envelope getEnvelope(ROI roi) {
-		var envelope = envelopeMap.get(roi);
-		if (envelope == null) {
-			envelope = new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
-					roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
-			envelopeMap.put(roi, envelope);
-		}
-		return envelope;
-	}
-	
-	private Envelope getEnvelope(ImageRegion region) {
-		return new Envelope(region.getMinX(), region.getMaxX(),
-				region.getMinY(), region.getMaxY());
+	/**
+	 * Check if the current bounds of a ROI intersect a rectangle.
+	 * This is needed because potentially an object might have its ROI replaced behind our back...
+	 */
+	private static boolean intersects(ROI roi, double minX, double minY, double maxX, double maxY) {
+		double x = roi.getBoundsX();
+		double y = roi.getBoundsY();
+		return !(maxX < x || maxY < y || minX > x + roi.getBoundsWidth() || minY > y + roi.getBoundsHeight());
 	}
 	
 	
-	
 	/**
 	 * This doesn't acquire the lock! The locking is done first.
 	 * 
@@ -359,32 +373,16 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		if (!isActive())
 			return;
 		
-		SpatialIndex mapObjects = map.get(pathObject.getClass());
-		
-		// We can remove objects from a Quadtree
-		if (mapObjects instanceof Quadtree) {
-			Envelope envelope = lastEnvelopeMap.get(pathObject);
-			envelope = MAX_ENVELOPE;
-			if (envelope != null) {
-				if (mapObjects.remove(envelope, pathObject)) {
-					logger.debug("Removed {} from cache", pathObject);
-				} else
-					logger.debug("Unable to remove {} from cache", pathObject);
-			} else {
-				logger.debug("No envelope found for {}", pathObject);					
-			}
-//				System.err.println("After: " + mapObjects.query(MAX_ENVELOPE).size());
-			// Remove the children
-			if (removeChildren) {
-				for (PathObject child : pathObject.getChildObjectsAsArray())
-					removeFromCache(child, removeChildren);
-			}
-		} else if (mapObjects instanceof SpatialIndex && !removeChildren) {
-			// We can't remove objects from a STRtree, but since we're just removing one object we can rebuild only the cache for this class
-			constructCache(pathObject.getClass());
-		} else {
-			// If we need to remove multiple objects, better to just rebuild the entire cache
-			constructCache(null);
+		var mapObjects = map.get(pathObject.getClass());
+		if (mapObjects != null) {
+			// Removal is cheap; the packed tree is only rebuilt once enough changes have accumulated
+			mapObjects.remove(pathObject);
+			logger.trace("Removed {} from cache", pathObject);
+		}
+		// Remove the children
+		if (removeChildren) {
+			for (PathObject child : pathObject.getChildObjectsAsArray())
+				removeFromCache(child, removeChildren);
 		}
 	}
 	
@@ -419,41 +417,36 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects, boolean includeSubclasses) {
 		ensureCacheConstructed();
 		
-		var envelope = region == null ? MAX_ENVELOPE : getEnvelope(region);
+		double minX = region == null ? Double.NEGATIVE_INFINITY : region.getMinX();
+		double minY = region == null ? Double.NEGATIVE_INFINITY : region.getMinY();
+		double maxX = region == null ? Double.POSITIVE_INFINITY : region.getMaxX();
+		double maxY = region == null ? Double.POSITIVE_INFINITY : region.getMaxY();
 		
 		int z = region == null ? -1 : region.getZ();
 		int t = region == null ? -1 : region.getT();
 		r.lock();
 		try {
+			Collection<PathObject> output = pathObjects == null ? new HashSet<>() : pathObjects;
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, PathObjectSpatialIndex<PathObject>> entry : map.entrySet()) {
 				if (cls == null || (includeSubclasses && cls.isAssignableFrom(entry.getKey())) || cls.isInstance(entry.getKey())) {
 					if (entry.getValue() != null) {
-						var list = entry.getValue().query(envelope);
-						if (list.isEmpty())
-							continue;
-						
-						if (pathObjects == null)
-							pathObjects = new HashSet<PathObject>();
-						
 						// Add all objects that have a parent, i.e. might be in the hierarchy
-						for (PathObject pathObject : (List<PathObject>)list) {
+						entry.getValue().query(minX, minY, maxX, maxY, pathObject -> {
 							var roi = pathObject.getROI();
 							if (roi == null || region == null || (roi.getZ() == z && roi.getT() == t)) {
 								if (pathObject.getParent() != null || pathObject.isRootObject()) {
-									if (envelope.intersects(getEnvelope(pathObject)))
-										pathObjects.add(pathObject);
+									if (roi == null || intersects(roi, minX, minY, maxX, maxY))
+										output.add(pathObject);
 								}
 							}
-						}
+						});
 					}
-//						pathObjects = entry.getValue().getObjectsForRegion(region, pathObjects);
 				}
 			}
-	//		logger.info("Objects for " + region + ": " + (pathObjects == null ? 0 : pathObjects.size()));
-			if (pathObjects == null)
+			if (pathObjects == null && output.isEmpty())
 				return Collections.emptySet();
-			return pathObjects;
+			return output;
 		} finally {
 			r.unlock();
 		}
@@ -462,34 +455,31 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, boolean includeSubclasses) {
 		ensureCacheConstructed();
 		
-		var envelope = region == null ? MAX_ENVELOPE : getEnvelope(region);
+		double minX = region == null ? Double.NEGATIVE_INFINITY : region.getMinX();
+		double minY = region == null ? Double.NEGATIVE_INFINITY : region.getMinY();
+		double maxX = region == null ? Double.POSITIVE_INFINITY : region.getMaxX();
+		double maxY = region == null ? Double.POSITIVE_INFINITY : region.getMaxY();
 		
 		int z = region == null ? -1 : region.getZ();
 		int t = region == null ? -1 : region.getT();
 		r.lock();
 		try {
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, PathObjectSpatialIndex<PathObject>> entry : map.entrySet()) {
 				if (cls == null || cls.isInstance(entry.getKey()) || (includeSubclasses && cls.isAssignableFrom(entry.getKey()))) {
 					if (entry.getValue() != null) {
-						var list = (List<PathObject>)entry.getValue().query(envelope);
-						for (var pathObject : list) {
+						boolean found = entry.getValue().anyMatch(minX, minY, maxX, maxY, pathObject -> {
 							var roi = pathObject.getROI();
 							if (roi == null)
-								continue;
+								return false;
 							if (region == null)
 								return true;
 							if (roi.getZ() != z || roi.getT() != t)
-								continue;
-							if (region.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight())) {
-								return true;
-							}
-						}
-//						if (list.stream().anyMatch(p -> p.hasROI() && 
-//								(region == null || (p.getROI().getZ() == z && p.getROI().getT() == t))))
-//							return true;
-//						if (entry.getValue().hasObjectsForRegion(region))
-//							return true;
+								return false;
+							return region.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight());
+						});
+						if (found)
+							return true;
 					}
 				}
 			}
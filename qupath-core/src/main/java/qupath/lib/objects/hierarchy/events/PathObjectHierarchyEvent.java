@@ -107,6 +107,24 @@ public class PathObjectHierarchyEvent {
 		return new PathObjectHierarchyEvent(source, hierarchy, HierarchyEventType.OTHER_STRUCTURE_CHANGE, parentObject, new ArrayList<>(0), false);						
 	}
 
+	/**
+	 * Create a hierarchy event indicating that the hierarchy structure has been changed, 
+	 * where the objects that were added, removed, moved or otherwise changed are known.
+	 * <p>
+	 * Listeners may use the changed objects to avoid checking everything below the parent object.
+	 * If the collection is empty, then it should be assumed that any object below the parent may have changed.
+	 * 
+	 * @param source
+	 * @param hierarchy
+	 * @param parentObject
+	 * @param changedObjects the objects that were added, removed, moved or otherwise changed
+	 * @return
+	 * @since v0.4.3
+	 */
+	public static PathObjectHierarchyEvent createStructureChangeEvent(Object source, PathObjectHierarchy hierarchy, PathObject parentObject, Collection<? extends PathObject> changedObjects) {
+		return new PathObjectHierarchyEvent(source, hierarchy, HierarchyEventType.OTHER_STRUCTURE_CHANGE, parentObject, new ArrayList<>(changedObjects), false);
+	}
+
 	/**
 	 * Create a hierarchy event indicated objects were added.
 	 * @param source
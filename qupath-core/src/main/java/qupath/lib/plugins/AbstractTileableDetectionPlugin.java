@@ -25,9 +25,16 @@ package qupath.lib.plugins;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
 import qupath.lib.geom.ImmutableDimension;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ServerTools;
@@ -44,6 +51,11 @@ import qupath.lib.roi.interfaces.ROI;
  * and analyzing these in parallel - optionally with overlaps.
  * <p>
  * Particularly useful for tasks such as cell detection.
+ * <p>
+ * By default, regions are split into tiles of a fixed size. Subclasses may override 
+ * {@link #useAdaptiveTileSize(ImageData, ParameterList)} so that smaller regions are split into smaller tiles, 
+ * giving enough tiles to share the work between threads.
+ * Tiles are queued with the largest first, and each thread takes the next pending tile as soon as it is free.
  * 
  * @author Pete Bankhead
  *
@@ -51,8 +63,15 @@ import qupath.lib.roi.interfaces.ROI;
  */
 public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetectionPlugin<T> {
 	
+	private static final Logger logger = LoggerFactory.getLogger(AbstractTileableDetectionPlugin.class);
+	
 	private static int PREFERRED_TILE_SIZE = 2048;
 	private static int MAX_TILE_SIZE = 3072;
+	
+	// Smallest preferred tile size, when tiles are made smaller to balance the work between threads
+	private static int MIN_TILE_SIZE = 512;
+	// Preferred minimum number of tiles per region, so that threads aren't left idle while the last tiles are processed
+	private static int MIN_TILES_PER_REGION = 32;
 
 	/**
 	 * Get the preferred pixel size that would be used for the specified ImageData and ParameterList.
@@ -94,12 +113,70 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 	protected abstract int getTileOverlap(final ImageData<T> imageData, final ParameterList params);
 
 	
+	/**
+	 * Request that smaller regions are split into smaller tiles, so that the work can be shared between more threads.
+	 * <p>
+	 * The default is false, and the fixed default tile size is used.
+	 * This is because tile boundaries can influence which detections are kept where tiles overlap, and so 
+	 * changing the tile size can change the results.
+	 * The adapted tile size depends only upon the size of the region, the tile overlap and the downsample, 
+	 * so that the results are still reproducible regardless of the number of threads.
+	 * 
+	 * @param imageData
+	 * @param params
+	 * @return true if the tile size should be adapted to the region size, false if the default tile size should be used
+	 * @since v0.4.3
+	 */
+	protected boolean useAdaptiveTileSize(ImageData<T> imageData, ParameterList params) {
+		return false;
+	}
+	
+	/**
+	 * Get the tile size to use, in pixels at the resolution used for detection.
+	 * @param imageData
+	 * @param params
+	 * @param parentROI the region that will be tiled
+	 * @param downsampleFactor the downsample used for detection
+	 * @param overlap the tile overlap, in full-resolution pixels
+	 * @return
+	 * @see #useAdaptiveTileSize(ImageData, ParameterList)
+	 */
+	int getTileSize(ImageData<T> imageData, ParameterList params, ROI parentROI, double downsampleFactor, int overlap) {
+		if (useAdaptiveTileSize(imageData, params))
+			return getAdaptiveTileSize(parentROI, downsampleFactor, overlap);
+		return PREFERRED_TILE_SIZE;
+	}
+	
+	/**
+	 * Get the adapted tile size, in pixels at the resolution used for detection.
+	 * <p>
+	 * This is at most the default tile size (2048), but may be smaller if the region is too small to be split 
+	 * into several tiles that can be processed in parallel.
+	 * The result depends only upon the parameters, so that detection results are reproducible.
+	 * 
+	 * @param parentROI the region that will be tiled
+	 * @param downsampleFactor the downsample used for detection
+	 * @param overlap the tile overlap, in full-resolution pixels
+	 * @return
+	 */
+	int getAdaptiveTileSize(ROI parentROI, double downsampleFactor, int overlap) {
+		int size = PREFERRED_TILE_SIZE;
+		
+		// Split the region into enough tiles to share the work between threads
+		double nPixels = parentROI == null || !parentROI.isArea() ? 0 : parentROI.getArea() / (downsampleFactor * downsampleFactor);
+		if (nPixels > 0)
+			size = Math.min(size, (int)Math.sqrt(nPixels / MIN_TILES_PER_REGION));
+		
+		// Avoid tiles that are small relative to the overlap, since much of the work would be repeated
+		int minSize = Math.max(MIN_TILE_SIZE, (int)Math.ceil(overlap * 8 / downsampleFactor));
+		return Math.min(PREFERRED_TILE_SIZE, Math.max(minSize, size));
+	}
+	
 	/**
 	 * Intercepts the 'standard' addRunnableTasks to (if necessary) insert ParallelTileObjects along the way,
 	 * thereby breaking an excessively-large parentObject into more manageable pieces.
-	 * <p>
-	 * TODO: Avoid hard-coding what is considered a 'manageable size' or a preferred size for parallel tiles.
 	 * 
+	 * @see #useAdaptiveTileSize(ImageData, ParameterList)
 	 */
 	@Override
 	protected void addRunnableTasks(ImageData<T> imageData, PathObject parentObject, List<Runnable> tasks) {
@@ -111,10 +188,6 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 		// Determine appropriate sizes
 		// Note, for v0.1.2 and earlier the downsample was restricted to be a power of 2
 		double downsampleFactor = ServerTools.getDownsampleFactor(imageData.getServer(), getPreferredPixelSizeMicrons(imageData, params));
-		int preferred = (int)(PREFERRED_TILE_SIZE * downsampleFactor);
-		int max = (int)(MAX_TILE_SIZE * downsampleFactor);
-		ImmutableDimension sizePreferred = ImmutableDimension.getInstance(preferred, preferred);
-		ImmutableDimension sizeMax = ImmutableDimension.getInstance(max, max);
 		
 //		parentObject.clearPathObjects();
 		
@@ -123,25 +196,34 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 		if (parentROI == null)
 			parentROI = ROIs.createRectangleROI(0, 0, imageData.getServer().getWidth(), imageData.getServer().getHeight(), ImagePlane.getDefaultPlane());
 
+		int overlap = getTileOverlap(imageData, params);
+		int tileSize = getTileSize(imageData, params, parentROI, downsampleFactor, overlap);
+		int preferred = (int)(tileSize * downsampleFactor);
+		int max = (int)(tileSize * MAX_TILE_SIZE / PREFERRED_TILE_SIZE * downsampleFactor);
+		ImmutableDimension sizePreferred = ImmutableDimension.getInstance(preferred, preferred);
+		ImmutableDimension sizeMax = ImmutableDimension.getInstance(max, max);
+
 		// Make tiles
-		Collection<? extends ROI> pathROIs = RoiTools.computeTiledROIs(parentROI, sizePreferred, sizeMax, false, getTileOverlap(imageData, params));
+		List<ROI> pathROIs = new ArrayList<>(RoiTools.computeTiledROIs(parentROI, sizePreferred, sizeMax, false, overlap));
 		
 		// No tasks to complete
 		if (pathROIs.isEmpty())
 			return;
 		
+		// Queue the largest tiles first, so that the smallest are left to fill the gaps at the end
+		pathROIs.sort(Comparator.comparingDouble(ROI::getArea).reversed());
+		
 //		// Exactly one task to complete
 //		if (pathROIs.size() == 1 && pathROIs.iterator().next() == parentObject.getROI()) {
 //			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), getParameterList(imageData), imageData, parentObject));
 //			return;
 //		}
 		
-		ParallelDetectionTileManager manager = new ParallelDetectionTileManager(parentObject); 
+		ParallelDetectionTileManager manager = new ParallelDetectionTileManager(parentObject);
 		
 		List<ParallelTileObject> tileList = new ArrayList<>();
-		AtomicInteger countdown = new AtomicInteger(pathROIs.size());
 		for (ROI pathROI : pathROIs) {
-			ParallelTileObject tile = new ParallelTileObject(manager, pathROI, imageData.getHierarchy(), countdown);
+			ParallelTileObject tile = new ParallelTileObject(manager, pathROI, imageData.getHierarchy());
 			parentObject.addChildObject(tile);
 			for (ParallelTileObject tileTemp : tileList) {
 				if (tileTemp.suggestNeighbor(tile))
@@ -178,6 +260,37 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 			this.parent.addChildObjects(tiles);
 		}
 		
+		/**
+		 * Accept the objects detected for a tile, resolving any overlaps with neighbors that have already been 
+		 * processed and adding objects to the hierarchy as soon as they can't be affected by any other tile.
+		 * @param tile
+		 * @param pathObjects
+		 */
+		void tileDetected(ParallelTileObject tile, Collection<? extends PathObject> pathObjects) {
+			List<PathObject> interiorObjects;
+			Map<ParallelTileObject, List<PathObject>> resolvedObjects = new LinkedHashMap<>();
+			synchronized (this) {
+				List<ParallelTileObject> neighbors = new ArrayList<>(tile.map.keySet());
+				interiorObjects = tile.setPendingObjects(pathObjects);
+				tile.resolveOverlaps();
+				if (tile.isResolved())
+					resolvedObjects.put(tile, tile.takePendingObjects());
+				for (var neighbor : neighbors) {
+					if (neighbor.isResolved())
+						resolvedObjects.put(neighbor, neighbor.takePendingObjects());
+				}
+			}
+			addToTile(tile, interiorObjects);
+			for (var entry : resolvedObjects.entrySet())
+				addToTile(entry.getKey(), entry.getValue());
+		}
+		
+		private static void addToTile(ParallelTileObject tile, List<PathObject> pathObjects) {
+			if (pathObjects.isEmpty())
+				return;
+			tile.hierarchy.addObjectsBelowParent(tile, pathObjects, false);
+		}
+		
 		public void tileComplete(PathObject tile, boolean wasCancelled) {
 			if (wasCancelled)
 				this.wasCancelled = true;
@@ -194,15 +307,46 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 			} else {
 				// Add the objects from all the children
 				for (var tile : tiles) {
-					tile.resolveOverlaps();
+					// Overlaps have already been resolved, but objects may remain if a neighbor didn't provide its detections
+					List<PathObject> remaining;
+					synchronized (this) {
+						remaining = tile.takePendingObjects();
+					}
+					addToTile(tile, remaining);
 					parent.addChildObjects(tile.getChildObjects());
 				}
 				if (parent.hasChildObjects())
 					parent.setLocked(true);
+				logTileTimes();
 			}
 //			hierarchy.fireObjectsChangedEvent(this, Collections.singletonList(parent));
 		}
 		
+		/**
+		 * Log a summary of the time taken to process the tiles.
+		 */
+		private void logTileTimes() {
+			if (!logger.isDebugEnabled())
+				return;
+			long totalMillis = 0L;
+			long maxMillis = 0L;
+			int n = 0;
+			for (var tile : tiles) {
+				long millis = tile.getProcessingTimeMillis();
+				if (millis < 0)
+					continue;
+				totalMillis += millis;
+				maxMillis = Math.max(maxMillis, millis);
+				n++;
+			}
+			if (n == 0)
+				return;
+			logger.debug("Processed {} tiles in {} s (mean {} ms, max {} ms per tile)", n,
+					GeneralTools.formatNumber(totalMillis / 1000.0, 2),
+					GeneralTools.formatNumber(totalMillis / (double)n, 1),
+					maxMillis);
+		}
+		
 	}
 	
 	
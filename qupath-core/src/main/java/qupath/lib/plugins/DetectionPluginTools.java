@@ -38,7 +38,7 @@ import qupath.lib.roi.interfaces.ROI;
 
 /**
  * Helper methods to convert ObjectDetectors into runnable tasks, which take care of resolving 
- * overlaps when using ParallelTileObjects after the detection is complete and firing notification 
+ * overlaps when using ParallelTileObjects as detection is completed and firing notification 
  * events in a PathObjectHierarchy.
  * <p>
  * Internally, a PathTask is used with the important resolution/event-firing occurring within the
@@ -101,8 +101,8 @@ public class DetectionPluginTools {
 
 		@Override
 		public void run() {
+			long startTime = System.currentTimeMillis();
 			try {
-				long startTime = System.currentTimeMillis();
 				if (parentObject instanceof ParallelTileObject) {
 					((ParallelTileObject) parentObject).updateStatus(Status.PROCESSING);
 					imageData.getHierarchy().fireObjectClassificationsChangedEvent(this, Collections.singleton(parentObject));
@@ -124,6 +124,10 @@ public class DetectionPluginTools {
 				}
 			} finally {
 				if (parentObject instanceof ParallelTileObject) {
+					// Pass on the detections now, so that overlaps can be resolved while other tiles are still being processed
+					((ParallelTileObject) parentObject).setDetectedObjects(pathObjectsDetected);
+					pathObjectsDetected = null;
+					((ParallelTileObject) parentObject).setProcessingTimeMillis(System.currentTimeMillis() - startTime);
 					((ParallelTileObject) parentObject).updateStatus(Status.DONE);
 					imageData.getHierarchy().fireObjectClassificationsChangedEvent(this, Collections.singleton(parentObject));
 				}				
@@ -147,8 +151,7 @@ public class DetectionPluginTools {
 			try {
 //				// Tile objects handle their own completion
 				if (parentObject instanceof ParallelTileObject) {
-					parentObject.clearChildObjects();
-					parentObject.addChildObjects(pathObjectsDetected);
+					// Detected objects have already been passed to the tile
 					((ParallelTileObject)parentObject).setComplete(wasCancelled);
 				} else {
 					if (!wasCancelled) {
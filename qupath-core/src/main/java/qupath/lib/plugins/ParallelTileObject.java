@@ -25,31 +25,31 @@ package qupath.lib.plugins;
 
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.common.ColorTools;
 import qupath.lib.objects.DefaultPathObjectComparator;
 import qupath.lib.objects.PathObject;
-import qupath.lib.objects.PathObjectTools;
-import qupath.lib.objects.PathROIObject;
 import qupath.lib.objects.PathTileObject;
 import qupath.lib.objects.TemporaryObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.plugins.AbstractTileableDetectionPlugin.ParallelDetectionTileManager;
-import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -57,7 +57,9 @@ import qupath.lib.roi.interfaces.ROI;
  * detection.
  * <p>
  * ParallelTileObjects maintain knowledge of adjacent tiles, and are thereby able to resolve overlaps
- * after detection is complete (here, based on keeping the object with the larger area).
+ * as soon as detection is complete for both tiles (here, based on keeping the object with the larger area).
+ * Objects are added to the hierarchy once there are no further overlaps to resolve, 
+ * so that the results for all tiles don't need to be retained until the end.
  * 
  * @author Pete Bankhead
  *
@@ -94,20 +96,37 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 
 	private ParallelDetectionTileManager manager;
 	
-	AtomicInteger countdown;
 	Rectangle2D bounds;
 	PathObjectHierarchy hierarchy;
+	
+	/**
+	 * Neighboring tiles, and the region of overlap with each.
+	 * Neighbors are removed once overlaps with them have been resolved.
+	 */
 	Map<ParallelTileObject, Rectangle2D> map = new TreeMap<>(DefaultPathObjectComparator.getInstance());
 
 	private Status status = Status.PENDING;
+	private long processingTimeMillis = -1L;
+	
+	/**
+	 * Detected objects that overlap a neighbor, and so can't be added to the hierarchy yet.
+	 * These are null until detections are available for the tile.
+	 */
+	private Set<PathObject> pendingObjects;
+	private STRtree pendingIndex;
 	
-	ParallelTileObject(final ParallelDetectionTileManager manager, final ROI pathROI, final PathObjectHierarchy hierarchy, final AtomicInteger countdown) {
+	/**
+	 * Minimum proportion of the smaller of two overlapping objects that must be covered by the 
+	 * larger object for the smaller object to be removed.
+	 */
+	static final double OVERLAP_THRESHOLD = 0.1;
+	
+	ParallelTileObject(final ParallelDetectionTileManager manager, final ROI pathROI, final PathObjectHierarchy hierarchy) {
 		super(pathROI);
 		this.manager = manager;
 		setPathClass(pathClassPending);
 		this.bounds = getBounds2D(pathROI);
 		this.hierarchy = hierarchy;
-		this.countdown = countdown;
 		setColor(ColorTools.packRGB(128, 128, 128));
 	}
 
@@ -159,6 +178,19 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 		return status;
 	}
 
+	/**
+	 * Get the time taken to process the tile, if known.
+	 * @return the processing time in milliseconds, or -1 if the tile has not been processed
+	 * @since v0.4.3
+	 */
+	public synchronized long getProcessingTimeMillis() {
+		return processingTimeMillis;
+	}
+	
+	synchronized void setProcessingTimeMillis(long millis) {
+		this.processingTimeMillis = millis;
+	}
+
 	/**
 	 * Returns true if setIsProcessing(true) has recently been called.
 	 * 
@@ -180,8 +212,8 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 	/**
 	 * Notify the tile that its processing is done.
 	 * 
-	 * This both changes its display color, and triggers a check to see if overlaps with
-	 * detections made in adjacent tiles can be resolved.
+	 * This both changes its display color, and notifies the manager so that the detected objects 
+	 * for all tiles can be added to the parent once every tile is complete.
 	 * @param wasCancelled 
 	 */
 	public synchronized void setComplete(boolean wasCancelled) {
@@ -190,196 +222,217 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 		manager.tileComplete(this, wasCancelled);
 	}
 	
+	/**
+	 * Provide the objects detected within the tile.
+	 * <p>
+	 * This can be called from the thread that performed the detection.
+	 * Objects that don't overlap any neighboring tile are added to the hierarchy immediately; 
+	 * the rest are added once all the neighbors have been processed and any overlaps resolved.
+	 * 
+	 * @param pathObjects the detected objects; may be null if nothing was detected
+	 * @since v0.4.3
+	 */
+	public void setDetectedObjects(Collection<? extends PathObject> pathObjects) {
+		manager.tileDetected(this, pathObjects == null ? Collections.emptyList() : pathObjects);
+	}
 	
 	/**
-	 * Request that the tile object attempts to resolve overlaps with its neighboring tiles.
+	 * Returns true if {@link #setDetectedObjects(Collection)} has been called.
+	 * @return
+	 * @since v0.4.3
 	 */
-	public synchronized void resolveOverlaps() {
-//		// If we don't have any children, notify that the test is complete
-	//			if (!hasChildren()) {
-	//				for (ParallelTileObject pto : map.keySet())
-	//					pto.notifyTestComplete(this);
-	//				map.clear();
-	//				checkAllTestsComplete();
-	//				return;
-	//			}
-
-	long startTime = System.currentTimeMillis();
-	int nRemoved = 0;
+	public boolean hasDetectedObjects() {
+		synchronized (manager) {
+			return pendingObjects != null;
+		}
+	}
 	
-	boolean preferNucleus = false;
-
-	// If we do have children, loop through & perform tests
-	Iterator<Entry<ParallelTileObject, Rectangle2D>> iterMap = map.entrySet().iterator();
-	while (iterMap.hasNext()) {
-		Entry<ParallelTileObject, Rectangle2D> entry = iterMap.next();
-
-		// If the parallel tile object hasn't been processed yet, then just continue - nothing to compare
-		ParallelTileObject pto = entry.getKey();
-		if (!pto.isComplete())
-			continue;
-		
-		ParallelTileObject first, second;
-		
-		// Choose a consistent order for the comparison
-		if (this.getROI().getBoundsX() > pto.getROI().getBoundsX() || 
-				this.getROI().getBoundsY() > pto.getROI().getBoundsY()) {
-			first = this;
-			second = pto;
-		} else {
-			first = pto;
-			second = this;
+	/**
+	 * Returns true if all the neighbors have been processed, and overlaps with them resolved.
+	 * @return
+	 */
+	boolean isResolved() {
+		return pendingObjects != null && map.isEmpty();
+	}
+	
+	/**
+	 * Store the detected objects, returning those that don't overlap any neighboring tile 
+	 * (and so can be added to the hierarchy straight away).
+	 * This should be called while holding the manager's lock.
+	 * @param pathObjects
+	 * @return
+	 */
+	List<PathObject> setPendingObjects(Collection<? extends PathObject> pathObjects) {
+		pendingObjects = new LinkedHashSet<>();
+		pendingIndex = new STRtree();
+		List<PathObject> interiorObjects = new ArrayList<>();
+		for (var pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			if (roi != null && roi.isArea() && overlapsNeighbor(roi)) {
+				pendingObjects.add(pathObject);
+				pendingIndex.insert(getEnvelope(roi), pathObject);
+			} else
+				interiorObjects.add(pathObject);
 		}
-//		ROI firstBounds = first.getROI();
-//		ROI secondBounds = second.getROI();
-
-		// Compare this object's lists with that object's list
-		List<PathObject> listFirst = first.getObjectsForRegion(entry.getValue());
-		List<PathObject> listSecond = second.getObjectsForRegion(entry.getValue());
-
-		// Only need to compare potential overlaps if both lists are non-empty
-		if (!listFirst.isEmpty() && !listSecond.isEmpty()) {
-
-			Map<ROI, Geometry> cache = new HashMap<>();
-
-			Iterator<PathObject> iterFirst = listFirst.iterator();
-			while (iterFirst.hasNext()) {
-				PathObject firstObject = iterFirst.next();
-				ROI firstROI = PathObjectTools.getROI(firstObject, preferNucleus);
-				ImageRegion firstRegion = ImageRegion.createInstance(firstROI);
-				Geometry firstGeometry = null;
-				double firstArea = Double.NaN;
-
-				Iterator<PathObject> iterSecond = listSecond.iterator();
-				while (iterSecond.hasNext()) {
-					PathObject secondObject = iterSecond.next();
-					ROI secondROI = PathObjectTools.getROI(secondObject, preferNucleus);
-//					
-					// Do quick overlap test
-					if (!firstRegion.intersects(
-							secondROI.getBoundsX(), secondROI.getBoundsY(),
-							secondROI.getBoundsWidth(), secondROI.getBoundsHeight()))
-						continue;
-					
-					// Get geometries
-					if (firstGeometry == null) {
-						firstGeometry = firstROI.getGeometry();
-						firstArea = firstGeometry.getArea();
-					}
-					Geometry secondGeometry = cache.get(secondROI);
-					if (secondGeometry == null) {
-						secondGeometry = secondROI.getGeometry();
-						cache.put(secondROI, secondGeometry);
-					}
+		return interiorObjects;
+	}
+	
+	/**
+	 * Remove and return the pending objects.
+	 * This should be called while holding the manager's lock.
+	 * @return
+	 */
+	List<PathObject> takePendingObjects() {
+		if (pendingObjects == null || pendingObjects.isEmpty())
+			return Collections.emptyList();
+		var list = new ArrayList<>(pendingObjects);
+		pendingObjects.clear();
+		pendingIndex = null;
+		return list;
+	}
+	
+	private boolean overlapsNeighbor(ROI roi) {
+		for (var overlap : map.values()) {
+			if (overlap.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight()))
+				return true;
+		}
+		return false;
+	}
+	
+	
+	/**
+	 * Request that the tile object attempts to resolve overlaps with its neighboring tiles.
+	 * <p>
+	 * Only neighbors for which detected objects are available are considered; 
+	 * they are then removed from the list of neighbors that need to be checked.
+	 */
+	public void resolveOverlaps() {
+		synchronized (manager) {
+			if (pendingObjects == null)
+				return;
+
+			long startTime = System.currentTimeMillis();
+			int nRemoved = 0;
+
+			Iterator<Entry<ParallelTileObject, Rectangle2D>> iterMap = map.entrySet().iterator();
+			while (iterMap.hasNext()) {
+				Entry<ParallelTileObject, Rectangle2D> entry = iterMap.next();
+
+				// If the neighbor hasn't been processed yet, then just continue - nothing to compare
+				ParallelTileObject pto = entry.getKey();
+				if (pto.pendingObjects == null)
+					continue;
+
+				ParallelTileObject first, second;
+
+				// Choose a consistent order for the comparison
+				if (this.getROI().getBoundsX() > pto.getROI().getBoundsX() || 
+						this.getROI().getBoundsY() > pto.getROI().getBoundsY()) {
+					first = this;
+					second = pto;
+				} else {
+					first = pto;
+					second = this;
+				}
 
-					Geometry intersection;
-					try {
-						// Get the intersection
-						if (!firstGeometry.intersects(secondGeometry))
-							continue;
-
-						intersection = firstGeometry.intersection(secondGeometry);
-					} catch (Exception e) {
-						logger.warn("Error resolving overlaps: {}", e.getLocalizedMessage());
-						logger.debug(e.getLocalizedMessage(), e);
-						continue;
-					}
-					if (intersection.isEmpty())
-						continue;
-					
-					// Check areas
-					double intersectionArea = intersection.getArea();
-					double secondArea = secondGeometry.getArea();
-					double threshold = 0.1;
-					if (firstArea >= secondArea) {
-						if (intersectionArea / secondArea > threshold) {
-							second.removeChildObject(secondObject);
+				for (PathObject firstObject : first.getPendingObjectsForRegion(entry.getValue())) {
+					ROI firstROI = firstObject.getROI();
+					for (PathObject secondObject : second.getPendingObjectsForRegion(getBounds2D(firstROI))) {
+						int cmp = compareOverlap(firstROI, secondObject.getROI());
+						if (cmp > 0) {
+							second.pendingObjects.remove(secondObject);
 							nRemoved++;
-						}
-					} else {
-						if (intersectionArea / firstArea > threshold) {
-							first.removeChildObject(firstObject);
+						} else if (cmp < 0) {
+							first.pendingObjects.remove(firstObject);
 							nRemoved++;
 							break;
 						}
 					}
 				}
+
+				// Remove the neighbor from both maps, since the overlap doesn't need to be checked again
+				iterMap.remove();
+				pto.map.remove(this);
 			}
 
+			long endTime = System.currentTimeMillis();
+			logger.debug("Resolved {} overlaps: {} ms", nRemoved, endTime - startTime);
 		}
-
-		// Remove the neighbor from the map
-		iterMap.remove();
-
-		pto.notifyTestComplete(this);
-
-	}
-
-	checkAllTestsComplete();
-
-	long endTime = System.currentTimeMillis();
-	logger.debug(String.format("Resolved %d overlaps: %.2f seconds", nRemoved, (endTime - startTime) / 1000.));
-	//			logger.info(String.format("Resolved %d possible overlaps with %d iterations (tested %d of %d): %.2f seconds", nOverlaps, counter, detectedCounter-skipCounter, detectedCounter, (endTime2 - startTime2) / 1000.));
 	}
 
 
 	/**
-	 * Get all the objects whose bounding box intersects with a specified region
+	 * Get all the pending objects whose bounding box intersects with a specified region
 	 * @param region
 	 * @return
 	 */
-	List<PathObject> getObjectsForRegion(Rectangle2D region) {
+	List<PathObject> getPendingObjectsForRegion(Rectangle2D region) {
+		if (pendingIndex == null)
+			return Collections.emptyList();
 		List<PathObject> pathObjects = new ArrayList<>();
-		for (PathObject child : getChildObjectsAsArray()) {
-			ROI childROI = child.getROI();
-			if (childROI != null && childROI.isArea() && region.intersects(getBounds2D(childROI))) {
-				pathObjects.add(child);
-			}
+		var envelope = new Envelope(region.getMinX(), region.getMaxX(), region.getMinY(), region.getMaxY());
+		for (var item : pendingIndex.query(envelope)) {
+			// Objects removed as duplicates remain in the index, so need to be skipped
+			var pathObject = (PathObject)item;
+			if (pendingObjects.contains(pathObject) && region.intersects(getBounds2D(pathObject.getROI())))
+				pathObjects.add(pathObject);
 		}
 		Collections.sort(pathObjects, DefaultPathObjectComparator.getInstance());
 		return pathObjects;
 	}
-
-
-
-	boolean checkAllTestsComplete() {
-//		return true;
-		if (map.isEmpty() && getParent() != null) {
-			if (countdown == null) {
-				hierarchy.removeObject(this, true);
-			} else if (countdown.decrementAndGet() == 0) {
-				PathObject parent = getParent();
-				List<PathObject> parallelObjects = new ArrayList<>();
-				for (PathObject temp : parent.getChildObjectsAsArray()) {
-					if (temp instanceof ParallelTileObject) {
-						parallelObjects.add(temp);
-					}
-				}
-				parent.removeChildObjects(parallelObjects);
-				for (PathObject temp : parallelObjects)
-					parent.addChildObjects(temp.getChildObjects());
-
-				if (parent.hasChildObjects() && parent instanceof PathROIObject)
-					((PathROIObject)parent).setLocked(true);
-
-				hierarchy.fireHierarchyChangedEvent(parent);
-			}
-			return true;
-			//				getParent().removePathObject(this);
-			//				getParent().addPathObjects(getPathObjectList());
+	
+	
+	/**
+	 * Decide whether two detected objects overlap sufficiently that one should be removed.
+	 * <p>
+	 * The bounding boxes are used to skip pairs that cannot overlap by more than the threshold; 
+	 * otherwise, the geometries are compared so that the result is the same as using the intersection directly.
+	 * 
+	 * @param firstROI
+	 * @param secondROI
+	 * @return a positive value if the second object should be removed, 
+	 *         a negative value if the first object should be removed, 
+	 *         or zero if both should be kept
+	 */
+	static int compareOverlap(ROI firstROI, ROI secondROI) {
+		// The geometry intersection can't be larger than the bounding box intersection
+		double x1 = Math.max(firstROI.getBoundsX(), secondROI.getBoundsX());
+		double y1 = Math.max(firstROI.getBoundsY(), secondROI.getBoundsY());
+		double x2 = Math.min(firstROI.getBoundsX() + firstROI.getBoundsWidth(), secondROI.getBoundsX() + secondROI.getBoundsWidth());
+		double y2 = Math.min(firstROI.getBoundsY() + firstROI.getBoundsHeight(), secondROI.getBoundsY() + secondROI.getBoundsHeight());
+		if (x2 <= x1 || y2 <= y1)
+			return 0;
+		
+		double firstArea = firstROI.getArea();
+		double secondArea = secondROI.getArea();
+		double minArea = Math.min(firstArea, secondArea);
+		if (!(minArea > 0) || (x2 - x1) * (y2 - y1) / minArea <= OVERLAP_THRESHOLD)
+			return 0;
+		
+		// Otherwise we need to check the intersection
+		double intersectionArea;
+		try {
+			Geometry firstGeometry = firstROI.getGeometry();
+			Geometry secondGeometry = secondROI.getGeometry();
+			if (!firstGeometry.intersects(secondGeometry))
+				return 0;
+			intersectionArea = firstGeometry.intersection(secondGeometry).getArea();
+		} catch (Exception e) {
+			logger.warn("Error resolving overlaps: {}", e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+			return 0;
 		}
-		return false;
+		if (intersectionArea / minArea <= OVERLAP_THRESHOLD)
+			return 0;
+		return firstArea >= secondArea ? 1 : -1;
 	}
 
 
-	void notifyTestComplete(final ParallelTileObject pto) {
-		if (isComplete()) {
-			map.remove(pto);
-			checkAllTestsComplete();
-		}
+	private static Envelope getEnvelope(final ROI pathROI) {
+		return new Envelope(pathROI.getBoundsX(), pathROI.getBoundsX() + pathROI.getBoundsWidth(),
+				pathROI.getBoundsY(), pathROI.getBoundsY() + pathROI.getBoundsHeight());
 	}
 
-
 	private static Rectangle2D getBounds2D(final ROI pathROI) {
 		return new Rectangle2D.Double(pathROI.getBoundsX(), pathROI.getBoundsY(), pathROI.getBoundsWidth(), pathROI.getBoundsHeight());
 	}
@@ -62,9 +62,12 @@ import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.ImageData.ImageType;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerProvider;
+import qupath.lib.images.servers.ImageServers;
 import qupath.lib.images.servers.ServerTools;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.io.GsonTools;
+import qupath.lib.io.LazyHierarchy;
 import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
@@ -676,6 +679,37 @@ class DefaultProject implements Project<BufferedImage> {
 		private Path getThumbnailPath() {
 			return Paths.get(getEntryPath().toString(), "thumbnail.jpg");
 		}
+		
+		private Path getPyramidSidecarPath() {
+			return Paths.get(getEntryPath().toString(), "pyramid.qpps");
+		}
+		
+		/**
+		 * Use a sidecar file containing the generated levels if the server generates its own pyramid, 
+		 * writing the file in the background if required.
+		 * Writing is cancelled if the server is closed.
+		 * @see ImageServerProvider#setWritePyramidSidecars(boolean)
+		 */
+		private void usePyramidSidecar(ImageServer<BufferedImage> server) {
+			var path = getPyramidSidecarPath();
+			try {
+				if (ImageServers.usePyramidSidecar(server, path, false) || !ImageServerProvider.getWritePyramidSidecars())
+					return;
+			} catch (IOException e) {
+				logger.warn("Unable to read pyramid sidecar {}: {}", path, e.getLocalizedMessage());
+				logger.debug(e.getLocalizedMessage(), e);
+				return;
+			}
+			if (server.nResolutions() == 1)
+				return;
+			try {
+				getEntryPath(true);
+			} catch (IOException e) {
+				logger.warn("Unable to write pyramid sidecar {}: {}", path, e.getLocalizedMessage());
+				return;
+			}
+			ImageServers.writePyramidSidecarAsync(server, path);
+		}
 
 		@Override
 		public synchronized ImageData<BufferedImage> readImageData() throws IOException {
@@ -690,6 +724,7 @@ class DefaultProject implements Project<BufferedImage> {
 			}
 			if (server == null)
 				return null;
+			usePyramidSidecar(server);
 			ImageData<BufferedImage> imageData = null;
 			if (Files.exists(path)) {
 				try (var stream = Files.newInputStream(path)) {
@@ -802,6 +837,14 @@ class DefaultProject implements Project<BufferedImage> {
 			return new PathObjectHierarchy();
 		}
 		
+		@Override
+		public synchronized LazyHierarchy readLazyHierarchy() throws IOException {
+			var path = getImageDataPath();
+			if (Files.exists(path))
+				return PathIO.readLazyHierarchy(path);
+			return LazyHierarchy.create(new PathObjectHierarchy());
+		}
+		
 		
 		@Override
 		public String getSummary() {
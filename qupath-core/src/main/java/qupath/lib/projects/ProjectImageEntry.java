@@ -33,6 +33,7 @@ import java.util.Map.Entry;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.io.LazyHierarchy;
 import qupath.lib.io.UriResource;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.ResourceManager.Manager;
@@ -210,6 +211,21 @@ public interface ProjectImageEntry<T> extends UriResource {
 	 */
 	public PathObjectHierarchy readHierarchy() throws IOException;
 	
+	/**
+	 * Read the object hierarchy for this entry, deferring the loading of detections until they are needed where possible.
+	 * This can be much faster than {@link #readHierarchy()} whenever only annotations or TMA cores are required.
+	 * <p>
+	 * The default implementation reads the full hierarchy.
+	 * @return
+	 * @throws IOException
+	 * 
+	 * @see #readHierarchy()
+	 * @since v0.4.3
+	 */
+	public default LazyHierarchy readLazyHierarchy() throws IOException {
+		return LazyHierarchy.create(readHierarchy());
+	}
+	
 	/**
 	 * Check if this entry has saved {@link ImageData} already available.
 	 * 
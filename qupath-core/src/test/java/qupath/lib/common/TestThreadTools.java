@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestThreadTools {
+
+	@Test
+	public void test_runIndexed() throws Exception {
+		var pool = ThreadTools.createResizableThreadPool("test-indexed-", true, Thread.NORM_PRIORITY, () -> 4, 0);
+		assertEquals(4, pool.getPoolSize());
+
+		int n = 100;
+		var counts = new int[n];
+		pool.runIndexed(n, n, i -> counts[i]++);
+		for (int count : counts)
+			assertEquals(1, count);
+
+		// Nested calls from the pool's own threads should not deadlock, since callers help
+		var total = new AtomicInteger();
+		pool.runIndexed(8, 8, i -> pool.runIndexed(8, 8, j -> total.incrementAndGet()));
+		assertEquals(64, total.get());
+
+		// The first exception should be thrown, with runtime exceptions wrapped
+		var exception = new IOException("Expected");
+		assertSame(exception, assertThrows(IOException.class, () -> pool.runIndexed(n, n, i -> {
+			if (i == 10)
+				throw exception;
+		})));
+		var e = assertThrows(IOException.class, () -> pool.runIndexed(n, n, i -> {
+			throw new IllegalStateException();
+		}));
+		assertTrue(e.getCause() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void test_maxQueued() throws Exception {
+		var pool = ThreadTools.createResizableThreadPool("test-queued-", true, Thread.NORM_PRIORITY, () -> 1, 1);
+		var started = new CountDownLatch(1);
+		var finish = new CountDownLatch(1);
+		assertTrue(pool.execute(() -> {
+			started.countDown();
+			try {
+				finish.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+		started.await();
+		// The only thread is busy, so one task can be queued but no more
+		assertTrue(pool.execute(() -> {}));
+		assertFalse(pool.execute(() -> {}));
+		finish.countDown();
+	}
+
+}
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestAbstractTileableImageServer {
+	
+	private Map<RegionRequest, BufferedImage> previousCache;
+	private int previousReadahead;
+	
+	@BeforeEach
+	public void setUp() {
+		previousCache = ImageServerProvider.getCache(BufferedImage.class);
+		previousReadahead = ImageServerProvider.getTileReadahead();
+		ImageServerProvider.setCache(new ConcurrentHashMap<>(), BufferedImage.class);
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		ImageServerProvider.setCache(previousCache, BufferedImage.class);
+		ImageServerProvider.setTileReadahead(previousReadahead);
+	}
+	
+	@Test
+	public void test_readahead() throws Exception {
+		ImageServerProvider.setTileReadahead(2);
+		long readaheadCount = ImageServerProvider.getTileReadaheadCount();
+		long hitCount = ImageServerProvider.getTileReadaheadHitCount();
+		
+		var server = new RowServer();
+		readRowByRow(server);
+		
+		// Every tile should be read exactly once
+		var tiles = server.getTileRequestManager().getTileRequestsForLevel(0);
+		assertEquals(tiles.size(), server.tilesRead.size());
+		assertEquals(tiles.size(), server.tilesRead.stream().distinct().count());
+		
+		// Some tiles should have been read ahead, and then requested
+		assertTrue(ImageServerProvider.getTileReadaheadCount() > readaheadCount);
+		assertTrue(ImageServerProvider.getTileReadaheadHitCount() > hitCount);
+		assertTrue(ImageServerProvider.getTileReadaheadHitCount() - hitCount <= ImageServerProvider.getTileReadaheadCount() - readaheadCount);
+		server.close();
+	}
+	
+	@Test
+	public void test_noReadahead() throws Exception {
+		ImageServerProvider.setTileReadahead(0);
+		long readaheadCount = ImageServerProvider.getTileReadaheadCount();
+		var server = new RowServer();
+		readRowByRow(server);
+		assertEquals(readaheadCount, ImageServerProvider.getTileReadaheadCount());
+		for (var name : server.threadNames)
+			assertEquals(Thread.currentThread().getName(), name);
+		server.close();
+	}
+	
+	@Test
+	public void test_readRegionAcrossTiles() throws Exception {
+		ImageServerProvider.setTileReadahead(0);
+		var server = new RowServer();
+		
+		// Region spanning several tiles at full resolution, which should be stitched by copying
+		var request = RegionRequest.createInstance(server.getPath(), 1.0, 100, 20, 500, 200);
+		var img = server.readRegion(request);
+		assertEquals(500, img.getWidth());
+		assertEquals(200, img.getHeight());
+		for (int y = 0; y < img.getHeight(); y += 7) {
+			for (int x = 0; x < img.getWidth(); x += 7) {
+				assertEquals(x + 100, img.getRaster().getSample(x, y, 0));
+				assertEquals(y + 20, img.getRaster().getSample(x, y, 1));
+			}
+		}
+		// Each tile should have been read once, even if read in parallel
+		assertEquals(server.tilesRead.size(), server.tilesRead.stream().distinct().count());
+		
+		// Reading again should give the same result, using cached tiles
+		int nRead = server.tilesRead.size();
+		var img2 = server.readRegion(request);
+		assertEquals(nRead, server.tilesRead.size());
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++) {
+				assertEquals(img.getRaster().getSample(x, y, 0), img2.getRaster().getSample(x, y, 0));
+				assertEquals(img.getRaster().getSample(x, y, 1), img2.getRaster().getSample(x, y, 1));
+			}
+		}
+		
+		// Downsampled region requires resizing
+		var imgDownsampled = server.readRegion(RegionRequest.createInstance(server.getPath(), 2.0, 0, 0, 1024, 256));
+		assertEquals(512, imgDownsampled.getWidth());
+		assertEquals(128, imgDownsampled.getHeight());
+		server.close();
+	}
+	
+	@Test
+	public void test_metrics() throws Exception {
+		ImageServerProvider.setTileReadahead(0);
+		// Metrics should only be recorded if requested
+		assertFalse(ImageServerMetrics.isEnabled());
+		var serverDisabled = new RowServer();
+		readRowByRow(serverDisabled);
+		assertNull(ImageServerMetrics.getMetrics(serverDisabled));
+		serverDisabled.close();
+		
+		ImageServerMetrics.setEnabled(true);
+		try {
+			testMetrics();
+		} finally {
+			ImageServerMetrics.setEnabled(false);
+		}
+	}
+	
+	private static void testMetrics() throws Exception {
+		var server = new RowServer();
+		assertNull(ImageServerMetrics.getMetrics(server));
+		
+		readRowByRow(server);
+		var metrics = ImageServerMetrics.getMetrics(server);
+		int nTiles = server.getTileRequestManager().getTileRequestsForLevel(0).size();
+		assertEquals(nTiles, metrics.getTileReadCount());
+		assertEquals(nTiles, metrics.getRegionRequestCount());
+		assertEquals(nTiles * 128L * 128L * 2 * 4, metrics.getBytesRead());
+		assertEquals(0, metrics.getInFlightCount());
+		assertTrue(metrics.getMeanTileReadMillis() >= 5.0);
+		assertTrue(metrics.getTileReadPercentileMillis(50) >= 4.0);
+		assertEquals(nTiles, Arrays.stream(metrics.getTileReadHistogram()).sum());
+		assertTrue(ImageServerMetrics.getAllMetrics().contains(metrics));
+		
+		// Reading again should use the cache
+		readRowByRow(server);
+		assertEquals(nTiles, metrics.getTileReadCount());
+		assertEquals(0.5, metrics.getCacheHitRatio(), 1e-6);
+		
+		metrics.reset();
+		assertEquals(0, metrics.getTileReadCount());
+		assertEquals(0, metrics.getTileRequestCount());
+		server.close();
+	}
+	
+	private static void readRowByRow(RowServer server) throws IOException {
+		var tiles = server.getTileRequestManager().getTileRequestsForLevel(0)
+				.stream()
+				.sorted((t1, t2) -> {
+					int cmp = Integer.compare(t1.getImageY(), t2.getImageY());
+					return cmp == 0 ? Integer.compare(t1.getImageX(), t2.getImageX()) : cmp;
+				})
+				.toList();
+		for (var tile : tiles) {
+			var img = server.readRegion(tile.getRegionRequest());
+			assertEquals(tile.getImageX(), img.getRaster().getSample(0, 0, 0));
+			assertEquals(tile.getImageY(), img.getRaster().getSample(0, 0, 1));
+		}
+	}
+	
+	
+	/**
+	 * Server that creates tiles slowly, recording the tiles created & the threads that created them.
+	 */
+	static class RowServer extends AbstractTileableImageServer {
+		
+		private final List<TileRequest> tilesRead = new CopyOnWriteArrayList<>();
+		private final List<String> threadNames = new CopyOnWriteArrayList<>();
+		private final ImageServerMetadata metadata;
+		
+		RowServer() {
+			metadata = new ImageServerMetadata.Builder()
+					.width(1024)
+					.height(256)
+					.name("Row server")
+					.preferredTileSize(128, 128)
+					.levelsFromDownsamples(1.0)
+					.pixelType(PixelType.FLOAT32)
+					.channels(ImageChannel.getDefaultChannelList(2))
+					.build();
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			tilesRead.add(tileRequest);
+			threadNames.add(Thread.currentThread().getName());
+			try {
+				Thread.sleep(5L);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			var raster = getDefaultColorModel().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++) {
+					raster.setSample(x, y, 0, x + tileRequest.getTileX());
+					raster.setSample(x, y, 1, y + tileRequest.getTileY());
+				}
+			}
+			return new BufferedImage(getDefaultColorModel(), raster, false, null);
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Row server";
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return null;
+		}
+
+		@Override
+		protected String createID() {
+			return "row-server-" + System.identityHashCode(this);
+		}
+		
+	}
+
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import qupath.lib.images.servers.ChunkedImageWriter.Compression;
+import qupath.lib.images.servers.TestPyramidSidecar.GradientServer;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestChunkedImageServer {
+
+	@TempDir
+	Path tempDir;
+
+	private Map<RegionRequest, BufferedImage> previousCache;
+
+	@BeforeEach
+	public void setUp() {
+		previousCache = ImageServerProvider.getCache(BufferedImage.class);
+		ImageServerProvider.setCache(new ConcurrentHashMap<>(), BufferedImage.class);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		ImageServerProvider.setCache(previousCache, BufferedImage.class);
+	}
+
+	@ParameterizedTest
+	@EnumSource(Compression.class)
+	public void test_writeAndReadFloat(Compression compression) throws Exception {
+		var path = tempDir.resolve("image" + ChunkedImageServer.EXTENSION);
+		var server = new GradientServer();
+		new ChunkedImageWriter.Builder(server)
+			.tileSize(100, 64)
+			.downsamples(1.0, 4.0)
+			.compression(compression)
+			.build()
+			.writeImage(path);
+		assertTrue(Files.isRegularFile(path.resolve(ChunkedImageServer.FORMAT_FILE)));
+
+		var support = new ChunkedImageServerBuilder().checkImageSupport(path.toUri());
+		assertTrue(support.getSupportLevel() > 0);
+
+		try (var chunked = new ChunkedImageServer(path.toUri())) {
+			assertEquals(server.getWidth(), chunked.getWidth());
+			assertEquals(server.getHeight(), chunked.getHeight());
+			assertEquals(PixelType.FLOAT32, chunked.getPixelType());
+			assertEquals(2, chunked.nResolutions());
+			assertEquals(100, chunked.getMetadata().getPreferredTileWidth());
+
+			// Compare full-resolution pixels (spanning several chunks)
+			var request = RegionRequest.createInstance(server.getPath(), 1.0, 50, 30, 300, 200);
+			assertSamePixels(server.readRegion(request), chunked.readRegion(request.updatePath(chunked.getPath())));
+
+			// Compare the lower resolution to the pyramid that was written
+			var pyramid = ImageServers.pyramidalizeTiled(server, 100, 64, 1.0, 4.0);
+			var requestLow = RegionRequest.createInstance(pyramid.getPath(), 4.0, 0, 0, server.getWidth(), server.getHeight());
+			assertSamePixels(pyramid.readRegion(requestLow), chunked.readRegion(requestLow.updatePath(chunked.getPath())));
+		}
+		server.close();
+	}
+
+	@Test
+	public void test_writeAndReadRGB() throws Exception {
+		var img = new BufferedImage(150, 120, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setRGB(x, y, (x << 16) + (y << 8) + (x + y) % 256);
+		}
+		var server = new WrappedBufferedImageServer("RGB", img);
+		var path = tempDir.resolve("rgb" + ChunkedImageServer.EXTENSION);
+		new ChunkedImageWriter.Builder(server).tileSize(64).build().writeImage(path);
+
+		try (var chunked = new ChunkedImageServer(path.resolve(ChunkedImageServer.FORMAT_FILE).toUri())) {
+			assertTrue(chunked.isRGB());
+			var imgRead = chunked.readRegion(RegionRequest.createInstance(chunked.getPath(), 1.0, 0, 0, img.getWidth(), img.getHeight()));
+			assertArrayEquals(img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth()),
+					imgRead.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth()));
+		}
+
+		// Writing again should replace the image, but other directories should never be overwritten
+		new ChunkedImageWriter.Builder(server).tileSize(64).build().writeImage(path);
+		var otherPath = tempDir.resolve("other");
+		Files.createDirectories(otherPath);
+		Files.writeString(otherPath.resolve("file.txt"), "Keep me");
+		assertThrows(IOException.class, () -> ChunkedImageWriter.writeImage(server, otherPath.toString()));
+		assertTrue(Files.exists(otherPath.resolve("file.txt")));
+		server.close();
+	}
+
+	private static void assertSamePixels(BufferedImage img, BufferedImage img2) {
+		assertEquals(img.getWidth(), img2.getWidth());
+		assertEquals(img.getHeight(), img2.getHeight());
+		var raster = img.getRaster();
+		var raster2 = img2.getRaster();
+		assertEquals(raster.getNumBands(), raster2.getNumBands());
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					assertEquals(raster.getSampleFloat(x, y, b), raster2.getSampleFloat(x, y, b));
+			}
+		}
+	}
+
+}
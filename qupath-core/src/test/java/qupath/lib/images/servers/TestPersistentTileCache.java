@@ -0,0 +1,283 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestPersistentTileCache {
+	
+	@TempDir
+	Path tempDir;
+	
+	@ParameterizedTest
+	@ValueSource(ints = {
+			BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, 
+			BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY, BufferedImage.TYPE_USHORT_565_RGB})
+	public void test_standardTypes(int type) throws IOException {
+		var cache = new PersistentTileCache(tempDir, 1024 * 1024 * 100);
+		var img = new BufferedImage(64, 48, type);
+		var rng = new Random(type);
+		var raster = img.getRaster();
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			int max = (1 << img.getSampleModel().getSampleSize(b)) - 1;
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					raster.setSample(x, y, b, rng.nextInt(max + 1));
+			}
+		}
+		var tile = createTileRequest("test", 0, 0);
+		assertTrue(cache.put("server", tile, img, null));
+		var img2 = cache.get("server", tile, null);
+		assertNotNull(img2);
+		assertEquals(type, img2.getType());
+		assertSamePixels(img, img2);
+		
+		// Different keys should not find the tile
+		assertNull(cache.get("server2", tile, null));
+		assertNull(cache.get("server", createTileRequest("test", 64, 0), null));
+	}
+	
+	@ParameterizedTest
+	@EnumSource(value = PixelType.class, names = {"UINT8", "UINT16", "INT16", "INT32", "FLOAT32", "FLOAT64"})
+	public void test_customTypes(PixelType pixelType) throws IOException {
+		var cache = new PersistentTileCache(tempDir, 1024 * 1024 * 100);
+		var colorModel = ColorModelFactory.createColorModel(pixelType, ImageChannel.getDefaultChannelList(3));
+		var raster = colorModel.createCompatibleWritableRaster(32, 40);
+		var rng = new Random(pixelType.ordinal());
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++) {
+					double value = pixelType.isFloatingPoint() ? rng.nextGaussian() * 1000 : 
+						rng.nextInt((int)Math.min(Integer.MAX_VALUE, pixelType.getUpperBound().doubleValue() - pixelType.getLowerBound().doubleValue())) + pixelType.getLowerBound().doubleValue();
+					raster.setSample(x, y, b, value);
+				}
+			}
+		}
+		var img = new BufferedImage(colorModel, raster, false, null);
+		var tile = createTileRequest("test", 0, 0);
+		assertTrue(cache.put("server", tile, img, colorModel));
+		var img2 = cache.get("server", tile, colorModel);
+		assertNotNull(img2);
+		assertSamePixels(img, img2);
+		
+		// Can't create a custom image without a color model
+		assertNull(cache.get("server", tile, null));
+	}
+	
+	@Test
+	public void test_eviction() throws IOException {
+		long maxBytes = 200_000;
+		var cache = new PersistentTileCache(tempDir, maxBytes);
+		var rng = new Random(100L);
+		for (int i = 0; i < 20; i++) {
+			var img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					img.setRGB(x, y, rng.nextInt());
+			}
+			assertTrue(cache.put("server", createTileRequest("test", i * 64, 0), img, null));
+			assertTrue(cache.getCurrentBytes() <= maxBytes);
+		}
+		// The most recent tile should be retained, the oldest should be gone
+		assertNotNull(cache.get("server", createTileRequest("test", 19 * 64, 0), null));
+		assertNull(cache.get("server", createTileRequest("test", 0, 0), null));
+		
+		// A new cache instance should find the same tiles
+		var cache2 = new PersistentTileCache(tempDir, maxBytes);
+		assertEquals(cache.getCurrentBytes(), cache2.getCurrentBytes());
+		assertNotNull(cache2.get("server", createTileRequest("test", 19 * 64, 0), null));
+		
+		cache2.clear();
+		assertEquals(0, cache2.getCurrentBytes());
+		assertNull(cache.get("server", createTileRequest("test", 19 * 64, 0), null));
+	}
+	
+	@Test
+	public void test_evictionLeastRecentlyUsed() throws IOException {
+		long maxBytes = 200_000;
+		var cache = new PersistentTileCache(tempDir, maxBytes);
+		var rng = new Random(100L);
+		var first = createTileRequest("test", 0, 0);
+		for (int i = 0; i < 20; i++) {
+			var img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					img.setRGB(x, y, rng.nextInt());
+			}
+			assertTrue(cache.put("server", createTileRequest("test", i * 64, 0), img, null));
+			// Reading the first tile should prevent it from being evicted
+			assertNotNull(cache.get("server", first, null));
+		}
+		assertNotNull(cache.get("server", createTileRequest("test", 19 * 64, 0), null));
+		assertNull(cache.get("server", createTileRequest("test", 64, 0), null));
+		assertTrue(cache.getCurrentBytes() <= maxBytes);
+	}
+
+	@Test
+	public void test_server() throws Exception {
+		var previous = ImageServerProvider.getPersistentTileCache();
+		try {
+			ImageServerProvider.setPersistentTileCache(new PersistentTileCache(tempDir, 1024 * 1024 * 100));
+			var request = RegionRequest.createInstance("", 1, 0, 0, 256, 256);
+			
+			// Tiles should be read on the first pass
+			var server = new CountingServer(true);
+			var img = server.readRegion(request.updatePath(server.getPath()));
+			assertEquals(4, server.counter.get());
+			
+			// A new server (not sharing the in-memory cache) should use the persistent cache
+			var server2 = new CountingServer(true);
+			var img2 = server2.readRegion(request.updatePath(server2.getPath()));
+			assertEquals(0, server2.counter.get());
+			assertSamePixels(img, img2);
+			
+			// Servers that don't support the persistent cache should always read tiles
+			var server3 = new CountingServer(false);
+			server3.readRegion(request.updatePath(server3.getPath()));
+			assertEquals(4, server3.counter.get());
+			server3.close();
+		} finally {
+			ImageServerProvider.setPersistentTileCache(previous);
+		}
+	}
+	
+	@Test
+	public void test_unsupportedTypes() throws IOException {
+		var cache = new PersistentTileCache(tempDir, 1024 * 1024 * 100);
+		var img = new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_INDEXED);
+		assertFalse(cache.put("server", createTileRequest("test", 0, 0), img, null));
+		assertEquals(0, cache.getCurrentBytes());
+	}
+	
+	
+	private static TileRequest createTileRequest(String path, int x, int y) {
+		return TileRequest.createInstance(path, 0, 1.0, ImageRegion.createInstance(x, y, 64, 64, 0, 0));
+	}
+	
+	private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		var r1 = expected.getRaster();
+		var r2 = actual.getRaster();
+		assertEquals(r1.getNumBands(), r2.getNumBands());
+		for (int b = 0; b < r1.getNumBands(); b++) {
+			assertArrayEquals(
+					r1.getSamples(0, 0, r1.getWidth(), r1.getHeight(), b, (double[])null),
+					r2.getSamples(0, 0, r2.getWidth(), r2.getHeight(), b, (double[])null));
+		}
+	}
+	
+	
+	/**
+	 * Server that creates tiles (rather than reading them), counting the number created.
+	 */
+	static class CountingServer extends AbstractTileableImageServer {
+		
+		private final boolean supportsPersistentCache;
+		private final AtomicInteger counter = new AtomicInteger();
+		private final ImageServerMetadata metadata;
+		
+		CountingServer(boolean supportsPersistentCache) {
+			this.supportsPersistentCache = supportsPersistentCache;
+			metadata = new ImageServerMetadata.Builder()
+					.width(256)
+					.height(256)
+					.name("Counting server")
+					.preferredTileSize(128, 128)
+					.levelsFromDownsamples(1.0)
+					.pixelType(PixelType.FLOAT32)
+					.channels(ImageChannel.getDefaultChannelList(2))
+					.build();
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			counter.incrementAndGet();
+			var raster = getDefaultColorModel().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++) {
+					raster.setSample(x, y, 0, x + tileRequest.getTileX());
+					raster.setSample(x, y, 1, y + tileRequest.getTileY());
+				}
+			}
+			return new BufferedImage(getDefaultColorModel(), raster, false, null);
+		}
+		
+		@Override
+		protected boolean supportsPersistentTileCache() {
+			return supportsPersistentCache;
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Counting server";
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return null;
+		}
+
+		@Override
+		protected String createID() {
+			return "counting-server";
+		}
+		
+	}
+
+}
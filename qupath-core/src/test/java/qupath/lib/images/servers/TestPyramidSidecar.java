@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestPyramidSidecar {
+
+	@TempDir
+	Path tempDir;
+
+	private Map<RegionRequest, BufferedImage> previousCache;
+
+	@BeforeEach
+	public void setUp() {
+		previousCache = ImageServerProvider.getCache(BufferedImage.class);
+		ImageServerProvider.setCache(new ConcurrentHashMap<>(), BufferedImage.class);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		ImageServerProvider.setCache(previousCache, BufferedImage.class);
+	}
+
+	@Test
+	public void test_writeAndRead() throws Exception {
+		var path = tempDir.resolve("pyramid.qpps");
+
+		var server = new GradientServer();
+		var pyramid = ImageServers.pyramidalizeTiled(server, 64, 64, 1.0, 4.0, 16.0);
+		assertFalse(ImageServers.usePyramidSidecar(pyramid, path, false));
+		assertTrue(ImageServers.usePyramidSidecar(pyramid, path, true));
+		assertTrue(Files.isRegularFile(path));
+		var requestLow = RegionRequest.createInstance(pyramid.getPath(), 16.0, 0, 0, server.getWidth(), server.getHeight());
+		var requestMid = RegionRequest.createInstance(pyramid.getPath(), 4.0, 64, 32, 320, 256);
+		var imgLow = pyramid.readRegion(requestLow);
+		var imgMid = pyramid.readRegion(requestMid);
+
+		// A new server (with an empty cache) should read the generated levels without accessing the original pixels
+		ImageServerProvider.setCache(new ConcurrentHashMap<>(), BufferedImage.class);
+		var server2 = new GradientServer();
+		var pyramid2 = ImageServers.pyramidalizeTiled(server2, 64, 64, 1.0, 4.0, 16.0);
+		assertTrue(ImageServers.usePyramidSidecar(pyramid2, path, false));
+		assertSamePixels(imgLow, pyramid2.readRegion(requestLow));
+		assertEquals(0, server2.readCount.get());
+
+		// The first downsampled level is read directly from the original server (and so isn't stored)
+		assertSamePixels(imgMid, pyramid2.readRegion(requestMid));
+		assertTrue(server2.readCount.get() > 0);
+
+		// Closing the server should release the sidecar file
+		var generating = (PyramidGeneratingImageServer)pyramid2;
+		var sidecar = generating.getPyramidSidecar();
+		var tile = generating.getTileRequestManager().getTileRequests(requestLow).iterator().next();
+		assertNotNull(sidecar.readTile(generating, tile, generating.getDefaultColorModel()));
+		pyramid2.close();
+		assertNull(generating.getPyramidSidecar());
+		assertThrows(IOException.class, () -> sidecar.readTile(generating, tile, generating.getDefaultColorModel()));
+		Files.move(path, tempDir.resolve("moved.qpps"));
+
+		server.close();
+		server2.close();
+	}
+
+	@Test
+	public void test_writeAsync() throws Exception {
+		var path = tempDir.resolve("pyramid.qpps");
+		var server = new GradientServer();
+		var pyramid = ImageServers.pyramidalizeTiled(server, 64, 64, 1.0, 4.0, 16.0);
+		assertTrue(ImageServers.writePyramidSidecarAsync(pyramid, path).get());
+
+		// Tiles should be generated using a separate server, without using the shared cache
+		assertEquals(0, server.readCount.get());
+		assertTrue(ImageServerProvider.getCache(BufferedImage.class).isEmpty());
+
+		// The server should then use the sidecar
+		assertNotNull(((PyramidGeneratingImageServer)pyramid).getPyramidSidecar());
+		pyramid.readRegion(RegionRequest.createInstance(pyramid.getPath(), 16.0, 0, 0, server.getWidth(), server.getHeight()));
+		assertEquals(0, server.readCount.get());
+		pyramid.close();
+		server.close();
+	}
+
+	@Test
+	public void test_cancelAsyncWhenClosed() throws Exception {
+		var path = tempDir.resolve("pyramid.qpps");
+		var server = new GradientServer(new CountDownLatch(1));
+		var pyramid = ImageServers.pyramidalizeTiled(server, 64, 64, 1.0, 4.0, 16.0);
+		var future = ImageServers.writePyramidSidecarAsync(pyramid, path);
+		pyramid.close();
+		assertTrue(future.isCancelled());
+
+		// Sidecars are written one at a time, so the cancelled task should be complete once another has been written
+		var path2 = tempDir.resolve("pyramid2.qpps");
+		var pyramid2 = ImageServers.pyramidalizeTiled(new GradientServer(), 64, 64, 1.0, 4.0, 16.0);
+		assertTrue(ImageServers.writePyramidSidecarAsync(pyramid2, path2).get());
+		assertFalse(Files.exists(path));
+		assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+		pyramid2.close();
+		server.close();
+	}
+
+	@Test
+	public void test_mismatchedServer() throws Exception {
+		var path = tempDir.resolve("pyramid.qpps");
+		var server = new GradientServer();
+		assertTrue(ImageServers.usePyramidSidecar(ImageServers.pyramidalizeTiled(server, 64, 64, 1.0, 4.0, 16.0), path, true));
+
+		// Different levels should not use the sidecar
+		assertFalse(ImageServers.usePyramidSidecar(ImageServers.pyramidalizeTiled(server, 64, 64, 1.0, 2.0, 8.0), path, false));
+		assertFalse(ImageServers.usePyramidSidecar(ImageServers.pyramidalizeTiled(server, 128, 128, 1.0, 4.0, 16.0), path, false));
+
+		// Servers that don't generate a pyramid should never use the sidecar
+		assertFalse(ImageServers.usePyramidSidecar(server, path, true));
+
+		// Invalid files should be ignored
+		Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+		assertFalse(ImageServers.usePyramidSidecar(ImageServers.pyramidalizeTiled(server, 64, 64, 1.0, 4.0, 16.0), path, false));
+		server.close();
+	}
+
+	private static void assertSamePixels(BufferedImage img, BufferedImage img2) {
+		assertEquals(img.getWidth(), img2.getWidth());
+		assertEquals(img.getHeight(), img2.getHeight());
+		var raster = img.getRaster();
+		var raster2 = img2.getRaster();
+		assertEquals(raster.getNumBands(), raster2.getNumBands());
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					assertEquals(raster.getSampleFloat(x, y, b), raster2.getSampleFloat(x, y, b));
+			}
+		}
+	}
+
+
+	/**
+	 * Single-resolution server with a fixed path, which counts the number of tiles read.
+	 * Optionally, reading waits until a latch is released (or the thread is interrupted).
+	 */
+	static class GradientServer extends AbstractTileableImageServer {
+
+		private final AtomicInteger readCount = new AtomicInteger();
+		private final CountDownLatch latch;
+		private final ImageServerMetadata metadata;
+
+		GradientServer() {
+			this(null);
+		}
+
+		GradientServer(CountDownLatch latch) {
+			this.latch = latch;
+			metadata = new ImageServerMetadata.Builder()
+					.width(640)
+					.height(480)
+					.name("Gradient server")
+					.preferredTileSize(640, 480)
+					.levelsFromDownsamples(1.0)
+					.pixelType(PixelType.FLOAT32)
+					.channels(ImageChannel.getDefaultChannelList(2))
+					.build();
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			if (latch != null) {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while reading tile");
+				}
+			}
+			readCount.incrementAndGet();
+			var raster = getDefaultColorModel().createCompatibleWritableRaster(tileRequest.getTileWidth(), tileRequest.getTileHeight());
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++) {
+					raster.setSample(x, y, 0, (x + tileRequest.getTileX()) * 0.5f);
+					raster.setSample(x, y, 1, (y + tileRequest.getTileY()) * 2f);
+				}
+			}
+			return new BufferedImage(getDefaultColorModel(), raster, false, null);
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Gradient server";
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return new GradientServerBuilder(latch);
+		}
+
+		@Override
+		protected String createID() {
+			return "gradient-server";
+		}
+
+	}
+
+	/**
+	 * Builder for a {@link GradientServer}, so that a separate instance can be created to write a sidecar.
+	 */
+	static class GradientServerBuilder implements ServerBuilder<BufferedImage> {
+
+		private final CountDownLatch latch;
+
+		GradientServerBuilder(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		public ImageServer<BufferedImage> build() {
+			return new GradientServer(latch);
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public ServerBuilder<BufferedImage> updateURIs(Map<URI, URI> updateMap) {
+			return this;
+		}
+
+	}
+
+}
@@ -0,0 +1,193 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.ImageServerBuilder.DefaultImageServerBuilder;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestSparseImageServer {
+	
+	private static final int REGION_SIZE = 16;
+	private static final int N_REGIONS = 20;
+	
+	private Map<RegionRequest, BufferedImage> previousCache;
+
+	@BeforeEach
+	public void setUp() {
+		previousCache = ImageServerProvider.getCache(BufferedImage.class);
+		ImageServerProvider.setCache(new ConcurrentHashMap<>(), BufferedImage.class);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		ImageServerProvider.setCache(previousCache, BufferedImage.class);
+	}
+	
+	@Test
+	public void test_manyRegions() throws Exception {
+		var openCount = new AtomicInteger();
+		var builder = new SparseImageServer.Builder();
+		for (int y = 0; y < N_REGIONS; y++) {
+			for (int x = 0; x < N_REGIONS; x++) {
+				var region = ImageRegion.createInstance(x * REGION_SIZE, y * REGION_SIZE, REGION_SIZE, REGION_SIZE, 0, 0);
+				builder.jsonRegion(region, 1.0, new ConstantServerBuilder(getRGB(x, y), REGION_SIZE, openCount));
+			}
+		}
+		// Add an overlapping region last, which should be shown on top
+		var regionTop = ImageRegion.createInstance(REGION_SIZE / 2, REGION_SIZE / 2, REGION_SIZE, REGION_SIZE, 0, 0);
+		builder.jsonRegion(regionTop, 1.0, new ConstantServerBuilder(0xff00ff, REGION_SIZE, openCount));
+		
+		var server = builder.build();
+		// Only the first server is needed to create the sparse server
+		assertEquals(1, openCount.get());
+		// The path should be derived from the builders, and so not depend upon which servers happened to be open
+		var server2 = builder.build();
+		assertEquals(server.getPath(), server2.getPath());
+		assertTrue(server.getPath().contains(ConstantServerBuilder.getURI(0xff00ff).toString()));
+		server2.close();
+		openCount.set(1);
+		assertEquals(N_REGIONS * N_REGIONS + 1, server.getManager().getRegions().size());
+		
+		// Only the overlapping regions should be found (the four grid regions at the corner, and the top region)
+		assertEquals(5, server.getManager().getRegions(REGION_SIZE - 1, REGION_SIZE - 1, 2, 2, 0, 0).size());
+		// Regions should be returned in the order they were added
+		var regionGrid = ImageRegion.createInstance(REGION_SIZE, REGION_SIZE, REGION_SIZE, REGION_SIZE, 0, 0);
+		assertEquals(Arrays.asList(regionGrid, regionTop), server.getManager().getRegions(REGION_SIZE, REGION_SIZE, 1, 1, 0, 0));
+		assertTrue(server.getManager().getRegions(REGION_SIZE, REGION_SIZE, 1, 1, 1, 0).isEmpty());
+		
+		int maxOpen = 8;
+		server.getManager().setMaxOpenServers(maxOpen);
+		var img = server.readRegion(RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, server.getWidth(), server.getHeight()));
+		assertTrue(server.getManager().getOpenServerCount() <= maxOpen);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++) {
+				int expected;
+				if (regionTop.contains(x, y, 0, 0))
+					expected = 0xff00ff;
+				else
+					expected = getRGB(x / REGION_SIZE, y / REGION_SIZE);
+				assertEquals(expected, img.getRGB(x, y) & 0xffffff);
+			}
+		}
+		
+		server.close();
+		assertEquals(0, server.getManager().getOpenServerCount());
+	}
+	
+	@Test
+	public void test_serverPathIncludesArgs() throws Exception {
+		// Different images in the same file should give different paths, without needing to open the servers
+		var uri = URI.create("file:/not/a/real/image.tif");
+		var region1 = ImageRegion.createInstance(0, 0, REGION_SIZE, REGION_SIZE, 0, 0);
+		var region2 = ImageRegion.createInstance(REGION_SIZE, 0, REGION_SIZE, REGION_SIZE, 0, 0);
+		var region3 = ImageRegion.createInstance(2 * REGION_SIZE, 0, REGION_SIZE, REGION_SIZE, 0, 0);
+		ServerBuilder<BufferedImage> builder1 = DefaultImageServerBuilder.createInstance(null, uri, "--series", "0");
+		ServerBuilder<BufferedImage> builder2 = DefaultImageServerBuilder.createInstance(null, uri, "--series", "1");
+		ServerBuilder<BufferedImage> builder3 = DefaultImageServerBuilder.createInstance(null, uri, "--series", "0");
+		var manager = SparseImageServer.createManager(Arrays.asList(
+				new SparseImageServer.SparseImageServerManagerRegion(region1, 
+						Collections.singletonList(new SparseImageServer.SparseImageServerManagerResolution(builder1, 1.0))),
+				new SparseImageServer.SparseImageServerManagerRegion(region2, 
+						Collections.singletonList(new SparseImageServer.SparseImageServerManagerResolution(builder2, 1.0))),
+				new SparseImageServer.SparseImageServerManagerRegion(region3, 
+						Collections.singletonList(new SparseImageServer.SparseImageServerManagerResolution(builder3, 1.0)))
+				));
+		var path1 = manager.getServerPath(region1);
+		assertTrue(path1.contains(uri.toString()));
+		assertNotEquals(path1, manager.getServerPath(region2));
+		assertEquals(path1, manager.getServerPath(region3));
+		assertEquals(0, manager.getOpenServerCount());
+	}
+	
+	private static int getRGB(int x, int y) {
+		return (x * 10 << 16) + (y * 10 << 8) + 128;
+	}
+	
+	
+	/**
+	 * Builder for a server containing a single color, which counts how often servers are opened.
+	 */
+	static class ConstantServerBuilder implements ServerBuilder<BufferedImage> {
+		
+		private final int rgb;
+		private final int size;
+		private final AtomicInteger openCount;
+		
+		ConstantServerBuilder(int rgb, int size, AtomicInteger openCount) {
+			this.rgb = rgb;
+			this.size = size;
+			this.openCount = openCount;
+		}
+
+		@Override
+		public ImageServer<BufferedImage> build() throws Exception {
+			openCount.incrementAndGet();
+			var img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++)
+					img.setRGB(x, y, rgb);
+			}
+			return new WrappedBufferedImageServer("Constant " + Integer.toHexString(rgb), img);
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.singletonList(getURI(rgb));
+		}
+		
+		static URI getURI(int rgb) {
+			return URI.create("constant:" + Integer.toHexString(rgb));
+		}
+
+		@Override
+		public ServerBuilder<BufferedImage> updateURIs(Map<URI, URI> updateMap) {
+			return this;
+		}
+		
+		@Override
+		public String toString() {
+			return "ConstantServerBuilder (uri=" + getURI(rgb) + ", size=" + size + ")";
+		}
+		
+	}
+
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DefaultColorDeconvolutionStains;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestTransformedServerBuilder {
+
+	@Test
+	public void test_fuseExtractChannels() throws Exception {
+		var server = new WrappedBufferedImageServer("RGB", createImage());
+		var stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DefaultColorDeconvolutionStains.H_DAB);
+		
+		// Extracting stains should give a single color deconvolution server
+		var fused = new TransformedServerBuilder(server)
+				.deconvolveStains(stains, 1, 2, 3)
+				.extractChannels(2, 0)
+				.build();
+		assertTrue(fused instanceof ColorDeconvolutionImageServer);
+		assertSame(server, ((ColorDeconvolutionImageServer)fused).getWrappedServer());
+		assertEquals(2, fused.nChannels());
+		
+		// Check the pixels match the unfused servers
+		var deconvolved = new ColorDeconvolutionImageServer(server, stains, 1, 2, 3);
+		var nested = new ChannelTransformFeatureServer(deconvolved, Arrays.asList(
+				ColorTransforms.createChannelExtractor(2),
+				ColorTransforms.createChannelExtractor(0)));
+		assertEquals(nested.getMetadata().getChannels(), fused.getMetadata().getChannels());
+		assertSamePixels(nested, fused);
+		
+		// Extracting by name from extracted channels should be fused too
+		var fusedByName = new TransformedServerBuilder(server)
+				.extractChannels(0, 1, 2)
+				.extractChannels(server.getChannel(1).getName())
+				.build();
+		assertTrue(fusedByName instanceof ChannelTransformFeatureServer);
+		assertSame(server, ((ChannelTransformFeatureServer)fusedByName).getWrappedServer());
+		assertSamePixels(new TransformedServerBuilder(server).extractChannels(1).build(), fusedByName);
+		
+		// Anything other than extracting valid channels should not be fused
+		var unfused = new TransformedServerBuilder(server)
+				.deconvolveStains(stains, 1, 2)
+				.extractChannels(5)
+				.build();
+		assertTrue(((ChannelTransformFeatureServer)unfused).getWrappedServer() instanceof ColorDeconvolutionImageServer);
+		
+		server.close();
+	}
+	
+	@Test
+	public void test_concatChannels() throws Exception {
+		var server = new WrappedBufferedImageServer("RGB", createImage());
+		var red = new TransformedServerBuilder(server).extractChannels(0).build();
+		var green = new TransformedServerBuilder(server).extractChannels(1).build();
+		var blue = new TransformedServerBuilder(server).extractChannels(2).build();
+		
+		var concat = new TransformedServerBuilder(red)
+				.concatChannels(green)
+				.concatChannels(blue)
+				.build();
+		assertTrue(concat instanceof ConcatChannelsImageServer);
+		assertSamePixels(new TransformedServerBuilder(server).extractChannels(0, 1, 2).build(), concat);
+		
+		// Metadata set for an existing concatenation should be retained when more channels are added
+		var redGreen = new TransformedServerBuilder(red).concatChannels(green).build();
+		redGreen.setMetadata(new ImageServerMetadata.Builder(redGreen.getMetadata())
+				.channels(Arrays.asList(ImageChannel.getInstance("First", 0xFF0000), ImageChannel.getInstance("Second", 0x00FF00)))
+				.build());
+		var concat2 = new TransformedServerBuilder(redGreen).concatChannels(blue).build();
+		assertEquals(Arrays.asList("First", "Second", blue.getChannel(0).getName()),
+				concat2.getMetadata().getChannels().stream().map(c -> c.getName()).collect(Collectors.toList()));
+		assertSamePixels(concat, concat2);
+		
+		server.close();
+	}
+	
+	@Test
+	public void test_colorDeconvolutionPixels() throws Exception {
+		var img = createImage();
+		var server = new WrappedBufferedImageServer("RGB", img);
+		var stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DefaultColorDeconvolutionStains.H_DAB);
+		var deconvolved = new ColorDeconvolutionImageServer(server, stains, 3, 1);
+		var imgDeconvolved = deconvolved.readRegion(RegionRequest.createInstance(deconvolved.getPath(), 1.0, 0, 0, img.getWidth(), img.getHeight()));
+		
+		// Compare with transforming each channel separately into a temporary array, as was done previously
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int[] rgb = img.getRGB(0, 0, w, h, null, 0, w);
+		var methods = new ColorTransformMethod[] {ColorTransformMethod.Stain_3, ColorTransformMethod.Stain_1};
+		var actual = imgDeconvolved.getRaster();
+		assertEquals(methods.length, actual.getNumBands());
+		float[] pixels = new float[w * h];
+		for (int b = 0; b < methods.length; b++) {
+			ColorTransformer.getTransformedPixels(rgb, methods[b], pixels, stains);
+			assertArrayEquals(pixels, actual.getSamples(0, 0, w, h, b, (float[])null));
+		}
+		
+		server.close();
+	}
+	
+	private static BufferedImage createImage() {
+		var img = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++) {
+				int r = (x * 4) % 256;
+				int g = (y * 5) % 256;
+				int b = (x * y) % 256;
+				img.setRGB(x, y, (r << 16) + (g << 8) + b);
+			}
+		}
+		return img;
+	}
+	
+	private static void assertSamePixels(ImageServer<BufferedImage> server, ImageServer<BufferedImage> server2) throws Exception {
+		var img = server.readRegion(RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, server.getWidth(), server.getHeight()));
+		var img2 = server2.readRegion(RegionRequest.createInstance(server2.getPath(), 1.0, 0, 0, server2.getWidth(), server2.getHeight()));
+		var raster = img.getRaster();
+		var raster2 = img2.getRaster();
+		assertEquals(raster.getNumBands(), raster2.getNumBands());
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			for (int y = 0; y < img.getHeight(); y++) {
+				for (int x = 0; x < img.getWidth(); x++)
+					assertEquals(raster.getSampleFloat(x, y, b), raster2.getSampleFloat(x, y, b), 1e-6f);
+			}
+		}
+	}
+
+}
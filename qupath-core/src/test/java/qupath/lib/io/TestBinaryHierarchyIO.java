@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.measurements.ColumnarMeasurementStore;
+import qupath.lib.measurements.MeasurementList.MeasurementListType;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.DefaultTMAGrid;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RoiTools;
+import qupath.lib.roi.interfaces.ROI;
+
+@SuppressWarnings("javadoc")
+public class TestBinaryHierarchyIO {
+
+	@Test
+	public void test_emptyHierarchy() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		var hierarchy2 = writeAndRead(hierarchy);
+		assertTrue(hierarchy2.isEmpty());
+	}
+
+	@Test
+	public void test_roundTrip() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getPlane(1, 2);
+		var rng = new Random(100L);
+
+		// Annotations of different ROI types, with descriptions & locked status
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 5000, 5000, plane), PathClass.fromString("Tumor"));
+		annotation.setName("Big annotation");
+		annotation.setLocked(true);
+		((PathAnnotationObject)annotation).setDescription("A description with unicode µm");
+		var geometryROI = RoiTools.combineROIs(
+				ROIs.createEllipseROI(6000, 0, 100, 100, plane),
+				ROIs.createRectangleROI(6200, 0, 100, 100, plane),
+				RoiTools.CombineOp.ADD);
+		var annotation2 = PathObjects.createAnnotationObject(geometryROI);
+		annotation2.setColor(255, 0, 0);
+		var points = PathObjects.createAnnotationObject(ROIs.createPointsROI(new double[] {1.5, 2.5}, new double[] {3.25, 4.25}, plane));
+		var line = PathObjects.createAnnotationObject(ROIs.createLineROI(1, 2, 3, 4, plane));
+		var polyline = PathObjects.createAnnotationObject(ROIs.createPolylineROI(new double[] {1, 2, 5}, new double[] {3, 4, 1}, plane));
+		hierarchy.addObjects(List.of(annotation, annotation2, points, line, polyline));
+
+		// Enough detections to span multiple chunks, with a mix of float & double measurements
+		var derivedClass = PathClass.fromString("Tumor: Positive");
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < BinaryHierarchyIO.CHUNK_SIZE * 2 + 10; i++) {
+			double x = rng.nextDouble() * 4900;
+			double y = rng.nextDouble() * 4900;
+			var roi = ROIs.createPolygonROI(new double[] {x, x + 10, x + 5}, new double[] {y, y, y + 10}, plane);
+			var type = i % 2 == 0 ? MeasurementListType.FLOAT : MeasurementListType.DOUBLE;
+			var ml = MeasurementListFactory.createMeasurementList(2, type);
+			// Vary the order of measurements, which should be retained
+			if (i % 4 == 0) {
+				ml.put("Random", rng.nextDouble());
+				ml.put("Index", i);
+			} else {
+				ml.put("Index", i);
+				ml.put("Random", rng.nextDouble());
+			}
+			ml.close();
+			PathObject detection;
+			if (i % 3 == 0)
+				detection = PathObjects.createCellObject(roi, ROIs.createEllipseROI(x + 2, y + 2, 4, 4, plane), derivedClass, ml);
+			else if (i % 3 == 1)
+				detection = PathObjects.createDetectionObject(roi, null, ml);
+			else
+				detection = PathObjects.createTileObject(roi, PathClass.fromString("Stroma"), ml);
+			detections.add(detection);
+		}
+		annotation.addChildObjects(detections);
+
+		var hierarchy2 = writeAndRead(hierarchy);
+		assertSameObjects(hierarchy.getRootObject(), hierarchy2.getRootObject());
+		assertEquals(hierarchy.nObjects(), hierarchy2.nObjects());
+
+		// Float measurements for detections should be stored in columns, but can still be modified
+		var detection = hierarchy2.getDetectionObjects().stream()
+				.filter(p -> p.getMeasurementList().get("Index") % 4 == 0)
+				.findFirst()
+				.orElseThrow();
+		var ml = detection.getMeasurementList();
+		assertEquals(ColumnarMeasurementStore.class, ml.getClass().getEnclosingClass());
+		ml.put("Extra", 5.0);
+		assertEquals(List.of("Random", "Index", "Extra"), ml.getMeasurementNames());
+		assertEquals(5.0, ColumnarMeasurementStore.getValues(List.of(ml), "Extra")[0]);
+	}
+
+	@Test
+	public void test_tmaGrid() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		List<TMACoreObject> cores = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			var core = PathObjects.createTMACoreObject(i * 100, 0, 80, i == 2);
+			core.setName("Core " + i);
+			core.setCaseID("Case " + i);
+			core.getMeasurementList().put("Score", i);
+			cores.add(core);
+		}
+		hierarchy.setTMAGrid(DefaultTMAGrid.create(cores, 3));
+		var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(10, 10, 5, 5, ImagePlane.getDefaultPlane()));
+		cores.get(0).addChildObject(detection);
+
+		var hierarchy2 = writeAndRead(hierarchy);
+		assertSameObjects(hierarchy.getRootObject(), hierarchy2.getRootObject());
+		var grid = hierarchy2.getTMAGrid();
+		assertNotNull(grid);
+		assertEquals(3, grid.getGridWidth());
+		assertEquals(2, grid.getGridHeight());
+		for (int i = 0; i < cores.size(); i++) {
+			var core = grid.getTMACoreList().get(i);
+			assertEquals(cores.get(i).getID(), core.getID());
+			assertEquals("Case " + i, core.getCaseID());
+			assertEquals(i == 2, core.isMissing());
+		}
+	}
+
+	@Test
+	public void test_nestedObjects() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		hierarchy.addObject(annotation);
+
+		// Detection with an annotation child must be stored in the skeleton
+		var detectionWithAnnotation = PathObjects.createDetectionObject(ROIs.createRectangleROI(900, 900, 50, 50, plane));
+		detectionWithAnnotation.addChildObject(PathObjects.createAnnotationObject(ROIs.createRectangleROI(910, 910, 10, 10, plane)));
+
+		// Detections with detection children can be stored in detection chunks
+		List<PathObject> children = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			var tile = PathObjects.createTileObject(ROIs.createRectangleROI(990 - i * 10, 0, 10, 10, plane));
+			tile.addChildObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(992 - i * 10, 2, 5, 5, plane)));
+			children.add(tile);
+			// Interleave with the detection that must be in the skeleton
+			if (i == 50)
+				children.add(detectionWithAnnotation);
+		}
+		annotation.addChildObjects(children);
+
+		var hierarchy2 = writeAndRead(hierarchy);
+		assertSameObjects(hierarchy.getRootObject(), hierarchy2.getRootObject());
+		assertEquals(hierarchy.nObjects(), hierarchy2.nObjects());
+	}
+
+	@Test
+	public void test_unsupportedVersion() throws Exception {
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new DataOutputStream(bytes)) {
+			BinaryHierarchyIO.writeHierarchy(new PathObjectHierarchy(), stream);
+		}
+		// Increment the version, which follows the magic number
+		var array = bytes.toByteArray();
+		array[7]++;
+		assertThrows(IOException.class, () -> BinaryHierarchyIO.readHeader(new DataInputStream(new ByteArrayInputStream(array))));
+		array[7] = 0;
+		assertThrows(IOException.class, () -> BinaryHierarchyIO.readHeader(new DataInputStream(new ByteArrayInputStream(array))));
+	}
+
+	@Test
+	public void test_unsupportedObjects() {
+		var hierarchy = new PathObjectHierarchy();
+		var custom = new PathAnnotationObject() {};
+		custom.setROI(ROIs.createRectangleROI(0, 0, 10, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.addObject(custom);
+		assertFalse(BinaryHierarchyIO.canWrite(hierarchy));
+	}
+
+	/**
+	 * Write using the same approach as within a .qpdata file.
+	 */
+	private static PathObjectHierarchy writeAndRead(PathObjectHierarchy hierarchy) throws IOException, ClassNotFoundException {
+		assertTrue(BinaryHierarchyIO.canWrite(hierarchy));
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(BinaryHierarchyIO.MARKER);
+			BinaryHierarchyIO.writeHierarchy(hierarchy, stream);
+			stream.writeObject("EOF");
+		}
+		try (var stream = PathIO.createObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			assertEquals(BinaryHierarchyIO.MARKER, stream.readObject());
+			var hierarchy2 = BinaryHierarchyIO.readHierarchy(stream);
+			assertEquals("EOF", stream.readObject());
+			return hierarchy2;
+		}
+	}
+
+	private static void assertSameObjects(PathObject expected, PathObject actual) {
+		assertEquals(expected.getClass(), actual.getClass());
+		if (!expected.isRootObject())
+			assertEquals(expected.getID(), actual.getID());
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getColor(), actual.getColor());
+		assertEquals(expected.getPathClass(), actual.getPathClass());
+		assertEquals(expected.isLocked(), actual.isLocked());
+		assertSameROIs(expected.getROI(), actual.getROI());
+		if (expected instanceof PathCellObject)
+			assertSameROIs(((PathCellObject)expected).getNucleusROI(), ((PathCellObject)actual).getNucleusROI());
+		if (expected instanceof PathAnnotationObject)
+			assertEquals(((PathAnnotationObject)expected).getDescription(), ((PathAnnotationObject)actual).getDescription());
+		assertEquals(expected.getMeasurementList().getMeasurementNames(), actual.getMeasurementList().getMeasurementNames());
+		for (var name : expected.getMeasurementList().getMeasurementNames())
+			assertEquals(expected.getMeasurementList().get(name), actual.getMeasurementList().get(name));
+		assertEquals(expected.nChildObjects(), actual.nChildObjects());
+		var expectedChildren = new ArrayList<>(expected.getChildObjects());
+		var actualChildren = new ArrayList<>(actual.getChildObjects());
+		for (int i = 0; i < expectedChildren.size(); i++)
+			assertSameObjects(expectedChildren.get(i), actualChildren.get(i));
+	}
+
+	private static void assertSameROIs(ROI expected, ROI actual) {
+		if (expected == null) {
+			assertEquals(null, actual);
+			return;
+		}
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getImagePlane(), actual.getImagePlane());
+		assertEquals(expected.getAllPoints(), actual.getAllPoints());
+		assertTrue(expected.getGeometry().equalsExact(actual.getGeometry()));
+	}
+
+}
@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Locale.Category;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestLazyHierarchy {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void test_lazyRegions() throws Exception {
+		var hierarchy = createHierarchy();
+		var path = write(hierarchy, true);
+
+		var lazy = PathIO.readLazyHierarchy(path);
+		assertTrue(lazy.hasDeferredObjects());
+		assertEquals(hierarchy.nObjects() - 1, lazy.nDeferredObjects());
+		assertEquals(1, lazy.getHierarchy().nObjects());
+		assertEquals(0, lazy.nCachedChunks());
+		var annotation = lazy.getHierarchy().getAnnotationObjects().iterator().next();
+
+		var region = ImageRegion.createInstance(1000, 2000, 500, 500, 0, 0);
+		var objects = lazy.getObjectsForRegion(PathDetectionObject.class, region, null);
+		assertEquals(getIDs(hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null)), getIDs(objects));
+		assertFalse(objects.isEmpty());
+
+		// Only chunks overlapping the region should be read
+		int nCached = lazy.nCachedChunks();
+		assertTrue(nCached > 0);
+		assertTrue(nCached < lazy.nChunks() / 2);
+
+		// Parents should be available, both for top-level & nested detections
+		for (var pathObject : objects) {
+			var parent = lazy.getParent(pathObject);
+			if (parent.isDetection())
+				assertSame(annotation, lazy.getParent(parent));
+			else
+				assertSame(annotation, parent);
+		}
+
+		// Objects on other planes shouldn't be returned
+		var region2 = ImageRegion.createInstance(0, 0, 10000, 10000, 1, 0);
+		var objects2 = lazy.getObjectsForRegion(null, region2, null);
+		assertEquals(getIDs(hierarchy.getObjectsForRegion(null, region2, null)), getIDs(objects2));
+
+		assertEquals(hierarchy.nObjects(), lazy.readFullHierarchy().nObjects());
+
+		assertThrows(NullPointerException.class, () -> lazy.getObjectsForRegion(null, null, null));
+	}
+
+	@Test
+	public void test_readChunksInAnyOrder() throws Exception {
+		var hierarchy = createHierarchy();
+		var path = write(hierarchy, true);
+
+		// Chunks are read from their recorded positions, so the order in which they are requested shouldn't matter
+		var lazy = PathIO.readLazyHierarchy(path);
+		for (int y = 9000; y >= 0; y -= 1000) {
+			for (int x = 9000; x >= 0; x -= 3000) {
+				var region = ImageRegion.createInstance(x, y, 200, 200, 0, 0);
+				assertEquals(getIDs(hierarchy.getObjectsForRegion(null, region, null)), getIDs(lazy.getObjectsForRegion(null, region, null)));
+			}
+		}
+		assertEquals(lazy.nChunks() - 1, lazy.nCachedChunks());
+	}
+
+	@Test
+	public void test_serializedHierarchy() throws Exception {
+		var hierarchy = createHierarchy();
+		var path = write(hierarchy, false);
+		var lazy = PathIO.readLazyHierarchy(path);
+		assertFalse(lazy.hasDeferredObjects());
+		assertEquals(hierarchy.nObjects(), lazy.getHierarchy().nObjects());
+		assertSame(lazy.getHierarchy(), lazy.readFullHierarchy());
+		var region = ImageRegion.createInstance(1000, 2000, 500, 500, 0, 0);
+		assertEquals(getIDs(hierarchy.getObjectsForRegion(null, region, null)), getIDs(lazy.getObjectsForRegion(null, region, null)));
+	}
+
+	@Test
+	public void test_modifiedFile() throws Exception {
+		var path = write(createHierarchy(), true);
+		var lazy = PathIO.readLazyHierarchy(path);
+		Files.setLastModifiedTime(path, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() + 10_000));
+		assertThrows(IOException.class, () -> lazy.getObjectsForRegion(null, ImageRegion.createInstance(0, 0, 100, 100, 0, 0), null));
+	}
+
+	private static PathObjectHierarchy createHierarchy() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 10000, 10000, plane));
+		hierarchy.addObject(annotation);
+		var rng = new Random(42L);
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < BinaryHierarchyIO.CHUNK_SIZE * 4; i++) {
+			double x = rng.nextDouble() * 9990;
+			double y = rng.nextDouble() * 9990;
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, 10, 10, plane));
+			if (i % 10 == 0)
+				detection.addChildObject(PathObjects.createDetectionObject(ROIs.createRectangleROI(x + 2, y + 2, 5, 5, plane)));
+			detections.add(detection);
+		}
+		for (int i = 0; i < 100; i++)
+			detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 10, 10, ImagePlane.getPlane(1, 0))));
+		annotation.addChildObjects(detections);
+		return hierarchy;
+	}
+
+	/**
+	 * Write the hierarchy using the same approach as within a .qpdata file (omitting other contents).
+	 */
+	private Path write(PathObjectHierarchy hierarchy, boolean binary) throws IOException {
+		var path = tempDir.resolve("data.qpdata");
+		try (var stream = new ObjectOutputStream(Files.newOutputStream(path))) {
+			stream.writeUTF("Data file version " + PathIO.getCurrentDataFileVersion());
+			stream.writeObject(Locale.getDefault(Category.FORMAT));
+			if (binary) {
+				stream.writeObject(BinaryHierarchyIO.MARKER);
+				BinaryHierarchyIO.writeHierarchy(hierarchy, stream);
+			} else
+				stream.writeObject(hierarchy);
+			stream.writeObject("EOF");
+		}
+		return path;
+	}
+
+	private static Set<UUID> getIDs(Iterable<PathObject> pathObjects) {
+		var set = new HashSet<UUID>();
+		for (var pathObject : pathObjects)
+			set.add(pathObject.getID());
+		return set;
+	}
+
+}
@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.measurements.MeasurementList.MeasurementListType;
+
+@SuppressWarnings("javadoc")
+public class TestColumnarMeasurementStore {
+
+	@Test
+	public void test_list() {
+		var store = new ColumnarMeasurementStore();
+		TestMeasurementListFactory.testList(store.createMeasurementList());
+	}
+
+	@Test
+	public void test_missingAndNaN() {
+		var store = new ColumnarMeasurementStore();
+		var list = store.createMeasurementList();
+		list.put("NaN", Double.NaN);
+		assertTrue(list.containsKey("NaN"));
+		assertFalse(list.containsKey("Missing"));
+		assertEquals(1, list.size());
+		assertTrue(Double.isNaN(list.get("NaN")));
+		assertEquals(5.0, list.getOrDefault("Missing", 5.0));
+		assertTrue(Double.isNaN(list.getOrDefault("NaN", 5.0)));
+	}
+
+	@Test
+	public void test_columns() {
+		testColumns(new ColumnarMeasurementStore());
+		// Small chunks should be used if few rows are expected, but more rows can still be added
+		testColumns(new ColumnarMeasurementStore(100));
+	}
+
+	private static void testColumns(ColumnarMeasurementStore store) {
+		// Use enough rows to span multiple chunks
+		int n = 50_000;
+		List<MeasurementList> lists = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			var list = store.createMeasurementList();
+			list.put("Index", i);
+			if (i % 2 == 0)
+				list.put("Even", i);
+			lists.add(list);
+		}
+		// Include a regular list too
+		var other = MeasurementListFactory.createMeasurementList(1, MeasurementListType.FLOAT);
+		other.put("Index", -1);
+		lists.add(other);
+
+		assertEquals(n, store.nRows());
+		assertEquals(List.of("Index", "Even"), store.getColumnNames());
+		assertTrue(store.contains(lists.get(0)));
+		assertFalse(store.contains(other));
+
+		double[] expected = IntStream.range(0, n).asDoubleStream().toArray();
+		assertArrayEquals(expected, store.getValues("Index"));
+
+		double[] values = ColumnarMeasurementStore.getValues(lists, "Index");
+		assertEquals(n + 1, values.length);
+		assertEquals(-1.0, values[n]);
+
+		values = ColumnarMeasurementStore.getValues(lists, "Even");
+		for (int i = 0; i < n; i++) {
+			if (i % 2 == 0)
+				assertEquals(i, values[i]);
+			else
+				assertTrue(Double.isNaN(values[i]));
+		}
+	}
+
+	@Test
+	public void test_order() {
+		var store = new ColumnarMeasurementStore();
+		var list = store.createMeasurementList();
+		list.put("First", 1.0);
+		list.put("Second", 2.0);
+		list.close();
+		var list2 = store.createMeasurementList();
+		list2.put("Second", 2.0);
+		list2.put("First", 1.0);
+		list2.put("Third", 3.0);
+		list2.removeMeasurements("Second");
+		list2.put("Second", 4.0);
+		list2.close();
+		assertEquals(List.of("First", "Second"), list.getMeasurementNames());
+		assertEquals(List.of("First", "Third", "Second"), list2.getMeasurementNames());
+		assertArrayEquals(new double[] {1.0, 3.0, 4.0}, list2.values());
+		assertEquals(List.of("First", "Second", "Third"), store.getColumnNames());
+	}
+
+	@Test
+	public void test_modifyAfterClose() {
+		var store = new ColumnarMeasurementStore();
+		var list = store.createMeasurementList();
+		list.put("First", 1.0);
+		list.put("Second", 2.0);
+		list.close();
+		var list2 = store.createMeasurementList();
+		list2.put("First", 10.0);
+		list2.close();
+
+		// Modifying a closed list should not affect the other rows
+		list.put("Third", 3.0);
+		list.put("First", 0.5);
+		assertEquals(List.of("First", "Second", "Third"), list.getMeasurementNames());
+		assertArrayEquals(new double[] {0.5, 10.0}, store.getValues("First"));
+		assertArrayEquals(new double[] {0.5, 10.0}, ColumnarMeasurementStore.getValues(List.of(list, list2), "First"));
+		assertEquals(3.0, list.get("Third"));
+		assertTrue(Double.isNaN(list2.get("Third")));
+
+		// Dynamic measurements should be supported
+		assertTrue(list2.supportsDynamicMeasurements());
+		list2.putMeasurement(new DynamicMeasurement("Dynamic", 7.0));
+		assertEquals(7.0, list2.get("Dynamic"));
+		assertEquals(10.0, list2.get("First"));
+		assertArrayEquals(new double[] {0.5, 10.0}, store.getValues("First"));
+	}
+
+	@Test
+	public void test_serialization() throws IOException, ClassNotFoundException {
+		var store = new ColumnarMeasurementStore();
+		var list = store.createMeasurementList();
+		list.put("First", 1.0);
+		list.put("Second", 2.0);
+
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(list);
+		}
+		try (var stream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			var list2 = (MeasurementList)stream.readObject();
+			assertFalse(store.contains(list2));
+			assertEquals(list.getMeasurementNames(), list2.getMeasurementNames());
+			assertArrayEquals(list.values(), list2.values());
+		}
+	}
+
+	private static class DynamicMeasurement implements Measurement {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final double value;
+
+		private DynamicMeasurement(String name, double value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public double getValue() {
+			return value;
+		}
+
+		@Override
+		public boolean isDynamic() {
+			return true;
+		}
+
+	}
+
+}
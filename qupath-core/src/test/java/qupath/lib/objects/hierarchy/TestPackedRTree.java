@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestPackedRTree {
+
+	@Test
+	public void test_emptyTree() {
+		var tree = new PackedRTree.Builder<Integer>().build();
+		assertEquals(0, tree.size());
+		List<Integer> results = new ArrayList<>();
+		tree.query(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, results::add);
+		assertTrue(results.isEmpty());
+		assertFalse(tree.anyMatch(0, 0, 100, 100, i -> true));
+	}
+
+	@Test
+	public void test_queryMatchesBruteForce() {
+		var rng = new Random(100L);
+		for (int n : new int[] {1, 2, 15, 16, 17, 257, 5000}) {
+			double[][] boxes = new double[n][];
+			var builder = new PackedRTree.Builder<Integer>(4);
+			for (int i = 0; i < n; i++) {
+				double x = rng.nextDouble() * 10000;
+				double y = rng.nextDouble() * 10000;
+				double w = rng.nextDouble() * 50;
+				double h = rng.nextDouble() * 50;
+				boxes[i] = new double[] {x, y, x + w, y + h};
+				builder.add(i, x, y, x + w, y + h);
+			}
+			var tree = builder.build();
+			assertEquals(n, tree.size());
+
+			for (int q = 0; q < 50; q++) {
+				double x = rng.nextDouble() * 10000;
+				double y = rng.nextDouble() * 10000;
+				double w = rng.nextDouble() * 2000;
+				double h = rng.nextDouble() * 2000;
+				Set<Integer> expected = new HashSet<>();
+				for (int i = 0; i < n; i++) {
+					var b = boxes[i];
+					if (!(x + w < b[0] || y + h < b[1] || x > b[2] || y > b[3]))
+						expected.add(i);
+				}
+				Set<Integer> actual = new HashSet<>();
+				tree.query(x, y, x + w, y + h, actual::add);
+				assertEquals(expected, actual);
+				assertEquals(!expected.isEmpty(), tree.anyMatch(x, y, x + w, y + h, i -> true));
+			}
+		}
+	}
+
+	@Test
+	public void test_spatialIndexChanges() {
+		var builder = new PackedRTree.Builder<Integer>();
+		for (int i = 0; i < 100; i++)
+			builder.add(i, i * 10, 0, i * 10 + 5, 5);
+		var index = new PathObjectSpatialIndex<>(builder.build());
+		assertEquals(100, index.size());
+
+		// Remove some items & move others
+		index.remove(0);
+		index.remove(1);
+		index.insert(2, 5000, 5000, 5010, 5010);
+		index.insert(1000, 0, 0, 1, 1);
+		assertEquals(99, index.size());
+		assertEquals(5, index.nPendingChanges());
+
+		// Changing items that are only pending should not mark anything as stale
+		Integer other = 2000;
+		index.insert(other, 0, 0, 1, 1);
+		index.remove(other);
+		index.insert(2, 5000, 5000, 5010, 5010);
+		index.remove(1);
+		assertEquals(5, index.nPendingChanges());
+		assertEquals(99, index.size());
+
+		Set<Integer> results = new HashSet<>();
+		index.query(0, 0, 25, 5, results::add);
+		assertEquals(Set.of(1000), results);
+
+		results.clear();
+		index.query(4000, 4000, 6000, 6000, results::add);
+		assertEquals(Set.of(2), results);
+
+		// Results should be unchanged after merging
+		index.merge();
+		assertEquals(0, index.nPendingChanges());
+		assertEquals(99, index.size());
+		results.clear();
+		index.query(0, 0, 25, 5, results::add);
+		assertEquals(Set.of(1000), results);
+		assertTrue(index.anyMatch(4000, 4000, 6000, 6000, i -> i == 2));
+	}
+
+	@Test
+	public void test_hierarchyRegionQueries() {
+		var hierarchy = new PathObjectHierarchy();
+		var rng = new Random(200L);
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			var roi = ROIs.createRectangleROI(rng.nextInt(5000) + 0.5, rng.nextInt(5000) + 0.5, 10, 10, ImagePlane.getDefaultPlane());
+			detections.add(PathObjects.createDetectionObject(roi));
+		}
+		hierarchy.addObjects(detections);
+
+		var region = ImageRegion.createInstance(1000, 1000, 500, 500, 0, 0);
+		Set<PathObject> expected = new HashSet<>();
+		for (var d : detections) {
+			var roi = d.getROI();
+			if (region.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight()))
+				expected.add(d);
+		}
+		assertEquals(expected, new HashSet<>(hierarchy.getObjectsForRegion(null, region, null)));
+		assertEquals(!expected.isEmpty(), hierarchy.hasObjectsForRegion(null, region));
+
+		// Remove objects individually (updating the index incrementally)
+		for (var d : new ArrayList<>(expected)) {
+			hierarchy.removeObject(d, true);
+			expected.remove(d);
+		}
+		assertTrue(hierarchy.getObjectsForRegion(null, region, null).isEmpty());
+		assertFalse(hierarchy.hasObjectsForRegion(null, region));
+
+		// Add a single object back
+		var added = PathObjects.createDetectionObject(ROIs.createRectangleROI(1200, 1200, 10, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.addObject(added);
+		assertEquals(Set.of(added), new HashSet<>(hierarchy.getObjectsForRegion(null, region, null)));
+	}
+
+}
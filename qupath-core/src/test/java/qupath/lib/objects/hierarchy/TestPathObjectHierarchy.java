@@ -31,12 +31,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.junit.jupiter.api.Test;
 
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.PathObjects;
@@ -378,6 +380,193 @@ public class TestPathObjectHierarchy {
 
 	}
 	
+	@Test
+	public void test_addObjectsBelowParent() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, plane));
+		var parent2 = PathObjects.createAnnotationObject(ROIs.createRectangleROI(100, 0, 100, 100, plane));
+		hierarchy.addObjects(Arrays.asList(parent, parent2));
+		
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(i, i, 1, 1, plane)));
+		
+		// Query first, so that the spatial cache is active
+		var region = ImageRegion.createInstance(0, 0, 200, 100, 0, 0);
+		assertTrue(hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).isEmpty());
+		
+		var listener = new PO_hlistener();
+		hierarchy.addListener(listener);
+		assertTrue(hierarchy.addObjectsBelowParent(parent, detections, false));
+		assertEquals(0, listener.getFiredState());
+		assertEquals(10, parent.nChildObjects());
+		assertEquals(12, hierarchy.nObjects());
+		// Spatial queries should find the objects, even though no event was fired
+		assertEquals(10, hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).size());
+		
+		// Objects that already have a parent should be moved
+		assertTrue(hierarchy.addObjectsBelowParent(parent2, detections.subList(0, 5), true));
+		assertEquals(3, listener.getFiredState());
+		assertEquals(5, parent.nChildObjects());
+		assertEquals(5, parent2.nChildObjects());
+		assertEquals(12, hierarchy.nObjects());
+		assertEquals(10, hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null).size());
+		
+		// Null parent means the root object
+		var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(500, 500, 1, 1, plane));
+		assertTrue(hierarchy.addObjectsBelowParent(null, Collections.singletonList(detection), false));
+		assertEquals(hierarchy.getRootObject(), detection.getParent());
+		
+		assertFalse(hierarchy.addObjectsBelowParent(parent, Collections.emptyList(), true));
+		assertThrows(IllegalArgumentException.class, () -> hierarchy.addObjectsBelowParent(parent, Collections.singletonList(parent), false));
+	}
+	
+	@Test
+	public void test_batchEvents() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, plane));
+		hierarchy.addObject(annotation);
+		
+		List<PathObjectHierarchyEvent> events = new ArrayList<>();
+		hierarchy.addListener(events::add);
+		
+		// Adding objects should result in a single structure change event below the common parent
+		List<PathObject> detections = new ArrayList<>();
+		hierarchy.batch(() -> {
+			for (int i = 0; i < 10; i++) {
+				var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(i, i, 1, 1, plane));
+				hierarchy.addObjectBelowParent(annotation, detection, true);
+				detections.add(detection);
+				// Spatial queries should be up-to-date within the batch
+				assertTrue(hierarchy.getObjectsForRegion(null, ImageRegion.createInstance(detection.getROI()), null).contains(detection));
+			}
+			assertTrue(events.isEmpty());
+		});
+		assertEquals(1, events.size());
+		assertTrue(events.get(0).isStructureChangeEvent());
+		assertEquals(annotation, events.get(0).getStructureChangeBase());
+		
+		// Object changes should be merged, retaining the type if possible
+		events.clear();
+		hierarchy.batch(() -> {
+			for (var detection : detections)
+				hierarchy.fireObjectClassificationsChangedEvent(this, Collections.singletonList(detection));
+			// Nested batches should only be passed on at the end
+			hierarchy.batch(() -> hierarchy.fireObjectClassificationsChangedEvent(this, detections.subList(0, 2)));
+		});
+		assertEquals(1, events.size());
+		assertEquals(PathObjectHierarchyEvent.HierarchyEventType.CHANGE_CLASSIFICATION, events.get(0).getEventType());
+		assertEquals(detections, events.get(0).getChangedObjects());
+		assertEquals(this, events.get(0).getSource());
+		
+		events.clear();
+		hierarchy.batch(() -> {
+			hierarchy.fireObjectClassificationsChangedEvent(this, detections.subList(0, 2));
+			hierarchy.fireObjectMeasurementsChangedEvent(hierarchy, detections.subList(2, 4));
+		});
+		assertEquals(1, events.size());
+		assertEquals(PathObjectHierarchyEvent.HierarchyEventType.CHANGE_OTHER, events.get(0).getEventType());
+		assertEquals(detections.subList(0, 4), events.get(0).getChangedObjects());
+		assertEquals(hierarchy, events.get(0).getSource());
+		
+		// Events should still be passed on if there is an exception
+		events.clear();
+		assertThrows(UnsupportedOperationException.class, () -> hierarchy.batch(() -> {
+			hierarchy.removeObject(detections.get(0), false);
+			throw new UnsupportedOperationException();
+		}));
+		assertEquals(1, events.size());
+		
+		// A flush interval should allow events to be passed on during the batch
+		events.clear();
+		hierarchy.setBatchFlushInterval(1);
+		hierarchy.batch(() -> {
+			for (int i = 1; i < 4; i++) {
+				hierarchy.removeObject(detections.get(i), false);
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			assertFalse(events.isEmpty());
+		});
+		assertTrue(events.size() >= 2);
+	}
+	
+	@Test
+	public void test_addObjectsBelowParentConcurrently() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, plane));
+		var parent2 = PathObjects.createAnnotationObject(ROIs.createRectangleROI(100, 0, 100, 100, plane));
+		hierarchy.addObjectsBelowParent(null, Arrays.asList(parent, parent2), false);
+		var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 1, 1, plane));
+		var region = ImageRegion.createInstance(0, 0, 200, 100, 0, 0);
+		
+		// New objects should be added without the write lock, so shouldn't wait for another task adding objects
+		var lock = hierarchy.getLock();
+		lock.readLock().lock();
+		try {
+			var thread = new Thread(() -> hierarchy.addObjectsBelowParent(parent, Collections.singletonList(detection), false));
+			thread.start();
+			thread.join(10_000);
+			assertFalse(thread.isAlive());
+		} finally {
+			lock.readLock().unlock();
+		}
+		assertEquals(parent, detection.getParent());
+		assertEquals(Collections.singletonList(detection), 
+				new ArrayList<>(hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null)));
+		
+		// Moving objects changes more than one parent, and so requires the write lock
+		Thread thread;
+		lock.readLock().lock();
+		try {
+			thread = new Thread(() -> hierarchy.addObjectsBelowParent(parent2, Collections.singletonList(detection), false));
+			thread.start();
+			thread.join(100);
+			assertTrue(thread.isAlive());
+			assertEquals(parent, detection.getParent());
+		} finally {
+			lock.readLock().unlock();
+		}
+		thread.join(10_000);
+		assertFalse(thread.isAlive());
+		assertEquals(parent2, detection.getParent());
+		assertEquals(0, parent.nChildObjects());
+		assertEquals(Collections.singletonList(detection), 
+				new ArrayList<>(hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null)));
+	}
+	
+	@Test
+	public void test_listenersNotifiedWithoutLock() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var lock = (ReentrantReadWriteLock)hierarchy.getLock();
+		
+		// Listeners shouldn't be called while the hierarchy holds the write lock
+		List<Boolean> lockedStates = new ArrayList<>();
+		hierarchy.addListener(e -> lockedStates.add(lock.isWriteLocked()));
+		var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 1, 1, plane));
+		hierarchy.addObjectBelowParent(null, detection, true);
+		hierarchy.removeObject(detection, false);
+		hierarchy.batch(() -> hierarchy.addObjectBelowParent(null, detection, true));
+		assertEquals(Arrays.asList(false, false, false), lockedStates);
+		
+		// If the caller holds the lock, events should still be passed on when the hierarchy method completes
+		lockedStates.clear();
+		lock.writeLock().lock();
+		try {
+			hierarchy.removeObject(detection, false);
+			assertEquals(Collections.singletonList(true), lockedStates);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
 	
 }
 
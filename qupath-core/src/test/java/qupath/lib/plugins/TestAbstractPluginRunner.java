@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestAbstractPluginRunner {
+	
+	private static final Logger logger = LoggerFactory.getLogger(TestAbstractPluginRunner.class);
+	
+	/**
+	 * Measure contention when many tasks add objects below different parents, while also querying the hierarchy.
+	 * This checks the results are correct, and logs the time taken for comparison between thread counts.
+	 */
+	@ParameterizedTest
+	@ValueSource(ints = {8, 16, 32, 64})
+	public void test_hierarchyContention(int nThreads) {
+		int nTasks = 64;
+		int nBatches = 10;
+		int batchSize = 20;
+		
+		int previousThreads = ThreadTools.getParallelism();
+		ThreadTools.setParallelism(nThreads);
+		try {
+			var imageData = new ImageData<BufferedImage>(null);
+			var hierarchy = imageData.getHierarchy();
+			var plane = ImagePlane.getDefaultPlane();
+			
+			List<PathObject> parents = new ArrayList<>();
+			for (int i = 0; i < nTasks; i++)
+				parents.add(PathObjects.createAnnotationObject(ROIs.createRectangleROI(i * 100, 0, 100, 100, plane)));
+			hierarchy.addObjects(parents);
+			
+			var nQueries = new AtomicInteger();
+			List<Runnable> tasks = new ArrayList<>();
+			for (var parent : parents) {
+				tasks.add(() -> {
+					double x = parent.getROI().getBoundsX();
+					for (int b = 0; b < nBatches; b++) {
+						List<PathObject> batch = new ArrayList<>();
+						for (int i = 0; i < batchSize; i++)
+							batch.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x + i, b, 1, 1, plane)));
+						hierarchy.addObjectsBelowParent(parent, batch, false);
+						// Queries should not need to wait for other tasks to finish adding objects
+						if (!hierarchy.isEmpty() && hierarchy.getAnnotationObjects().size() == nTasks)
+							nQueries.incrementAndGet();
+					}
+				});
+			}
+			
+			var runner = new CommandLinePluginRunner<>(imageData);
+			long startTime = System.nanoTime();
+			runner.runTasks(tasks, true);
+			long endTime = System.nanoTime();
+			logger.info("Added {} objects with {} threads in {} ms", 
+					nTasks * nBatches * batchSize, nThreads, (endTime - startTime) / 1_000_000);
+			
+			assertEquals(nTasks * nBatches, nQueries.get());
+			assertEquals(nTasks * (1 + nBatches * batchSize), hierarchy.nObjects());
+			for (var parent : parents)
+				assertEquals(nBatches * batchSize, parent.nChildObjects());
+		} finally {
+			ThreadTools.setParallelism(previousThreads);
+		}
+	}
+
+}
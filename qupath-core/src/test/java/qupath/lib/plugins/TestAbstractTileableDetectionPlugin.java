@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestAbstractTileableDetectionPlugin {
+	
+	private int previousThreads;
+	
+	@BeforeEach
+	public void setUp() {
+		previousThreads = ThreadTools.getParallelism();
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		ThreadTools.setParallelism(previousThreads);
+	}
+	
+	@Test
+	public void test_adaptiveTileSize() {
+		var plugin = new DummyPlugin();
+		var plane = ImagePlane.getDefaultPlane();
+		var roiLarge = ROIs.createRectangleROI(0, 0, 100_000, 100_000, plane);
+		var roiMedium = ROIs.createRectangleROI(0, 0, 8000, 8000, plane);
+		var roiSmall = ROIs.createRectangleROI(0, 0, 1000, 1000, plane);
+		
+		// Make sure there are enough tiles to share the work - within limits
+		for (int nThreads : new int[] {1, 8}) {
+			// The number of threads should make no difference
+			ThreadTools.setParallelism(nThreads);
+			assertEquals(2048, plugin.getAdaptiveTileSize(roiLarge, 1.0, 0));
+			assertEquals(1414, plugin.getAdaptiveTileSize(roiMedium, 1.0, 0));
+			assertEquals(707, plugin.getAdaptiveTileSize(roiMedium, 2.0, 0));
+			assertEquals(512, plugin.getAdaptiveTileSize(roiSmall, 1.0, 0));
+			assertEquals(800, plugin.getAdaptiveTileSize(roiSmall, 1.0, 100));
+		}
+	}
+	
+	@Test
+	public void test_defaultTileSize() {
+		var plane = ImagePlane.getDefaultPlane();
+		var roiSmall = ROIs.createRectangleROI(0, 0, 1000, 1000, plane);
+		
+		// The default tile size should be used unless adaptive tile sizes are requested
+		assertEquals(2048, new DummyPlugin().getTileSize(null, null, roiSmall, 1.0, 0));
+		var adaptivePlugin = new DummyPlugin() {
+			@Override
+			protected boolean useAdaptiveTileSize(ImageData<BufferedImage> imageData, ParameterList params) {
+				return true;
+			}
+		};
+		assertEquals(512, adaptivePlugin.getTileSize(null, null, roiSmall, 1.0, 0));
+	}
+	
+	
+	static class DummyPlugin extends AbstractTileableDetectionPlugin<BufferedImage> {
+
+		@Override
+		protected double getPreferredPixelSizeMicrons(ImageData<BufferedImage> imageData, ParameterList params) {
+			return 1.0;
+		}
+
+		@Override
+		protected ObjectDetector<BufferedImage> createDetector(ImageData<BufferedImage> imageData, ParameterList params) {
+			return null;
+		}
+
+		@Override
+		protected int getTileOverlap(ImageData<BufferedImage> imageData, ParameterList params) {
+			return 0;
+		}
+
+		@Override
+		public ParameterList getDefaultParameterList(ImageData<BufferedImage> imageData) {
+			return new ParameterList();
+		}
+
+		@Override
+		public String getName() {
+			return "Dummy plugin";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Dummy plugin for testing";
+		}
+
+		@Override
+		public String getLastResultsDescription() {
+			return null;
+		}
+		
+	}
+
+}
@@ -0,0 +1,250 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractTileableDetectionPlugin.ParallelDetectionTileManager;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+@SuppressWarnings("javadoc")
+public class TestParallelTileObject {
+	
+	private static final ImagePlane plane = ImagePlane.getDefaultPlane();
+	
+	@Test
+	public void test_compareOverlap() {
+		var roi = ROIs.createEllipseROI(0, 0, 10, 10, plane);
+		
+		// No overlap
+		assertEquals(0, ParallelTileObject.compareOverlap(roi, ROIs.createEllipseROI(20, 0, 10, 10, plane)));
+		
+		// Bounding boxes overlap, but not enough for the objects to overlap substantially
+		assertEquals(0, ParallelTileObject.compareOverlap(roi, ROIs.createEllipseROI(8, 8, 10, 10, plane)));
+		
+		// Smaller object contained - remove it
+		var roiSmaller = ROIs.createEllipseROI(1, 1, 8, 8, plane);
+		assertTrue(ParallelTileObject.compareOverlap(roi, roiSmaller) > 0);
+		assertTrue(ParallelTileObject.compareOverlap(roiSmaller, roi) < 0);
+		
+		// Concave objects can contain each other's centroids without overlapping substantially
+		var ring = ROIs.createPolygonROI(new double[] {0, 10, 10, 0, 0, 9, 9, 0}, new double[] {0, 0, 10, 10, 9, 9, 1, 1}, plane);
+		var dot = ROIs.createRectangleROI(4, 4, 3, 2, plane);
+		assertEquals(0, ParallelTileObject.compareOverlap(ring, dot));
+		assertEquals(0, ParallelTileObject.compareOverlap(dot, ring));
+		
+		// Rectangles overlapping by more or less than the threshold
+		var rect = ROIs.createRectangleROI(0, 0, 10, 10, plane);
+		assertTrue(ParallelTileObject.compareOverlap(rect, ROIs.createRectangleROI(8, 0, 10, 10, plane)) > 0);
+		assertEquals(0, ParallelTileObject.compareOverlap(rect, ROIs.createRectangleROI(9.5, 0, 10, 10, plane)));
+	}
+	
+	@Test
+	public void test_resolveOverlapsAsTilesComplete() {
+		var hierarchy = new PathObjectHierarchy();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		hierarchy.addObject(parent);
+		
+		var manager = new ParallelDetectionTileManager(parent);
+		var tileLeft = new ParallelTileObject(manager, ROIs.createRectangleROI(0, 0, 110, 100, plane), hierarchy);
+		var tileRight = new ParallelTileObject(manager, ROIs.createRectangleROI(90, 0, 110, 100, plane), hierarchy);
+		assertTrue(tileLeft.suggestNeighbor(tileRight));
+		assertTrue(tileRight.suggestNeighbor(tileLeft));
+		manager.setTiles(List.of(tileLeft, tileRight));
+		
+		// Same cell detected in both tiles
+		var cellLeft = PathObjects.createDetectionObject(ROIs.createEllipseROI(94, 40, 12, 12, plane));
+		var cellRight = PathObjects.createDetectionObject(ROIs.createEllipseROI(95, 41, 10, 10, plane));
+		// Cell in the overlap, only detected once
+		var cellOverlap = PathObjects.createDetectionObject(ROIs.createEllipseROI(95, 80, 10, 10, plane));
+		// Cells away from the overlap
+		var interiorLeft = PathObjects.createDetectionObject(ROIs.createEllipseROI(10, 10, 10, 10, plane));
+		var interiorRight = PathObjects.createDetectionObject(ROIs.createEllipseROI(150, 10, 10, 10, plane));
+		
+		// Interior objects are added immediately, but the others need to wait for the neighbor
+		tileLeft.setDetectedObjects(List.of(cellLeft, cellOverlap, interiorLeft));
+		assertTrue(tileLeft.hasDetectedObjects());
+		assertFalse(tileRight.hasDetectedObjects());
+		assertEquals(Set.of(interiorLeft), new HashSet<>(tileLeft.getChildObjects()));
+		
+		// Once both tiles have detections, the smaller duplicate is removed & everything else is added
+		tileRight.setDetectedObjects(List.of(cellRight, interiorRight));
+		assertEquals(Set.of(interiorLeft, cellLeft, cellOverlap), new HashSet<>(tileLeft.getChildObjects()));
+		assertEquals(Set.of(interiorRight), new HashSet<>(tileRight.getChildObjects()));
+		
+		// Completing all tiles replaces them with their detections
+		tileLeft.setComplete(false);
+		tileRight.setComplete(false);
+		assertEquals(Set.<PathObject>of(interiorLeft, cellLeft, cellOverlap, interiorRight), new HashSet<>(parent.getChildObjects()));
+		assertTrue(parent.isLocked());
+	}
+	
+	@Test
+	public void test_resolveTouchingAndNested() {
+		var hierarchy = new PathObjectHierarchy();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		hierarchy.addObject(parent);
+		var manager = new ParallelDetectionTileManager(parent);
+		var tiles = createTiles(manager, hierarchy);
+		var tileLeft = tiles.get(0);
+		var tileRight = tiles.get(1);
+		
+		// Touching shapes share an edge, but don't overlap - so both are kept
+		var touchingLeft = PathObjects.createDetectionObject(ROIs.createRectangleROI(92, 10, 8, 8, plane));
+		var touchingRight = PathObjects.createDetectionObject(ROIs.createRectangleROI(100, 10, 8, 8, plane));
+		// Nested shapes - the smaller should be removed, whichever tile it comes from
+		var nestedOuterLeft = PathObjects.createDetectionObject(ROIs.createEllipseROI(92, 30, 16, 16, plane));
+		var nestedInnerRight = PathObjects.createDetectionObject(ROIs.createRectangleROI(97, 35, 5, 5, plane));
+		var nestedInnerLeft = PathObjects.createDetectionObject(ROIs.createEllipseROI(98, 62, 4, 4, plane));
+		var nestedOuterRight = PathObjects.createDetectionObject(ROIs.createRectangleROI(94, 58, 12, 12, plane));
+		
+		tileLeft.setDetectedObjects(List.of(touchingLeft, nestedOuterLeft, nestedInnerLeft));
+		tileRight.setDetectedObjects(List.of(touchingRight, nestedInnerRight, nestedOuterRight));
+		assertEquals(Set.of(touchingLeft, nestedOuterLeft), new HashSet<>(tileLeft.getChildObjects()));
+		assertEquals(Set.of(touchingRight, nestedOuterRight), new HashSet<>(tileRight.getChildObjects()));
+	}
+	
+	@Test
+	public void test_incrementalMatchesResolvingAtEnd() {
+		// Create detections in the overlap between tiles, including many duplicates
+		var rng = new Random(100L);
+		List<ROI> roisLeft = new ArrayList<>();
+		List<ROI> roisRight = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			double x = 85 + rng.nextDouble() * 25;
+			double y = rng.nextDouble() * 90;
+			double size = 2 + rng.nextDouble() * 8;
+			var roi = ROIs.createEllipseROI(x, y, size, size, plane);
+			if (x < 100)
+				roisLeft.add(roi);
+			else
+				roisRight.add(roi);
+			// Add a shifted duplicate in the other tile
+			if (rng.nextBoolean()) {
+				var duplicate = ROIs.createEllipseROI(x + rng.nextDouble() - 0.5, y + rng.nextDouble() - 0.5, size * (0.8 + rng.nextDouble() * 0.4), size, plane);
+				if (x < 100)
+					roisRight.add(duplicate);
+				else
+					roisLeft.add(duplicate);
+			}
+		}
+		
+		// Resolve overlaps only once both tiles have pending objects, as was done after all tiles were complete
+		var expected = resolveAtEnd(roisLeft, roisRight);
+		assertFalse(expected.isEmpty());
+		assertTrue(expected.size() < roisLeft.size() + roisRight.size());
+		
+		// Resolve overlaps as each tile provides its detections, in either order
+		assertEquals(expected, resolveIncrementally(roisLeft, roisRight, true));
+		assertEquals(expected, resolveIncrementally(roisLeft, roisRight, false));
+	}
+	
+	private static Set<ROI> resolveAtEnd(List<ROI> roisLeft, List<ROI> roisRight) {
+		var hierarchy = new PathObjectHierarchy();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		var manager = new ParallelDetectionTileManager(parent);
+		var tiles = createTiles(manager, hierarchy);
+		Set<ROI> rois = new HashSet<>();
+		synchronized (manager) {
+			for (var pathObject : tiles.get(0).setPendingObjects(createDetections(roisLeft)))
+				rois.add(pathObject.getROI());
+			for (var pathObject : tiles.get(1).setPendingObjects(createDetections(roisRight)))
+				rois.add(pathObject.getROI());
+			for (var tile : tiles)
+				tile.resolveOverlaps();
+			for (var tile : tiles) {
+				assertTrue(tile.isResolved());
+				for (var pathObject : tile.takePendingObjects())
+					rois.add(pathObject.getROI());
+			}
+		}
+		return rois;
+	}
+	
+	private static Set<ROI> resolveIncrementally(List<ROI> roisLeft, List<ROI> roisRight, boolean leftFirst) {
+		var hierarchy = new PathObjectHierarchy();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		hierarchy.addObject(parent);
+		var manager = new ParallelDetectionTileManager(parent);
+		var tiles = createTiles(manager, hierarchy);
+		if (leftFirst) {
+			tiles.get(0).setDetectedObjects(createDetections(roisLeft));
+			tiles.get(1).setDetectedObjects(createDetections(roisRight));
+		} else {
+			tiles.get(1).setDetectedObjects(createDetections(roisRight));
+			tiles.get(0).setDetectedObjects(createDetections(roisLeft));
+		}
+		Set<ROI> rois = new HashSet<>();
+		for (var tile : tiles) {
+			for (var pathObject : tile.getChildObjects())
+				rois.add(pathObject.getROI());
+		}
+		return rois;
+	}
+	
+	private static List<ParallelTileObject> createTiles(ParallelDetectionTileManager manager, PathObjectHierarchy hierarchy) {
+		var tileLeft = new ParallelTileObject(manager, ROIs.createRectangleROI(0, 0, 110, 100, plane), hierarchy);
+		var tileRight = new ParallelTileObject(manager, ROIs.createRectangleROI(90, 0, 110, 100, plane), hierarchy);
+		tileLeft.suggestNeighbor(tileRight);
+		tileRight.suggestNeighbor(tileLeft);
+		manager.setTiles(List.of(tileLeft, tileRight));
+		return List.of(tileLeft, tileRight);
+	}
+	
+	private static List<PathObject> createDetections(List<ROI> rois) {
+		return rois.stream().map(r -> PathObjects.createDetectionObject(r)).collect(Collectors.toList());
+	}
+	
+	@Test
+	public void test_cancelledRestoresChildren() {
+		var hierarchy = new PathObjectHierarchy();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		var existing = PathObjects.createDetectionObject(ROIs.createEllipseROI(10, 10, 10, 10, plane));
+		parent.addChildObject(existing);
+		hierarchy.addObject(parent);
+		
+		var manager = new ParallelDetectionTileManager(parent);
+		var tile = new ParallelTileObject(manager, ROIs.createRectangleROI(0, 0, 200, 100, plane), hierarchy);
+		manager.setTiles(List.of(tile));
+		
+		tile.setDetectedObjects(List.of(PathObjects.createDetectionObject(ROIs.createEllipseROI(50, 50, 10, 10, plane))));
+		tile.setComplete(true);
+		assertEquals(List.of(existing), List.copyOf(parent.getChildObjects()));
+	}
+	
+}
@@ -63,10 +63,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.imageio.ImageIO;
 
@@ -100,6 +102,7 @@ import loci.formats.ome.OMEXMLMetadata;
 import qupath.lib.color.ColorModelFactory;
 import qupath.lib.common.ColorTools;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.AbstractTileableImageServer;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServerBuilder.DefaultImageServerBuilder;
@@ -924,6 +927,14 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		return "Bio-Formats";
 	}
 	
+	/**
+	 * Returns true, since decoding tiles is relatively expensive and the pixels depend only on the file.
+	 */
+	@Override
+	protected boolean supportsPersistentTileCache() {
+		return true;
+	}
+	
 	@Override
 	public synchronized void close() throws Exception {
 		super.close();
@@ -934,6 +945,29 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		return imageMap != null && !imageMap.isEmpty();
 	}
 
+	/**
+	 * Request that Bio-Formats readers are created in the background, so that they are available 
+	 * before they are needed (e.g. before starting a task that requests tiles from many threads).
+	 * <p>
+	 * By default, readers are created only as threads need to wait for them.
+	 * 
+	 * @param nReaders the total number of readers required; this is limited by the maximum number of readers per server
+	 * @since v0.4.3
+	 */
+	public void warmUpReaders(int nReaders) {
+		readerPool.warmUp(nReaders);
+	}
+	
+	/**
+	 * Get statistics summarizing how readers have been used by this server, 
+	 * including how long threads have needed to wait for a reader to become available.
+	 * @return
+	 * @since v0.4.3
+	 */
+	public ReaderPoolStatistics getReaderPoolStatistics() {
+		return readerPool.getStatistics();
+	}
+	
 	/**
 	 * Get the MetadataStore, as used by Bio-Formats. This can be used to query metadata values not otherwise accessible.
 	 * @return
@@ -1035,6 +1069,11 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	/**
 	 * Helper class that manages a pool of readers.
 	 * The purpose is to allow multiple threads to take the next available reader, without
+	 * each needing to wait for the same reader.
+	 * <p>
+	 * Readers are created in the background according to demand (i.e. the number of threads waiting), 
+	 * up to the maximum permitted, and additional readers are closed again if they remain unneeded.
+	 * Readers can also be created ahead of time with {@link #warmUp(int)}.
 	 */
 	static class ReaderPool implements AutoCloseable {
 		
@@ -1045,6 +1084,12 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		 */
 		private static final int MAX_QUEUE_CAPACITY = 128;
 		
+		/**
+		 * If an additional reader has remained unused in the pool for this length of time, it is closed 
+		 * (one at a time, whenever another reader is returned to the pool).
+		 */
+		private static final long IDLE_READER_TIMEOUT_MILLIS = 60_000L;
+		
 		private String id;
 		private BioFormatsServerOptions options;
 		private BioFormatsArgs args;
@@ -1059,7 +1104,16 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		private OMEPyramidStore metadata;
 		private IFormatReader mainReader;
 		
-		private ForkJoinTask<?> task;
+		private final AtomicInteger pendingReaders = new AtomicInteger(0);
+		private final AtomicInteger waitingThreads = new AtomicInteger(0);
+		// Time at which each reader was last returned to the queue
+		private final Map<IFormatReader, Long> idleSince = new ConcurrentHashMap<>();
+		
+		private final LongAdder requestCount = new LongAdder();
+		private final LongAdder waitCount = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0L);
+		private final AtomicInteger closedReaders = new AtomicInteger(0);
 		
 		
 		ReaderPool(BioFormatsServerOptions options, String id, BioFormatsArgs args) throws FormatException, IOException {
@@ -1078,6 +1132,7 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 			logger.debug("Reader {} created in {} ms", mainReader, endTime - startTime);
 			
 			// Make the main reader available
+			idleSince.put(mainReader, System.currentTimeMillis());
 			queue.add(mainReader);
 			
 			// Store the class so we don't need to go hunting later
@@ -1094,21 +1149,73 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 				if (isClosed)
 					return;
 				logger.debug("Requesting new reader for thread {}", Thread.currentThread());
+				long startTime = System.currentTimeMillis();
 				var newReader = createReader(options, classList, id, null, args);
 				if (newReader != null) {
+					if (isClosed) {
+						closeReader(newReader);
+						return;
+					}
 					additionalReaders.add(newReader);
+					idleSince.put(newReader, System.currentTimeMillis());
 					queue.add(newReader);
-					logger.debug("Created new reader (total={})", additionalReaders.size());
+					logger.debug("Created new reader in {} ms (total={})", System.currentTimeMillis() - startTime, additionalReaders.size()+1);
 				} else
 					logger.warn("New Bio-Formats reader could not be created (returned null)");
 			} catch (Exception e) {
 				logger.error("Error creating additional readers: " + e.getLocalizedMessage(), e);
+			} finally {
+				pendingReaders.decrementAndGet();
+			}
+		}
+		
+		/**
+		 * Request that additional readers are created in the background, so that there are at least the 
+		 * specified number pending (up to the maximum number of readers).
+		 * @param nRequested
+		 */
+		private synchronized void requestReaders(int nRequested) {
+			int maxReaders = getMaxReaders();
+			while (!isClosed && pendingReaders.get() < nRequested && totalReaders.get() + pendingReaders.get() < maxReaders) {
+				pendingReaders.incrementAndGet();
+				logger.debug("Requesting reader for {}", id);
+				ReaderCreationPool.submit(() -> createAdditionalReader(options, classList, id, args));
+			}
+		}
+		
+		/**
+		 * Create readers in the background, so that they are ready before they are needed.
+		 * @param nReaders the total number of readers that should be available; this is limited by the maximum number of readers
+		 */
+		void warmUp(int nReaders) {
+			int n = Math.min(nReaders, getMaxReaders()) - totalReaders.get();
+			if (n > 0) {
+				logger.debug("Warming up {} readers for {}", n, id);
+				requestReaders(n);
+			}
+		}
+		
+		/**
+		 * Close a reader using its cleaner, so that the cleaner no longer retains a reference to the reader.
+		 * @param reader
+		 */
+		private void closeReader(IFormatReader reader) {
+			idleSince.remove(reader);
+			var cleanable = cleanables.remove(reader);
+			if (cleanable != null) {
+				cleanable.clean();
+				return;
+			}
+			try {
+				reader.close();
+			} catch (IOException e) {
+				logger.warn("Error closing reader: " + e.getLocalizedMessage(), e);
 			}
 		}
 		
 		
 		private int getMaxReaders() {
-			int max = options == null ? Runtime.getRuntime().availableProcessors() : options.getMaxReaders();
+			int max = options == null ? ThreadTools.getParallelism() : options.getMaxReaders();
 			return Math.min(MAX_QUEUE_CAPACITY, Math.max(1, max));
 		}
 		
@@ -1219,7 +1326,7 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 					memoizationFileSize = fileMemo == null ? 0L : fileMemo.length();
 					if (memoizationFileSize > 0L) {
 						if (memoizationFileSize > MAX_PARALLELIZATION_MEMO_SIZE) {
-							logger.warn(String.format("The memoization file is very large (%.1f MB) - parallelization may be turned off to save memory",
+							logger.warn(String.format("The memoization file is very large (%.1f MB) - each additional reader may require a lot of memory",
 									memoizationFileSize/(1024.0*1024.0)));
 						}
 						memoizationSizeMap.put(id, memoizationFileSize);
@@ -1244,32 +1351,91 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 			}
 			
 			
-			cleanables.add(cleaner.register(this, new ReaderCleaner(Integer.toString(cleanables.size()+1), imageReader)));
+			cleanables.put(imageReader, cleaner.register(this, new ReaderCleaner(Integer.toString(cleanerCount.incrementAndGet()), imageReader)));
 			
 			return imageReader;
 		}
 				
 		
 		private IFormatReader nextQueuedReader() throws InterruptedException {
+			requestCount.increment();
 			var nextReader = queue.poll();
 			if (nextReader != null)
 				return nextReader;
-			synchronized (this) {
-				if (!isClosed && (task == null || task.isDone()) && totalReaders.get() < getMaxReaders()) {
-					logger.debug("Requesting reader for {}", id);
-					task = ForkJoinPool.commonPool().submit(() -> createAdditionalReader(options, classList, id, args));				
-				}
-			}
 			if (isClosed)
 				return null;
+			// Request enough readers for all the threads currently waiting
+			int nWaiting = waitingThreads.incrementAndGet();
+			long startTime = System.nanoTime();
 			try {
+				requestReaders(nWaiting);
 				return queue.poll(60, TimeUnit.SECONDS);
 			} catch (InterruptedException e) {
 				logger.warn("Interrupted exception when awaiting next queued reader: {}", e.getLocalizedMessage());
 				return isClosed ? null : mainReader;
+			} finally {
+				waitingThreads.decrementAndGet();
+				long waitTime = System.nanoTime() - startTime;
+				waitCount.increment();
+				waitNanos.add(waitTime);
+				maxWaitNanos.accumulate(waitTime);
+			}
+		}
+		
+		/**
+		 * Return a reader to the pool after use.
+		 * If another additional reader has been sitting unused in the pool for longer than the timeout, 
+		 * it is closed.
+		 * @param reader
+		 * @throws InterruptedException
+		 */
+		private void returnReader(IFormatReader reader) throws InterruptedException {
+			idleSince.put(reader, System.currentTimeMillis());
+			queue.put(reader);
+			closeIdleReader();
+		}
+		
+		/**
+		 * Close the first additional reader found that has been in the queue for longer than the timeout.
+		 * Since the queue is first-in-first-out, this can only happen if there were spare readers 
+		 * for the entire time.
+		 */
+		private void closeIdleReader() {
+			if (isClosed)
+				return;
+			long time = System.currentTimeMillis();
+			for (var reader : queue) {
+				if (reader == mainReader)
+					continue;
+				var since = idleSince.get(reader);
+				if (since == null || time - since <= IDLE_READER_TIMEOUT_MILLIS)
+					return;
+				// Check that no other thread has taken the reader in the meantime
+				if (queue.remove(reader) && additionalReaders.remove(reader)) {
+					totalReaders.decrementAndGet();
+					closedReaders.incrementAndGet();
+					logger.debug("Closing idle reader for {} (total={})", id, totalReaders.get());
+					closeReader(reader);
+				}
+				return;
 			}
 		}
 		
+		/**
+		 * Get statistics summarizing the use of the pool.
+		 * @return
+		 */
+		ReaderPoolStatistics getStatistics() {
+			return new ReaderPoolStatistics(
+					totalReaders.get(),
+					getMaxReaders(),
+					closedReaders.get(),
+					requestCount.sum(),
+					waitCount.sum(),
+					TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()),
+					TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+		}
+		
 		
 		BufferedImage openImage(TileRequest tileRequest, int series, int nChannels, boolean isRGB, ColorModel colorModel) throws IOException, InterruptedException {
 			
@@ -1337,7 +1503,7 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 				}
 			} finally {
 				if (ipReader != null)
-					queue.put(ipReader);
+					returnReader(ipReader);
 			}
 			
 			DataBuffer dataBuffer;
@@ -1480,7 +1646,7 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 				}
 			} finally {
 				if (reader != null)
-					queue.put(reader);
+					returnReader(reader);
 			}
 		}
 		
@@ -1499,9 +1665,9 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		@Override
 		public void close() throws Exception {
 			isClosed = true;
-			if (task != null && !task.isDone())
-				task.cancel(true);
-			for (var c : cleanables) {
+			if (logger.isDebugEnabled())
+				logger.debug("Closing reader pool for {}: {}", id, getStatistics());
+			for (var c : cleanables.values()) {
 				try {
 					c.clean();
 				} catch (Exception e) {
@@ -1517,7 +1683,8 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		
 		
 		private static Cleaner cleaner = Cleaner.create();
-		private List<Cleanable> cleanables = new ArrayList<>();
+		private Map<IFormatReader, Cleanable> cleanables = new ConcurrentHashMap<>();
+		private AtomicInteger cleanerCount = new AtomicInteger(0);
 
 
 		/**
@@ -1628,6 +1795,21 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		}
 
 
+		/**
+		 * Pool used to create additional readers in the background.
+		 */
+		private static class ReaderCreationPool {
+			
+			private static final ExecutorService pool = Executors.newCachedThreadPool(
+					ThreadTools.createThreadFactory("bioformats-reader-", true));
+			
+			private static void submit(Runnable runnable) {
+				pool.execute(runnable);
+			}
+			
+		}
+
+
 		/**
 		 * Helper class that helps ensure readers are closed when a reader pool is no longer reachable.
 		 */
@@ -1661,6 +1843,97 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	
 	
 	
+	/**
+	 * Snapshot of statistics summarizing the use of the Bio-Formats readers for a server.
+	 * 
+	 * @since v0.4.3
+	 * @see BioFormatsImageServer#getReaderPoolStatistics()
+	 */
+	public static class ReaderPoolStatistics {
+		
+		private final int nReaders;
+		private final int maxReaders;
+		private final int nClosedReaders;
+		private final long requestCount;
+		private final long waitCount;
+		private final long totalWaitMillis;
+		private final long maxWaitMillis;
+		
+		private ReaderPoolStatistics(int nReaders, int maxReaders, int nClosedReaders, long requestCount, long waitCount, long totalWaitMillis, long maxWaitMillis) {
+			this.nReaders = nReaders;
+			this.maxReaders = maxReaders;
+			this.nClosedReaders = nClosedReaders;
+			this.requestCount = requestCount;
+			this.waitCount = waitCount;
+			this.totalWaitMillis = totalWaitMillis;
+			this.maxWaitMillis = maxWaitMillis;
+		}
+		
+		/**
+		 * Get the number of readers currently open.
+		 * @return
+		 */
+		public int getReaderCount() {
+			return nReaders;
+		}
+		
+		/**
+		 * Get the maximum number of readers that may be open.
+		 * @return
+		 */
+		public int getMaxReaderCount() {
+			return maxReaders;
+		}
+		
+		/**
+		 * Get the number of additional readers that have been closed because they were no longer needed.
+		 * @return
+		 */
+		public int getClosedReaderCount() {
+			return nClosedReaders;
+		}
+		
+		/**
+		 * Get the number of times a reader has been requested.
+		 * @return
+		 */
+		public long getRequestCount() {
+			return requestCount;
+		}
+		
+		/**
+		 * Get the number of times a thread had to wait because no reader was available.
+		 * @return
+		 */
+		public long getWaitCount() {
+			return waitCount;
+		}
+		
+		/**
+		 * Get the total time spent by all threads waiting for readers, in milliseconds.
+		 * @return
+		 */
+		public long getTotalWaitMillis() {
+			return totalWaitMillis;
+		}
+		
+		/**
+		 * Get the longest time that any thread spent waiting for a reader, in milliseconds.
+		 * @return
+		 */
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("ReaderPoolStatistics[readers=%d/%d, closed=%d, requests=%d, waits=%d, total wait=%d ms, max wait=%d ms]",
+					nReaders, maxReaders, nClosedReaders, requestCount, waitCount, totalWaitMillis, maxWaitMillis);
+		}
+		
+	}
+	
+	
 	static class BioFormatsArgs {
 		
 		@Option(names = {"--series", "-s"}, defaultValue = "-1", description = "Series number (0-based, must be < image count for the file)")
@@ -31,6 +31,8 @@ import java.util.TreeSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.common.ThreadTools;
+
 /**
  * Container for various options that can customize the behavior of the {@link BioFormatsImageServer}.
  * 
@@ -124,11 +126,12 @@ public class BioFormatsServerOptions {
 	private BioFormatsServerOptions() {}
 	
 	int getMaxReaders() {
-		if (maxReaders <= 0) {
-			maxReaders = Math.min(Math.max(2, Runtime.getRuntime().availableProcessors()), 32);
-			logger.info("Setting max Bio-Formats readers to {}", maxReaders);
-		}
-		return requestParallelization ? maxReaders : 1;
+		if (!requestParallelization)
+			return 1;
+		// If not set, match the parallelism requested for QuPath (which may change)
+		if (maxReaders <= 0)
+			return Math.min(Math.max(2, ThreadTools.getParallelism()), 32);
+		return maxReaders;
 	}
 	
 	void setMaxReaders(int maxReaders) {
@@ -40,6 +40,7 @@ import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerProvider;
 import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.bioformats.BioFormatsImageServer;
 import qupath.lib.images.servers.bioformats.BioFormatsServerBuilder;
 import qupath.lib.images.writers.ome.OMEPyramidWriter.Builder;
 import qupath.lib.images.writers.ome.OMEPyramidWriter.CompressionType;
@@ -100,6 +101,10 @@ public class ConvertCommand implements Runnable, Subcommand {
 	@Option(names = {"-p", "--parallelize"}, defaultValue = "false", description = "Parallelize tile export if possible.", paramLabel = "parallelization")
 	private boolean parallelize;
 	
+	@Option(names = {"--threads"}, defaultValue = "-1", description = {"Number of threads to use for parallel tile export.",
+			"If specified, this implies --parallelize. Default is to use 4 threads if --parallelize is set."}, paramLabel = "threads")
+	private int nThreads;
+	
 	@Option(names = {"--overwrite"}, defaultValue = "false", description = "Overwrite any existing file with the same name as the output.")
 	private boolean overwrite = false;
 	
@@ -170,8 +175,14 @@ public class ConvertCommand implements Runnable, Subcommand {
 			
 			Builder builder = new OMEPyramidWriter.Builder(server)
 					.compression(compressionType)
-					.tileSize(tileWidth, tileHeight)
-					.parallelize(parallelize);
+					.tileSize(tileWidth, tileHeight);
+			
+			int nExportThreads = nThreads > 0 ? nThreads : (parallelize ? 4 : 1);
+			builder.parallelize(nExportThreads);
+			
+			// Create readers ahead of time, so that all threads can request tiles from the start
+			if (nExportThreads > 1 && server instanceof BioFormatsImageServer)
+				((BioFormatsImageServer)server).warmUpReaders(nExportThreads);
 			
 			if (bigTiff != null)
 				builder = builder.bigTiff(bigTiff.booleanValue());
@@ -245,10 +256,15 @@ public class ConvertCommand implements Runnable, Subcommand {
 				}
 			}
 			
-			builder.build().writeSeries(outputFile.getPath());
+			var series = builder.build();
+			series.writeSeries(outputFile.getPath());
 			
-			long duration = System.currentTimeMillis() - startTime;
+			long duration = Math.max(1L, System.currentTimeMillis() - startTime);
 			logger.info(String.format("%s written in %.1f seconds", outputFile.getAbsolutePath(), duration/1000.0));
+			logger.info(String.format("%d tiles written (%.1f tiles/s, %.1f MB/s uncompressed)", 
+					series.getTilesWritten(),
+					series.getTilesWritten() * 1000.0 / duration,
+					series.getBytesWritten() / (1024.0 * 1024.0) * 1000.0 / duration));
 
 		} catch (Exception e) {
 			logger.error(e.getLocalizedMessage(), e);
@@ -0,0 +1,319 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.writers.ome;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.awt.common.BufferedImageTools;
+import qupath.lib.images.servers.PersistentTileCache;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Helper class to build the tiles of one pyramid level by downsampling the tiles of the previous level,
+ * as they are written.
+ * <p>
+ * This means that each resolution level only needs to be read from the image once, rather than requesting
+ * the same pixels again for every lower-resolution level.
+ * Completed tiles are held in memory up to a limit, and then stored in a temporary directory until
+ * they are needed. The limit can be shared between levels, so that it applies to all the levels that are
+ * held at the same time.
+ * <p>
+ * If a tile cannot be built (e.g. because it could not be stored), {@link #getTile(int, int, int, int)} returns null
+ * and the caller should read the tile from the image instead.
+ *
+ * @author Pete Bankhead
+ */
+class DownsampledLevel implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(DownsampledLevel.class);
+
+	private final int factor;
+	private final int level;
+	private final double downsample;
+	private final int sourceWidth, sourceHeight;
+	private final int width, height;
+	private final int tileWidth, tileHeight;
+	private final boolean smoothInterpolate;
+	private final long maxBytesInMemory;
+	private final AtomicLong totalBytesInMemory;
+
+	private final Map<TileKey, PartialTile> partialTiles = new ConcurrentHashMap<>();
+	private final Map<TileKey, BufferedImage> completeTiles = new ConcurrentHashMap<>();
+	private final AtomicLong bytesInMemory = new AtomicLong();
+
+	private PersistentTileCache spillCache;
+	private volatile ColorModel colorModel;
+	private final Map<TileKey, TileRequest> spilledTiles = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a new level.
+	 * @param level index of the new level
+	 * @param downsample downsample of the new level, relative to the full-resolution image
+	 * @param factor integer downsample of the new level relative to the source level
+	 * @param sourceWidth width of the source level
+	 * @param sourceHeight height of the source level
+	 * @param width width of the new level
+	 * @param height height of the new level
+	 * @param tileWidth tile width for both levels; this must be divisible by the factor
+	 * @param tileHeight tile height for both levels; this must be divisible by the factor
+	 * @param smoothInterpolate if true, use area averaging when downsampling; otherwise use nearest neighbor interpolation
+	 * @param maxBytesInMemory maximum number of bytes of completed tiles to keep in memory, before storing them on disk
+	 * @param totalBytesInMemory counter for the bytes held in memory, shared by all levels that use the same limit
+	 */
+	DownsampledLevel(int level, double downsample, int factor, int sourceWidth, int sourceHeight, int width, int height, int tileWidth, int tileHeight, boolean smoothInterpolate, 
+			long maxBytesInMemory, AtomicLong totalBytesInMemory) {
+		this.level = level;
+		this.downsample = downsample;
+		this.factor = factor;
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.smoothInterpolate = smoothInterpolate;
+		this.maxBytesInMemory = maxBytesInMemory;
+		this.totalBytesInMemory = totalBytesInMemory;
+	}
+
+	/**
+	 * Check whether a level can be built from the previous level.
+	 * This requires that the relative downsample is an integer, and the tile size is divisible by it.
+	 * @param sourceDownsample
+	 * @param downsample
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @return the integer factor, or -1 if the level cannot be built
+	 */
+	static int getFactor(double sourceDownsample, double downsample, int tileWidth, int tileHeight) {
+		double ratio = downsample / sourceDownsample;
+		int factor = (int)Math.round(ratio);
+		if (factor < 2 || Math.abs(ratio - factor) > 1e-6 || tileWidth % factor != 0 || tileHeight % factor != 0)
+			return -1;
+		return factor;
+	}
+
+	/**
+	 * Add a tile from the source level. This should be called exactly once for every tile of the source level
+	 * (at each z-slice and timepoint), but may be called from multiple threads.
+	 * @param x x-coordinate of the tile in the source level
+	 * @param y y-coordinate of the tile in the source level
+	 * @param w width of the tile in the source level
+	 * @param h height of the tile in the source level
+	 * @param z z-slice
+	 * @param t timepoint
+	 * @param img the tile, or null if the tile is empty
+	 */
+	void addSourceTile(int x, int y, int w, int h, int z, int t, BufferedImage img) {
+		// Determine where the tile belongs in this level
+		int x0 = x / factor;
+		int y0 = y / factor;
+		int x1 = x + w >= sourceWidth ? width : Math.min(width, (x + w + factor - 1) / factor);
+		int y1 = y + h >= sourceHeight ? height : Math.min(height, (y + h + factor - 1) / factor);
+		if (x1 <= x0 || y1 <= y0)
+			return;
+
+		var key = new TileKey(x0 / tileWidth * tileWidth, y0 / tileHeight * tileHeight, z, t);
+		var partial = partialTiles.computeIfAbsent(key, k -> new PartialTile(k));
+		BufferedImage imgResized = img == null ? null : BufferedImageTools.resize(img, x1 - x0, y1 - y0, smoothInterpolate);
+		synchronized (partial) {
+			if (imgResized != null) {
+				if (partial.raster == null) {
+					partial.raster = imgResized.getRaster().createCompatibleWritableRaster(
+							Math.min(tileWidth, width - key.x), Math.min(tileHeight, height - key.y));
+					partial.imgTemplate = imgResized;
+				}
+				partial.raster.setRect(x0 - key.x, y0 - key.y, imgResized.getRaster());
+			}
+			partial.remaining--;
+			if (partial.remaining > 0)
+				return;
+		}
+		partialTiles.remove(key);
+		if (partial.raster != null) {
+			var imgTemplate = partial.imgTemplate;
+			complete(key, new BufferedImage(imgTemplate.getColorModel(), partial.raster, imgTemplate.isAlphaPremultiplied(), null));
+		} else
+			complete(key, null);
+	}
+
+	/**
+	 * Get a tile for this level.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param t
+	 * @return the tile, or null if the tile is not available (and should be read from the image instead)
+	 * @throws IOException
+	 */
+	BufferedImage getTile(int x, int y, int z, int t) throws IOException {
+		var key = new TileKey(x, y, z, t);
+		var img = completeTiles.get(key);
+		if (img != null)
+			return img == EMPTY ? null : img;
+		var tile = spilledTiles.get(key);
+		if (tile != null)
+			return spillCache.get("", tile, colorModel);
+		return null;
+	}
+
+	/**
+	 * Returns true if the tile is known to be empty.
+	 * This is the case if all the corresponding tiles of the source level were null.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param t
+	 * @return
+	 */
+	boolean isEmptyTile(int x, int y, int z, int t) {
+		return completeTiles.get(new TileKey(x, y, z, t)) == EMPTY;
+	}
+
+	private static final BufferedImage EMPTY = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+
+	private void complete(TileKey key, BufferedImage img) {
+		if (img == null) {
+			completeTiles.put(key, EMPTY);
+			return;
+		}
+		if (colorModel == null)
+			colorModel = img.getColorModel();
+		long bytes = estimateBytes(img);
+		if (totalBytesInMemory.addAndGet(bytes) <= maxBytesInMemory) {
+			bytesInMemory.addAndGet(bytes);
+			completeTiles.put(key, img);
+			return;
+		}
+		totalBytesInMemory.addAndGet(-bytes);
+		try {
+			var tile = TileRequest.createInstance("", level, downsample, ImageRegion.createInstance(key.x, key.y, img.getWidth(), img.getHeight(), key.z, key.t));
+			if (getSpillCache().put("", tile, img, img.getColorModel()))
+				spilledTiles.put(key, tile);
+			else
+				logger.debug("Unable to store downsampled tile {} - it will be read from the image instead", tile);
+		} catch (IOException e) {
+			logger.warn("Unable to store downsampled tile: {}", e.getLocalizedMessage());
+		}
+	}
+
+	private synchronized PersistentTileCache getSpillCache() throws IOException {
+		if (spillCache == null) {
+			var dir = Files.createTempDirectory("qupath-ome-level-");
+			spillCache = new PersistentTileCache(dir, Long.MAX_VALUE);
+			logger.debug("Storing downsampled tiles for level {} in {}", level, dir);
+		}
+		return spillCache;
+	}
+
+	private static long estimateBytes(BufferedImage img) {
+		var raster = img.getRaster();
+		int bytesPerElement = DataBuffer.getDataTypeSize(raster.getDataBuffer().getDataType()) / 8;
+		return (long)raster.getWidth() * raster.getHeight() * raster.getNumDataElements() * bytesPerElement;
+	}
+
+	@Override
+	public void close() throws IOException {
+		partialTiles.clear();
+		completeTiles.clear();
+		spilledTiles.clear();
+		totalBytesInMemory.addAndGet(-bytesInMemory.getAndSet(0L));
+		if (spillCache != null) {
+			Path dir = spillCache.getDirectory();
+			spillCache = null;
+			try (var stream = Files.walk(dir)) {
+				for (var path : (Iterable<Path>)stream.sorted(Comparator.reverseOrder())::iterator)
+					Files.deleteIfExists(path);
+			} catch (IOException e) {
+				logger.warn("Unable to delete temporary directory {}: {}", dir, e.getLocalizedMessage());
+			}
+		}
+	}
+
+
+	private class PartialTile {
+
+		private WritableRaster raster;
+		private BufferedImage imgTemplate;
+		private int remaining;
+
+		private PartialTile(TileKey key) {
+			// Count how many source tiles contribute to this tile
+			int sourceTileWidth = tileWidth;
+			int sourceTileHeight = tileHeight;
+			int sx0 = key.x * factor;
+			int sy0 = key.y * factor;
+			// Source tiles starting beyond width * factor do not contribute to this level
+			int sx1 = Math.min(Math.min(sourceWidth, width * factor), (key.x + tileWidth) * factor);
+			int sy1 = Math.min(Math.min(sourceHeight, height * factor), (key.y + tileHeight) * factor);
+			int nx = (sx1 + sourceTileWidth - 1) / sourceTileWidth - sx0 / sourceTileWidth;
+			int ny = (sy1 + sourceTileHeight - 1) / sourceTileHeight - sy0 / sourceTileHeight;
+			this.remaining = Math.max(1, nx * ny);
+		}
+
+	}
+
+
+	private static class TileKey {
+
+		private final int x, y, z, t;
+
+		private TileKey(int x, int y, int z, int t) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.t = t;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(x, y, z, t);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileKey))
+				return false;
+			var other = (TileKey)obj;
+			return x == other.x && y == other.y && z == other.z && t == other.t;
+		}
+
+	}
+
+}
@@ -27,18 +27,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -63,6 +70,8 @@ import ome.xml.model.primitives.Color;
 import ome.xml.model.primitives.PositiveInteger;
 import qupath.lib.color.ColorModelFactory;
 import qupath.lib.common.ColorTools;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
@@ -388,6 +397,9 @@ public class OMEPyramidWriter {
 		
 		private static int[] RGB_CHANNEL_ARRAY = new int[] {0, 1, 2};
 		
+		private final LongAdder tilesWritten = new LongAdder();
+		private final LongAdder bytesWritten = new LongAdder();
+		
 		void initializeMetadata(IMetadata meta, int series) throws IOException {
 			
 			meta.setImageID("Image:"+series, series);
@@ -606,11 +618,20 @@ public class OMEPyramidWriter {
 		 * @see #initializeMetadata(IMetadata, int)
 		 */
 		public void writeSeries(IFormatWriter writer, IMetadata meta, final int series) throws FormatException, IOException {
+			try (var resources = new SeriesResources(parallelThreads)) {
+				writeSeries(writer, meta, series, resources);
+			}
+		}
+		
+		private void writeSeries(IFormatWriter writer, IMetadata meta, final int series, SeriesResources resources) throws FormatException, IOException {
 	
 			// We need to get the writer directly to be able to check if it is a TiffWriter
 			while (writer instanceof ImageWriter)
 				writer = ((ImageWriter)writer).getWriter();
 			
+			tilesWritten.reset();
+			bytesWritten.reset();
+			
 			boolean isRGB = doExportRGB();
 			int nChannels = meta.getPixelsSizeC(series).getValue();
 			int nSamples = meta.getChannelSamplesPerPixel(series, 0).getValue();
@@ -674,10 +695,23 @@ public class OMEPyramidWriter {
 			boolean isTiff = writer instanceof TiffWriter;
 			Map<Integer, IFD> map = new HashMap<>();
 			
+			ExecutorService pool = resources.pool;
+			
+			// Downsampled tiles for the current level (built while writing the previous level), and the next level
+			DownsampledLevel source = null;
+			DownsampledLevel next = null;
+			boolean smoothInterpolate = server.getMetadata().getChannelType() != ChannelType.CLASSIFICATION;
+			// The memory limit is shared by the source & next levels, since both are held at the same time
+			long maxBytesInMemory = Runtime.getRuntime().maxMemory() / 4;
+			var totalBytesInMemory = new AtomicLong();
+			
 			writer.setSeries(series);
 			for (int level = 0; level < downsamples.length; level++) {
 				
 				writer.setResolution(level);
+				long levelStartTime = System.currentTimeMillis();
+				long levelStartTiles = tilesWritten.sum();
+				long levelStartBytes = bytesWritten.sum();
 				
 				// Preallocate any IFD
 				if (isTiff) {
@@ -703,6 +737,19 @@ public class OMEPyramidWriter {
 					w = ((IPyramidStore)meta).getResolutionSizeX(series, level).getValue().intValue();
 					h = ((IPyramidStore)meta).getResolutionSizeY(series, level).getValue().intValue();
 				}
+
+				// If possible, build the next level from the tiles of this one as they are written
+				next = null;
+				if (isTiled && level + 1 < downsamples.length && meta instanceof IPyramidStore) {
+					int factor = DownsampledLevel.getFactor(d, downsamples[level+1], tileWidth, tileHeight);
+					if (factor > 0) {
+						int wNext = ((IPyramidStore)meta).getResolutionSizeX(series, level+1).getValue().intValue();
+						int hNext = ((IPyramidStore)meta).getResolutionSizeY(series, level+1).getValue().intValue();
+						next = resources.add(new DownsampledLevel(level+1, downsamples[level+1], factor, w, h, wNext, hNext, tileWidth, tileHeight, smoothInterpolate, maxBytesInMemory, totalBytesInMemory));
+						logger.debug("Resolution {} will be built from resolution {} (factor={})", level+2, level+1, factor);
+					}
+				}
+				var tileSupplier = createTileSupplier(server, source, next);
 	
 				int tInc = tEnd >= tStart ? 1 : -1;
 				int zInc = zEnd >= zStart ? 1 : -1;
@@ -776,7 +823,7 @@ public class OMEPyramidWriter {
 							logger.info("Writing plane {}/{}", plane+1, nPlanes);
 								
 							// We *must* write the first region first
-							writeRegion(writer, plane, ifd, server, firstTile, isRGB, localChannels);
+							writeRegion(writer, plane, ifd, tileSupplier.getTile(firstTile, ci == 0), firstTile, isRGB, localChannels);
 							if (!tiles.isEmpty()) {
 								
 								// Reversing the regions means that for a large image we can still get some tiles from the cache
@@ -787,58 +834,34 @@ public class OMEPyramidWriter {
 									Collections.reverse(tiles);
 								}
 								
-								var localWriter = writer;
-								var tasks = tiles.stream().map(tile -> new Runnable() {
-									@Override
-									public void run() {
-										try {
-											if (Thread.currentThread().isInterrupted())
-												return;
-											writeRegion(localWriter, plane, ifd, server, tile, isRGB, localChannels);
-										} catch (Exception e) {
-											logger.error(String.format(
-													"Error writing %s (downsample=%.2f)",
-													tile.toString(), d),
-													e);
-										} finally {
-											int localCount = count.incrementAndGet();
-											if (total > 20 && keyCounts.size() > 1 && keyCounts.contains(localCount)) {
-												double percentage = localCount*100.0/total;
-												logger.info("Written {}% tiles", Math.round(percentage));
-											}
-										}
+								boolean addToNext = ci == 0;
+								writeTiles(pool, writer, plane, ifd, tile -> tileSupplier.getTile(tile, addToNext), tiles, isRGB, localChannels, tile -> {
+									int localCount = count.incrementAndGet();
+									if (total > 20 && keyCounts.size() > 1 && keyCounts.contains(localCount)) {
+										double percentage = localCount*100.0/total;
+										logger.info("Written {}% tiles", Math.round(percentage));
 									}
-								}).collect(Collectors.toList());
-								
-								if (parallelThreads > 1) {
-									var pool = Executors.newWorkStealingPool(parallelThreads);
-									for (var task : tasks) {
-										pool.submit(task);
-									}
-									pool.shutdown();
-									try {
-										pool.awaitTermination(tiles.size(), TimeUnit.MINUTES);
-										logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
-									} catch (InterruptedException e) {
-										logger.warn("OME-TIFF export interrupted!");
-										pool.shutdownNow();
-										throw new IOException("Error writing regions", e);
-									}
-								} else {
-									for (var task : tasks) {
-										if (Thread.currentThread().isInterrupted()) {
-											throw new IOException("Interrupted writing regions!");
-										}
-										task.run();
-									}
-									logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
-								}
+								});
+								logger.info("Plane written in {} ms", System.currentTimeMillis() - planeStartTime);
 							}
 						}
 						zi++;
 					}
 					ti++;
 				}
+				
+				// We don't need the tiles for this level any more
+				if (source != null)
+					source.close();
+				source = next;
+				next = null;
+				
+				long levelTime = Math.max(1L, System.currentTimeMillis() - levelStartTime);
+				long levelTiles = tilesWritten.sum() - levelStartTiles;
+				long levelBytes = bytesWritten.sum() - levelStartBytes;
+				logger.info("Resolution {} written in {} ms ({} tiles/s, {} MB/s)", level+1, levelTime,
+						GeneralTools.formatNumber(levelTiles * 1000.0 / levelTime, 1),
+						GeneralTools.formatNumber(levelBytes / 1024.0 / 1024.0 * 1000.0 / levelTime, 1));
 			}
 			logger.trace("Image count: {}", meta.getImageCount());
 			if (writer instanceof FormatWriter)
@@ -846,6 +869,170 @@ public class OMEPyramidWriter {
 			logger.trace("Resolution count: {}", writer.getResolutionCount());
 		}
 		
+		/**
+		 * Resources used while writing a series, which must be released even if writing fails.
+		 */
+		private static class SeriesResources implements AutoCloseable {
+			
+			private final ExecutorService pool;
+			private final List<DownsampledLevel> levels = new ArrayList<>();
+			
+			private SeriesResources(int parallelThreads) {
+				// Use a single pool for all tiles in the series, if we are parallelizing
+				pool = parallelThreads > 1 ? 
+						Executors.newFixedThreadPool(parallelThreads, ThreadTools.createThreadFactory("ome-tiff-writer-", true)) : null;
+			}
+			
+			private DownsampledLevel add(DownsampledLevel level) {
+				levels.add(level);
+				return level;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (pool != null)
+					pool.shutdownNow();
+				// Closing a level more than once is harmless
+				for (var level : levels)
+					level.close();
+			}
+			
+		}
+		
+		/**
+		 * Write all the tiles for a plane, after the first tile has already been written.
+		 * <p>
+		 * If a pool is provided, tiles are read and written in parallel - but submitted in order, with only a limited number 
+		 * pending at any time. This means that tiles are written in approximately the order of the list, and memory use remains 
+		 * bounded however large the image is (since we never need to hold more than a few tiles).
+		 * Reading tiles (which might involve rendering objects or applying a pixel classifier) and compression (which is 
+		 * handled within {@link TiffWriter#saveBytes(int, byte[], IFD, int, int, int, int)}) can then be performed by 
+		 * multiple threads at once.
+		 * 
+		 * @param pool optional pool for parallel export; if null, all tiles are written sequentially from the current thread
+		 * @param writer
+		 * @param plane
+		 * @param ifd
+		 * @param tileSupplier supplier for the pixels of each tile
+		 * @param tiles the tiles to write, in the order in which they should be written
+		 * @param isRGB
+		 * @param channels
+		 * @param progress consumer that is notified whenever a tile has been written
+		 * @throws FormatException
+		 * @throws IOException if any tile could not be written, or export is interrupted
+		 */
+		private void writeTiles(ExecutorService pool, IFormatWriter writer, int plane, IFD ifd, TileSupplier tileSupplier, 
+				List<TileRequest> tiles, boolean isRGB, int[] channels, Consumer<TileRequest> progress) throws FormatException, IOException {
+			if (pool == null) {
+				for (var tile : tiles) {
+					if (Thread.currentThread().isInterrupted())
+						throw new IOException("Interrupted writing regions!");
+					writeRegion(writer, plane, ifd, tileSupplier.getTile(tile), tile, isRGB, channels);
+					progress.accept(tile);
+				}
+				return;
+			}
+			int maxPending = parallelThreads * 2;
+			Deque<Future<?>> pending = new ArrayDeque<>();
+			try {
+				for (var tile : tiles) {
+					// Wait for the oldest tile if we have too many pending
+					while (pending.size() >= maxPending)
+						waitForTile(pending.poll());
+					pending.add(pool.submit(() -> {
+						writeRegion(writer, plane, ifd, tileSupplier.getTile(tile), tile, isRGB, channels);
+						progress.accept(tile);
+						return null;
+					}));
+				}
+				while (!pending.isEmpty())
+					waitForTile(pending.poll());
+			} finally {
+				// Cancel anything left over if we failed
+				for (var future : pending)
+					future.cancel(true);
+			}
+		}
+		
+		/**
+		 * Create a supplier for the pixels of each tile that is written.
+		 * Tiles are taken from the previously-downsampled level if possible, and otherwise read from the server.
+		 * @param server the image to export
+		 * @param source tiles already generated for the level being written; may be null
+		 * @param next tiles being generated for the next level; may be null
+		 * @return
+		 */
+		private TileSupplierForLevel createTileSupplier(ImageServer<BufferedImage> server, DownsampledLevel source, DownsampledLevel next) {
+			return (tile, addToNext) -> {
+				int z = tile.getZ();
+				int t = tile.getT();
+				BufferedImage img = null;
+				if (source == null || !source.isEmptyTile(tile.getTileX(), tile.getTileY(), z, t)) {
+					if (source != null)
+						img = source.getTile(tile.getTileX(), tile.getTileY(), z, t);
+					if (img == null) {
+						// Get the region request - and make sure to translate it to the origin
+						RegionRequest request = tile.getRegionRequest().translate(this.x, this.y);
+						img = server.readRegion(request);
+					}
+				}
+				if (addToNext && next != null)
+					next.addSourceTile(tile.getTileX(), tile.getTileY(), tile.getTileWidth(), tile.getTileHeight(), z, t, img);
+				return img;
+			};
+		}
+		
+		@FunctionalInterface
+		private static interface TileSupplier {
+			
+			BufferedImage getTile(TileRequest tile) throws IOException;
+			
+		}
+		
+		@FunctionalInterface
+		private static interface TileSupplierForLevel {
+			
+			BufferedImage getTile(TileRequest tile, boolean addToNext) throws IOException;
+			
+		}
+		
+		/**
+		 * Get the number of tiles written by the most recent call to {@link #writeSeries(IFormatWriter, IMetadata, int)}
+		 * (or since it started, if it is still running).
+		 * @return
+		 * @since v0.4.3
+		 */
+		public long getTilesWritten() {
+			return tilesWritten.sum();
+		}
+		
+		/**
+		 * Get the number of uncompressed bytes written by the most recent call to {@link #writeSeries(IFormatWriter, IMetadata, int)}
+		 * (or since it started, if it is still running).
+		 * @return
+		 * @since v0.4.3
+		 */
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+		
+		private static void waitForTile(Future<?> future) throws FormatException, IOException {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				logger.warn("OME-TIFF export interrupted!");
+				Thread.currentThread().interrupt();
+				throw new IOException("Error writing regions", e);
+			} catch (ExecutionException e) {
+				var cause = e.getCause();
+				if (cause instanceof FormatException)
+					throw (FormatException)cause;
+				if (cause instanceof IOException)
+					throw (IOException)cause;
+				throw new IOException("Error writing regions", cause);
+			}
+		}
+		
 		/**
 		 * Get the original {@link ImageServer} for the image that should be export.
 		 * @return
@@ -873,18 +1060,14 @@ public class OMEPyramidWriter {
 		 * @param writer
 		 * @param plane
 		 * @param ifd
-		 * @param server the image to export
+		 * @param img the pixels of the tile, or null if the tile is empty
 		 * @param tile the tile to export; this incorporates the export coordinates and the full resolution coordinates (via the associated {@link RegionRequest})
 		 * @param isRGB export as RGB; this assumes both the input and export images are RGB (i.e. no extra conversions, channel reordering etc.)
 		 * @param channels
 		 * @throws FormatException
 		 * @throws IOException
 		 */
-		private void writeRegion(IFormatWriter writer, int plane, IFD ifd, ImageServer<BufferedImage> server, TileRequest tile, boolean isRGB, int[] channels) throws FormatException, IOException {
-			
-			// Get the region request - and make sure to translate it to the origin
-			RegionRequest request = tile.getRegionRequest().translate(this.x, this.y);
-			BufferedImage img = server.readRegion(request);
+		private void writeRegion(IFormatWriter writer, int plane, IFD ifd, BufferedImage img, TileRequest tile, boolean isRGB, int[] channels) throws FormatException, IOException {
 			
 			var pixelType = getExportPixelType();
 			int bytesPerPixel = pixelType.getBytesPerPixel();
@@ -895,6 +1078,8 @@ public class OMEPyramidWriter {
 					((TiffWriter)writer).saveBytes(plane, zeros, ifd, tile.getTileX(), tile.getTileY(), tile.getTileWidth(), tile.getTileHeight());
 				else
 					writer.saveBytes(plane, zeros, tile.getTileX(), tile.getTileY(), tile.getTileWidth(), tile.getTileHeight());
+				tilesWritten.increment();
+				bytesWritten.add(zeros.length);
 				return;
 			}
 			
@@ -924,6 +1109,8 @@ public class OMEPyramidWriter {
 				((TiffWriter)writer).saveBytes(plane, buf.array(), ifd, tile.getTileX(), tile.getTileY(), ww, hh);
 			else
 				writer.saveBytes(plane, buf.array(), tile.getTileX(), tile.getTileY(), ww, hh);
+			tilesWritten.increment();
+			bytesWritten.add(buf.capacity());
 		}
 		
 		/**
@@ -1235,6 +1422,11 @@ public class OMEPyramidWriter {
 		 * Note that increasing the number of threads may not give improved performance, since it I/O and compression may well 
 		 * become a bottleneck. The main purpose of this option is to parallelize requesting and writing tiles, which can 
 		 * be achieved with just a few threads.
+		 * However, more threads can help whenever tiles are expensive to generate, e.g. when exporting a 
+		 * {@link qupath.lib.images.servers.LabeledImageServer} or the output of a pixel classifier.
+		 * <p>
+		 * The number of tiles pending at any time is limited to twice the number of threads, so that memory use does not 
+		 * depend upon the size of the image.
 		 * 
 		 * @param nThreads number of threads for parallel export; use &leq; 1 to turn off parallelization.
 		 * @return
@@ -273,6 +273,14 @@ public class OpenslideImageServer extends AbstractTileableImageServer {
 	public String getServerType() {
 		return "OpenSlide";
 	}
+	
+	/**
+	 * Returns true, since decoding tiles is relatively expensive and the pixels depend only on the file.
+	 */
+	@Override
+	protected boolean supportsPersistentTileCache() {
+		return true;
+	}
 
 	@Override
 	public BufferedImage readTile(TileRequest tileRequest) throws IOException {
@@ -282,28 +290,64 @@ public class OpenslideImageServer extends AbstractTileableImageServer {
 		int tileWidth = tileRequest.getTileWidth();
 		int tileHeight = tileRequest.getTileHeight();
 
-//		double downsampleFactor = getPreferredDownsamplesArray()[downsampleInd];
-		BufferedImage img = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_ARGB_PRE);
-        int data[] = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
-        
-		// Create a thumbnail for the region
-//        	osr.paintRegionOfLevel(g, dx, dy, sx, sy, w, h, level);
-		osr.paintRegionARGB(data, tileX, tileY, tileRequest.getLevel(), tileWidth, tileHeight);
+		// Read premultiplied ARGB pixels into a reusable buffer
+		int n = tileWidth * tileHeight;
+		int[] argb = getArgbBuffer(n);
+		osr.paintRegionARGB(argb, tileX, tileY, tileRequest.getLevel(), tileWidth, tileHeight);
 		
 		// Previously tried to take shortcut and only repaint if needed - 
-		// but transparent pixels happened too often, and it's really needed to repaint every time
-//			if (backgroundColor == null && GeneralTools.almostTheSame(downsample, downsampleFactor, 0.001))
-//				return img;
-		
-		BufferedImage img2 = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g2d = img2.createGraphics();
-		if (backgroundColor != null) {
-			g2d.setColor(backgroundColor);
-			g2d.fillRect(0, 0, tileWidth, tileHeight);
+		// but transparent pixels happened too often, and it's really needed to repaint every time.
+		// Only the RGB image needs to be allocated, since this is what may be cached.
+		BufferedImage img = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+		int[] rgb = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		flattenARGB(argb, rgb, n, backgroundColor == null ? 0 : backgroundColor.getRGB());
+		return img;
+	}
+	
+	/**
+	 * Buffer used to receive pixels from OpenSlide, reused for every tile read by the same thread.
+	 */
+	private static final ThreadLocal<int[]> argbBuffer = new ThreadLocal<>();
+	
+	private static int[] getArgbBuffer(int length) {
+		int[] buffer = argbBuffer.get();
+		if (buffer == null || buffer.length < length) {
+			buffer = new int[length];
+			argbBuffer.set(buffer);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Draw premultiplied ARGB pixels on top of an opaque background.
+	 * This gives the same result as drawing the image with a {@link Graphics2D} object, 
+	 * but without needing to create a second image.
+	 * 
+	 * @param argb the input premultiplied ARGB pixels
+	 * @param rgb array to store the output RGB pixels
+	 * @param n the number of pixels
+	 * @param background the packed RGB background color
+	 */
+	static void flattenARGB(int[] argb, int[] rgb, int n, int background) {
+		background &= 0xffffff;
+		int bgR = (background >> 16) & 0xff;
+		int bgG = (background >> 8) & 0xff;
+		int bgB = background & 0xff;
+		for (int i = 0; i < n; i++) {
+			int val = argb[i];
+			int a = val >>> 24;
+			if (a == 255)
+				rgb[i] = val & 0xffffff;
+			else if (a == 0)
+				rgb[i] = background;
+			else {
+				int inv = 255 - a;
+				int r = ((val >> 16) & 0xff) + (bgR * inv + 127) / 255;
+				int g = ((val >> 8) & 0xff) + (bgG * inv + 127) / 255;
+				int b = (val & 0xff) + (bgB * inv + 127) / 255;
+				rgb[i] = (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8) | Math.min(b, 255);
+			}
 		}
-		g2d.drawImage(img, 0, 0, tileWidth, tileHeight, null);
-		g2d.dispose();
-		return img2;
 	}
 
 	@Override
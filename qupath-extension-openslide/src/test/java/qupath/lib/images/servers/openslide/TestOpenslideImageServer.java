@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.images.servers.openslide;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestOpenslideImageServer {
+
+	@Test
+	public void test_flattenARGB() {
+		// Opaque, fully transparent & partially transparent pixels
+		int n = 1024;
+		int[] argb = new int[n];
+		var rng = new Random(100);
+		for (int i = 0; i < n; i++) {
+			int a;
+			if (i % 4 == 0)
+				a = 255;
+			else if (i % 4 == 1)
+				a = 0;
+			else
+				a = rng.nextInt(256);
+			// Premultiplied, so each channel cannot exceed alpha
+			int r = rng.nextInt(a + 1);
+			int g = rng.nextInt(a + 1);
+			int b = rng.nextInt(a + 1);
+			argb[i] = (a << 24) | (r << 16) | (g << 8) | b;
+		}
+		argb[n-1] = 0xffffffff;
+		argb[n-2] = 0x80808080;
+		argb[n-3] = 0x01010101;
+
+		for (var background : new Color[] {null, Color.WHITE, Color.BLACK, new Color(250, 128, 7)}) {
+			int[] expected = drawWithGraphics(argb, n, background);
+			int[] rgb = new int[n];
+			OpenslideImageServer.flattenARGB(argb, rgb, n, background == null ? 0 : background.getRGB());
+			for (int i = 0; i < n; i++) {
+				assertEquals(expected[i], rgb[i],
+						String.format("Pixel %d (alpha %d): expected %06x, found %06x", i, argb[i] >>> 24, expected[i], rgb[i]));
+			}
+		}
+	}
+
+	/**
+	 * Flatten pixels in the same way as {@link OpenslideImageServer} did previously,
+	 * by drawing a premultiplied image on top of a filled background.
+	 */
+	private static int[] drawWithGraphics(int[] argb, int n, Color background) {
+		var img = new BufferedImage(n, 1, BufferedImage.TYPE_INT_ARGB_PRE);
+		System.arraycopy(argb, 0, ((DataBufferInt)img.getRaster().getDataBuffer()).getData(), 0, n);
+		var img2 = new BufferedImage(n, 1, BufferedImage.TYPE_INT_RGB);
+		var g2d = img2.createGraphics();
+		if (background != null) {
+			g2d.setColor(background);
+			g2d.fillRect(0, 0, n, 1);
+		}
+		g2d.drawImage(img, 0, 0, null);
+		g2d.dispose();
+		int[] rgb = ((DataBufferInt)img2.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < n; i++)
+			rgb[i] &= 0xffffff;
+		return rgb;
+	}
+
+}
@@ -178,9 +178,8 @@ public class CreateTrainingImageCommand {
 		for (var entry : entries) {
 			if (!entry.hasImageData())
 				continue;
-			var hierarchy = entry.readHierarchy();
-			if (hierarchy == null)
-				continue;
+			// Only annotations are needed, so avoid reading detections
+			var hierarchy = entry.readLazyHierarchy().getHierarchy();
 			var annotations = hierarchy.getAnnotationObjects();
 			if (annotations.isEmpty())
 				continue;
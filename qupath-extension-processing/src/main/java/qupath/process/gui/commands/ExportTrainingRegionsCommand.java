@@ -311,7 +311,8 @@ public class ExportTrainingRegionsCommand implements Runnable {
 				if (!entry.hasImageData())
 					continue;
 				try {
-					PathObjectHierarchy hierarchy = entry.readHierarchy();
+					// Only annotations are needed, so avoid reading detections
+					PathObjectHierarchy hierarchy = entry.readLazyHierarchy().getHierarchy();
 					int nullCount = 0;
 					for (PathObject annotation : hierarchy.getAnnotationObjects()) {
 						if (annotation.getPathClass() == null)
@@ -0,0 +1,1009 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.MetadataStore;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.TemporaryObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.TMAGrid;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Log of the changes made to a {@link PathObjectHierarchy}, used to support undo and redo.
+ * <p>
+ * Rather than storing a copy of the entire hierarchy whenever it changes, this keeps a record of the last known
+ * state of each object (i.e. its parent, ROI, classification, measurements and other properties).
+ * When a hierarchy event is received, only the objects affected by the event are compared against this record,
+ * and any differences are stored as a single edit.
+ * For structure changes, the affected objects are those reported by the event; only if the event doesn't report 
+ * them is everything below the base of the change compared.
+ * Undoing or redoing an edit then restores the state of the changed objects only, including their position 
+ * among the children of their parent.
+ * This means that the cost of recording or reverting a change is proportional to the number of objects affected 
+ * (along with their siblings, if objects are added, removed or moved), rather than to the size of the hierarchy.
+ * <p>
+ * Memory use is limited by a budget. If the budget is exceeded, the oldest edits are either written to
+ * temporary files (if spilling to disk is enabled) or discarded.
+ * If the record of the current state alone exceeds the budget, the log is disabled.
+ * The log may also be disabled whenever the hierarchy contains more than a specified number of objects.
+ * <p>
+ * Temporary objects (e.g. tiles used during parallel processing) are not tracked.
+ *
+ * @author Pete Bankhead
+ */
+class HierarchyUndoLog {
+
+	private static final Logger logger = LoggerFactory.getLogger(HierarchyUndoLog.class);
+
+	private final PathObjectHierarchy hierarchy;
+	private final int maxLevels;
+	private final int maxObjects;
+	private final long maxBytes;
+	private final boolean spillToDisk;
+
+	private final Map<PathObject, ObjectState> states = new IdentityHashMap<>();
+	// Recorded children of each object, in the same order as in the hierarchy
+	private final Map<PathObject, Set<PathObject>> children = new IdentityHashMap<>();
+	private final Map<List<String>, String[]> measurementNames = new HashMap<>();
+	private long stateBytes = 0L;
+
+	private final Deque<Edit> undoStack = new ArrayDeque<>();
+	private final Deque<Edit> redoStack = new ArrayDeque<>();
+
+	private boolean enabled = true;
+	private boolean tooManyObjects = false;
+
+	/**
+	 * Create a new log, recording the current state of all objects in the hierarchy.
+	 * @param hierarchy the hierarchy to track
+	 * @param maxLevels the maximum number of edits that can be undone
+	 * @param maxObjects the maximum number of objects in the hierarchy; if this is exceeded, the log is disabled.
+	 *                   Use a negative value to indicate no limit.
+	 * @param maxBytes the approximate maximum number of bytes that may be used (excluding any files)
+	 * @param spillToDisk if true, write older edits to temporary files rather than discarding them when the memory
+	 *                    budget is exceeded
+	 */
+	HierarchyUndoLog(PathObjectHierarchy hierarchy, int maxLevels, int maxObjects, long maxBytes, boolean spillToDisk) {
+		this.hierarchy = hierarchy;
+		this.maxLevels = maxLevels;
+		this.maxObjects = maxObjects;
+		this.maxBytes = maxBytes;
+		this.spillToDisk = spillToDisk;
+		var lock = hierarchy.getLock().readLock();
+		lock.lock();
+		try {
+			synchronized (this) {
+				// Avoid recording the state of every object if we won't be able to use it
+				if (maxObjects >= 0 && hierarchy.nObjects() > maxObjects) {
+					disableTooManyObjects();
+					return;
+				}
+				for (var pathObject : getCurrentSubtree(hierarchy.getRootObject(), new ArrayList<>())) {
+					updateState(pathObject, null, captureState(pathObject));
+					if (stateBytes > maxBytes) {
+						logger.warn("Hierarchy is too large to support undo within {} MB", maxBytes / 1024 / 1024);
+						disable();
+						break;
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the hierarchy being tracked.
+	 * @return
+	 */
+	PathObjectHierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * Returns true if changes are being tracked, false if the log has been disabled because it would
+	 * require too much memory.
+	 * @return
+	 */
+	synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns true if the log has been disabled because the hierarchy contained too many objects.
+	 * In this case, a new log may be created if the number of objects is later reduced.
+	 * @return
+	 */
+	synchronized boolean isTooManyObjects() {
+		return tooManyObjects;
+	}
+
+	/**
+	 * Returns true if there is at least one edit that can be undone.
+	 * @return
+	 */
+	synchronized boolean canUndo() {
+		return !undoStack.isEmpty();
+	}
+
+	/**
+	 * Returns true if there is at least one edit that can be redone.
+	 * @return
+	 */
+	synchronized boolean canRedo() {
+		return !redoStack.isEmpty();
+	}
+
+	/**
+	 * Get the approximate number of bytes currently held in memory, including both the record of
+	 * the current state and any edits that have not been written to disk.
+	 * @return
+	 */
+	synchronized long totalBytes() {
+		return stateBytes + getEditBytes();
+	}
+
+	/**
+	 * Get the number of edits that are currently stored in temporary files.
+	 * @return
+	 */
+	synchronized int nSpilledEdits() {
+		int n = 0;
+		for (var edit : undoStack) {
+			if (edit.isSpilled())
+				n++;
+		}
+		for (var edit : redoStack) {
+			if (edit.isSpilled())
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Discard all edits, so that undo and redo are no longer possible.
+	 * Changes will continue to be recorded.
+	 */
+	synchronized void clear() {
+		undoStack.forEach(Edit::discard);
+		redoStack.forEach(Edit::discard);
+		undoStack.clear();
+		redoStack.clear();
+	}
+
+	/**
+	 * Discard all edits and stop recording changes.
+	 */
+	synchronized void disable() {
+		clear();
+		states.clear();
+		children.clear();
+		measurementNames.clear();
+		stateBytes = 0L;
+		enabled = false;
+	}
+
+	private void disableTooManyObjects() {
+		logger.info("Hierarchy contains more than {} objects - undo will be turned off", maxObjects);
+		disable();
+		tooManyObjects = true;
+	}
+
+	/**
+	 * Record any changes associated with a hierarchy event.
+	 * @param event
+	 * @return true if changes were found and recorded as a new edit, false otherwise
+	 */
+	boolean record(PathObjectHierarchyEvent event) {
+		if (event.getHierarchy() != hierarchy)
+			return false;
+		var lock = hierarchy.getLock().writeLock();
+		lock.lock();
+		try {
+			synchronized (this) {
+				if (!enabled)
+					return false;
+
+				// Find the objects that might have changed
+				Set<PathObject> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+				switch (event.getEventType()) {
+				case ADDED:
+					for (var pathObject : event.getChangedObjects())
+						getCurrentSubtree(pathObject, candidates);
+					break;
+				case REMOVED:
+					for (var pathObject : event.getChangedObjects()) {
+						getRecordedSubtree(pathObject, candidates);
+						getCurrentSubtree(pathObject, candidates);
+					}
+					break;
+				case OTHER_STRUCTURE_CHANGE:
+					var base = event.getStructureChangeBase();
+					if (base == null)
+						base = hierarchy.getRootObject();
+					if (event.getChangedObjects().isEmpty()) {
+						// We don't know what changed, so need to check everything below the base
+						getRecordedSubtree(base, candidates);
+						getCurrentSubtree(base, candidates);
+					} else {
+						if (!(base instanceof TemporaryObject))
+							candidates.add(base);
+						for (var pathObject : event.getChangedObjects()) {
+							getRecordedSubtree(pathObject, candidates);
+							getCurrentSubtree(pathObject, candidates);
+						}
+					}
+					break;
+				default:
+					candidates.addAll(event.getChangedObjects());
+				}
+
+				// Compare against the last recorded states
+				List<PathObject> objects = new ArrayList<>();
+				List<ObjectState> before = new ArrayList<>();
+				List<ObjectState> after = new ArrayList<>();
+				for (var pathObject : candidates) {
+					var previous = states.get(pathObject);
+					ObjectState current;
+					if (!isInHierarchy(pathObject)) {
+						if (previous == null)
+							continue;
+						current = null;
+					} else if (previous != null && previous.matches(pathObject, hierarchy))
+						continue;
+					else
+						current = captureState(pathObject);
+					objects.add(pathObject);
+					before.add(previous);
+					after.add(current);
+				}
+				if (objects.isEmpty())
+					return false;
+				
+				// Find the positions of objects that were added, removed or moved (before updating the record)
+				int[] beforeIndices = findChildIndices(objects, before, after, true);
+				int[] afterIndices = findChildIndices(objects, after, before, false);
+				Set<PathObject> parentsToSync = Collections.newSetFromMap(new IdentityHashMap<>());
+				for (int i = 0; i < objects.size(); i++) {
+					updateState(objects.get(i), before.get(i), after.get(i));
+					if (afterIndices[i] >= 0)
+						parentsToSync.add(after.get(i).parent);
+				}
+				parentsToSync.forEach(this::syncRecordedOrder);
+				
+				// The states include the root object
+				if (maxObjects >= 0 && states.size() - 1 > maxObjects) {
+					disableTooManyObjects();
+					return false;
+				}
+
+				logger.debug("Recording edit with {} changed object(s)", objects.size());
+				undoStack.push(new Edit(objects, before, after, beforeIndices, afterIndices));
+				redoStack.forEach(Edit::discard);
+				redoStack.clear();
+				enforceBudget();
+				return enabled;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Undo the last edit.
+	 * Note that this does not fire any hierarchy events; the caller is responsible for this.
+	 * @return true if an edit was undone, false otherwise
+	 */
+	boolean undo() {
+		var lock = hierarchy.getLock().writeLock();
+		lock.lock();
+		try {
+			synchronized (this) {
+				if (undoStack.isEmpty())
+					return false;
+				var edit = undoStack.pop();
+				if (!applyEdit(edit, true)) {
+					clear();
+					return false;
+				}
+				redoStack.push(edit);
+				enforceBudget();
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Redo the last edit that was undone.
+	 * Note that this does not fire any hierarchy events; the caller is responsible for this.
+	 * @return true if an edit was redone, false otherwise
+	 */
+	boolean redo() {
+		var lock = hierarchy.getLock().writeLock();
+		lock.lock();
+		try {
+			synchronized (this) {
+				if (redoStack.isEmpty())
+					return false;
+				var edit = redoStack.pop();
+				if (!applyEdit(edit, false)) {
+					clear();
+					return false;
+				}
+				undoStack.push(edit);
+				enforceBudget();
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	private boolean applyEdit(Edit edit, boolean undo) {
+		try {
+			edit.load();
+		} catch (IOException | ClassNotFoundException e) {
+			logger.error("Unable to read undo information: " + e.getLocalizedMessage(), e);
+			return false;
+		}
+		var objects = edit.objects;
+		var targets = undo ? edit.before : edit.after;
+		var targetIndices = undo ? edit.beforeIndices : edit.afterIndices;
+
+		// Remove objects that should no longer be present
+		for (int i = 0; i < objects.length; i++) {
+			var parent = objects[i].getParent();
+			if (targets[i] == null && parent != null)
+				parent.removeChildObject(objects[i]);
+		}
+		// Restore parents, along with the positions of the objects among their siblings
+		Map<PathObject, List<Integer>> moved = new IdentityHashMap<>();
+		for (int i = 0; i < objects.length; i++) {
+			var target = targets[i];
+			if (target != null && target.parent != null && (objects[i].getParent() != target.parent || targetIndices[i] >= 0))
+				moved.computeIfAbsent(target.parent, p -> new ArrayList<>()).add(i);
+		}
+		for (var entry : moved.entrySet()) {
+			var list = entry.getValue();
+			list.sort(Comparator.comparingInt(i -> targetIndices[i] < 0 ? Integer.MAX_VALUE : targetIndices[i]));
+			restoreChildren(entry.getKey(), list.stream().map(i -> objects[i]).collect(Collectors.toList()), 
+					list.stream().mapToInt(i -> targetIndices[i]).toArray());
+		}
+		// Restore properties
+		for (int i = 0; i < objects.length; i++) {
+			var target = targets[i];
+			if (target != null) {
+				target.restore(objects[i]);
+				if (objects[i].isRootObject() && hierarchy.getTMAGrid() != target.tmaGrid)
+					hierarchy.setTMAGrid(target.tmaGrid);
+			}
+		}
+		// Update the record of the current state
+		for (int i = 0; i < objects.length; i++) {
+			var pathObject = objects[i];
+			var previous = states.get(pathObject);
+			ObjectState current;
+			if (!isInHierarchy(pathObject))
+				current = null;
+			else if (targets[i] != null && targets[i].matches(pathObject, hierarchy))
+				current = targets[i];
+			else
+				current = captureState(pathObject);
+			updateState(pathObject, previous, current);
+		}
+		moved.keySet().forEach(this::syncRecordedOrder);
+		return true;
+	}
+	
+	/**
+	 * Add objects to a parent, inserting each at the specified position among its children.
+	 * @param parent the parent object
+	 * @param pathObjects the objects to add, sorted by position
+	 * @param indices the position of each object, or -1 if it should be added after the existing children
+	 */
+	private static void restoreChildren(PathObject parent, List<PathObject> pathObjects, int[] indices) {
+		Set<PathObject> toAdd = Collections.newSetFromMap(new IdentityHashMap<>());
+		toAdd.addAll(pathObjects);
+		List<PathObject> order = new ArrayList<>(parent.nChildObjects() + pathObjects.size());
+		for (var child : parent.getChildObjectsAsArray()) {
+			if (!toAdd.contains(child))
+				order.add(child);
+		}
+		int nExisting = order.size();
+		boolean append = true;
+		for (int i = 0; i < indices.length; i++) {
+			int ind = indices[i];
+			if (ind < 0 || ind >= order.size())
+				order.add(pathObjects.get(i));
+			else {
+				order.add(ind, pathObjects.get(i));
+				append = false;
+			}
+		}
+		// Usually the objects can simply be added at the end; otherwise, reset the children to get the right order
+		if (append && parent.nChildObjects() == nExisting)
+			parent.addChildObjects(pathObjects);
+		else if (!Arrays.asList(parent.getChildObjectsAsArray()).equals(order)) {
+			parent.clearChildObjects();
+			parent.addChildObjects(order);
+		}
+	}
+	
+	/**
+	 * Find the position of each object among the children of its parent, for objects that are added, removed or moved.
+	 * @param objects the objects
+	 * @param states the states for which positions are needed
+	 * @param otherStates the other states for the same objects; positions are only needed if the parent differs from these
+	 * @param recorded if true, use the order of the recorded children; otherwise, use the order in the hierarchy
+	 * @return an array giving the position of each object, or -1 if the position is not needed
+	 */
+	private int[] findChildIndices(List<PathObject> objects, List<ObjectState> states, List<ObjectState> otherStates, boolean recorded) {
+		int[] indices = new int[objects.size()];
+		Arrays.fill(indices, -1);
+		Map<PathObject, Map<PathObject, Integer>> byParent = new IdentityHashMap<>();
+		for (int i = 0; i < indices.length; i++) {
+			var state = states.get(i);
+			var other = otherStates.get(i);
+			if (state == null || state.parent == null || (other != null && other.parent == state.parent))
+				continue;
+			byParent.computeIfAbsent(state.parent, p -> new IdentityHashMap<>()).put(objects.get(i), i);
+		}
+		for (var entry : byParent.entrySet()) {
+			var lookup = entry.getValue();
+			Collection<PathObject> siblings = recorded ? children.getOrDefault(entry.getKey(), Collections.emptySet()) : entry.getKey().getChildObjects();
+			int ind = 0;
+			int remaining = lookup.size();
+			for (var sibling : siblings) {
+				var i = lookup.get(sibling);
+				if (i != null) {
+					indices[i] = ind;
+					if (--remaining == 0)
+						break;
+				}
+				if (!(sibling instanceof TemporaryObject))
+					ind++;
+			}
+		}
+		return indices;
+	}
+	
+	/**
+	 * Ensure the recorded children of an object have the same order as in the hierarchy.
+	 */
+	private void syncRecordedOrder(PathObject parent) {
+		var recorded = children.get(parent);
+		if (recorded == null)
+			return;
+		Set<PathObject> ordered = new LinkedHashSet<>(recorded.size() * 2);
+		for (var child : parent.getChildObjectsAsArray()) {
+			if (recorded.contains(child))
+				ordered.add(child);
+		}
+		if (ordered.size() != recorded.size())
+			ordered.addAll(recorded);
+		children.put(parent, ordered);
+	}
+
+
+	private void enforceBudget() {
+		if (stateBytes > maxBytes) {
+			logger.warn("Hierarchy is too large to support undo within {} MB", maxBytes / 1024 / 1024);
+			disable();
+			return;
+		}
+		while (maxLevels >= 0 && undoStack.size() > maxLevels)
+			undoStack.pollLast().discard();
+		while (maxLevels >= 0 && redoStack.size() > maxLevels)
+			redoStack.pollLast().discard();
+
+		long total = totalBytes();
+		if (total <= maxBytes)
+			return;
+
+		// Start with the edits that are least likely to be needed
+		List<Edit> edits = new ArrayList<>();
+		undoStack.descendingIterator().forEachRemaining(edits::add);
+		redoStack.descendingIterator().forEachRemaining(edits::add);
+		for (var edit : edits) {
+			if (total <= maxBytes)
+				break;
+			if (edit.isSpilled())
+				continue;
+			long bytes = edit.bytes;
+			if (spillToDisk) {
+				try {
+					edit.spill();
+					total -= bytes;
+					continue;
+				} catch (IOException e) {
+					logger.warn("Unable to write undo information to disk: " + e.getLocalizedMessage(), e);
+				}
+			}
+			// Discard the edit, along with any that depend upon it
+			var stack = undoStack.contains(edit) ? undoStack : redoStack;
+			while (!stack.isEmpty()) {
+				var last = stack.pollLast();
+				if (!last.isSpilled())
+					total -= last.bytes;
+				last.discard();
+				if (last == edit)
+					break;
+			}
+		}
+	}
+
+	private long getEditBytes() {
+		long total = 0L;
+		for (var edit : undoStack) {
+			if (!edit.isSpilled())
+				total += edit.bytes;
+		}
+		for (var edit : redoStack) {
+			if (!edit.isSpilled())
+				total += edit.bytes;
+		}
+		return total;
+	}
+
+
+	private void updateState(PathObject pathObject, ObjectState previous, ObjectState current) {
+		if (previous != null) {
+			stateBytes -= previous.estimateBytes(false);
+			var siblings = children.get(previous.parent);
+			if (siblings != null) {
+				siblings.remove(pathObject);
+				if (siblings.isEmpty())
+					children.remove(previous.parent);
+			}
+		}
+		if (current == null)
+			states.remove(pathObject);
+		else {
+			states.put(pathObject, current);
+			stateBytes += current.estimateBytes(false);
+			if (current.parent != null)
+				children.computeIfAbsent(current.parent, p -> new LinkedHashSet<>()).add(pathObject);
+		}
+	}
+
+	private ObjectState captureState(PathObject pathObject) {
+		String[] names = null;
+		double[] values = null;
+		if (pathObject.hasMeasurements()) {
+			var list = pathObject.getMeasurementList();
+			synchronized (list) {
+				var currentNames = list.getMeasurementNames();
+				values = list.values();
+				if (currentNames.size() != values.length) {
+					logger.debug("Measurement names & values differ in length for {}", pathObject);
+					values = new double[currentNames.size()];
+					for (int i = 0; i < values.length; i++)
+						values[i] = list.get(currentNames.get(i));
+				}
+				// Share names between objects where possible
+				names = measurementNames.get(currentNames);
+				if (names == null) {
+					names = currentNames.toArray(String[]::new);
+					measurementNames.put(List.of(names), names);
+				}
+			}
+		}
+		return new ObjectState(pathObject, hierarchy, names, values);
+	}
+
+	private boolean isInHierarchy(PathObject pathObject) {
+		var root = pathObject;
+		while (root.getParent() != null)
+			root = root.getParent();
+		return root == hierarchy.getRootObject();
+	}
+
+	/**
+	 * Get an object and its descendants, excluding any temporary objects.
+	 * Descendants are returned in the order in which they appear in the hierarchy.
+	 */
+	private static <T extends Collection<PathObject>> T getCurrentSubtree(PathObject pathObject, T collection) {
+		Deque<PathObject> stack = new ArrayDeque<>();
+		stack.push(pathObject);
+		while (!stack.isEmpty()) {
+			var next = stack.pop();
+			if (next instanceof TemporaryObject)
+				continue;
+			collection.add(next);
+			if (next.hasChildObjects()) {
+				var childArray = next.getChildObjectsAsArray();
+				for (int i = childArray.length - 1; i >= 0; i--)
+					stack.push(childArray[i]);
+			}
+		}
+		return collection;
+	}
+
+	private <T extends Collection<PathObject>> T getRecordedSubtree(PathObject pathObject, T collection) {
+		Deque<PathObject> stack = new ArrayDeque<>();
+		stack.push(pathObject);
+		while (!stack.isEmpty()) {
+			var next = stack.pop();
+			if (states.containsKey(next))
+				collection.add(next);
+			var set = children.get(next);
+			if (set != null) {
+				for (var child : set)
+					stack.push(child);
+			}
+		}
+		return collection;
+	}
+
+
+	/**
+	 * Snapshot of the state of a single object.
+	 * The parent and TMA grid are not serialized, and must be stored separately if the state is written to disk.
+	 */
+	private static class ObjectState implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient PathObject parent;
+		private final transient TMAGrid tmaGrid;
+
+		private final PathClass pathClass;
+		private final double probability;
+		private final ROI roi;
+		private final String name;
+		private final Integer color;
+		private final boolean locked;
+		private final String description;
+		private final boolean missing;
+		// Alternating keys & values, for objects that store metadata
+		private final String[] metadata;
+
+		private final String[] measurementNames;
+		private final float[] floatValues;
+		private final double[] doubleValues;
+
+		private ObjectState(PathObject pathObject, PathObjectHierarchy hierarchy, String[] names, double[] values) {
+			this.parent = pathObject.getParent();
+			this.tmaGrid = pathObject.isRootObject() ? hierarchy.getTMAGrid() : null;
+			this.pathClass = pathObject.getPathClass();
+			this.probability = pathObject.getClassProbability();
+			this.roi = pathObject.getROI();
+			this.name = pathObject.getName();
+			this.color = pathObject.getColor();
+			this.locked = pathObject instanceof PathROIObject && pathObject.isLocked();
+			this.description = pathObject instanceof PathAnnotationObject ? ((PathAnnotationObject)pathObject).getDescription() : null;
+			this.missing = pathObject instanceof TMACoreObject && ((TMACoreObject)pathObject).isMissing();
+			this.metadata = pathObject instanceof MetadataStore ? getMetadata((MetadataStore)pathObject) : null;
+			this.measurementNames = names;
+			// Use float precision if that's sufficient to store the values exactly (which is usually the case)
+			float[] floats = null;
+			if (values != null) {
+				floats = new float[values.length];
+				for (int i = 0; i < values.length; i++) {
+					floats[i] = (float)values[i];
+					if (Double.compare(floats[i], values[i]) != 0) {
+						floats = null;
+						break;
+					}
+				}
+			}
+			this.floatValues = floats;
+			this.doubleValues = floats == null ? values : null;
+		}
+
+		private ObjectState(ObjectState state, PathObject parent, TMAGrid tmaGrid) {
+			this.parent = parent;
+			this.tmaGrid = tmaGrid;
+			this.pathClass = PathClass.getSingleton(state.pathClass);
+			this.probability = state.probability;
+			this.roi = state.roi;
+			this.name = state.name;
+			this.color = state.color;
+			this.locked = state.locked;
+			this.description = state.description;
+			this.missing = state.missing;
+			this.metadata = state.metadata;
+			this.measurementNames = state.measurementNames;
+			this.floatValues = state.floatValues;
+			this.doubleValues = state.doubleValues;
+		}
+
+		private static String[] getMetadata(MetadataStore store) {
+			var map = store.getMetadataMap();
+			if (map.isEmpty())
+				return null;
+			String[] metadata = new String[map.size() * 2];
+			int i = 0;
+			for (var entry : map.entrySet()) {
+				metadata[i++] = entry.getKey();
+				metadata[i++] = entry.getValue();
+			}
+			return metadata;
+		}
+
+		private int nMeasurements() {
+			return measurementNames == null ? 0 : measurementNames.length;
+		}
+
+		private double getValue(int ind) {
+			return floatValues == null ? doubleValues[ind] : floatValues[ind];
+		}
+
+		boolean matches(PathObject pathObject, PathObjectHierarchy hierarchy) {
+			if (parent != pathObject.getParent() ||
+					roi != pathObject.getROI() ||
+					pathClass != pathObject.getPathClass() ||
+					Double.compare(probability, pathObject.getClassProbability()) != 0 ||
+					!Objects.equals(name, pathObject.getName()) ||
+					!Objects.equals(color, pathObject.getColor()) ||
+					locked != (pathObject instanceof PathROIObject && pathObject.isLocked()))
+				return false;
+			if (pathObject.isRootObject() && tmaGrid != hierarchy.getTMAGrid())
+				return false;
+			if (pathObject instanceof PathAnnotationObject && !Objects.equals(description, ((PathAnnotationObject)pathObject).getDescription()))
+				return false;
+			if (pathObject instanceof TMACoreObject && missing != ((TMACoreObject)pathObject).isMissing())
+				return false;
+			if (pathObject instanceof MetadataStore && !Arrays.equals(metadata, getMetadata((MetadataStore)pathObject)))
+				return false;
+			return measurementsMatch(pathObject);
+		}
+
+		private boolean measurementsMatch(PathObject pathObject) {
+			if (!pathObject.hasMeasurements())
+				return nMeasurements() == 0;
+			var list = pathObject.getMeasurementList();
+			synchronized (list) {
+				var names = list.getMeasurementNames();
+				int n = nMeasurements();
+				if (names.size() != n)
+					return false;
+				double[] values = list.values();
+				if (values.length != n)
+					return false;
+				for (int i = 0; i < n; i++) {
+					if (!measurementNames[i].equals(names.get(i)) || Double.compare(getValue(i), values[i]) != 0)
+						return false;
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * Restore the state of an object, excluding its parent and the TMA grid.
+		 */
+		void restore(PathObject pathObject) {
+			// Set the ROI first, since this can reset measurements
+			if (roi != null && pathObject instanceof PathROIObject && pathObject.getROI() != roi)
+				((PathROIObject)pathObject).setROI(roi);
+			if (!pathObject.isRootObject() && (pathObject.getPathClass() != pathClass || Double.compare(pathObject.getClassProbability(), probability) != 0))
+				pathObject.setPathClass(pathClass, probability);
+			pathObject.setName(name);
+			pathObject.setColor(color);
+			if (pathObject instanceof PathROIObject)
+				pathObject.setLocked(locked);
+			if (pathObject instanceof PathAnnotationObject)
+				((PathAnnotationObject)pathObject).setDescription(description);
+			if (pathObject instanceof TMACoreObject) {
+				var core = (TMACoreObject)pathObject;
+				core.setMissing(missing);
+				if (!Arrays.equals(metadata, getMetadata(core))) {
+					core.clearMetadata();
+					for (int i = 0; metadata != null && i < metadata.length; i += 2)
+						core.putMetadataValue(metadata[i], metadata[i+1]);
+				}
+			}
+			if (!measurementsMatch(pathObject)) {
+				var list = pathObject.getMeasurementList();
+				list.clear();
+				for (int i = 0; i < nMeasurements(); i++)
+					list.put(measurementNames[i], getValue(i));
+				list.close();
+			}
+		}
+
+		/**
+		 * Estimate the memory required to store this state.
+		 * @param includeROI if true, include an estimate for the ROI; this is useful if the ROI might
+		 *                   no longer be in use elsewhere
+		 * @return
+		 */
+		long estimateBytes(boolean includeROI) {
+			long bytes = 96L;
+			if (metadata != null)
+				bytes += metadata.length * 48L + 16;
+			if (floatValues != null)
+				bytes += floatValues.length * 4L + 16;
+			else if (doubleValues != null)
+				bytes += doubleValues.length * 8L + 16;
+			if (includeROI && roi != null)
+				bytes += roi.getNumPoints() * 16L + 64;
+			return bytes;
+		}
+
+		private Object readResolve() throws ObjectStreamException {
+			return new ObjectState(this, null, null);
+		}
+
+	}
+
+
+	/**
+	 * A single edit, containing the states of the changed objects before and after the change.
+	 * A null state indicates that the object was not in the hierarchy.
+	 * <p>
+	 * States may be written to a temporary file to save memory; references to the parent objects and
+	 * TMA grid are retained in memory.
+	 */
+	private static class Edit {
+
+		private final PathObject[] objects;
+		private ObjectState[] before;
+		private ObjectState[] after;
+		// Positions among the children of the parent, where the parent changes (or -1 otherwise)
+		private final int[] beforeIndices;
+		private final int[] afterIndices;
+		private final long bytes;
+
+		private Path file;
+		private PathObject[] beforeParents;
+		private PathObject[] afterParents;
+		private TMAGrid[] beforeGrids;
+		private TMAGrid[] afterGrids;
+
+		private Edit(List<PathObject> objects, List<ObjectState> before, List<ObjectState> after, int[] beforeIndices, int[] afterIndices) {
+			this.objects = objects.toArray(PathObject[]::new);
+			this.before = before.toArray(ObjectState[]::new);
+			this.after = after.toArray(ObjectState[]::new);
+			this.beforeIndices = beforeIndices;
+			this.afterIndices = afterIndices;
+			long total = 64L + this.objects.length * 32L;
+			for (int i = 0; i < this.objects.length; i++) {
+				if (this.before[i] != null)
+					total += this.before[i].estimateBytes(true);
+				if (this.after[i] != null)
+					total += this.after[i].estimateBytes(true);
+			}
+			this.bytes = total;
+		}
+
+		boolean isSpilled() {
+			return file != null;
+		}
+
+		/**
+		 * Write the object states to a temporary file, releasing them from memory.
+		 */
+		void spill() throws IOException {
+			if (file != null)
+				return;
+			var temp = Files.createTempFile("qupath-undo-", ".bin");
+			try (var stream = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				stream.writeObject(before);
+				stream.writeObject(after);
+			} catch (IOException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			int n = objects.length;
+			beforeParents = new PathObject[n];
+			afterParents = new PathObject[n];
+			beforeGrids = new TMAGrid[n];
+			afterGrids = new TMAGrid[n];
+			for (int i = 0; i < n; i++) {
+				if (before[i] != null) {
+					beforeParents[i] = before[i].parent;
+					beforeGrids[i] = before[i].tmaGrid;
+				}
+				if (after[i] != null) {
+					afterParents[i] = after[i].parent;
+					afterGrids[i] = after[i].tmaGrid;
+				}
+			}
+			before = null;
+			after = null;
+			file = temp;
+			logger.debug("Undo information for {} object(s) written to {}", n, file);
+		}
+
+		/**
+		 * Ensure the object states are available in memory, reading them from a temporary file if necessary.
+		 */
+		void load() throws IOException, ClassNotFoundException {
+			if (file == null)
+				return;
+			try (var stream = PathIO.createObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				var beforeRead = (ObjectState[])stream.readObject();
+				var afterRead = (ObjectState[])stream.readObject();
+				for (int i = 0; i < objects.length; i++) {
+					if (beforeRead[i] != null)
+						beforeRead[i] = new ObjectState(beforeRead[i], beforeParents[i], beforeGrids[i]);
+					if (afterRead[i] != null)
+						afterRead[i] = new ObjectState(afterRead[i], afterParents[i], afterGrids[i]);
+				}
+				before = beforeRead;
+				after = afterRead;
+			}
+			discardFile();
+		}
+
+		void discard() {
+			discardFile();
+			before = null;
+			after = null;
+		}
+
+		private void discardFile() {
+			if (file == null)
+				return;
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				logger.debug("Unable to delete {}: {}", file, e.getLocalizedMessage());
+			}
+			file = null;
+			beforeParents = null;
+			afterParents = null;
+			beforeGrids = null;
+			afterGrids = null;
+		}
+
+	}
+
+}
@@ -892,6 +892,11 @@ class Menus {
 		@ActionMenu("Show memory monitor")
 		public final Action MEMORY_MONITORY = Commands.createSingleStageAction(() -> Commands.createMemoryMonitorDialog(qupath));
 		
+		@ActionDescription("Show a dialog summarizing how tiles are requested & read for each image, "
+				+ "including the time spent reading tiles and how often they are found in the cache.")
+		@ActionMenu("Show image server metrics")
+		public final Action IMAGE_SERVER_METRICS = Commands.createSingleStageAction(() -> Commands.createImageServerMetricsDialog(qupath));
+		
 		@ActionDescription("Show the log. This is very helpful for identifying and debugging errors. "
 				+ "\n\nIf you wish to report a problem using QuPath, please check the log for relevant information to provide.")
 		@ActionMenu("Show log")
@@ -1296,6 +1296,10 @@ public class QuPathGUI {
 		if (imageRegionStore != null)
 			imageRegionStore.close();
 
+		// Stop recording undo levels & delete any temporary files
+		if (undoRedoManager != null)
+			undoRedoManager.close();
+
 		// Save the PathClasses
 		savePathClasses();
 
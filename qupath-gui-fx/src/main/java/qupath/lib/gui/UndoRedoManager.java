@@ -2,7 +2,7 @@
  * #%L
  * This file is part of QuPath.
  * %%
- * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * Copyright (C) 2018 - 2023 QuPath developers, The University of Edinburgh
  * %%
  * QuPath is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as
@@ -23,33 +23,28 @@ package qupath.lib.gui;
 
 import java.awt.Shape;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
-import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.gui.viewer.QuPathViewerListener;
 import qupath.lib.gui.viewer.QuPathViewerPlus;
 import qupath.lib.images.ImageData;
-import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
@@ -59,20 +54,17 @@ import qupath.lib.plugins.ParallelTileObject;
 /**
  * Helper class to add undo/redo support to QuPath.
  * <p>
- * This is restricted to tracking changes in the PathObjectHierarchy for individual viewers, 
- * and is intended mostly for cases where there aren't many objects - but where making mistakes 
- * would be especially annoying (e.g. laboriously annotating images).
+ * This is restricted to tracking changes in the PathObjectHierarchy for individual viewers.
+ * Rather than storing a copy of the entire hierarchy for every change, only the objects that were 
+ * added, removed or modified by each change are recorded.
+ * However, a record of the current state of every object is still needed, and changes made at the root 
+ * of the hierarchy (e.g. adding or removing objects) are compared against this record.
  * <p>
- * Preferences are created to control the maximum number of levels of undo, and also the maximum hierarchy 
- * size.  This latter option is used to automatically turn off undo/redo support if the hierarchy size 
- * grows beyond a specified number of objects.
- * <p>
- * The reason is because of the (fairly simple) implementation: every time the hierarchy is changed, 
- * the <i>entire hierarchy</i> is serialized in case it becomes necessary to revert back.
- * <p>
- * This is a lot easier than trying to figure out how to computationally revert every conceivable change 
- * that the hierarchy might experience, but it is inevitably quite memory hungry and risks having a substantial 
- * impact on performance for large object hierarchies.
+ * Preferences are created to control the maximum number of levels of undo, the maximum hierarchy size, 
+ * the maximum memory that may be used for each hierarchy, and whether older changes should be written to 
+ * temporary files rather than discarded whenever this memory limit is reached.
+ * If the hierarchy contains too many objects, or the memory required to track it exceeds the limit, 
+ * undo/redo is turned off for that hierarchy.
  * 
  * @author Pete Bankhead
  *
@@ -82,7 +74,11 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 	private static Logger logger = LoggerFactory.getLogger(UndoRedoManager.class);
 	
 	private IntegerProperty maxUndoLevels = PathPrefs.createPersistentPreference("undoMaxLevels", 10);
-	private IntegerProperty maxUndoHierarchySize = PathPrefs.createPersistentPreference("undoMaxHierarchySize", 10000);
+	private IntegerProperty maxUndoHierarchySize = PathPrefs.createPersistentPreference("undoMaxHierarchySize", 1000000);
+	// Default to using up to a quarter of the available memory
+	private IntegerProperty maxUndoMemoryMB = PathPrefs.createPersistentPreference("undoMaxMemoryMB",
+			(int)Math.max(64L, Runtime.getRuntime().maxMemory() / (1024L * 1024L * 4L)));
+	private BooleanProperty undoSpillToDisk = PathPrefs.createPersistentPreference("undoSpillToDisk", false);
 	
 	private ReadOnlyObjectProperty<QuPathViewerPlus> viewerProperty;
 	
@@ -91,7 +87,7 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 	
 	private boolean undoingOrRedoing = false;
 	
-	private Map<QuPathViewer, SerializableUndoRedoStack<PathObjectHierarchy>> map = new WeakHashMap<>();
+	private Map<QuPathViewer, HierarchyUndoLog> map = new WeakHashMap<>();
 	
 	UndoRedoManager(final QuPathGUI qupath) {
 		this.viewerProperty = qupath.viewerProperty();
@@ -99,6 +95,8 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 		
 		qupath.getPreferencePane().addPropertyPreference(maxUndoLevels, Integer.class, "Max undo levels", "Undo/Redo", "Maximum number of 'undo' levels");
 		qupath.getPreferencePane().addPropertyPreference(maxUndoHierarchySize, Integer.class, "Max undo hierarchy size", "Undo/Redo", "Maximum number of objects in hierarchy before 'undo' switches off (for performance)");
+		qupath.getPreferencePane().addPropertyPreference(maxUndoMemoryMB, Integer.class, "Max undo memory (MB)", "Undo/Redo", "Maximum memory to use for 'undo' for each image - if the objects in an image need more than this, 'undo' switches off");
+		qupath.getPreferencePane().addPropertyPreference(undoSpillToDisk, Boolean.class, "Write undo to disk", "Undo/Redo", "Write older 'undo' levels to temporary files when the memory limit is reached, rather than discarding them");
 		
 		changed(this.viewerProperty, null, this.viewerProperty.get());
 		
@@ -114,7 +112,7 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 			Platform.runLater(() -> refreshProperties());
 			return;
 		}
-		SerializableUndoRedoStack<PathObjectHierarchy> undoRedo = map.get(viewerProperty.get());
+		HierarchyUndoLog undoRedo = map.get(viewerProperty.get());
 		if (undoRedo == null) {
 			canUndo.set(false);
 			canRedo.set(false);
@@ -139,9 +137,8 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 	 */
 	public long totalBytes() {
 		long total = 0L;
-		for (var manager : map.values()) {
-			if (manager != null)
-				total += manager.totalBytes();
+		for (var log : getLogs()) {
+			total += log.totalBytes();
 		}
 		return total;
 	}
@@ -150,12 +147,38 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 	 * Clear all undo/redo stacks (useful when memory is low).
 	 */
 	public void clear() {
-		for (var manager : map.values()) {
-			manager.clear();
+		for (var log : getLogs()) {
+			log.clear();
 		}
 		refreshProperties();
 	}
 	
+	/**
+	 * Stop recording changes for all viewers, and delete any temporary files used to store 'undo' levels.
+	 * This should be called when QuPath is closing.
+	 * @since v0.4.3
+	 */
+	public void close() {
+		for (var log : getLogs()) {
+			log.getHierarchy().removeListener(this);
+			log.disable();
+		}
+		map.clear();
+		refreshProperties();
+	}
+	
+	/**
+	 * Get the distinct logs for all viewers (multiple viewers may share the same hierarchy).
+	 */
+	private Set<HierarchyUndoLog> getLogs() {
+		Set<HierarchyUndoLog> logs = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (var log : map.values()) {
+			if (log != null)
+				logs.add(log);
+		}
+		return logs;
+	}
+	
 	/**
 	 * Request to 'redo' the last 'undone' hierarchy change for the current active viewer.
 	 * 
@@ -172,32 +195,7 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 	 * @return {@code true} if any changes were made, {@code false} otherwise.
 	 */
 	boolean undoOnce(final QuPathViewer viewer) {
-		if (viewer == null) {
-			logger.warn("Undo requested, but no viewer specified.");
-			return false;
-		}
-		
-		SerializableUndoRedoStack<PathObjectHierarchy> undoRedo = map.get(viewer);
-		if (undoRedo == null) {
-			logger.warn("Undo requested, but undo stack available.");
-			return false;
-		}
-		
-		// Update the hierarchy
-		PathObjectHierarchy hierarchy = undoRedo.undoOnce();
-		if (hierarchy == null) {
-			logger.warn("Unable to call 'undo' for {}", viewer);
-			return false;
-		}
-		undoingOrRedoing = true;
-		logger.debug("Called 'undo' for {}", viewer);
-		// Need to make sure we've no selection, since selected objects can linger
-		viewer.getImageData().getHierarchy().getSelectionModel().clearSelection();
-		viewer.getImageData().getHierarchy().setHierarchy(hierarchy);
-		undoingOrRedoing = false;
-		refreshProperties();
-		
-		return true;
+		return undoOrRedo(viewer, true);
 	}
 
 	/**
@@ -207,29 +205,40 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 	 * @return True if any changes were made, false otherwise.
 	 */
 	boolean redoOnce(final QuPathViewer viewer) {
+		return undoOrRedo(viewer, false);
+	}
+	
+	private boolean undoOrRedo(final QuPathViewer viewer, boolean undo) {
+		String name = undo ? "Undo" : "Redo";
 		if (viewer == null) {
-			logger.warn("Redo requested, but no viewer specified.");
+			logger.warn("{} requested, but no viewer specified.", name);
 			return false;
 		}
 		
-		SerializableUndoRedoStack<PathObjectHierarchy> undoRedo = map.get(viewer);
+		HierarchyUndoLog undoRedo = map.get(viewer);
 		if (undoRedo == null) {
-			logger.warn("Redo requested, but redo stack available.");
+			logger.warn("{} requested, but no undo log available.", name);
 			return false;
 		}
 		
-		// Update the hierarchy
-		PathObjectHierarchy hierarchy = undoRedo.redoOnce();
-		if (hierarchy == null) {
-			logger.warn("Unable to call 'redo' for {}", viewer);
+		var hierarchy = undoRedo.getHierarchy();
+		boolean changed;
+		undoingOrRedoing = true;
+		try {
+			// Need to make sure we've no selection, since selected objects can linger
+			hierarchy.getSelectionModel().clearSelection();
+			changed = undo ? undoRedo.undo() : undoRedo.redo();
+			if (changed)
+				hierarchy.fireHierarchyChangedEvent(this);
+		} finally {
+			undoingOrRedoing = false;
+		}
+		if (!changed) {
+			logger.warn("Unable to call '{}' for {}", name.toLowerCase(), viewer);
+			refreshProperties();
 			return false;
 		}
-		undoingOrRedoing = true;
-		logger.debug("Called 'redo' for {}", viewer);
-		// Need to make sure we've no selection, since selected objects can linger
-		viewer.getImageData().getHierarchy().getSelectionModel().clearSelection();
-		viewer.getImageData().getHierarchy().setHierarchy(hierarchy);
-		undoingOrRedoing = false;
+		logger.debug("Called '{}' for {}", name.toLowerCase(), viewer);
 		refreshProperties();
 		
 		return true;
@@ -267,198 +276,40 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 		
 		refreshProperties();
 	}
-	
-	
-	
-
-	
-	/**
-	 * Serialize objects on request for use in undo/redo.
-	 *
-	 * @param <T>
-	 */
-	static class SerializableUndoRedoStack<T> {
-		
-		private byte[] current = null;
-		private Deque<byte[]> undoStack = new ArrayDeque<>();
-		private Deque<byte[]> redoStack = new ArrayDeque<>();
-		
-		SerializableUndoRedoStack(T object) {
-			if (object != null)
-				current = serialize(object, 1024);
-		}
-		
-		/**
-		 * Returns true if the undo stack is not empty.
-		 * @return
-		 */
-		public boolean canUndo() {
-			return !undoStack.isEmpty();
-		}
-		
-		/**
-		 * Returns true if the redo stack is not empty.
-		 * @return
-		 */
-		public boolean canRedo() {
-			return !redoStack.isEmpty();
-		}
-		
-		/**
-		 * Get the total number of allocated bytes.
-		 * @return
-		 */
-		public synchronized long totalBytes() {
-			long total = 0L;
-			if (current != null)
-				total = current.length;
-			for (byte[] bytes : undoStack)
-				total += bytes.length;
-			for (byte[] bytes : redoStack)
-				total += bytes.length;
-			return total;
-		}
-		
-		/**
-		 * Clear the undo and redo stacks, in addition to the current bytes.
-		 */
-		public synchronized void clear() {
-			current = null;
-			undoStack.clear();
-			redoStack.clear();
-		}
-		
-		/**
-		 * Request redo once, updating the current (serialized) object, 
-		 * and return the deserialized version of the object at the top of the 'redo' stack.
-		 * @return
-		 */
-		public synchronized T redoOnce() {
-			if (redoStack.isEmpty()) {
-				logger.debug("Cannot redo! Stack is empty.");
-				return null;
-			}
-			if (current != null) {
-				undoStack.push(current);
-			}
-			current = redoStack.pop();
-			return deserialize(current);
-		}
-		
-		/**
-		 * Request undo once, updating the current (serialized) object, 
-		 * and return the deserialized version of the object at the top of the 'undo' stack.
-		 * @return
-		 */
-		public synchronized T undoOnce() {
-			if (undoStack.isEmpty()) {
-				logger.debug("Cannot undo! Stack is empty.");
-				return null;
-			}
-			if (current != null) {
-				redoStack.push(current);
-			}
-			current = undoStack.pop();
-			return deserialize(current);
-		}
-		
-		/**
-		 * Record a new change event, updating the current object.
-		 * This will clear any redo status, on the assumption that redo is no longer possible.
-		 * 
-		 * @param object
-		 * @param historySize
-		 */
-		public synchronized void addLatest(final T object, int historySize) {
-			int initialSize = 1024;
-			if (current != null) {
-				// If we are low on memory, clear the undo stack
-				long remainingMemory = GeneralTools.estimateAvailableMemory();
-				if (remainingMemory < current.length * 1.5) {
-					undoStack.clear();
-				} else {
-					// Default to something a bit bigger than the last things we had
-					initialSize = Math.min(Integer.MAX_VALUE-64, (int)(current.length * 1.1));
-					undoStack.push(current);
-				}
-			}
-			current = serialize(object, initialSize);
-			// Reset the ability to redo
-			redoStack.clear();
-			// Check the history size
-			if (historySize > 0) {
-				while (undoStack.size() > historySize)
-					undoStack.pollLast();
-			}
-		}
-		
-		/**
-		 * Serialize an object to an array of bytes.
-		 * Providing an estimate of the initial array size can help performance.
-		 * 
-		 * @param object
-		 * @param initialSize
-		 * @return
-		 */
-		private byte[] serialize(T object, int initialSize) {
-			try (ByteArrayOutputStream stream = new ByteArrayOutputStream(initialSize)) {
-				ObjectOutputStream out = new ObjectOutputStream(stream);
-				out.writeObject(object);
-				out.flush();
-				return stream.toByteArray();
-			} catch (IOException e) {
-				logger.error("Error serializing " + object, e);
-				return null;
-			}
-		}
-		
-		/**
-		 * Deserialize an object from an array of bytes.
-		 * It's assumed at the object is of the generic type used elsewhere in this class.
-		 * 
-		 * @param bytes
-		 * @return
-		 */
-		@SuppressWarnings("unchecked")
-		private T deserialize(byte[] bytes) {
-			try (ByteArrayInputStream stream = new ByteArrayInputStream(bytes)) {
-				ObjectInputStream in = PathIO.createObjectInputStream(stream);
-				return (T)in.readObject();
-			} catch (ClassNotFoundException | IOException e) {
-				logger.error("Error deserializing object", e);
-				return null;
-			}
-		}
-		
-	}
-
 
 
 	@Override
 	public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld,
 			ImageData<BufferedImage> imageDataNew) {
 		
-		// Stop listening for changes on the old image
-		if (imageDataOld != null) {
+		// Stop listening for changes on the old image (if no other viewer is using it)
+		var previous = map.remove(viewer);
+		if (imageDataOld != null && previous != null && !map.containsValue(previous)) {
 			imageDataOld.getHierarchy().removeListener(this);
+			previous.disable();
 		}
 		
 		// Start listening for changes on the new image... if we can
 		PathObjectHierarchy hierarchy = imageDataNew == null ? null : imageDataNew.getHierarchy();
 		if (hierarchy == null) {
-			map.put(viewer, (SerializableUndoRedoStack<PathObjectHierarchy>)null);
+			map.put(viewer, null);
 		} else {
-			int maxSize = maxUndoHierarchySize.get();
-			if (maxSize >= hierarchy.nObjects())
-				map.put(viewer, new SerializableUndoRedoStack<>(hierarchy));
-			else
-				map.put(viewer, new SerializableUndoRedoStack<>(null));
-			// Listen for changes
-			hierarchy.addListener(this);
+			// Share the log with any other viewer showing the same hierarchy
+			HierarchyUndoLog log = getLogs().stream().filter(l -> l.getHierarchy() == hierarchy).findFirst().orElse(null);
+			if (log == null) {
+				log = createLog(hierarchy);
+				// Listen for changes
+				hierarchy.addListener(this);
+			}
+			map.put(viewer, log);
 		}
 		
 		refreshProperties();
 	}
+	
+	private HierarchyUndoLog createLog(PathObjectHierarchy hierarchy) {
+		return new HierarchyUndoLog(hierarchy, maxUndoLevels.get(), maxUndoHierarchySize.get(), maxUndoMemoryMB.get() * 1024L * 1024L, undoSpillToDisk.get());
+	}
 
 	@Override
 	public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {}
@@ -468,44 +319,45 @@ public class UndoRedoManager implements ChangeListener<QuPathViewerPlus>, QuPath
 
 	@Override
 	public void viewerClosed(QuPathViewer viewer) {
-		map.remove(viewer);
+		var log = map.remove(viewer);
+		if (log != null && !map.containsValue(log)) {
+			log.getHierarchy().removeListener(this);
+			log.disable();
+		}
 		viewer.removeViewerListener(this);
 	}
 
 	@Override
 	public void hierarchyChanged(PathObjectHierarchyEvent event) {
 		// Try to avoid calling too often
-		if (undoingOrRedoing || event.isChanging() || maxUndoHierarchySize.get() <= 0 || event.getChangedObjects().stream().allMatch(p -> p instanceof ParallelTileObject))
+		if (undoingOrRedoing || event.isChanging() || maxUndoLevels.get() <= 0 || isParallelTileEvent(event))
 			return;
 		
-		// *Potentially* we might have the same hierarchy in multiple viewers
-		// Since we don't have the viewer stored in the event, check to see what viewers are impacted
-		QuPathViewer[] viewers = map.keySet().toArray(new QuPathViewer[map.size()]);
+		// *Potentially* we might have the same hierarchy in multiple viewers, but these share a single log
 		PathObjectHierarchy hierarchy = event.getHierarchy();
-		int maxSize = maxUndoHierarchySize.get();
-		boolean sizeOK = hierarchy.nObjects() <= maxSize;
-		for (QuPathViewer viewer : viewers) {
-			if (viewer.getHierarchy() == hierarchy) {
-				
-				SerializableUndoRedoStack<PathObjectHierarchy> undoRedo = map.get(viewer);
-				// If the size is ok, register the change for potential undo-ing
-				if (sizeOK) {
-					// Consider trying to reduce these calls
-//					if (event.getEventType() == HierarchyEventType.CHANGE_MEASUREMENTS && 
-//							!event.getChangedObjects().stream().anyMatch(p -> p.isDetection()))
-//						continue;
-					
-					if (undoRedo == null)
-						map.put(viewer, new SerializableUndoRedoStack<>(hierarchy));
-					else
-						undoRedo.addLatest(hierarchy, maxUndoLevels.get());
-				} else {
-					// If the hierarchy is too big turn off undo/redo
-					map.put(viewer, (SerializableUndoRedoStack<PathObjectHierarchy>)null);
+		for (var log : getLogs()) {
+			if (log.getHierarchy() != hierarchy)
+				continue;
+			if (log.isEnabled())
+				log.record(event);
+			else if (log.isTooManyObjects() && hierarchy.nObjects() <= maxUndoHierarchySize.get()) {
+				// If the hierarchy has become small enough, start recording changes again
+				var logNew = createLog(hierarchy);
+				for (var entry : map.entrySet()) {
+					if (entry.getValue() == log)
+						entry.setValue(logNew);
 				}
 			}
 		}
 		refreshProperties();
 	}
+	
+	/**
+	 * Check if an event only involves tiles used during parallel processing (an event without changed objects may involve anything).
+	 */
+	private static boolean isParallelTileEvent(PathObjectHierarchyEvent event) {
+		var changed = event.getChangedObjects();
+		return !changed.isEmpty() && changed.stream().allMatch(p -> p instanceof ParallelTileObject);
+	}
 
-}
\ No newline at end of file
+}
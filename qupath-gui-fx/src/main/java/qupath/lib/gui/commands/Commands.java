@@ -1755,6 +1755,16 @@ public class Commands {
 		return new MemoryMonitorDialog(qupath).getStage();
 	}
 
+	/**
+	 * Create a dialog to show metrics summarizing tile requests for each image server.
+	 * @param qupath
+	 * @return
+	 * @since v0.4.3
+	 */
+	public static Stage createImageServerMetricsDialog(QuPathGUI qupath) {
+		return new ImageServerMetricsDialog(qupath).getStage();
+	}
+
 	/**
 	 * Show a mini viewer window associated with a specific viewer.
 	 * @param viewer the viewer with which to associate this window
@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.commands;
+
+import java.util.List;
+import java.util.function.Function;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.Tooltip;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.images.servers.ImageServerMetrics;
+
+/**
+ * A basic GUI to show how tiles are being requested and read by each image server.
+ * <p>
+ * This can help identify whether time is spent reading tiles (e.g. decoding compressed images, or
+ * applying a pixel classifier), or if tiles are mostly found in the cache.
+ *
+ * @author Pete Bankhead
+ */
+class ImageServerMetricsDialog {
+
+	private Stage stage;
+
+	private TableView<ImageServerMetrics> table = new TableView<>();
+
+	private Timeline timeline;
+
+	ImageServerMetricsDialog(QuPathGUI qupath) {
+
+		table.getColumns().add(createColumn("Server", m -> m.getServerType()));
+		table.getColumns().add(createColumn("Path", m -> m.getPath()));
+		table.getColumns().add(createColumn("Tile requests", m -> m.getTileRequestCount()));
+		table.getColumns().add(createColumn("Cache hits (%)", m -> formatPercentage(m.getCacheHitRatio())));
+		table.getColumns().add(createColumn("Tiles read", m -> m.getTileReadCount()));
+		table.getColumns().add(createColumn("Mean read (ms)", m -> formatMillis(m.getMeanTileReadMillis())));
+		table.getColumns().add(createColumn("95% read (ms)", m -> formatMillis(m.getTileReadPercentileMillis(95))));
+		table.getColumns().add(createColumn("Read (MB)", m -> String.format("%.1f", m.getBytesRead() / (1024.0 * 1024.0))));
+		table.getColumns().add(createColumn("In flight", m -> m.getInFlightCount()));
+		table.getColumns().add(createColumn("Max in flight", m -> m.getMaxInFlightCount()));
+		table.getColumns().add(createColumn("Regions", m -> m.getRegionRequestCount()));
+		table.getColumns().add(createColumn("Region time (ms)", m -> m.getRegionRequestMillis()));
+		table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+		var cbEnabled = new CheckBox("Record metrics");
+		cbEnabled.setSelected(ImageServerMetrics.isEnabled());
+		cbEnabled.setTooltip(new Tooltip("Record metrics for all tile requests"));
+		cbEnabled.selectedProperty().addListener((v, o, n) -> {
+			ImageServerMetrics.setEnabled(n);
+			updatePlaceholder();
+		});
+		updatePlaceholder();
+
+		var btnReset = new Button("Reset");
+		btnReset.setTooltip(new Tooltip("Reset the metrics for all servers"));
+		btnReset.setOnAction(e -> {
+			ImageServerMetrics.resetAll();
+			refresh();
+		});
+
+		var paneButtons = new HBox(10, cbEnabled, btnReset);
+		paneButtons.setPadding(new Insets(10));
+
+		var pane = new BorderPane(table);
+		pane.setBottom(paneButtons);
+
+		timeline = new Timeline(new KeyFrame(Duration.seconds(1.0), e -> refresh()));
+		timeline.setCycleCount(Timeline.INDEFINITE);
+
+		stage = new Stage();
+		stage.initOwner(qupath.getStage());
+		stage.setScene(new Scene(pane, 900, 300));
+		stage.setTitle("Image server metrics");
+		stage.setOnShowing(e -> {
+			refresh();
+			timeline.play();
+		});
+		stage.setOnHiding(e -> timeline.stop());
+	}
+
+	private void updatePlaceholder() {
+		if (ImageServerMetrics.isEnabled())
+			table.setPlaceholder(new Label("No tiles requested"));
+		else
+			table.setPlaceholder(new Label("Select 'Record metrics' to record tile requests"));
+	}
+
+	private void refresh() {
+		List<ImageServerMetrics> metrics = ImageServerMetrics.getAllMetrics();
+		metrics.removeIf(m -> m.getTileRequestCount() == 0 && m.getRegionRequestCount() == 0);
+		table.getItems().setAll(metrics);
+		table.refresh();
+	}
+
+	private static <T> TableColumn<ImageServerMetrics, T> createColumn(String name, Function<ImageServerMetrics, T> fun) {
+		var col = new TableColumn<ImageServerMetrics, T>(name);
+		col.setCellValueFactory(c -> new SimpleObjectProperty<>(fun.apply(c.getValue())));
+		return col;
+	}
+
+	private static String formatPercentage(double ratio) {
+		return Double.isNaN(ratio) ? "-" : String.format("%.1f", ratio * 100);
+	}
+
+	private static String formatMillis(double millis) {
+		return Double.isNaN(millis) ? "-" : String.format("%.2f", millis);
+	}
+
+	public Stage getStage() {
+		return stage;
+	}
+
+}
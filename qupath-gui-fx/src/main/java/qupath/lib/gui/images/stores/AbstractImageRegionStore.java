@@ -24,6 +24,7 @@
 package qupath.lib.gui.images.stores;
 
 import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -31,9 +32,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -43,11 +46,6 @@ import java.util.concurrent.FutureTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.Weigher;
-
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.common.ThreadTools;
 import qupath.lib.images.servers.GeneratingImageServer;
@@ -115,34 +113,9 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		this.maxThumbnailSize = thumbnailSize;
 		this.tileCacheSizeBytes = tileCacheSizeBytes;
 		
-		// Because Guava uses integer weights, and we sometimes have *very* large images, we convert our size estimates KB
-		Weigher<RegionRequest, T> weigher = (var r, var t) -> (int)Long.min(Integer.MAX_VALUE, sizeEstimator.getApproxImageSize(t)/1024);
-		long maxWeight = Long.max(1, tileCacheSizeBytes / 1024);
-		// If concurrency > 1, the maximum size for an individual tile becomes maxWeight/concurrencyLevel
-		// This makes it more difficult to tune the cache size when working with large, non-pyramidal images
-		int concurrencyLevel = 1;
-		Cache<RegionRequest, T> originalCache = CacheBuilder.newBuilder()
-				.weigher(weigher)
-				.maximumWeight(maxWeight)
-				.softValues()
-				.concurrencyLevel(concurrencyLevel)
-//				.recordStats()
-				.removalListener(n -> {
-//					System.err.println(n.getKey() + " (" + cache.size() + ")");
-					if (n.getCause() == RemovalCause.COLLECTED)
-						logger.debug("Cached tile collected" + n.getKey() + " (cache size=" + cache.size()+")");
-					})
-				.build();
-		cache = originalCache.asMap();
-
-		Cache<RegionRequest, T> originalThumbnailCache = CacheBuilder.newBuilder()
-				.weigher(weigher)
-				.concurrencyLevel(1)
-				.maximumWeight(maxWeight)
-				.softValues()
-				.build();
-		
-		thumbnailCache = originalThumbnailCache.asMap();
+		// Use a sharded cache, since tiles are requested from many threads at once (for the viewer & for processing)
+		cache = new ShardedRegionCache<>(sizeEstimator, Long.max(1, tileCacheSizeBytes));
+		thumbnailCache = new ShardedRegionCache<>(sizeEstimator, Long.max(1, tileCacheSizeBytes));
 		
 //		cache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes);
 //		thumbnailCache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes/4);
@@ -153,6 +126,55 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		this(sizeEstimator, DEFAULT_THUMBNAIL_WIDTH, tileCacheSizeBytes);
 	}
 
+	/**
+	 * Set whether tiles should be prefetched, based upon predicting the next region that will be 
+	 * requested when panning or zooming.
+	 * Prefetched tiles are requested with a lower priority than tiles that are needed immediately.
+	 * @param enabled
+	 * @since v0.4.3
+	 */
+	public void setPrefetchEnabled(boolean enabled) {
+		synchronized (manager) {
+			manager.prefetchEnabled = enabled;
+		}
+	}
+	
+	/**
+	 * Query whether tiles should be prefetched when panning or zooming.
+	 * @return
+	 * @since v0.4.3
+	 * @see #setPrefetchEnabled(boolean)
+	 */
+	public boolean isPrefetchEnabled() {
+		synchronized (manager) {
+			return manager.prefetchEnabled;
+		}
+	}
+	
+	/**
+	 * Get the number of tiles that have been prefetched.
+	 * @return
+	 * @since v0.4.3
+	 * @see #getPrefetchHitCount()
+	 */
+	public long getPrefetchCount() {
+		synchronized (manager) {
+			return manager.prefetchCount;
+		}
+	}
+	
+	/**
+	 * Get the number of prefetched tiles that were subsequently requested.
+	 * The ratio of this to {@link #getPrefetchCount()} gives the prefetch hit rate.
+	 * @return
+	 * @since v0.4.3
+	 */
+	public long getPrefetchHitCount() {
+		synchronized (manager) {
+			return manager.prefetchHitCount;
+		}
+	}
+	
 	/**
 	 * Get the tile cache size, in bytes.
 	 * Image tiles larger than this cannot be cached.
@@ -568,37 +590,85 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		private int busyThreads = 0;
 		
 		private List<TileWorker<T>> requestedWorkers = new ArrayList<>();
+		
+		// Most recent view for each listener, used to predict the next view when panning or zooming
+		private Map<TileListener<T>, ViewState<T>> previousViews = new HashMap<>();
+		// Workers fetching tiles that haven't been requested yet, and the listener for which they were predicted
+		private Map<TileWorker<T>, TileListener<T>> prefetchWorkers = new HashMap<>();
+		// Tiles that have been prefetched, but not yet requested
+		private Set<RegionRequest> prefetchedRequests = new LinkedHashSet<>();
+		
+		private boolean prefetchEnabled = true;
+		private long prefetchCount = 0;
+		private long prefetchHitCount = 0;
 				
 		TileRequestManager(final int nThreads) {
 			this.nThreads = nThreads;
 		}
 		
 		
-		public synchronized void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+		public void registerRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
+			// Cancel workers outside the synchronized block, since cancelling calls back into the store
+			List<TileWorker<T>> toCancel;
+			synchronized (this) {
+				toCancel = updateRequest(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition);
+			}
+			for (var worker : toCancel)
+				worker.cancel(false);
+		}
+		
+		/**
+		 * Update the request for a listener, returning any prefetch workers that should be cancelled 
+		 * because they are no longer needed.
+		 */
+		private synchronized List<TileWorker<T>> updateRequest(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition) {
 			
 			// Check if the listener has already put in a request - if so, check if it is the same & discard it if not
-			Iterator<TileRequestCollection<T>> iter = list.iterator();
-			while (iter.hasNext()) {
-				TileRequestCollection<T> temp = iter.next();
-				if (temp.tileListener == tileListener) {
+			for (var temp : list) {
+				if (temp.tileListener == tileListener && !temp.prefetch) {
 					if (temp.clipShape.equals(clipShape) && temp.zPosition == zPosition && temp.tPosition == tPosition)
-						return;
-					iter.remove();
+						return Collections.emptyList();
 					break;
 				}
 			}
+			list.removeIf(temp -> temp.tileListener == tileListener);
+			
+			// Record the prefetch workers from the previous view, which may no longer be needed
+			List<TileWorker<T>> previousPrefetchWorkers = new ArrayList<>();
+			for (var entry : prefetchWorkers.entrySet()) {
+				if (entry.getValue() == tileListener)
+					previousPrefetchWorkers.add(entry.getKey());
+			}
 			
 			// Create a new request
-//			if (clipShape instanceof Rectangle2D.Double)
-//				System.out.println(clipShape);
-//			else
-//				System.out.println(clipShape);
-			TileRequestCollection<T> requestCollection = new TileRequestCollection<>(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, 10);
+			TileRequestCollection<T> requestCollection = new TileRequestCollection<>(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, 10, false);
 			list.add(requestCollection);
-//			list.sort(comparator);
+			
+			// Predict where the view will be next, and request tiles for that too
+			var view = new ViewState<>(server, clipShape.getBounds2D(), downsampleFactor, zPosition, tPosition);
+			var previousView = previousViews.put(tileListener, view);
+			if (prefetchEnabled && server != null) {
+				var prediction = view.predictNext(previousView);
+				if (prediction != null)
+					list.add(new TileRequestCollection<>(tileListener, server, prediction.getBounds(), prediction.getDownsample(), zPosition, tPosition, 0, true));
+			}
 			Collections.sort(list, comparator);
 			assignTasks();
 			
+			// Cancel previous prefetch workers that haven't started, and haven't been claimed by the new request
+			List<TileWorker<T>> toCancel = new ArrayList<>();
+			for (var worker : previousPrefetchWorkers) {
+				if (prefetchWorkers.containsKey(worker) && !worker.isStarted()) {
+					prefetchWorkers.remove(worker);
+					prefetchedRequests.remove(worker.getRequest());
+					// Stop waiting for the tile, so that it can be requested again
+					synchronized (waitingMap) {
+						waitingMap.remove(worker.getRequest(), worker);
+					}
+					toCancel.add(worker);
+				}
+			}
+			return toCancel;
 		}
 		
 		public synchronized void deregisterRequest(final TileListener<T> tileListener) {
@@ -609,6 +679,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 					iter.remove();
 				}
 			}
+			previousViews.remove(tileListener);
 		}
 		
 		
@@ -617,6 +688,8 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 				return;
 			int ind = 0;
 			TileRequestCollection<T> temp = list.get(ind);
+			// Limit the threads that can be used for prefetching, so that requested tiles are fetched promptly
+			int maxPrefetchThreads = Math.max(1, nThreads / 2);
 			while (busyThreads < nThreads && !list.isEmpty()) {
 				if (!temp.hasMoreTiles()) {
 					ind++;
@@ -627,15 +700,37 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 //					list.remove(temp);
 					continue;
 				}
+				// Prefetch requests are sorted last, so we can stop here
+				if (temp.prefetch && prefetchWorkers.size() >= maxPrefetchThreads)
+					break;
 				RegionRequest request = temp.nextTileRequest();
-				if (cache.containsKey(request) || waitingMap.containsKey(request))
+				if (cache.containsKey(request) || waitingMap.containsKey(request)) {
+					if (!temp.prefetch && prefetchedRequests.remove(request)) {
+						prefetchHitCount++;
+						// The tile is needed now, so the worker shouldn't be cancelled
+						var worker = waitingMap.get(request);
+						if (worker != null)
+							prefetchWorkers.remove(worker);
+					}
 					continue;
+				}
 				
 				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
 				logger.trace("Adding {} to waiting map for thread {}", request, Thread.currentThread().getId());
 				synchronized (waitingMap) {
 					waitingMap.put(request, worker);
 				}
+				if (temp.prefetch) {
+					prefetchWorkers.put(worker, temp.tileListener);
+					prefetchedRequests.add(request);
+					prefetchCount++;
+					// Avoid the set growing indefinitely if prefetched tiles are never requested
+					if (prefetchedRequests.size() > MAX_PREFETCHED_REQUESTS) {
+						var iterPrefetched = prefetchedRequests.iterator();
+						iterPrefetched.next();
+						iterPrefetched.remove();
+					}
+				}
 				if (temp.server instanceof GeneratingImageServer) {
 					if (!poolLocal.isShutdown())
 						poolLocal.execute(worker);
@@ -653,6 +748,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		
 		
 		synchronized void taskCompleted(final TileWorker<T> worker) {
+			prefetchWorkers.remove(worker);
 			if (!requestedWorkers.remove(worker))
 				return;
 			busyThreads--;
@@ -666,6 +762,90 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	}
 	
 	
+	/**
+	 * Maximum number of prefetched tiles to remember when calculating the prefetch hit rate.
+	 */
+	private static final int MAX_PREFETCHED_REQUESTS = 2000;
+	
+	/**
+	 * Maximum time between successive views for the change to be treated as continuous panning or zooming.
+	 */
+	private static final long MAX_MOTION_INTERVAL_MILLIS = 500;
+	
+	/**
+	 * Number of steps ahead to predict the view, assuming the current panning or zooming continues.
+	 */
+	private static final double PREFETCH_STEPS = 2.0;
+	
+	
+	/**
+	 * The region visible in a viewer at a specific time.
+	 */
+	static class ViewState<T> {
+		
+		private final ImageServer<T> server;
+		private final Rectangle2D bounds;
+		private final double downsample;
+		private final int z;
+		private final int t;
+		private final long timestamp;
+		
+		ViewState(ImageServer<T> server, Rectangle2D bounds, double downsample, int z, int t) {
+			this(server, bounds, downsample, z, t, System.currentTimeMillis());
+		}
+		
+		ViewState(ImageServer<T> server, Rectangle2D bounds, double downsample, int z, int t, long timestamp) {
+			this.server = server;
+			this.bounds = bounds;
+			this.downsample = downsample;
+			this.z = z;
+			this.t = t;
+			this.timestamp = timestamp;
+		}
+		
+		Rectangle2D getBounds() {
+			return bounds;
+		}
+		
+		double getDownsample() {
+			return downsample;
+		}
+		
+		/**
+		 * Predict the next view, assuming the change since the previous view continues.
+		 * @param previous
+		 * @return the predicted view, or null if no prediction can be made (e.g. because the view hasn't moved)
+		 */
+		ViewState<T> predictNext(ViewState<T> previous) {
+			if (previous == null || previous.server != server || previous.z != z || previous.t != t)
+				return null;
+			if (timestamp - previous.timestamp > MAX_MOTION_INTERVAL_MILLIS)
+				return null;
+			double dx = bounds.getCenterX() - previous.bounds.getCenterX();
+			double dy = bounds.getCenterY() - previous.bounds.getCenterY();
+			double scale = downsample / previous.downsample;
+			if (dx == 0 && dy == 0 && scale == 1)
+				return null;
+			// Predict the downsample, ensuring we don't go beyond the resolutions available
+			double[] downsamples = server.getPreferredDownsamples();
+			double minDownsample = Arrays.stream(downsamples).min().orElse(1.0);
+			double maxDownsample = Arrays.stream(downsamples).max().orElse(1.0);
+			double nextDownsample = downsample * Math.pow(scale, PREFETCH_STEPS);
+			nextDownsample = Math.max(minDownsample, Math.min(maxDownsample, nextDownsample));
+			double nextScale = nextDownsample / downsample;
+			double width = bounds.getWidth() * nextScale;
+			double height = bounds.getHeight() * nextScale;
+			double cx = bounds.getCenterX() + dx * PREFETCH_STEPS;
+			double cy = bounds.getCenterY() + dy * PREFETCH_STEPS;
+			var nextBounds = new Rectangle2D.Double(cx - width/2.0, cy - height/2.0, width, height);
+			// Check we still overlap the image
+			if (!nextBounds.intersects(0, 0, server.getWidth(), server.getHeight()))
+				return null;
+			return new ViewState<>(server, nextBounds, nextDownsample, z, t, timestamp);
+		}
+		
+	}
+	
 	
 	static class TileRequestCollection<T> {
 		
@@ -680,10 +860,12 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		private double downsampleFactor;
 		private int zPosition;
 		private int tPosition;
+		private boolean prefetch;
 				
 		
-		TileRequestCollection(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition, final int maxZSeparation) {
+		TileRequestCollection(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor, final int zPosition, final int tPosition, final int maxZSeparation, final boolean prefetch) {
 			timestamp = System.currentTimeMillis();
+			this.prefetch = prefetch;
 			this.tileListener = tileListener;
 			this.server = server;
 			this.clipShape = clipShape;
@@ -696,7 +878,11 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		}
 		
 		void updateRequests() {
-			if (zSeparation == 0)
+			if (prefetch) {
+				// Only request tiles at the predicted resolution
+				if (server != null)
+					tileRequests = ImageRegionStoreHelpers.getTilesToRequest(server, clipShape, downsampleFactor, zPosition, tPosition, tileRequests);
+			} else if (zSeparation == 0)
 				updateRequestsForZ(zPosition, downsampleFactor, false);
 			else {
 				if (zPosition - zSeparation >= 0)
@@ -755,6 +941,9 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		
 		@Override
 		public int compare(TileRequestCollection<T> r1, TileRequestCollection<T> r2) {
+			// Prefetch requests have the lowest priority
+			if (r1.prefetch != r2.prefetch)
+				return r1.prefetch ? 1 : -1;
 			int zDiff = r1.zSeparation - r2.zSeparation;
 			if (zDiff == 0)
 				return (int)(r1.timestamp - r2.timestamp);
@@ -780,6 +969,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		
 		private final Map<RegionRequest, T> cache;
 		private final RegionRequest request;
+		private volatile boolean started = false;
 		
 		DefaultTileWorker(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
 			super(new Callable<T>() {
@@ -819,6 +1009,17 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		public Map<RegionRequest, T> getRequestedCache() {
 	    	return cache;
 	    }
+	    
+	    @Override
+		public boolean isStarted() {
+	    	return started;
+	    }
+	    
+	    @Override
+		public void run() {
+	    	started = true;
+	    	super.run();
+	    }
 
 	    
 	    @Override
@@ -0,0 +1,497 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Map for storing image tiles that can be accessed by many threads concurrently.
+ * <p>
+ * Entries are divided between independently-locked shards, so that threads requesting different tiles
+ * rarely block one another. The total size of all entries is limited using a {@link SizeEstimator};
+ * when this is exceeded, entries are evicted in approximately least-recently-used order
+ * (the older of the least-recently-used entries from two shards is removed each time).
+ * <p>
+ * Values are held using soft references, so that they can be collected if memory is low.
+ * Null keys and values are not supported.
+ *
+ * @author Pete Bankhead
+ * @param <T>
+ * @since v0.4.3
+ */
+public class ShardedRegionCache<T> extends AbstractMap<RegionRequest, T> {
+
+	private final SizeEstimator<T> sizeEstimator;
+	private final long maxSizeBytes;
+
+	private final Shard<T>[] shards;
+	private final int shardMask;
+
+	private final AtomicLong sizeBytes = new AtomicLong();
+	private final AtomicInteger evictionCursor = new AtomicInteger();
+	private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder collectedCount = new LongAdder();
+
+	private transient Set<Entry<RegionRequest, T>> entrySet;
+
+	@SuppressWarnings("unchecked")
+	ShardedRegionCache(final SizeEstimator<T> sizeEstimator, final long maxSizeBytes, final int nShards) {
+		if (maxSizeBytes <= 0)
+			throw new IllegalArgumentException("Maximum cache size must be > 0, but requested size is " + maxSizeBytes);
+		this.sizeEstimator = sizeEstimator;
+		this.maxSizeBytes = maxSizeBytes;
+		// Use a power of 2 so we can select a shard by masking the hash
+		int n = Integer.highestOneBit(Math.max(1, nShards - 1)) << 1;
+		if (nShards == 1)
+			n = 1;
+		shards = new Shard[n];
+		for (int i = 0; i < n; i++)
+			shards[i] = new Shard<>();
+		shardMask = n - 1;
+	}
+
+	ShardedRegionCache(final SizeEstimator<T> sizeEstimator, final long maxSizeBytes) {
+		this(sizeEstimator, maxSizeBytes, defaultShardCount());
+	}
+
+	private static int defaultShardCount() {
+		return Math.max(4, Math.min(Runtime.getRuntime().availableProcessors() * 4, 64));
+	}
+
+	/**
+	 * Get the approximate maximum size of all cached values, in bytes.
+	 * @return
+	 */
+	public long getMaxSizeBytes() {
+		return maxSizeBytes;
+	}
+
+	/**
+	 * Get the approximate size of all cached values, in bytes.
+	 * @return
+	 */
+	public long getSizeBytes() {
+		return sizeBytes.get();
+	}
+
+	/**
+	 * Get the number of calls to {@link #get(Object)} that returned a cached value.
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Get the number of calls to {@link #get(Object)} that did not find a cached value.
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * Get the number of entries removed to keep the cache within its size limit.
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * Get the number of entries removed because their values were garbage collected.
+	 * @return
+	 */
+	public long getCollectedCount() {
+		return collectedCount.sum();
+	}
+
+	/**
+	 * Reset the hit, miss, eviction and collected counts to zero.
+	 */
+	public void resetStats() {
+		hitCount.reset();
+		missCount.reset();
+		evictionCount.reset();
+		collectedCount.reset();
+	}
+
+	@Override
+	public T get(Object key) {
+		if (key == null) {
+			missCount.increment();
+			return null;
+		}
+		var shard = shardFor(key);
+		T value = null;
+		Node<T> collected = null;
+		shard.lock.lock();
+		try {
+			var node = shard.map.get(key);
+			if (node != null) {
+				value = node.get();
+				if (value == null) {
+					shard.map.remove(key);
+					collected = node;
+				} else
+					node.lastAccess = System.nanoTime();
+			}
+		} finally {
+			shard.lock.unlock();
+		}
+		if (collected != null) {
+			sizeBytes.addAndGet(-collected.size);
+			collectedCount.increment();
+		}
+		if (value == null)
+			missCount.increment();
+		else
+			hitCount.increment();
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (key == null)
+			return false;
+		var shard = shardFor(key);
+		shard.lock.lock();
+		try {
+			var node = shard.map.get(key);
+			return node != null && node.get() != null;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	@Override
+	public T put(RegionRequest key, T value) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(value);
+		purgeCollected();
+		long size = sizeEstimator.getApproxImageSize(value);
+		var shard = shardFor(key);
+		// Don't store anything that would immediately cause everything else to be evicted
+		if (size > maxSizeBytes) {
+			evictionCount.increment();
+			return remove(key);
+		}
+		var node = new Node<>(key, value, size, queue);
+		Node<T> previous;
+		shard.lock.lock();
+		try {
+			previous = shard.map.put(key, node);
+		} finally {
+			shard.lock.unlock();
+		}
+		long newSize = sizeBytes.addAndGet(size - (previous == null ? 0 : previous.size));
+		if (newSize > maxSizeBytes)
+			evict();
+		return previous == null ? null : previous.get();
+	}
+
+	@Override
+	public T remove(Object key) {
+		if (key == null)
+			return null;
+		var shard = shardFor(key);
+		Node<T> previous;
+		shard.lock.lock();
+		try {
+			previous = shard.map.remove(key);
+		} finally {
+			shard.lock.unlock();
+		}
+		if (previous == null)
+			return null;
+		sizeBytes.addAndGet(-previous.size);
+		return previous.get();
+	}
+
+	@Override
+	public void clear() {
+		for (var shard : shards) {
+			long removed = 0;
+			shard.lock.lock();
+			try {
+				for (var node : shard.map.values())
+					removed += node.size;
+				shard.map.clear();
+			} finally {
+				shard.lock.unlock();
+			}
+			sizeBytes.addAndGet(-removed);
+		}
+		purgeCollected();
+	}
+
+	@Override
+	public int size() {
+		int n = 0;
+		for (var shard : shards) {
+			shard.lock.lock();
+			try {
+				n += shard.map.size();
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Returns a set view of the entries in this cache.
+	 * The iterator is based upon a snapshot of the entries when it is created, and never throws a
+	 * {@link java.util.ConcurrentModificationException}.
+	 * It does not reflect changes made to the cache after it was created.
+	 */
+	@Override
+	public Set<Entry<RegionRequest, T>> entrySet() {
+		if (entrySet == null)
+			entrySet = new EntrySet();
+		return entrySet;
+	}
+
+
+	private Shard<T> shardFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return shards[h & shardMask];
+	}
+
+	/**
+	 * Remove entries until the cache is within its size limit.
+	 * The least-recently-used entries of two shards are compared, and the older one is removed,
+	 * giving an approximate LRU without needing to coordinate access across all shards.
+	 */
+	private void evict() {
+		int nShards = shards.length;
+		while (sizeBytes.get() > maxSizeBytes) {
+			int start = evictionCursor.getAndIncrement() & shardMask;
+			Shard<T> first = null;
+			long firstAccess = Long.MAX_VALUE;
+			Shard<T> second = null;
+			long secondAccess = Long.MAX_VALUE;
+			for (int i = 0; i < nShards && second == null; i++) {
+				var shard = shards[(start + i) & shardMask];
+				long access = shard.eldestAccess();
+				if (access == Long.MAX_VALUE)
+					continue;
+				if (first == null) {
+					first = shard;
+					firstAccess = access;
+				} else {
+					second = shard;
+					secondAccess = access;
+				}
+			}
+			if (first == null)
+				return;
+			var target = second == null || firstAccess - secondAccess <= 0 ? first : second;
+			var node = target.removeEldest();
+			if (node == null)
+				continue;
+			sizeBytes.addAndGet(-node.size);
+			evictionCount.increment();
+		}
+	}
+
+	/**
+	 * Remove entries with values that have been garbage collected.
+	 */
+	@SuppressWarnings("unchecked")
+	private void purgeCollected() {
+		Node<T> node;
+		while ((node = (Node<T>)queue.poll()) != null) {
+			var shard = shardFor(node.key);
+			boolean removed;
+			shard.lock.lock();
+			try {
+				removed = shard.map.remove(node.key, node);
+			} finally {
+				shard.lock.unlock();
+			}
+			if (removed) {
+				sizeBytes.addAndGet(-node.size);
+				collectedCount.increment();
+			}
+		}
+	}
+
+
+	private static class Node<T> extends SoftReference<T> {
+
+		private final RegionRequest key;
+		private final long size;
+		private volatile long lastAccess = System.nanoTime();
+
+		private Node(RegionRequest key, T value, long size, ReferenceQueue<T> queue) {
+			super(value, queue);
+			this.key = key;
+			this.size = size;
+		}
+
+	}
+
+
+	private static class Shard<T> {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final LinkedHashMap<RegionRequest, Node<T>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+		/**
+		 * Get the last access time of the least-recently-used entry, or Long.MAX_VALUE if the shard is empty.
+		 */
+		private long eldestAccess() {
+			lock.lock();
+			try {
+				if (map.isEmpty())
+					return Long.MAX_VALUE;
+				return map.values().iterator().next().lastAccess;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private Node<T> removeEldest() {
+			lock.lock();
+			try {
+				var iter = map.values().iterator();
+				if (!iter.hasNext())
+					return null;
+				var node = iter.next();
+				iter.remove();
+				return node;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private List<Node<T>> nodes() {
+			lock.lock();
+			try {
+				return new ArrayList<>(map.values());
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+
+	private class EntrySet extends AbstractSet<Entry<RegionRequest, T>> {
+
+		@Override
+		public Iterator<Entry<RegionRequest, T>> iterator() {
+			List<Node<T>> nodes = new ArrayList<>();
+			for (var shard : shards)
+				nodes.addAll(shard.nodes());
+			return new EntryIterator(nodes.iterator());
+		}
+
+		@Override
+		public int size() {
+			return ShardedRegionCache.this.size();
+		}
+
+		@Override
+		public void clear() {
+			ShardedRegionCache.this.clear();
+		}
+
+	}
+
+
+	private class EntryIterator implements Iterator<Entry<RegionRequest, T>> {
+
+		private final Iterator<Node<T>> nodes;
+		private Entry<RegionRequest, T> next;
+		private RegionRequest lastKey;
+
+		private EntryIterator(Iterator<Node<T>> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		public boolean hasNext() {
+			// Use the nodes directly, since iterating shouldn't affect the access order or stats
+			while (next == null && nodes.hasNext()) {
+				var node = nodes.next();
+				T value = node.get();
+				if (value != null)
+					next = new SimpleImmutableEntry<>(node.key, value);
+			}
+			return next != null;
+		}
+
+		@Override
+		public Entry<RegionRequest, T> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			var entry = next;
+			next = null;
+			lastKey = entry.getKey();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null)
+				throw new IllegalStateException();
+			ShardedRegionCache.this.remove(lastKey);
+			lastKey = null;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ShardedRegionCache: %d entries, %.1f/%.1f MB, hits=%d, misses=%d, evictions=%d",
+				size(), getSizeBytes()/1024.0/1024.0, maxSizeBytes/1024.0/1024.0, getHitCount(), getMissCount(), getEvictionCount());
+	}
+
+}
@@ -51,4 +51,12 @@ interface TileWorker<T> extends RunnableFuture<T> {
 	 */
 	public Map<RegionRequest, T> getRequestedCache();
 	
+	/**
+	 * Returns true if the worker has started fetching the tile.
+	 * Workers that have not started can be cancelled without wasting any work.
+	 * 
+	 * @return
+	 */
+	public boolean isStarted();
+	
 }
\ No newline at end of file
@@ -61,6 +61,8 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
 import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.measurements.ColumnarMeasurementStore;
+import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.MetadataStore;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathDetectionObject;
@@ -470,16 +472,17 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 	
 	@Override
 	public double[] getDoubleValues(final String column) {
-		double[] values = new double[filterList.size()];
 		if (builderMap.containsKey(column)) {
+			double[] values = new double[filterList.size()];
 			for (int i = 0; i < filterList.size(); i++)
 				values[i] = getNumericValue(filterList.get(i), column);
 			return values;
 		}
-		// Good news! We just need a regular measurement
-		for (int i = 0; i < filterList.size(); i++)
-			values[i] = filterList.get(i).getMeasurementList().get(column);
-		return values;
+		// Good news! We just need a regular measurement - and can avoid a per-object lookup if the lists share a store
+		var lists = new ArrayList<MeasurementList>(filterList.size());
+		for (var pathObject : filterList)
+			lists.add(pathObject.getMeasurementList());
+		return ColumnarMeasurementStore.getValues(lists, column);
 	}
 	
 	@Override
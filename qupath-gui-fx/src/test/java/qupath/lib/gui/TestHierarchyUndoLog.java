@@ -0,0 +1,289 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.DefaultTMAGrid;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestHierarchyUndoLog {
+
+	@Test
+	public void test_addAndRemove() {
+		var hierarchy = createHierarchy(100);
+		var log = createLog(hierarchy, 10, Long.MAX_VALUE, false);
+		var detections = new ArrayList<>(hierarchy.getDetectionObjects());
+
+		// Insert an annotation, which should take some of the detections as children
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 505, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.insertPathObject(annotation, true);
+		assertSame(annotation, detections.get(0).getParent());
+		assertTrue(log.canUndo());
+
+		assertTrue(log.undo());
+		assertNull(annotation.getParent());
+		for (var detection : detections)
+			assertSame(hierarchy.getRootObject(), detection.getParent());
+		assertFalse(log.canUndo());
+		assertTrue(log.canRedo());
+
+		assertTrue(log.redo());
+		assertSame(hierarchy.getRootObject(), annotation.getParent());
+		assertSame(annotation, detections.get(0).getParent());
+		assertSame(hierarchy.getRootObject(), detections.get(99).getParent());
+
+		// Remove objects & restore them
+		hierarchy.removeObjects(detections.subList(0, 10), false);
+		assertEquals(90, hierarchy.getDetectionObjects().size());
+		assertTrue(log.undo());
+		assertSame(annotation, detections.get(0).getParent());
+		assertTrue(log.undo());
+		assertTrue(log.redo());
+		assertTrue(log.redo());
+		assertFalse(log.redo());
+		assertEquals(90, hierarchy.getDetectionObjects().size());
+
+		// After undo/redo, the record should match the hierarchy
+		hierarchy.fireHierarchyChangedEvent(this);
+		assertEquals(2, countUndoLevels(log));
+	}
+
+	@Test
+	public void test_childOrder() {
+		var hierarchy = createHierarchy(20);
+		var log = createLog(hierarchy, 10, Long.MAX_VALUE, false);
+		var root = hierarchy.getRootObject();
+		var order = List.of(root.getChildObjectsAsArray());
+
+		// Removing objects from the middle should restore them in their original positions
+		hierarchy.removeObjects(List.of(order.get(3), order.get(4), order.get(12)), false);
+		assertEquals(17, root.nChildObjects());
+		assertTrue(log.undo());
+		assertEquals(order, List.of(root.getChildObjectsAsArray()));
+		assertTrue(log.redo());
+		assertEquals(17, root.nChildObjects());
+		assertTrue(log.undo());
+		assertEquals(order, List.of(root.getChildObjectsAsArray()));
+
+		// Objects moved to another parent should also return to their original positions
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(45, 0, 50, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.insertPathObject(annotation, true);
+		assertSame(annotation, order.get(5).getParent());
+		assertTrue(log.undo());
+		assertEquals(order, List.of(root.getChildObjectsAsArray()));
+	}
+
+	@Test
+	public void test_metadata() {
+		var hierarchy = new PathObjectHierarchy();
+		var core = PathObjects.createTMACoreObject(50, 50, 100, false);
+		hierarchy.setTMAGrid(DefaultTMAGrid.create(List.of(core), 1));
+		var log = createLog(hierarchy, 10, Long.MAX_VALUE, false);
+
+		core.putMetadataValue("Key", "First");
+		hierarchy.fireObjectsChangedEvent(this, List.of(core));
+		core.putMetadataValue("Key", "Second");
+		core.putMetadataValue("Other", "Value");
+		hierarchy.fireObjectsChangedEvent(this, List.of(core));
+
+		assertTrue(log.undo());
+		assertEquals(Map.of("Key", "First"), core.getMetadataMap());
+		assertTrue(log.undo());
+		assertTrue(core.getMetadataMap().isEmpty());
+		assertTrue(log.redo());
+		assertTrue(log.redo());
+		assertEquals(Map.of("Key", "Second", "Other", "Value"), core.getMetadataMap());
+	}
+
+	@Test
+	public void test_structureChangeUsesChangedObjects() {
+		var hierarchy = createHierarchy(100);
+		var log = createLog(hierarchy, 10, Long.MAX_VALUE, false);
+		var detection = hierarchy.getDetectionObjects().iterator().next();
+
+		// Change a detection without firing an event - this shouldn't be found when adding another object,
+		// because the event reports which objects were added
+		detection.setPathClass(PathClass.fromString("Tumor"));
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(2000, 0, 10, 10, ImagePlane.getDefaultPlane()));
+		hierarchy.addObject(annotation);
+		assertTrue(log.undo());
+		assertNull(annotation.getParent());
+		assertEquals(PathClass.fromString("Tumor"), detection.getPathClass());
+
+		// An event without changed objects should still check everything
+		hierarchy.fireHierarchyChangedEvent(this);
+		assertTrue(log.undo());
+		assertNull(detection.getPathClass());
+	}
+
+	@Test
+	public void test_propertiesAndMeasurements() {
+		var hierarchy = createHierarchy(10);
+		var log = createLog(hierarchy, 10, Long.MAX_VALUE, false);
+		var detection = hierarchy.getDetectionObjects().iterator().next();
+
+		detection.setPathClass(PathClass.fromString("Tumor"));
+		hierarchy.fireObjectClassificationsChangedEvent(this, List.of(detection));
+		detection.getMeasurementList().put("Index", -1.5);
+		detection.getMeasurementList().put("Extra", 2.5);
+		hierarchy.fireObjectMeasurementsChangedEvent(this, List.of(detection));
+		detection.setName("Named");
+		hierarchy.fireObjectsChangedEvent(this, List.of(detection));
+
+		assertTrue(log.undo());
+		assertNull(detection.getName());
+		assertEquals(2.5, detection.getMeasurementList().get("Extra"));
+		assertTrue(log.undo());
+		assertEquals(List.of("Index"), detection.getMeasurementList().getMeasurementNames());
+		assertEquals(0, detection.getMeasurementList().get("Index"));
+		assertEquals(PathClass.fromString("Tumor"), detection.getPathClass());
+		assertTrue(log.undo());
+		assertNull(detection.getPathClass());
+
+		assertTrue(log.redo());
+		assertTrue(log.redo());
+		assertTrue(log.redo());
+		assertEquals("Named", detection.getName());
+		assertEquals(2.5, detection.getMeasurementList().get("Extra"));
+	}
+
+	@Test
+	public void test_maxLevels() {
+		var hierarchy = createHierarchy(10);
+		var log = createLog(hierarchy, 3, Long.MAX_VALUE, false);
+		for (int i = 0; i < 5; i++)
+			hierarchy.addObject(PathObjects.createAnnotationObject(ROIs.createRectangleROI(i, i, 1000, 1000, ImagePlane.getDefaultPlane())));
+		assertEquals(3, countUndoLevels(log));
+		assertEquals(5, hierarchy.getAnnotationObjects().size());
+		while (log.undo())
+			continue;
+		assertEquals(2, hierarchy.getAnnotationObjects().size());
+	}
+
+	@Test
+	public void test_maxObjects() {
+		var hierarchy = createHierarchy(100);
+		var log = new HierarchyUndoLog(hierarchy, 10, 99, Long.MAX_VALUE, false);
+		assertFalse(log.isEnabled());
+		assertTrue(log.isTooManyObjects());
+		assertEquals(0L, log.totalBytes());
+
+		log = new HierarchyUndoLog(hierarchy, 10, 101, Long.MAX_VALUE, false);
+		hierarchy.addListener(log::record);
+		assertTrue(log.isEnabled());
+		hierarchy.addObject(PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 10, 10, ImagePlane.getDefaultPlane())));
+		assertTrue(log.isEnabled());
+		assertTrue(log.canUndo());
+		hierarchy.addObject(PathObjects.createAnnotationObject(ROIs.createRectangleROI(10, 10, 10, 10, ImagePlane.getDefaultPlane())));
+		assertFalse(log.isEnabled());
+		assertTrue(log.isTooManyObjects());
+		assertFalse(log.canUndo());
+	}
+
+	@Test
+	public void test_memoryBudget() {
+		var hierarchy = createHierarchy(1000);
+		var log = createLog(hierarchy, 100, 0L, false);
+		assertFalse(log.isEnabled());
+
+		long stateBytes = createLog(hierarchy, 100, Long.MAX_VALUE, false).totalBytes();
+		// Allow plenty of room for the current state, but not for many edits
+		long maxBytes = stateBytes * 10;
+
+		log = createLog(hierarchy, 100, maxBytes, false);
+		assertTrue(log.isEnabled());
+		reclassifyAll(hierarchy, 5);
+		assertTrue(log.totalBytes() <= maxBytes);
+		int nLevels = countUndoLevels(log);
+		assertTrue(nLevels > 0 && nLevels < 5);
+
+		// With spilling, all levels should be available
+		hierarchy = createHierarchy(1000);
+		log = createLog(hierarchy, 100, maxBytes, true);
+		reclassifyAll(hierarchy, 5);
+		assertTrue(log.totalBytes() <= maxBytes);
+		assertTrue(log.nSpilledEdits() > 0);
+		for (int i = 4; i >= 0; i--) {
+			assertEquals(PathClass.fromString("Class " + i), hierarchy.getDetectionObjects().iterator().next().getPathClass());
+			assertTrue(log.undo());
+		}
+		for (var detection : hierarchy.getDetectionObjects())
+			assertNull(detection.getPathClass());
+		log.clear();
+		assertEquals(0, log.nSpilledEdits());
+	}
+
+	private static void reclassifyAll(PathObjectHierarchy hierarchy, int n) {
+		var detections = hierarchy.getDetectionObjects();
+		for (int i = 0; i < n; i++) {
+			var pathClass = PathClass.fromString("Class " + i);
+			detections.forEach(d -> d.setPathClass(pathClass));
+			hierarchy.fireObjectClassificationsChangedEvent(null, detections);
+		}
+	}
+
+	private static int countUndoLevels(HierarchyUndoLog log) {
+		int n = 0;
+		while (log.undo())
+			n++;
+		for (int i = 0; i < n; i++)
+			log.redo();
+		return n;
+	}
+
+	private static HierarchyUndoLog createLog(PathObjectHierarchy hierarchy, int maxLevels, long maxBytes, boolean spillToDisk) {
+		var log = new HierarchyUndoLog(hierarchy, maxLevels, -1, maxBytes, spillToDisk);
+		hierarchy.addListener(e -> log.record(e));
+		return log;
+	}
+
+	private static PathObjectHierarchy createHierarchy(int nDetections) {
+		var hierarchy = new PathObjectHierarchy();
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < nDetections; i++) {
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 5, 5, ImagePlane.getDefaultPlane()));
+			detection.getMeasurementList().put("Index", i);
+			detection.getMeasurementList().close();
+			detections.add(detection);
+		}
+		hierarchy.addObjects(detections);
+		return hierarchy;
+	}
+
+}
@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestShardedRegionCache {
+	
+	private static final Logger logger = LoggerFactory.getLogger(TestShardedRegionCache.class);
+	
+	// Each 32x32 RGB image is 4 KB
+	private static final long TILE_BYTES = 32 * 32 * 4;
+	
+	@Test
+	public void test_getPut() {
+		var cache = new ShardedRegionCache<>(new BufferedImageSizeEstimator(), TILE_BYTES * 100);
+		var request = createRequest(0);
+		assertNull(cache.get(request));
+		assertFalse(cache.containsKey(request));
+		
+		var img = createImage();
+		assertNull(cache.put(request, img));
+		assertSame(img, cache.get(request));
+		assertTrue(cache.containsKey(request));
+		assertEquals(1, cache.size());
+		assertEquals(TILE_BYTES, cache.getSizeBytes());
+		
+		var img2 = createImage();
+		assertSame(img, cache.put(request, img2));
+		assertSame(img2, cache.get(request));
+		assertEquals(TILE_BYTES, cache.getSizeBytes());
+		
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		
+		assertSame(img2, cache.remove(request));
+		assertTrue(cache.isEmpty());
+		assertEquals(0, cache.getSizeBytes());
+		
+		assertThrows(NullPointerException.class, () -> cache.put(request, null));
+	}
+	
+	@Test
+	public void test_eviction() {
+		int maxTiles = 50;
+		var cache = new ShardedRegionCache<>(new BufferedImageSizeEstimator(), TILE_BYTES * maxTiles, 8);
+		for (int i = 0; i < maxTiles * 4; i++) {
+			cache.put(createRequest(i), createImage());
+			assertTrue(cache.getSizeBytes() <= TILE_BYTES * maxTiles);
+			// Keep accessing the first tile, so it should never be evicted
+			assertNotNull(cache.get(createRequest(0)));
+		}
+		assertEquals(maxTiles, cache.size());
+		assertEquals(maxTiles * 3, cache.getEvictionCount());
+		
+		// Most of the most recent tiles should be retained (eviction is only approximately LRU)
+		int nRecent = 0;
+		for (int i = maxTiles * 4 - maxTiles/2; i < maxTiles * 4; i++) {
+			if (cache.containsKey(createRequest(i)))
+				nRecent++;
+		}
+		assertTrue(nRecent >= maxTiles / 4, "Only " + nRecent + " recent tiles retained");
+		
+		// Tiles that are too big should not be cached
+		var bigImage = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB);
+		assertNull(cache.put(createRequest(-1), bigImage));
+		assertFalse(cache.containsKey(createRequest(-1)));
+		
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getSizeBytes());
+	}
+	
+	@Test
+	public void test_iteratorRemove() {
+		var cache = new ShardedRegionCache<>(new BufferedImageSizeEstimator(), TILE_BYTES * 100);
+		for (int i = 0; i < 20; i++)
+			cache.put(createRequest(i), createImage());
+		var iter = cache.entrySet().iterator();
+		int n = 0;
+		while (iter.hasNext()) {
+			var entry = iter.next();
+			if (entry.getKey().getX() % 2 == 0)
+				iter.remove();
+			n++;
+		}
+		assertEquals(20, n);
+		assertEquals(10, cache.size());
+		assertEquals(TILE_BYTES * 10, cache.getSizeBytes());
+		for (var key : cache.keySet())
+			assertTrue(key.getX() % 2 == 1);
+	}
+	
+	/**
+	 * Simple multi-threaded tile read benchmark, which also checks the cache remains consistent.
+	 * Throughput is logged for comparison with a fully synchronized map.
+	 */
+	@Test
+	public void test_concurrentAccess() throws Exception {
+		int nThreads = 16;
+		int nRequests = 20_000;
+		int nTiles = 400;
+		int maxTiles = 200;
+		
+		var cache = new ShardedRegionCache<>(new BufferedImageSizeEstimator(), TILE_BYTES * maxTiles);
+		long nanos = runReads(cache, nThreads, nRequests, nTiles);
+		long total = (long)nThreads * nRequests;
+		assertEquals(total, cache.getHitCount() + cache.getMissCount());
+		assertTrue(cache.getSizeBytes() <= TILE_BYTES * maxTiles);
+		assertTrue(cache.size() <= maxTiles);
+		long sizeBytes = 0;
+		for (var entry : cache.entrySet())
+			sizeBytes += entry.getValue().getWidth() * entry.getValue().getHeight() * 4;
+		assertEquals(cache.getSizeBytes(), sizeBytes);
+		logger.debug("Sharded cache: {} reads in {} ms, {}", total, TimeUnit.NANOSECONDS.toMillis(nanos), cache);
+		
+		var synchronizedCache = new DefaultRegionCache<>(new BufferedImageSizeEstimator(), maxTiles, TILE_BYTES * maxTiles);
+		long nanosSynchronized = runReads(synchronizedCache, nThreads, nRequests, nTiles);
+		logger.debug("Synchronized cache: {} reads in {} ms", total, TimeUnit.NANOSECONDS.toMillis(nanosSynchronized));
+	}
+	
+	private static long runReads(Map<RegionRequest, BufferedImage> cache, int nThreads, int nRequests, int nTiles) throws Exception {
+		var pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int t = 0; t < nThreads; t++) {
+				var rng = new Random(t);
+				tasks.add(() -> {
+					for (int i = 0; i < nRequests; i++) {
+						// Skew requests towards a smaller number of tiles, as when panning in the viewer
+						int ind = (int)Math.abs(rng.nextGaussian() * nTiles / 4) % nTiles;
+						var request = createRequest(ind);
+						if (cache.get(request) == null)
+							cache.put(request, createImage());
+					}
+					return null;
+				});
+			}
+			long start = System.nanoTime();
+			for (var future : pool.invokeAll(tasks))
+				future.get();
+			return System.nanoTime() - start;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private static RegionRequest createRequest(int ind) {
+		return RegionRequest.createInstance("test", 1.0, ind, 0, 32, 32);
+	}
+	
+	private static BufferedImage createImage() {
+		return new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+	}
+
+}
@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2023 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.gui.images.stores.AbstractImageRegionStore.ViewState;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestTilePrefetch {
+	
+	@Test
+	public void test_predictPan() {
+		var server = new PyramidServer();
+		var previous = new ViewState<>(server, new Rectangle2D.Double(0, 0, 1000, 500), 1.0, 0, 0, 1000L);
+		var current = new ViewState<>(server, new Rectangle2D.Double(100, 50, 1000, 500), 1.0, 0, 0, 1050L);
+		var next = current.predictNext(previous);
+		assertNotNull(next);
+		var bounds = next.getBounds();
+		assertEquals(300, bounds.getX(), 1e-6);
+		assertEquals(150, bounds.getY(), 1e-6);
+		assertEquals(1000, bounds.getWidth(), 1e-6);
+		assertEquals(500, bounds.getHeight(), 1e-6);
+		
+		// No movement, so nothing to predict
+		assertNull(current.predictNext(current));
+		// Views too far apart in time don't indicate continuous motion
+		var later = new ViewState<>(server, new Rectangle2D.Double(200, 100, 1000, 500), 1.0, 0, 0, 5000L);
+		assertNull(later.predictNext(current));
+		// Changing z doesn't indicate panning
+		var otherPlane = new ViewState<>(server, new Rectangle2D.Double(200, 100, 1000, 500), 1.0, 1, 0, 1100L);
+		assertNull(otherPlane.predictNext(current));
+	}
+	
+	@Test
+	public void test_predictZoom() throws Exception {
+		var server = new PyramidServer();
+		// Zooming out, centered on the same point
+		var previous = new ViewState<>(server, new Rectangle2D.Double(1000, 1000, 1000, 1000), 1.0, 0, 0, 1000L);
+		var current = new ViewState<>(server, new Rectangle2D.Double(500, 500, 2000, 2000), 2.0, 0, 0, 1050L);
+		var next = current.predictNext(previous);
+		assertNotNull(next);
+		// Predicted downsample should be clamped to the lowest resolution available
+		assertEquals(4.0, next.getDownsample(), 1e-6);
+		var bounds = next.getBounds();
+		assertEquals(1500, bounds.getCenterX(), 1e-6);
+		assertEquals(4000, bounds.getWidth(), 1e-6);
+	}
+	
+	@Test
+	public void test_prefetchWhilePanning() throws Exception {
+		var server = new PyramidServer();
+		var store = ImageRegionStoreFactory.createImageRegionStore(1024L * 1024L * 64L);
+		try {
+			assertTrue(store.isPrefetchEnabled());
+			// Pan right, waiting for the visible tiles each time
+			for (int i = 0; i < 3; i++) {
+				var rect = new Rectangle2D.Double(i * 512, 0, 512, 512);
+				store.registerRequest(null, server, rect, 1.0, 0, 0);
+				waitForTiles(store, server, rect);
+			}
+			assertTrue(store.getPrefetchCount() > 0);
+			// Tiles for the next view should have been prefetched
+			var nextRect = new Rectangle2D.Double(3 * 512, 0, 512, 512);
+			waitForTiles(store, server, nextRect);
+			store.registerRequest(null, server, nextRect, 1.0, 0, 0);
+			assertTrue(store.getPrefetchHitCount() > 0);
+			assertTrue(store.getPrefetchHitCount() <= store.getPrefetchCount());
+			
+			// No more prefetching if disabled
+			store.setPrefetchEnabled(false);
+			long count = store.getPrefetchCount();
+			for (int i = 4; i < 6; i++) {
+				var rect = new Rectangle2D.Double(i * 512, 0, 512, 512);
+				store.registerRequest(null, server, rect, 1.0, 0, 0);
+				waitForTiles(store, server, rect);
+			}
+			assertEquals(count, store.getPrefetchCount());
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void test_requestAfterPrefetchCancelled() throws Exception {
+		var server = new PyramidServer();
+		// Hold back prefetched tiles beyond the visible views, so that they can't start before they are cancelled
+		var store = new GatedImageRegionStore(1536, 1024L * 1024L * 64L);
+		try {
+			for (int i = 0; i < 3; i++) {
+				var rect = new Rectangle2D.Double(i * 512, 0, 512, 512);
+				store.registerRequest(null, server, rect, 1.0, 0, 0);
+				if (i < 2)
+					waitForTiles(store, server, rect);
+			}
+			// Tiles prefetched for the second view aren't needed by the third, and so should have been cancelled
+			var cancelled = store.gatedWorkers.stream().filter(w -> w.isCancelled()).findFirst().orElse(null);
+			assertNotNull(cancelled);
+			store.gate.countDown();
+			
+			// Requesting the tile now should start a new worker, and the tile should load
+			var request = cancelled.getRequest();
+			var result = store.requestImageTile(server, request, store.getCache(), false);
+			assertFalse(result == cancelled);
+			long timeout = System.currentTimeMillis() + 5000L;
+			while (!store.getCache().containsKey(request) && System.currentTimeMillis() < timeout)
+				Thread.sleep(5L);
+			assertTrue(store.getCache().containsKey(request));
+		} finally {
+			store.gate.countDown();
+			store.close();
+		}
+	}
+	
+	private static void waitForTiles(DefaultImageRegionStore store, ImageServer<BufferedImage> server, Rectangle2D rect) throws InterruptedException {
+		var request = RegionRequest.createInstance(server.getPath(), 1.0, 
+				(int)rect.getX(), (int)rect.getY(), (int)rect.getWidth(), (int)rect.getHeight());
+		var tiles = server.getTileRequestManager().getTileRequests(request);
+		long timeout = System.currentTimeMillis() + 5000L;
+		while (System.currentTimeMillis() < timeout) {
+			if (tiles.stream().allMatch(t -> store.getCache().containsKey(t.getRegionRequest())))
+				return;
+			Thread.sleep(5L);
+		}
+	}
+	
+	
+	/**
+	 * Store that blocks workers for tiles at or beyond a specified x-coordinate until the gate is opened.
+	 * Blocked workers haven't started, so they can be cancelled when the view changes.
+	 */
+	static class GatedImageRegionStore extends DefaultImageRegionStore {
+		
+		private final int minGatedX;
+		private final CountDownLatch gate = new CountDownLatch(1);
+		private final Queue<TileWorker<BufferedImage>> gatedWorkers = new ConcurrentLinkedQueue<>();
+		
+		GatedImageRegionStore(int minGatedX, long tileCacheSize) {
+			super(tileCacheSize);
+			this.minGatedX = minGatedX;
+		}
+		
+		@Override
+		protected TileWorker<BufferedImage> createTileWorker(ImageServer<BufferedImage> server, RegionRequest request, Map<RegionRequest, BufferedImage> cache, boolean ensureTileReturned) {
+			if (request.getX() < minGatedX)
+				return super.createTileWorker(server, request, cache, ensureTileReturned);
+			var worker = new DefaultTileWorker(server, request, cache, ensureTileReturned) {
+				@Override
+				public void run() {
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					super.run();
+				}
+			};
+			gatedWorkers.add(worker);
+			return worker;
+		}
+		
+	}
+	
+	
+	/**
+	 * Server with several resolutions, which creates its tiles.
+	 */
+	static class PyramidServer extends AbstractTileableImageServer {
+		
+		private final ImageServerMetadata metadata = new ImageServerMetadata.Builder()
+				.width(8192)
+				.height(4096)
+				.name("Pyramid server")
+				.preferredTileSize(256, 256)
+				.levelsFromDownsamples(1.0, 2.0, 4.0)
+				.rgb(true)
+				.build();
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			return new BufferedImage(tileRequest.getTileWidth(), tileRequest.getTileHeight(), BufferedImage.TYPE_INT_RGB);
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Pyramid server";
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return null;
+		}
+
+		@Override
+		protected String createID() {
+			return "pyramid-server";
+		}
+		
+	}
+
+}